@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import pt.ua.dicoogle.nifti.UidGenerator;
+import pt.ua.dicoogle.nifti.config.NIFTIPluginSettings;
+import pt.ua.dicoogle.nifti.util.BufferPool;
+
+/** End-to-end conversion of streamed volumes, from the (possibly compressed)
+ * bytes of the file to the DICOM objects, for each data type and volume size.
+ * The inflation benchmarks isolate the cost of decompression.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConvertBenchmark {
+
+    @Param({"UINT8", "INT16", "INT32", "FLOAT32"})
+    public String datatype;
+
+    @Param({"64x64x32", "256x256x64", "512x512x32"})
+    public String size;
+
+    @Param({"raw", "gzip"})
+    public String compression;
+
+    private byte[] contents;
+    private NIFTIConverterImpl converter;
+
+    @Setup
+    public void setup() {
+        byte[] raw = SyntheticVolume.create(SyntheticVolume.datatype(datatype), SyntheticVolume.dimensions(size));
+        contents = "gzip".equals(compression) ? SyntheticVolume.gzip(raw) : raw;
+        converter = new NIFTIConverterImpl();
+        converter.setWindowPolicy(WindowPolicy.minMax());
+        converter.setUidGenerator(UidGenerator.unique(NIFTIPluginSettings.DEFAULT_UID_ROOT));
+        converter.setBufferPool(new BufferPool(NIFTIPluginSettings.DEFAULT_BUFFER_POOL_CAPACITY));
+    }
+
+    private InputStream open() throws IOException {
+        InputStream in = new ByteArrayInputStream(contents);
+        return "gzip".equals(compression) ? new GZIPInputStream(in, 1 << 16) : in;
+    }
+
+    @Benchmark
+    public void convert(Blackhole bh) throws IOException {
+        try (InputStream in = open()) {
+            converter.convert(in).forEach(dcm -> {
+                bh.consume(dcm);
+                converter.recycle(dcm);
+            });
+        }
+    }
+
+    @Benchmark
+    public long inflate() throws IOException {
+        byte[] buf = new byte[1 << 16];
+        long total = 0;
+        try (InputStream in = open()) {
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                total += n;
+            }
+        }
+        return total;
+    }
+}
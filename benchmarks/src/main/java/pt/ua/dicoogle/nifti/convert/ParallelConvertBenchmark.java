@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.dcm4che2.data.DicomObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import pt.ua.dicoogle.nifti.UidGenerator;
+import pt.ua.dicoogle.nifti.config.NIFTIPluginSettings;
+import pt.ua.dicoogle.nifti.util.BufferPool;
+
+/** Scaling of the conversion of a 4D volume with the number of cores.
+ * In "file" mode, the volume is read at random and its stream of objects is
+ * split across the pool's threads. In "stream" mode, slices are read in
+ * order, and converted ahead of time by the pool's threads.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParallelConvertBenchmark {
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"file", "stream"})
+    public String mode;
+
+    @Param({"INT16"})
+    public String datatype;
+
+    @Param({"128x128x32x16"})
+    public String size;
+
+    private Path file;
+    private ForkJoinPool pool;
+    private NIFTIConverterImpl converter;
+
+    @Setup
+    public void setup() throws IOException {
+        file = Files.createTempFile("parallel-benchmark", ".nii");
+        Files.write(file, SyntheticVolume.create(SyntheticVolume.datatype(datatype), SyntheticVolume.dimensions(size)));
+        pool = new ForkJoinPool(threads);
+        converter = new NIFTIConverterImpl();
+        converter.setWindowPolicy(WindowPolicy.minMax());
+        converter.setUidGenerator(UidGenerator.unique(NIFTIPluginSettings.DEFAULT_UID_ROOT));
+        converter.setBufferPool(new BufferPool(NIFTIPluginSettings.DEFAULT_BUFFER_POOL_CAPACITY));
+        if ("stream".equals(mode)) {
+            converter.setExecutor(pool, threads * 2);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        pool.shutdown();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public void convert(Blackhole bh) throws IOException, InterruptedException, ExecutionException {
+        if ("file".equals(mode)) {
+            // parallel streams run in the pool which they were started from
+            pool.submit(() -> {
+                try (Stream<DicomObject> objects = converter.convert(file)) {
+                    objects.parallel().forEach(dcm -> consume(bh, dcm));
+                }
+            }).get();
+        } else {
+            try (InputStream in = Files.newInputStream(file)) {
+                converter.convert(in).forEach(dcm -> consume(bh, dcm));
+            }
+        }
+    }
+
+    private void consume(Blackhole bh, DicomObject dcm) {
+        bh.consume(dcm);
+        converter.recycle(dcm);
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pt.ua.dicoogle.nifti.config.NIFTIPluginSettings;
+import pt.ua.dicoogle.nifti.util.BufferPool;
+
+/** Conversion of a single slice to pixel data, with the kernel which the
+ * converter picks for each data type.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PixelDataBenchmark {
+
+    @Param({"UINT8", "INT16", "UINT16", "INT32", "FLOAT32", "FLOAT64"})
+    public String datatype;
+
+    @Param({"256x256", "512x512"})
+    public String size;
+
+    private SliceKernel kernel;
+    private ByteBuffer slice;
+    private int nVoxels;
+    private BufferPool pool;
+
+    @Setup
+    public void setup() throws Exception {
+        short type = SyntheticVolume.datatype(datatype);
+        int[] dims = SyntheticVolume.dimensions(size);
+        NiftiSliceReader reader = new NiftiSliceReader(new ByteArrayInputStream(SyntheticVolume.create(type, dims)));
+        slice = reader.readSlice(0, 0);
+        nVoxels = dims[0] * dims[1];
+        kernel = SliceKernel.forDatatype(type);
+        pool = new BufferPool(NIFTIPluginSettings.DEFAULT_BUFFER_POOL_CAPACITY);
+    }
+
+    @Benchmark
+    public DicomObject putPixelData() {
+        DicomObject obj = new BasicDicomObject();
+        NIFTIConverterImpl.putPixelData(obj, kernel, pool, slice, nVoxels, new SliceKernel.ValueRange());
+        // hand the buffer back, as is done once converted objects are stored
+        pool.release(obj.getBytes(Tag.PixelData));
+        return obj;
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Vectorized against scalar slice kernels. Requires Java 17 or later,
+ * since the forked JVMs enable the incubating Vector API.
+ * The benchmark fails at setup if the vectorized kernels are not available.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector", "-Ddicoogle.nifti.vectorize=true"})
+public class VectorKernelBenchmark {
+
+    @Param({"INT16", "UINT16", "INT32"})
+    public String datatype;
+
+    @Param({"512x512"})
+    public String size;
+
+    private SliceKernel scalar;
+    private SliceKernel vector;
+    private ByteBuffer slice;
+    private byte[] pixelData;
+    private int nVoxels;
+
+    @Setup
+    public void setup() throws Exception {
+        short type = SyntheticVolume.datatype(datatype);
+        int[] dims = SyntheticVolume.dimensions(size);
+        NiftiSliceReader reader = new NiftiSliceReader(new ByteArrayInputStream(SyntheticVolume.create(type, dims)));
+        slice = reader.readSlice(0, 0);
+        nVoxels = dims[0] * dims[1];
+        scalar = SliceKernel.scalarForDatatype(type);
+        vector = SliceKernel.forDatatype(type);
+        if (!VectorKernels.isAvailable() || vector.getClass() == scalar.getClass()) {
+            throw new IllegalStateException("Vectorized kernels are not available for " + datatype);
+        }
+        pixelData = new byte[nVoxels * scalar.bytesAllocated()];
+    }
+
+    @Benchmark
+    public SliceKernel.ValueRange scalar() {
+        SliceKernel.ValueRange range = new SliceKernel.ValueRange();
+        scalar.convert(slice, pixelData, nVoxels, range);
+        return range;
+    }
+
+    @Benchmark
+    public SliceKernel.ValueRange vector() {
+        SliceKernel.ValueRange range = new SliceKernel.ValueRange();
+        vector.convert(slice, pixelData, nVoxels, range);
+        return range;
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Estimation of VOI windows, over a slice as done for streamed volumes,
+ * and over a whole volume as done for files which can be read at random.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WindowBenchmark {
+
+    @Param({"UINT8", "INT16", "INT32", "FLOAT32"})
+    public String datatype;
+
+    @Param({"256x256x64"})
+    public String size;
+
+    /** The percentiles at each end of the window, "0-100" being the full range. */
+    @Param({"0-100", "1-99"})
+    public String percentiles;
+
+    private WindowPolicy policy;
+    private SliceKernel kernel;
+    private NiftiSliceReader sliceReader;
+    private ByteBuffer slice;
+    private int nVoxels;
+    private SliceKernel.ValueRange range;
+    private Path file;
+    private FileChannel channel;
+    private NiftiSliceReader volumeReader;
+
+    @Setup
+    public void setup() throws IOException {
+        short type = SyntheticVolume.datatype(datatype);
+        int[] dims = SyntheticVolume.dimensions(size);
+        byte[] contents = SyntheticVolume.create(type, dims);
+        String[] p = percentiles.split("-");
+        policy = new WindowPolicy(null, false, Double.parseDouble(p[0]), Double.parseDouble(p[1]));
+        kernel = SliceKernel.forDatatype(type);
+
+        sliceReader = new NiftiSliceReader(new ByteArrayInputStream(contents));
+        slice = sliceReader.readSlice(0, 0);
+        nVoxels = dims[0] * dims[1];
+        // the value range is collected by the kernel while converting
+        range = new SliceKernel.ValueRange();
+        kernel.convert(slice, new byte[nVoxels * kernel.bytesAllocated()], nVoxels, range);
+
+        file = Files.createTempFile("window-benchmark", ".nii");
+        Files.write(file, contents);
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        volumeReader = new NiftiSliceReader(channel);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        channel.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public DicomObject sliceWindow() {
+        return WindowEstimator.sliceWindow(policy, sliceReader.getHeader(), kernel, slice, nVoxels, range)
+                .apply(new BasicDicomObject());
+    }
+
+    @Benchmark
+    public DicomObject volumeWindow() {
+        return WindowEstimator.volumeWindow(policy, volumeReader, kernel, ForkJoinPool.commonPool())
+                .apply(new BasicDicomObject());
+    }
+}
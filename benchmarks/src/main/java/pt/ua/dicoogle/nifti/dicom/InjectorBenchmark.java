@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.dicom;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import niftijio.niftijio.NiftiHeader;
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pt.ua.dicoogle.nifti.convert.NIFTIConverterImpl;
+import pt.ua.dicoogle.nifti.convert.NiftiSliceReader;
+import pt.ua.dicoogle.nifti.convert.SyntheticVolume;
+
+/** Application of the attribute injectors to a fresh object, individually
+ * and as the compiled chain used by the web service. The baseline measures
+ * the creation of the object alone.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InjectorBenchmark {
+
+    private DicomInjector niftiInjector;
+    private DicomInjector patient;
+    private DicomInjector generalClinic;
+    private DicomInjector bodyPart;
+    private DicomInjector ct;
+    private DicomInjector mr;
+    private DicomInjector chain;
+
+    @Setup
+    public void setup() throws IOException {
+        NiftiHeader header = new NiftiSliceReader(new ByteArrayInputStream(SyntheticVolume.create(
+                SyntheticVolume.datatype("INT16"), SyntheticVolume.dimensions("64x64x4")))).getHeader();
+        niftiInjector = new NIFTIConverterImpl.NIFTIDicomInjector(header);
+        patient = new PatientDicomInjector("Patient^Anonymous", "123456789");
+        generalClinic = new GeneralClinicDicomInjector("UNKNOWN", "UA.PT Bioinformatics");
+        bodyPart = new BodyPartDicomInjector("WHOLEBODY");
+        ct = new CTClassDicomInjector();
+        mr = new MRClassDicomInjector();
+        chain = chainBuilder().build();
+    }
+
+    // the same chain as the web service's
+    private static DicomInjectorBuilder chainBuilder() {
+        return new DicomInjectorBuilder()
+                .patient("Patient^Anonymous", "123456789")
+                .generalClinic("UNKNOWN", "UA.PT Bioinformatics")
+                .bodyPart("WHOLEBODY")
+                .modality("CT");
+    }
+
+    @Benchmark
+    public DicomObject baseline() {
+        return new BasicDicomObject();
+    }
+
+    @Benchmark
+    public DicomObject niftiHeader() {
+        return niftiInjector.apply(new BasicDicomObject());
+    }
+
+    @Benchmark
+    public DicomObject patient() {
+        return patient.apply(new BasicDicomObject());
+    }
+
+    @Benchmark
+    public DicomObject generalClinic() {
+        return generalClinic.apply(new BasicDicomObject());
+    }
+
+    @Benchmark
+    public DicomObject bodyPart() {
+        return bodyPart.apply(new BasicDicomObject());
+    }
+
+    @Benchmark
+    public DicomObject ct() {
+        return ct.apply(new BasicDicomObject());
+    }
+
+    @Benchmark
+    public DicomObject mr() {
+        return mr.apply(new BasicDicomObject());
+    }
+
+    @Benchmark
+    public DicomObject chain() {
+        return chain.apply(new BasicDicomObject());
+    }
+
+    @Benchmark
+    public DicomInjector buildChain() {
+        return chainBuilder().build();
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/** A generator of UIDs derived from the content of the volume. Each UID has
+ * the form {@code <root>.1.<hash>}, where the hash is the first 64 bits of
+ * the SHA-256 of the content digest and the position of the object in the
+ * volume (including the slices held, for multi-frame objects), so converting
+ * the same content again yields the same UIDs.
+ * Volumes without a content digest are given unique UIDs under the same root.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public final class DeterministicUidGenerator implements UidGenerator {
+
+    private static final byte STUDY = 1;
+    private static final byte SERIES = 2;
+    private static final byte INSTANCE = 3;
+    private static final byte MULTI_FRAME_INSTANCE = 4;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    });
+
+    private final String root;
+    private final String prefix;
+
+    /** Create a generator.
+     * @param root the UID root
+     */
+    public DeterministicUidGenerator(String root) {
+        this.root = root;
+        this.prefix = root + ".1.";
+    }
+
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
+    @Override
+    public VolumeUids newVolume(byte[] contentDigest) {
+        if (contentDigest == null) {
+            return UidGenerator.unique(root).newVolume(null);
+        }
+        final byte[] digest = contentDigest.clone();
+        return new VolumeUids() {
+            @Override
+            public String studyInstanceUid() {
+                return uid(digest, STUDY, 0, 0);
+            }
+
+            @Override
+            public String seriesInstanceUid(int dim) {
+                return uid(digest, SERIES, dim, 0);
+            }
+
+            @Override
+            public String sopInstanceUid(int dim, int nz) {
+                return uid(digest, INSTANCE, dim, nz);
+            }
+
+            @Override
+            public String multiFrameInstanceUid(int dim, int zFirst, int zLast, int zStride) {
+                return uid(digest, MULTI_FRAME_INSTANCE, dim, zFirst, zLast, zStride);
+            }
+        };
+    }
+
+    private String uid(byte[] digest, byte kind, int... position) {
+        MessageDigest md = SHA256.get();
+        md.update(digest);
+        ByteBuffer bb = ByteBuffer.allocate(1 + 4 * position.length).put(kind);
+        for (int p : position) {
+            bb.putInt(p);
+        }
+        md.update(bb.array());
+        byte[] hash = md.digest();
+        // unsigned, so that the component has no sign and no leading zeros
+        BigInteger value = new BigInteger(1, Arrays.copyOf(hash, 8));
+        return prefix + value.toString();
+    }
+}
@@ -73,6 +73,7 @@ public class NIFTIPluginSet implements PluginSet {
     @Override
     public void shutdown() {
         logger.info("NIFTI plugin is shutting down");
+        this.jettyWeb.shutdown();
     }
 
     @Override
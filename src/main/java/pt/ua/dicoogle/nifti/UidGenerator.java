@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti;
+
+import pt.ua.dicoogle.nifti.config.NIFTIPluginSettings;
+
+/** A source of DICOM UIDs for converted volumes.
+ *
+ * Two kinds of generators are provided: {@link #unique(String)}, which
+ * never repeats a UID, and {@link #deterministic(String)}, which derives
+ * UIDs from a digest of the volume's content, so that converting the same
+ * file again yields the same UIDs. Implementations must be thread-safe.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public interface UidGenerator {
+
+    /** The UIDs of the objects converted from one volume. */
+    interface VolumeUids {
+        /** @return the study instance UID of the volume */
+        String studyInstanceUid();
+
+        /** Obtain the series instance UID for an index of the 4th dimension.
+         * Unique generators produce a new UID on each call.
+         * @param dim the 4th dimension index
+         * @return the series instance UID
+         */
+        String seriesInstanceUid(int dim);
+
+        /** Obtain the SOP instance UID for a slice.
+         * Unique generators produce a new UID on each call.
+         * @param dim the 4th dimension index
+         * @param nz the z index
+         * @return the SOP instance UID
+         */
+        String sopInstanceUid(int dim, int nz);
+
+        /** Obtain the SOP instance UID for a multi-frame object holding slices
+         * of one index of the 4th dimension. Deterministic generators tell it
+         * apart from the single-frame objects of the same slices, and from
+         * multi-frame objects holding other slices of the same volume.
+         * Unique generators produce a new UID on each call.
+         * @param dim the 4th dimension index
+         * @param zFirst the z index of the first slice
+         * @param zLast the z index of the last slice
+         * @param zStride the distance between the z indexes of the slices
+         * @return the SOP instance UID
+         */
+        String multiFrameInstanceUid(int dim, int zFirst, int zLast, int zStride);
+    }
+
+    /** @return whether the UIDs depend only on the content digest given to {@link #newVolume(byte[])} */
+    boolean isDeterministic();
+
+    /** Begin generating the UIDs of a volume.
+     *
+     * @param contentDigest a digest of the volume's content, used by
+     * deterministic generators and ignored by the others. Without it,
+     * deterministic generators fall back to unique UIDs.
+     * @return the volume's UIDs
+     */
+    VolumeUids newVolume(byte[] contentDigest);
+
+    /** Obtain the generator of unique UIDs under the given root. Generators
+     * of the same root are shared, so that they do not collide.
+     *
+     * @param root the UID root
+     * @return the unique UID generator
+     */
+    static UidGenerator unique(String root) {
+        return UniqueUidGenerator.forRoot(root);
+    }
+
+    /** Obtain a generator of UIDs derived from content digests, under the given root.
+     *
+     * @param root the UID root
+     * @return the deterministic UID generator
+     */
+    static UidGenerator deterministic(String root) {
+        return new DeterministicUidGenerator(root);
+    }
+
+    /** Obtain the UID generator described by the plugin's settings
+     * (see {@link NIFTIPluginSettings#getUidRoot()} and {@link NIFTIPluginSettings#isDeterministicUids()}).
+     *
+     * @return the UID generator
+     */
+    static UidGenerator fromSettings() {
+        String root = NIFTIPluginSettings.INSTANCE.getUidRoot();
+        if (root == null) {
+            root = NIFTIPluginSettings.DEFAULT_UID_ROOT;
+        }
+        return NIFTIPluginSettings.INSTANCE.isDeterministicUids() ? deterministic(root) : unique(root);
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** A generator of unique UIDs without contention. Each UID has the form
+ * {@code <root>.<node>.<epoch>.<thread>.<counter>}, where the node is
+ * derived from the host and process, the epoch is the time in milliseconds
+ * at which the generator was created (strictly increasing within the
+ * process), and each thread keeps a counter of its own.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public final class UniqueUidGenerator implements UidGenerator {
+    private static final Logger logger = LoggerFactory.getLogger(UniqueUidGenerator.class);
+
+    /** The maximum length of the root which keeps UIDs within 64 characters. */
+    static final int MAX_ROOT_LENGTH = 24;
+
+    private static final ConcurrentMap<String, UniqueUidGenerator> GENERATORS = new ConcurrentHashMap<>();
+    private static final AtomicLong LAST_EPOCH = new AtomicLong();
+    private static final int NODE = nodeId();
+
+    private final String prefix;
+    private final AtomicInteger threads = new AtomicInteger();
+    private final ThreadLocal<ThreadCounter> counter = ThreadLocal.withInitial(
+            () -> new ThreadCounter(threads.incrementAndGet()));
+
+    private static final class ThreadCounter {
+        final String prefix;
+        long next = 0;
+
+        ThreadCounter(int thread) {
+            this.prefix = Integer.toString(thread) + '.';
+        }
+    }
+
+    static UniqueUidGenerator forRoot(String root) {
+        return GENERATORS.computeIfAbsent(root, UniqueUidGenerator::new);
+    }
+
+    /** Create a generator. Prefer {@link UidGenerator#unique(String)}, which shares generators by root.
+     * @param root the UID root
+     */
+    UniqueUidGenerator(String root) {
+        if (root.length() > MAX_ROOT_LENGTH) {
+            logger.warn("UID root {} is too long, UIDs may exceed 64 characters", root);
+        }
+        this.prefix = root + '.' + NODE + '.' + nextEpoch() + '.';
+    }
+
+    /** @return a new unique UID */
+    public String next() {
+        ThreadCounter c = counter.get();
+        return prefix + c.prefix + (++c.next);
+    }
+
+    @Override
+    public boolean isDeterministic() {
+        return false;
+    }
+
+    @Override
+    public VolumeUids newVolume(byte[] contentDigest) {
+        final String study = next();
+        return new VolumeUids() {
+            @Override
+            public String studyInstanceUid() {
+                return study;
+            }
+
+            @Override
+            public String seriesInstanceUid(int dim) {
+                return next();
+            }
+
+            @Override
+            public String sopInstanceUid(int dim, int nz) {
+                return next();
+            }
+
+            @Override
+            public String multiFrameInstanceUid(int dim, int zFirst, int zLast, int zStride) {
+                return next();
+            }
+        };
+    }
+
+    // the current time in milliseconds, but never the same twice
+    private static long nextEpoch() {
+        long now = System.currentTimeMillis();
+        return LAST_EPOCH.updateAndGet(last -> Math.max(now, last + 1));
+    }
+
+    private static int nodeId() {
+        // "pid@hostname" in most runtimes
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        return (name.hashCode() & Integer.MAX_VALUE) % 100_000;
+    }
+}
@@ -23,6 +23,10 @@ package pt.ua.dicoogle.nifti.config;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.commons.configuration.XMLConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,22 +40,222 @@ public enum NIFTIPluginSettings {
     INSTANCE;
 
     private static final Logger logger = LoggerFactory.getLogger(NIFTIPluginSettings.class);
+
+    /** The default UID root. */
+    public static final String DEFAULT_UID_ROOT = "1.2.351.99999";
+
+    /** The default capacity of the pixel buffer pool, in bytes. */
+    public static final long DEFAULT_BUFFER_POOL_CAPACITY = 64L << 20;
+
+    /** The default path of the index of converted files. */
+    public static final String DEFAULT_DEDUP_INDEX_FILE = "nifti-digests.idx";
+
+    /** The default time to live of finished conversion jobs, in seconds. */
+    public static final long DEFAULT_JOB_TTL = 3600;
+
+    /** The default maximum number of conversions waiting for a worker. */
+    public static final int DEFAULT_WORKER_QUEUE_DEPTH = 32;
+
+    /** The default number of seconds after which clients are told to retry when all workers are busy. */
+    public static final int DEFAULT_WORKER_RETRY_AFTER = 5;
+
+    /** The default number of seconds to wait for running conversions on shutdown. */
+    public static final long DEFAULT_WORKER_DRAIN_TIMEOUT = 60;
+
+    /** The default maximum number of files of a request converted at once. */
+    public static final int DEFAULT_FILES_PER_REQUEST = 4;
+
+    /** The default directory where uploaded files are kept while spooling multipart content. */
+    public static final String DEFAULT_MULTIPART_LOCATION = System.getProperty("java.io.tmpdir");
+
+    /** The default maximum number of objects of a conversion waiting or being stored. */
+    public static final int DEFAULT_STORE_QUEUE_DEPTH = 8;
+
+    /** The default size of the buffers of inflated data, in bytes. */
+    public static final int DEFAULT_INFLATE_BUFFER_SIZE = 256 << 10;
+
+    /** The default number of buffers of inflated data read ahead of conversion. */
+    public static final int DEFAULT_INFLATE_READ_AHEAD = 4;
+
+    /** The default minimum distance between the access points of GZip indexes, in inflated bytes. */
+    public static final long DEFAULT_INFLATE_INDEX_SPAN = 64 << 10;
+
+    /** The default number of seconds a conversion waits to be admitted. */
+    public static final long DEFAULT_ADMISSION_TIMEOUT = 10;
+
+    /** The default fraction of the tenured generation over which conversions are held back. */
+    public static final double DEFAULT_HEAP_WATERMARK = 0.85;
     
     private String uidRoot;
+    private boolean deterministicUids = false;
     private String storageScheme;
     private boolean enabled;
+    private boolean windowFromHeader = true;
+    private double windowLowPercentile = 0;
+    private double windowHighPercentile = 100;
+    private boolean windowPerStreamedSlice = false;
+    private List<WindowPreset> windowPresets = Collections.emptyList();
+    private long bufferPoolCapacity = DEFAULT_BUFFER_POOL_CAPACITY;
+    private boolean dedupEnabled = false;
+    private String dedupIndexFile = DEFAULT_DEDUP_INDEX_FILE;
+    private long jobTtl = DEFAULT_JOB_TTL;
+    private int workerThreads = 0;
+    private int workerQueueDepth = DEFAULT_WORKER_QUEUE_DEPTH;
+    private int workerRetryAfter = DEFAULT_WORKER_RETRY_AFTER;
+    private long workerDrainTimeout = DEFAULT_WORKER_DRAIN_TIMEOUT;
+    private int filesPerRequest = DEFAULT_FILES_PER_REQUEST;
+    private int storeThreads = -1;
+    private boolean multipartStreaming = false;
+    private String multipartLocation = System.getProperty("java.io.tmpdir");
+    private long multipartMaxFileSize = -1;
+    private long multipartMaxRequestSize = -1;
+    private int multipartFileSizeThreshold = 0;
+    private int storeQueueDepth = DEFAULT_STORE_QUEUE_DEPTH;
+    private int convertAhead = 0;
+    private int inflateBufferSize = DEFAULT_INFLATE_BUFFER_SIZE;
+    private int inflateReadAhead = DEFAULT_INFLATE_READ_AHEAD;
+    private int inflateThreads = 0;
+    private String inflateIndexDirectory = null;
+    private long inflateIndexSpan = DEFAULT_INFLATE_INDEX_SPAN;
+    private boolean serverTiming = false;
+    private long memoryBudget = -1;
+    private long admissionTimeout = DEFAULT_ADMISSION_TIMEOUT;
+    private double heapWatermark = DEFAULT_HEAP_WATERMARK;
     
     public synchronized void configure(ConfigurationHolder config) {
         XMLConfiguration settings = config.getConfiguration();
-        uidRoot = settings.getString("uid-root", "1.2.351.99999");
+        uidRoot = settings.getString("uid-root", DEFAULT_UID_ROOT);
+        String uidGenerator = settings.getString("uid-generator", "unique");
+        deterministicUids = "deterministic".equalsIgnoreCase(uidGenerator);
+        if (!deterministicUids && !"unique".equalsIgnoreCase(uidGenerator)) {
+            logger.warn("Unknown UID generator \"{}\", using unique UIDs", uidGenerator);
+        }
         enabled = settings.getBoolean("enabled", true);
         storageScheme = settings.getString("storage-scheme", "file");
+        windowFromHeader = settings.getBoolean("window.use-header", true);
+        windowLowPercentile = settings.getDouble("window.low-percentile", 0);
+        windowHighPercentile = settings.getDouble("window.high-percentile", 100);
+        if (windowLowPercentile < 0 || windowHighPercentile > 100 || windowLowPercentile >= windowHighPercentile) {
+            logger.warn("Invalid window percentiles {}-{}, using the full value range", windowLowPercentile, windowHighPercentile);
+            windowLowPercentile = 0;
+            windowHighPercentile = 100;
+        }
+        String streamedWindow = settings.getString("window.streamed", "volume");
+        windowPerStreamedSlice = "slice".equalsIgnoreCase(streamedWindow);
+        if (!windowPerStreamedSlice && !"volume".equalsIgnoreCase(streamedWindow)) {
+            logger.warn("Unknown window scope \"{}\" for streamed files, using one window per volume", streamedWindow);
+        }
+        List<WindowPreset> presets = new ArrayList<>();
+        for (Object o : settings.configurationsAt("window.preset")) {
+            HierarchicalConfiguration c = (HierarchicalConfiguration) o;
+            try {
+                presets.add(new WindowPreset(
+                        c.getString("[@modality]", null),
+                        c.getString("[@body-part]", null),
+                        c.getDouble("[@center]", Double.NaN),
+                        c.getDouble("[@width]", Double.NaN)));
+            } catch (IllegalArgumentException ex) {
+                logger.warn("Ignoring invalid window preset", ex);
+            }
+        }
+        windowPresets = Collections.unmodifiableList(presets);
+        bufferPoolCapacity = settings.getLong("buffer-pool.capacity", DEFAULT_BUFFER_POOL_CAPACITY);
+        if (bufferPoolCapacity < 0) {
+            logger.warn("Invalid buffer pool capacity {}, using the default", bufferPoolCapacity);
+            bufferPoolCapacity = DEFAULT_BUFFER_POOL_CAPACITY;
+        }
+        dedupEnabled = settings.getBoolean("dedup.enabled", false);
+        dedupIndexFile = settings.getString("dedup.index-file", DEFAULT_DEDUP_INDEX_FILE);
+        jobTtl = settings.getLong("jobs.ttl", DEFAULT_JOB_TTL);
+        if (jobTtl < 0) {
+            logger.warn("Invalid job time to live {}, using the default", jobTtl);
+            jobTtl = DEFAULT_JOB_TTL;
+        }
+        workerThreads = settings.getInt("workers.threads", 0);
+        if (workerThreads < 0) {
+            logger.warn("Invalid number of workers {}, using one per processor", workerThreads);
+            workerThreads = 0;
+        }
+        workerQueueDepth = settings.getInt("workers.queue-depth", DEFAULT_WORKER_QUEUE_DEPTH);
+        if (workerQueueDepth < 0) {
+            logger.warn("Invalid worker queue depth {}, using the default", workerQueueDepth);
+            workerQueueDepth = DEFAULT_WORKER_QUEUE_DEPTH;
+        }
+        workerRetryAfter = Math.max(1, settings.getInt("workers.retry-after", DEFAULT_WORKER_RETRY_AFTER));
+        workerDrainTimeout = Math.max(0, settings.getLong("workers.drain-timeout", DEFAULT_WORKER_DRAIN_TIMEOUT));
+        filesPerRequest = settings.getInt("workers.files-per-request", DEFAULT_FILES_PER_REQUEST);
+        if (filesPerRequest < 1) {
+            logger.warn("Invalid number of files per request {}, using the default", filesPerRequest);
+            filesPerRequest = DEFAULT_FILES_PER_REQUEST;
+        }
+        storeThreads = settings.getInt("pipeline.store-threads", -1);
+        if (storeThreads < -1) {
+            logger.warn("Invalid number of storage threads {}, using one per worker", storeThreads);
+            storeThreads = -1;
+        }
+        multipartStreaming = settings.getBoolean("multipart.streaming", false);
+        if (multipartStreaming && !windowPerStreamedSlice && settings.getString("window.streamed", null) != null) {
+            logger.warn("Streamed multipart parts are converted as they arrive, with a window per slice,"
+                    + " regardless of window.streamed");
+        }
+        multipartLocation = settings.getString("multipart.location", DEFAULT_MULTIPART_LOCATION);
+        multipartMaxFileSize = Math.max(-1, settings.getLong("multipart.max-file-size", -1));
+        multipartMaxRequestSize = Math.max(-1, settings.getLong("multipart.max-request-size", -1));
+        multipartFileSizeThreshold = Math.max(0, settings.getInt("multipart.file-size-threshold", 0));
+        storeQueueDepth = settings.getInt("pipeline.queue-depth", DEFAULT_STORE_QUEUE_DEPTH);
+        if (storeQueueDepth < 1) {
+            logger.warn("Invalid storage queue depth {}, using the default", storeQueueDepth);
+            storeQueueDepth = DEFAULT_STORE_QUEUE_DEPTH;
+        }
+        convertAhead = settings.getInt("pipeline.convert-ahead", 0);
+        if (convertAhead < 0) {
+            logger.warn("Invalid number of slices converted ahead {}, converting them on demand", convertAhead);
+            convertAhead = 0;
+        }
+        inflateBufferSize = settings.getInt("inflate.buffer-size", DEFAULT_INFLATE_BUFFER_SIZE);
+        if (inflateBufferSize < 512) {
+            logger.warn("Invalid inflation buffer size {}, using the default", inflateBufferSize);
+            inflateBufferSize = DEFAULT_INFLATE_BUFFER_SIZE;
+        }
+        inflateReadAhead = settings.getInt("inflate.read-ahead", DEFAULT_INFLATE_READ_AHEAD);
+        if (inflateReadAhead < 0) {
+            logger.warn("Invalid inflation read-ahead {}, using the default", inflateReadAhead);
+            inflateReadAhead = DEFAULT_INFLATE_READ_AHEAD;
+        }
+        inflateThreads = settings.getInt("inflate.threads", 0);
+        if (inflateThreads < 0) {
+            logger.warn("Invalid number of inflation threads {}, using one per processor", inflateThreads);
+            inflateThreads = 0;
+        }
+        inflateIndexDirectory = settings.getString("inflate.index-directory", null);
+        inflateIndexSpan = settings.getLong("inflate.index-span", DEFAULT_INFLATE_INDEX_SPAN);
+        if (inflateIndexSpan < 0) {
+            logger.warn("Invalid GZip index span {}, using the default", inflateIndexSpan);
+            inflateIndexSpan = DEFAULT_INFLATE_INDEX_SPAN;
+        }
+        serverTiming = settings.getBoolean("metrics.server-timing", false);
+        memoryBudget = settings.getLong("admission.memory-budget", -1);
+        if (memoryBudget < -1) {
+            logger.warn("Invalid memory budget {}, using a quarter of the heap", memoryBudget);
+            memoryBudget = -1;
+        }
+        admissionTimeout = Math.max(0, settings.getLong("admission.timeout", DEFAULT_ADMISSION_TIMEOUT));
+        heapWatermark = settings.getDouble("admission.heap-watermark", DEFAULT_HEAP_WATERMARK);
+        if (heapWatermark < 0 || heapWatermark > 1) {
+            logger.warn("Invalid heap watermark {}, using the default", heapWatermark);
+            heapWatermark = DEFAULT_HEAP_WATERMARK;
+        }
     }
     
     public synchronized String getUidRoot() {
         return uidRoot;
     }
 
+    /** @return whether UIDs are derived from the content of the converted files, rather than always unique */
+    public synchronized boolean isDeterministicUids() {
+        return deterministicUids;
+    }
+
     public synchronized String getStorageScheme() {
         return storageScheme;
     }
@@ -67,5 +271,182 @@ public enum NIFTIPluginSettings {
     public synchronized void setEnabled(boolean enabled) {
         this.enabled = enabled;
     }
+
+    /** @return whether to use the calibration range in the NIFTI header (cal_min, cal_max) as the window, when set */
+    public synchronized boolean isWindowFromHeader() {
+        return windowFromHeader;
+    }
+
+    /** @return the percentile of voxel values at the lower end of estimated windows */
+    public synchronized double getWindowLowPercentile() {
+        return windowLowPercentile;
+    }
+
+    /** @return the percentile of voxel values at the upper end of estimated windows */
+    public synchronized double getWindowHighPercentile() {
+        return windowHighPercentile;
+    }
+
+    /** @return whether the estimated window of each slice of a streamed file is its own, rather than
+     * that of the whole volume, which requires the file to be written to disk beforehand */
+    public synchronized boolean isWindowPerStreamedSlice() {
+        return windowPerStreamedSlice;
+    }
+
+    public synchronized List<WindowPreset> getWindowPresets() {
+        return windowPresets;
+    }
+
+    /** @return the maximum number of bytes of pixel buffers kept for reuse between conversions */
+    public synchronized long getBufferPoolCapacity() {
+        return bufferPoolCapacity;
+    }
+
+    /** @return whether files which were already converted are recognized by their content and not converted again */
+    public synchronized boolean isDedupEnabled() {
+        return dedupEnabled;
+    }
+
+    /** @return the path to the index of converted files */
+    public synchronized String getDedupIndexFile() {
+        return dedupIndexFile;
+    }
+
+    /** @return for how long finished conversion jobs can be queried, in seconds */
+    public synchronized long getJobTtl() {
+        return jobTtl;
+    }
+
+    /** @return the number of conversion workers, one per available processor by default */
+    public synchronized int getWorkerThreads() {
+        return workerThreads > 0 ? workerThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /** @return the maximum number of conversions waiting for a worker, beyond which requests are turned away */
+    public synchronized int getWorkerQueueDepth() {
+        return workerQueueDepth;
+    }
+
+    /** @return the number of seconds after which turned away clients should retry */
+    public synchronized int getWorkerRetryAfter() {
+        return workerRetryAfter;
+    }
+
+    /** @return the maximum number of seconds to wait for running conversions when shutting down */
+    public synchronized long getWorkerDrainTimeout() {
+        return workerDrainTimeout;
+    }
+
+    /** @return the maximum number of files of a request converted at once */
+    public synchronized int getFilesPerRequest() {
+        return filesPerRequest;
+    }
+
+    /** @return the number of threads storing converted objects, 0 to store them in the converting threads,
+     * one per conversion worker by default
+     */
+    public synchronized int getStoreThreads() {
+        return storeThreads >= 0 ? storeThreads : getWorkerThreads();
+    }
+
+    /** @return the maximum number of objects of a conversion waiting or being stored at once */
+    public synchronized int getStoreQueueDepth() {
+        return storeQueueDepth;
+    }
+
+    /** @return the maximum number of slices of a file converted ahead of time in parallel,
+     * 0 to convert them on demand in the worker
+     */
+    public synchronized int getConvertAhead() {
+        return convertAhead;
+    }
+
+    /** @return whether multipart content is converted while it arrives, rather than spooled beforehand */
+    public synchronized boolean isMultipartStreaming() {
+        return multipartStreaming;
+    }
+
+    /** @return the directory where uploaded files are kept while spooling multipart content */
+    public synchronized String getMultipartLocation() {
+        return multipartLocation;
+    }
+
+    /** @return the maximum size of each uploaded file in bytes, or -1 for no limit */
+    public synchronized long getMultipartMaxFileSize() {
+        return multipartMaxFileSize;
+    }
+
+    /** @return the maximum size of multipart content in bytes, or -1 for no limit */
+    public synchronized long getMultipartMaxRequestSize() {
+        return multipartMaxRequestSize;
+    }
+
+    /** @return the size in bytes beyond which spooled files are written to disk rather than kept in memory */
+    public synchronized int getMultipartFileSizeThreshold() {
+        return multipartFileSizeThreshold;
+    }
+
+    /** @return the size of the buffers of inflated data, in bytes */
+    public synchronized int getInflateBufferSize() {
+        return inflateBufferSize;
+    }
+
+    /** @return the number of buffers of inflated data read ahead of conversion, 0 to inflate in the converting thread */
+    public synchronized int getInflateReadAhead() {
+        return inflateReadAhead;
+    }
+
+    /** @return the number of threads inflating the blocks of BGZF files in parallel */
+    public synchronized int getInflateThreads() {
+        return inflateThreads > 0 ? inflateThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /** @return the directory where the indexes of BGZF files are kept, or null if they are not indexed */
+    public synchronized String getInflateIndexDirectory() {
+        return inflateIndexDirectory;
+    }
+
+    /** @return the minimum distance between the access points of GZip indexes, in inflated bytes */
+    public synchronized long getInflateIndexSpan() {
+        return inflateIndexSpan;
+    }
+
+    /** @return whether conversion responses include a Server-Timing header with the time spent in each stage */
+    public synchronized boolean isServerTiming() {
+        return serverTiming;
+    }
+
+    /** @return the number of bytes which admitted conversions may use at once, a quarter of the heap by default, or 0 for no limit */
+    public synchronized long getMemoryBudget() {
+        return memoryBudget >= 0 ? memoryBudget : Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    /** @return the number of seconds a conversion waits to be admitted, before being turned away */
+    public synchronized long getAdmissionTimeout() {
+        return admissionTimeout;
+    }
+
+    /** @return the fraction of the tenured generation over which conversions are held back, or 0 for none */
+    public synchronized double getHeapWatermark() {
+        return heapWatermark;
+    }
+
+    /** Find the most specific window preset for a series.
+     * @param modality the series' modality, may be null
+     * @param bodyPart the series' examined body part, may be null
+     * @return the matching window preset, or null if none applies
+     */
+    public synchronized WindowPreset findWindowPreset(String modality, String bodyPart) {
+        WindowPreset best = null;
+        int bestScore = -1;
+        for (WindowPreset preset : windowPresets) {
+            int score = preset.match(modality, bodyPart);
+            if (score > bestScore) {
+                best = preset;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
     
 }
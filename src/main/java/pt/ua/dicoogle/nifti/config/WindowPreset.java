@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.config;
+
+/** A fixed VOI window to be used for a given modality and/or body part.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public final class WindowPreset {
+
+    private final String modality;
+    private final String bodyPart;
+    private final double center;
+    private final double width;
+
+    /** Create a window preset.
+     * @param modality the modality to which the preset applies, or null for any modality
+     * @param bodyPart the examined body part to which the preset applies, or null for any body part
+     * @param center the window center
+     * @param width the window width
+     */
+    public WindowPreset(String modality, String bodyPart, double center, double width) {
+        if (!(width > 1.0)) {
+            throw new IllegalArgumentException("Invalid window width " + width);
+        }
+        this.modality = modality;
+        this.bodyPart = bodyPart;
+        this.center = center;
+        this.width = width;
+    }
+
+    public String getModality() {
+        return modality;
+    }
+
+    public String getBodyPart() {
+        return bodyPart;
+    }
+
+    public double getCenter() {
+        return center;
+    }
+
+    public double getWidth() {
+        return width;
+    }
+
+    /** Check whether this preset applies to the given series.
+     * @param modality the series' modality, may be null
+     * @param bodyPart the series' examined body part, may be null
+     * @return a matching score (higher is more specific), or -1 if the preset does not apply
+     */
+    int match(String modality, String bodyPart) {
+        int score = 0;
+        if (this.modality != null) {
+            if (!this.modality.equalsIgnoreCase(modality)) {
+                return -1;
+            }
+            score += 2;
+        }
+        if (this.bodyPart != null) {
+            if (!this.bodyPart.equalsIgnoreCase(bodyPart)) {
+                return -1;
+            }
+            score += 1;
+        }
+        return score;
+    }
+
+    @Override
+    public String toString() {
+        return "WindowPreset{" + "modality=" + modality + ", bodyPart=" + bodyPart + ", center=" + center + ", width=" + width + '}';
+    }
+}
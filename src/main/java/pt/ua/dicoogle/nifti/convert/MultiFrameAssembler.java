@@ -0,0 +1,287 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+import niftijio.niftijio.NiftiHeader;
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomElement;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.VR;
+import pt.ua.dicoogle.nifti.util.BufferPool;
+
+/** Assembler of an enhanced multi-frame object out of the single-frame
+ * objects of the slices of one volume. The attributes which vary per slice
+ * (position, VOI window) are moved to the per-frame functional groups, and
+ * those which are common to all slices (pixel measures, orientation,
+ * rescaling) to the shared functional groups.
+ *
+ * Frames may be added in any order. The pixel data of each frame is copied
+ * as it is added, so the single-frame objects may be recycled right away.
+ * This class is not thread-safe.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+final class MultiFrameAssembler {
+
+    /** Top-level attributes of the single-frame objects which are replaced by functional groups. */
+    private static final int[] FRAME_TAGS = {
+        Tag.ImagesInAcquisition, Tag.InstanceNumber, Tag.ImagePosition, Tag.ImageOrientation,
+        Tag.SliceThickness, Tag.PixelSpacing, Tag.RescaleIntercept, Tag.RescaleSlope,
+        Tag.WindowCenter, Tag.WindowWidth
+    };
+
+    private final NiftiHeader header;
+    private final int nFrames;
+    private final int zFirst;
+    private final int zStride;
+    private final int frameSize;
+    private final byte[] pixelData;
+    private final double[] affine;
+    private final double[] windowCenters;
+    private final double[] windowWidths;
+    private DicomObject base;
+    private VR pixelDataVR;
+    private int count;
+
+    /** Create an assembler.
+     * @param header the header of the volume
+     * @param nFrames the number of frames (slices) of the volume
+     * @param frameSize the size of the pixel data of a frame, in bytes
+     * @param pool the pool from which to obtain the pixel data buffer, may be null
+     */
+    MultiFrameAssembler(NiftiHeader header, int nFrames, int frameSize, BufferPool pool) {
+        this(header, 0, 1, nFrames, frameSize, pool);
+    }
+
+    /** Create an assembler of some of the slices of a volume, taken at
+     * regular intervals, so that frames are positioned where their slices are.
+     * @param header the header of the volume
+     * @param zFirst the z index of the first frame's slice
+     * @param zStride the distance between the z indexes of consecutive frames
+     * @param nFrames the number of frames
+     * @param frameSize the size of the pixel data of a frame, in bytes
+     * @param pool the pool from which to obtain the pixel data buffer, may be null
+     */
+    MultiFrameAssembler(NiftiHeader header, int zFirst, int zStride, int nFrames, int frameSize, BufferPool pool) {
+        this.header = header;
+        this.nFrames = nFrames;
+        this.zFirst = zFirst;
+        this.zStride = zStride;
+        this.frameSize = frameSize;
+        int size = pixelDataSize(nFrames, frameSize);
+        this.pixelData = pool != null ? pool.acquire(size) : new byte[size];
+        this.affine = affine(header);
+        this.windowCenters = new double[nFrames];
+        this.windowWidths = new double[nFrames];
+    }
+
+    /** Compute the size of the pixel data of a multi-frame object.
+     * @param nFrames the number of frames
+     * @param frameSize the size of the pixel data of a frame, in bytes
+     * @return the size of the pixel data, in bytes
+     * @throws IllegalArgumentException if the pixel data would not fit in an array
+     */
+    static int pixelDataSize(int nFrames, long frameSize) {
+        try {
+            return Math.toIntExact(Math.multiplyExact(nFrames, frameSize));
+        } catch (ArithmeticException ex) {
+            throw new IllegalArgumentException("Multi-frame objects of " + nFrames + " frames of " + frameSize
+                    + " bytes are too large");
+        }
+    }
+
+    /** Add the single-frame object of a slice. Its pixel data is copied,
+     * and the object is otherwise left untouched.
+     *
+     * @param nz the index of the frame
+     * @param frame the single-frame object
+     */
+    void add(int nz, DicomObject frame) {
+        DicomElement e = frame.get(Tag.PixelData);
+        System.arraycopy(e.getBytes(), 0, pixelData, nz * frameSize, frameSize);
+        windowCenters[nz] = frame.contains(Tag.WindowCenter) ? frame.getDouble(Tag.WindowCenter) : Double.NaN;
+        windowWidths[nz] = frame.contains(Tag.WindowWidth) ? frame.getDouble(Tag.WindowWidth) : Double.NaN;
+        if (base == null) {
+            base = new BasicDicomObject(frame);
+            // the frame's buffer may be recycled
+            base.remove(Tag.PixelData);
+            pixelDataVR = e.vr();
+        }
+        count++;
+    }
+
+    /** Assemble the multi-frame object, once all frames were added.
+     * It keeps the study and series UIDs of the first frame added.
+     *
+     * @param instanceUid the SOP instance UID of the object, which is also the root of its other UIDs
+     * @return the enhanced multi-frame object
+     */
+    DicomObject build(String instanceUid) {
+        if (count != nFrames) {
+            throw new IllegalStateException("Only " + count + " of " + nFrames + " frames were added");
+        }
+        DicomObject obj = base;
+        double rescaleIntercept = obj.contains(Tag.RescaleIntercept) ? obj.getDouble(Tag.RescaleIntercept) : 0;
+        double rescaleSlope = obj.contains(Tag.RescaleSlope) ? obj.getDouble(Tag.RescaleSlope) : 1;
+        for (int tag : FRAME_TAGS) {
+            obj.remove(tag);
+        }
+        obj.putString(Tag.SOPInstanceUID, VR.UI, instanceUid);
+        obj.putString(Tag.FrameOfReferenceUID, VR.UI, instanceUid + ".0");
+        obj.putInt(Tag.InstanceNumber, VR.IS, 1);
+        obj.putInt(Tag.NumberOfFrames, VR.IS, nFrames);
+        obj.putBytes(Tag.PixelData, pixelDataVR, pixelData, false);
+
+        String organizationUid = obj.getString(Tag.SOPInstanceUID) + ".1";
+        DicomObject dimension = new BasicDicomObject();
+        dimension.putString(Tag.DimensionOrganizationUID, VR.UI, organizationUid);
+        obj.putNestedDicomObject(Tag.DimensionOrganizationSequence, dimension);
+        DicomObject dimensionIndex = new BasicDicomObject();
+        dimensionIndex.putString(Tag.DimensionOrganizationUID, VR.UI, organizationUid);
+        dimensionIndex.putInt(Tag.DimensionIndexPointer, VR.AT, Tag.InStackPositionNumber);
+        dimensionIndex.putInt(Tag.FunctionalGroupPointer, VR.AT, Tag.FrameContentSequence);
+        obj.putNestedDicomObject(Tag.DimensionIndexSequence, dimensionIndex);
+
+        boolean sharedWindow = isUniform(windowCenters) && isUniform(windowWidths);
+
+        DicomObject shared = new BasicDicomObject();
+        DicomObject measures = new BasicDicomObject();
+        measures.putDoubles(Tag.PixelSpacing, VR.DS, new double[]{header.pixdim[2], header.pixdim[1]});
+        measures.putDouble(Tag.SliceThickness, VR.DS, header.pixdim[3]);
+        shared.putNestedDicomObject(Tag.PixelMeasuresSequence, measures);
+        DicomObject orientation = new BasicDicomObject();
+        orientation.putDoubles(Tag.ImageOrientationPatient, VR.DS, orientation(affine));
+        shared.putNestedDicomObject(Tag.PlaneOrientationSequence, orientation);
+        DicomObject transformation = new BasicDicomObject();
+        transformation.putDouble(Tag.RescaleIntercept, VR.DS, rescaleIntercept);
+        transformation.putDouble(Tag.RescaleSlope, VR.DS, rescaleSlope);
+        // Enhanced CT requires Hounsfield units, other modalities have unspecified units
+        transformation.putString(Tag.RescaleType, VR.LO, "CT".equals(obj.getString(Tag.Modality)) ? "HU" : "US");
+        shared.putNestedDicomObject(Tag.PixelValueTransformationSequence, transformation);
+        if (sharedWindow && !Double.isNaN(windowWidths[0])) {
+            shared.putNestedDicomObject(Tag.FrameVOILUTSequence, window(windowCenters[0], windowWidths[0]));
+        }
+        obj.putNestedDicomObject(Tag.SharedFunctionalGroupsSequence, shared);
+
+        DicomElement perFrame = obj.putSequence(Tag.PerFrameFunctionalGroupsSequence);
+        for (int nz = 0; nz < nFrames; nz++) {
+            DicomObject frame = new BasicDicomObject();
+            DicomObject content = new BasicDicomObject();
+            content.putString(Tag.StackID, VR.SH, "1");
+            content.putInt(Tag.InStackPositionNumber, VR.UL, nz + 1);
+            content.putInts(Tag.DimensionIndexValues, VR.UL, new int[]{nz + 1});
+            frame.putNestedDicomObject(Tag.FrameContentSequence, content);
+            DicomObject position = new BasicDicomObject();
+            position.putDoubles(Tag.ImagePositionPatient, VR.DS, position(affine, zFirst + nz * zStride));
+            frame.putNestedDicomObject(Tag.PlanePositionSequence, position);
+            if (!sharedWindow && !Double.isNaN(windowWidths[nz])) {
+                frame.putNestedDicomObject(Tag.FrameVOILUTSequence, window(windowCenters[nz], windowWidths[nz]));
+            }
+            perFrame.addDicomObject(frame);
+        }
+        return obj;
+    }
+
+    private static DicomObject window(double center, double width) {
+        DicomObject voi = new BasicDicomObject();
+        voi.putDouble(Tag.WindowCenter, VR.DS, center);
+        voi.putDouble(Tag.WindowWidth, VR.DS, width);
+        return voi;
+    }
+
+    private static boolean isUniform(double[] values) {
+        for (double v : values) {
+            if (Double.compare(v, values[0]) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Obtain the voxel to patient (LPS) coordinate transformation of a volume,
+     * as a row-major 3x4 matrix. The sform is preferred over the qform, and
+     * when neither is set, voxels are merely scaled by their dimensions.
+     */
+    static double[] affine(NiftiHeader header) {
+        double[] m = new double[12];
+        if (header.sform_code > 0) {
+            for (int c = 0; c < 4; c++) {
+                m[c] = header.srow_x[c];
+                m[4 + c] = header.srow_y[c];
+                m[8 + c] = header.srow_z[c];
+            }
+        } else if (header.qform_code > 0) {
+            double b = header.quatern[0];
+            double c = header.quatern[1];
+            double d = header.quatern[2];
+            double a = Math.sqrt(Math.max(0, 1 - (b * b + c * c + d * d)));
+            double[] r = {
+                a * a + b * b - c * c - d * d, 2 * (b * c - a * d), 2 * (b * d + a * c),
+                2 * (b * c + a * d), a * a + c * c - b * b - d * d, 2 * (c * d - a * b),
+                2 * (b * d - a * c), 2 * (c * d + a * b), a * a + d * d - b * b - c * c
+            };
+            double qfac = header.pixdim[0] < 0 ? -1 : 1;
+            double[] scale = {header.pixdim[1], header.pixdim[2], header.pixdim[3] * qfac};
+            for (int row = 0; row < 3; row++) {
+                for (int col = 0; col < 3; col++) {
+                    m[row * 4 + col] = r[row * 3 + col] * scale[col];
+                }
+                m[row * 4 + 3] = header.qoffset[row];
+            }
+        } else {
+            m[0] = header.pixdim[1];
+            m[5] = header.pixdim[2];
+            m[10] = header.pixdim[3];
+            return m;
+        }
+        // NIFTI world coordinates are RAS, DICOM patient coordinates are LPS
+        for (int c = 0; c < 8; c++) {
+            m[c] = -m[c];
+        }
+        return m;
+    }
+
+    /** @return the direction cosines of the rows and columns of the slices */
+    static double[] orientation(double[] affine) {
+        double[] o = new double[6];
+        for (int axis = 0; axis < 2; axis++) {
+            double x = affine[axis];
+            double y = affine[4 + axis];
+            double z = affine[8 + axis];
+            double norm = Math.sqrt(x * x + y * y + z * z);
+            if (norm == 0) {
+                return new double[]{1, 0, 0, 0, 1, 0};
+            }
+            o[axis * 3] = x / norm;
+            o[axis * 3 + 1] = y / norm;
+            o[axis * 3 + 2] = z / norm;
+        }
+        return o;
+    }
+
+    /** @return the patient position of the first voxel of a slice */
+    static double[] position(double[] affine, int nz) {
+        return new double[]{
+            affine[2] * nz + affine[3],
+            affine[6] * nz + affine[7],
+            affine[10] * nz + affine[11]
+        };
+    }
+}
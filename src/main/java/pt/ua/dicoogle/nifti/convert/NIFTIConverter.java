@@ -18,7 +18,10 @@
  */
 package pt.ua.dicoogle.nifti.convert;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.stream.Stream;
 import org.dcm4che2.data.DicomObject;
 import pt.ua.dicoogle.nifti.util.RuntimeIOException;
@@ -31,4 +34,52 @@ import pt.ua.dicoogle.nifti.util.RuntimeIOException;
 public interface NIFTIConverter {
 
     public Stream<DicomObject> convert(InputStream content) throws RuntimeIOException;
+
+    /** Convert a selection of the slices of a NIFTI-1 volume. Converters
+     * which cannot skip slices only support the selection of all of them.
+     *
+     * @param content the input stream with the volume
+     * @param selection the selection of slices
+     * @return a stream of DICOM objects
+     * @throws RuntimeIOException on a read failure
+     * @throws IllegalArgumentException if the selection starts beyond the volume
+     * @throws UnsupportedOperationException if the converter cannot convert a selection of slices
+     */
+    public default Stream<DicomObject> convert(InputStream content, SliceSelection selection)
+            throws RuntimeIOException {
+        if (selection != null && !selection.isAll()) {
+            throw new UnsupportedOperationException("Slice selections are not supported by this converter");
+        }
+        return convert(content);
+    }
+
+    /** Convert a NIFTI-1 file. The returned stream should be closed in order
+     * to release the file. This implementation reads the file as is, like
+     * {@link #convert(InputStream)}, so it only supports the compression
+     * which that method supports. Implementations which read files at random
+     * may override it (see {@link NIFTIConverterImpl#convert(Path)}).
+     *
+     * @param file the path to the file
+     * @return a stream of DICOM objects
+     * @throws RuntimeIOException if the file could not be read
+     */
+    public default Stream<DicomObject> convert(Path file) throws RuntimeIOException {
+        try {
+            InputStream content = Files.newInputStream(file);
+            try {
+                return convert(content).onClose(() -> {
+                    try {
+                        content.close();
+                    } catch (IOException ex) {
+                        throw new RuntimeIOException(ex);
+                    }
+                });
+            } catch (RuntimeException ex) {
+                content.close();
+                throw ex;
+            }
+        } catch (IOException ex) {
+            throw new RuntimeIOException(ex);
+        }
+    }
 }
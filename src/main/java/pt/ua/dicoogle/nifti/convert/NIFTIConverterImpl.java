@@ -20,215 +20,694 @@ package pt.ua.dicoogle.nifti.convert;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Random;
-import java.util.stream.IntStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
 import niftijio.niftijio.NiftiHeader;
+import org.dcm4che2.data.DicomElement;
 import org.dcm4che2.data.DicomObject;
-import niftijio.niftijio.NiftiVolume;
 import org.dcm4che2.data.BasicDicomObject;
 import org.dcm4che2.data.Tag;
 import org.dcm4che2.data.VR;
-import pt.ua.dicoogle.nifti.config.NIFTIPluginSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.ua.dicoogle.nifti.UidGenerator;
 import pt.ua.dicoogle.nifti.dicom.DicomInjector;
-import pt.ua.dicoogle.nifti.dicom.WindowDicomInjector;
+import pt.ua.dicoogle.nifti.dicom.LayeredDicomObject;
+import pt.ua.dicoogle.nifti.util.BufferPool;
+import pt.ua.dicoogle.nifti.util.ConversionMetrics;
+import pt.ua.dicoogle.nifti.util.FlightEvent;
+import pt.ua.dicoogle.nifti.util.FlightEvents;
+import pt.ua.dicoogle.nifti.util.GzipIndex;
+import pt.ua.dicoogle.nifti.util.IndexedGzipFile;
 import pt.ua.dicoogle.nifti.util.RuntimeIOException;
 
 /**
- * An implementation for a NIFTI to DICOM converter. This implementation is not thread-safe.
+ * An implementation for a NIFTI to DICOM converter. The volume is read lazily
+ * with a {@link NiftiSliceReader}, so that each DICOM object is produced as soon
+ * as its slice is read, unless streamed volumes are written to disk so that
+ * their VOI window is estimated over the whole volume (see {@link #setSpoolDirectory(Path)}).
+ * The streams produced may be consumed in parallel,
+ * but the converter's configuration is not thread-safe.
  *
  * @author Eduardo Pinho <eduardopinho@ua.pt>
  */
 public class NIFTIConverterImpl implements NIFTIConverter {
+    private static final Logger logger = LoggerFactory.getLogger(NIFTIConverterImpl.class);
+    private static final int GZIP_BUFFER_SIZE = 64 << 10;
 
-    private final Random rnd;
     private final DicomObject prototype;
+    private WindowPolicy windowPolicy = WindowPolicy.fromSettings(null, null);
+    private Executor executor = null;
+    private int maxInFlight = 1;
+    private BufferPool bufferPool = null;
+    private boolean multiFrame = false;
+    private UidGenerator uidGenerator = null;
+    private DicomInjector seriesInjector = null;
+    private Path gzipIndexDirectory = null;
+    private long gzipIndexSpan = GzipIndex.DEFAULT_SPAN;
+    private Path spoolDirectory = null;
+    private ConversionMetrics.Recorder recorder = ConversionMetrics.Recorder.NONE;
+    private SliceSelection sliceSelection = SliceSelection.all();
 
     public NIFTIConverterImpl(DicomObject prototype) {
-        this.rnd = new Random();
         this.prototype = new BasicDicomObject(prototype);
     }
     
     public NIFTIConverterImpl() {
-        this.rnd = new Random();
         this.prototype = new BasicDicomObject();
         this.prototype.putString(Tag.TransferSyntaxUID, VR.UI, "1.2.840.10008.1.2.1"); // Little Endian Explicit
     }
 
-    private static class Pos {
-        final int dim;
-        final int nz;
-        final String seriesUid;
+    /** Define how the VOI window of the converted images is determined.
+     * @param windowPolicy the window policy
+     */
+    public void setWindowPolicy(WindowPolicy windowPolicy) {
+        this.windowPolicy = Objects.requireNonNull(windowPolicy);
+    }
+
+    /** Enable or disable the parallel conversion of slices. When enabled,
+     * slices are still read in order by the consuming thread, but converted
+     * ahead of time in the given executor. The objects produced keep the
+     * order of the slices.
+     *
+     * Independently of this option, volumes read at random (see
+     * {@link #convert(Path)}) produce streams which split evenly when made parallel.
+     *
+     * @param executor the executor in which to convert slices, or null to convert them on demand
+     * @param maxInFlight the maximum number of slices converted ahead of time
+     */
+    public void setExecutor(Executor executor, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /** Enable or disable the reuse of buffers for pixel data and raw voxel data.
+     * When enabled, objects which are no longer needed should be handed back
+     * with {@link #recycle(DicomObject)}.
+     *
+     * @param bufferPool the pool from which to obtain buffers, or null to always allocate new ones
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /** Choose between producing one single-frame object per slice (the default),
+     * or one enhanced multi-frame object per index of the 4th dimension. In
+     * the latter case, each object holds all slices of a 3D volume as frames,
+     * with per-frame functional groups for their position and VOI window.
+     * The SOP class should be defined with an enhanced class injector
+     * (see {@link pt.ua.dicoogle.nifti.dicom.DicomInjectorBuilder#enhanced(boolean)}).
+     *
+     * @param multiFrame whether to produce multi-frame objects
+     */
+    public void setMultiFrame(boolean multiFrame) {
+        this.multiFrame = multiFrame;
+    }
+
+    /** Define how the UIDs of the converted objects are generated.
+     * @param uidGenerator the UID generator, or null to use the one in the plugin's settings
+     */
+    public void setUidGenerator(UidGenerator uidGenerator) {
+        this.uidGenerator = uidGenerator;
+    }
 
-        public Pos(int dim, int nz, String seriesUid) {
-            this.dim = dim;
-            this.nz = nz;
-            this.seriesUid = seriesUid;
+    /** Define an injector of attributes which are common to all objects of
+     * a series, such as those of a {@link pt.ua.dicoogle.nifti.dicom.DicomInjectorBuilder}.
+     * The injector is applied once per series, to the attribute layer which
+     * all of the series' objects share (see {@link LayeredDicomObject}), so it
+     * must not depend on the attributes of individual slices.
+     *
+     * @param seriesInjector the series injector, or null for none
+     */
+    public void setSeriesInjector(DicomInjector seriesInjector) {
+        this.seriesInjector = seriesInjector;
+    }
+
+    /** Define where to record the time spent reading slices, estimating
+     * windows and producing pixel data, and the amount of data converted.
+     *
+     * @param recorder the recorder of conversion metrics, or null for none
+     */
+    public void setRecorder(ConversionMetrics.Recorder recorder) {
+        this.recorder = recorder != null ? recorder : ConversionMetrics.Recorder.NONE;
+    }
+
+    /** Restrict the conversion to a selection of slices (see {@link SliceSelection}).
+     * Slices which are not selected are skipped without being decoded, and
+     * left out of window estimates over the whole volume. With multi-frame
+     * objects, each object holds the selected slices of its volume.
+     *
+     * @param sliceSelection the selection of slices, or null for all of them
+     */
+    public void setSliceSelection(SliceSelection sliceSelection) {
+        this.sliceSelection = sliceSelection != null ? sliceSelection : SliceSelection.all();
+    }
+
+    /** Define where the indexes of GZip compressed files are kept, and how
+     * dense they are (see {@link GzipIndex}). Indexes are only built for
+     * files in the BGZF format, the first time a file is converted, and
+     * reused afterwards.
+     *
+     * @param directory the directory of index files, or null to inflate compressed files in order, without indexes
+     * @param span the minimum distance between access points, in inflated bytes
+     */
+    public void setGzipIndex(Path directory, long span) {
+        if (span < 0) {
+            throw new IllegalArgumentException("span must not be negative");
+        }
+        this.gzipIndexDirectory = directory;
+        this.gzipIndexSpan = span;
+    }
+
+    /** Define where streamed volumes are written while their window is
+     * estimated. When the VOI window is estimated from the voxel values (see
+     * {@link WindowPolicy}), a volume which cannot be read at random is first
+     * written to a temporary file in this directory, so that all of its slices
+     * share one window, estimated over the whole volume. The file is deleted
+     * once the last slice is converted, or once the returned stream is closed.
+     * Without a directory, streamed slices are converted as soon as they are
+     * read, each with a window estimated over that slice alone.
+     *
+     * By default, there is no directory, so that streamed volumes are never
+     * written to disk.
+     *
+     * @param directory the directory of temporary files, or null to estimate the window of each streamed slice
+     */
+    public void setSpoolDirectory(Path directory) {
+        this.spoolDirectory = directory;
+    }
+
+    /** Return the pixel data buffer of a converted object to the buffer pool,
+     * if one is in use. The pixel data is removed from the object, which must
+     * not be serialized or otherwise read by anyone afterwards.
+     *
+     * @param obj a DICOM object produced by this converter
+     */
+    public void recycle(DicomObject obj) {
+        recycle(bufferPool, obj);
+    }
+
+    private static void recycle(BufferPool pool, DicomObject obj) {
+        if (pool == null) {
+            return;
+        }
+        DicomElement e = obj.remove(Tag.PixelData);
+        if (e != null && !e.hasItems()) {
+            // the element was created over the pooled array, without copying
+            pool.release(e.getBytes());
         }
     }
 
     @Override
     public Stream<DicomObject> convert(InputStream content) throws RuntimeIOException {
+        return convert(content, (byte[]) null);
+    }
+
+    @Override
+    public Stream<DicomObject> convert(InputStream content, SliceSelection selection) throws RuntimeIOException {
         try {
-            NiftiVolume volume = NiftiVolume.read(content);
-            
-            DicomInjector windowInjector = createWindowInjector(volume);
-            
-            final String studyInstanceUid = NIFTIPluginSettings.INSTANCE.getUidRoot() + '.' + generateUidTerm(8);
-            return IntStream.range(0, volume.data.dimension())
-                    .mapToObj(dim -> new Pos(dim, 0, studyInstanceUid + '.' + generateUidTerm(8)))
-                    .flatMap(pos -> IntStream.range(0, volume.data.sizeZ())
-                            .mapToObj(z -> new Pos(pos.dim, z, pos.seriesUid)))
-                    .map(pos -> convertSlice(volume, pos.nz, pos.dim, studyInstanceUid, pos.seriesUid))
-                    .map(windowInjector);
-        } catch (IOException|IllegalArgumentException ex) {
+            return convert(new NiftiSliceReader(content), null, selection != null ? selection : SliceSelection.all());
+        } catch (IOException ex) {
             throw new RuntimeIOException(ex);
         }
     }
 
-    private DicomObject convertSlice(NiftiVolume volume, int nz, int dim, String studyInstanceUid, String seriesInstanceUid) {
-        final String instanceUid = seriesInstanceUid + '.' + generateUidTerm(8);
-        return convertSlice(volume, nz, dim, studyInstanceUid, seriesInstanceUid, instanceUid);
+    /** Convert a NIFTI-1 volume, identified by a digest of its content.
+     * Deterministic UID generators derive the UIDs of the objects from the digest.
+     *
+     * @param content the input stream with the volume
+     * @param contentDigest a digest of the file, or null if not known
+     * @return a stream of DICOM objects
+     * @throws RuntimeIOException on a read failure
+     */
+    public Stream<DicomObject> convert(InputStream content, byte[] contentDigest) throws RuntimeIOException {
+        try {
+            return convert(new NiftiSliceReader(content), contentDigest);
+        } catch (IOException ex) {
+            throw new RuntimeIOException(ex);
+        }
     }
 
-    private DicomObject convertSlice(NiftiVolume volume, int nz, int dim, String studyInstanceUid, String seriesInstanceUid, String sopInstanceUid) {
-        DicomObject obj = new BasicDicomObject(this.prototype);
+    /** Convert a NIFTI-1 file. Since the file can be read at random, the VOI
+     * window is estimated over the whole volume in parallel, before the first
+     * slice is produced. With a deterministic UID generator, the file is also
+     * digested beforehand. The returned stream should be closed in order to
+     * release the file.
+     *
+     * GZip compressed files in the BGZF format, as written by bgzip, are read
+     * at random through an index of their members, if a directory of indexes
+     * was defined (see {@link #setGzipIndex(Path, long)}). Other compressed
+     * files are inflated in order.
+     */
+    @Override
+    public Stream<DicomObject> convert(Path file) throws RuntimeIOException {
+        try {
+            if (isGzip(file)) {
+                return convertGzip(file);
+            }
+            byte[] digest = uidGenerator().isDeterministic() ? digest(file) : null;
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                return convert(new NiftiSliceReader(channel), digest).onClose(() -> {
+                    try {
+                        channel.close();
+                    } catch (IOException ex) {
+                        logger.warn("Failed to close NIFTI file", ex);
+                    }
+                });
+            } catch (IOException|RuntimeException ex) {
+                channel.close();
+                throw ex;
+            }
+        } catch (IOException ex) {
+            throw new RuntimeIOException(ex);
+        }
+    }
 
-        putPixelData(obj, volume, nz, dim);
-        
-        obj.putString(Tag.StudyInstanceUID, VR.UI, studyInstanceUid);
-        obj.putString(Tag.SeriesInstanceUID, VR.UI, seriesInstanceUid);
-        obj.putString(Tag.SOPInstanceUID, VR.UI, sopInstanceUid);
-        obj.putString(Tag.FrameOfReferenceUID, VR.UI, sopInstanceUid + ".0");
-        obj.putInt(Tag.InstanceNumber, VR.IS, nz+1);
+    private Stream<DicomObject> convertGzip(Path file) throws IOException {
+        // the digest is that of the inflated content, as with uploaded files
+        byte[] digest = null;
+        if (uidGenerator().isDeterministic()) {
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(file), GZIP_BUFFER_SIZE)) {
+                digest = digest(in);
+            }
+        }
+        // files with a single member have nothing to index, and are never read at random,
+        // nor are files whose index would be built for a single conversion, at the cost of inflating them
+        GzipIndex index = null;
+        if (gzipIndexDirectory != null && GzipIndex.isBgzf(file)) {
+            index = GzipIndex.forFile(file, gzipIndexDirectory, gzipIndexSpan);
+        }
+        if (index == null || !index.isSeekable()) {
+            if (index != null) {
+                logger.debug("{} has {} access point(s) every {} bytes at most, inflating it in order",
+                        file, index.getAccessPoints(), index.getMaxGap());
+            }
+            InputStream in = new GZIPInputStream(Files.newInputStream(file), GZIP_BUFFER_SIZE);
+            try {
+                return convert(in, digest).onClose(() -> {
+                    try {
+                        in.close();
+                    } catch (IOException ex) {
+                        logger.warn("Failed to close NIFTI file", ex);
+                    }
+                });
+            } catch (RuntimeException ex) {
+                in.close();
+                throw ex;
+            }
+        }
+        IndexedGzipFile gz = new IndexedGzipFile(file, index);
+        try {
+            return convert(new NiftiSliceReader(gz::read), digest).onClose(() -> {
+                try {
+                    gz.close();
+                } catch (IOException ex) {
+                    logger.warn("Failed to close NIFTI file", ex);
+                }
+            });
+        } catch (IOException|RuntimeException ex) {
+            gz.close();
+            throw ex;
+        }
+    }
+
+    private static boolean isGzip(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return in.read() == 0x1f && in.read() == 0x8b;
+        }
+    }
 
-        return new NIFTIDicomInjector(volume.header).apply(obj);
+    private UidGenerator uidGenerator() {
+        return uidGenerator != null ? uidGenerator : UidGenerator.fromSettings();
     }
 
-    private String generateUidTerm(int size) {
-        StringBuilder r = new StringBuilder();
-        for (int i = 0; i < size; i++) {
-            r.append((char) ('0' + this.rnd.nextInt(10)));
+    /** Compute the SHA-256 digest of a file's contents.
+     * @param file the file
+     * @return the digest
+     * @throws IOException on a read failure
+     */
+    public static byte[] digest(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return digest(in);
         }
-        return r.toString();
     }
 
-    /**
-     * Take the pixel data of a slice.
+    /** Compute the SHA-256 digest of the remaining contents of a stream.
+     * The stream is not closed.
+     * @param in the input stream
+     * @return the digest
+     * @throws IOException on a read failure
+     */
+    public static byte[] digest(InputStream in) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+        byte[] buf = new byte[8192];
+        DigestInputStream din = new DigestInputStream(in, md);
+        while (din.read(buf) >= 0) {
+            // just digesting
+        }
+        return md.digest();
+    }
+
+    /** Convert a NIFTI-1 volume whose header was already read, so that the
+     * header can be looked into (see {@link #estimateMemory(NiftiHeader, int)})
+     * before any voxel data is read. A streamed volume whose window is
+     * estimated is written to disk here (see {@link #setSpoolDirectory(Path)}),
+     * in which case the returned stream should be closed if not consumed to the end.
      *
-     * @param volume the NIFTI volume
-     * @param nz the z axis to take the slice from
-     * @param dim dimension to take the slice from
-     * @return an array containing the pixel data, ready to be put in a DICOM object
+     * @param reader the slice reader of the volume
+     * @param contentDigest a digest of the file, or null if not known
+     * @return a stream of DICOM objects
+     * @throws RuntimeIOException on a read failure
+     * @throws IllegalArgumentException if the slice selection starts beyond the volume, or if
+     * multi-frame objects of the volume would be too large
      */
-    private void putPixelData(DicomObject obj, NiftiVolume volume, int nz, int dim) {
-        int sizeof_unit = NiftiHeader.bytesPerVoxel(volume.header.datatype);
-        if (sizeof_unit > 2) {
-            sizeof_unit = 2;
+    public Stream<DicomObject> convert(final NiftiSliceReader reader, byte[] contentDigest) {
+        return convert(reader, contentDigest, this.sliceSelection);
+    }
+
+    private Stream<DicomObject> convert(NiftiSliceReader volume, byte[] contentDigest, SliceSelection selection) {
+        final SliceKernel kernel = SliceKernel.forDatatype(volume.getHeader().datatype);
+        final SliceSelection slices = selection.clamp(volume.sizeZ(), volume.dimension());
+        final long frameSize = Math.multiplyExact(Math.multiplyExact((long) volume.sizeX(), volume.sizeY()),
+                kernel.bytesAllocated());
+        if (multiFrame) {
+            // fails before reading any voxel data
+            MultiFrameAssembler.pixelDataSize(slices.countZ(), frameSize);
         }
-        final int slice_size = volume.data.sizeX() * volume.data.sizeY() * sizeof_unit;
-        byte[] pixeldata = new byte[slice_size];
-        final float slope = volume.header.scl_slope;
-        final float offset = volume.header.scl_inter;
-        int index = 0;
-        for (int y = 0; y < volume.data.sizeY(); y++) {
-            for (int x = 0; x < volume.data.sizeX(); x++) {
-                double v = volume.data.get(x, y, nz, dim);
-                v = (v - offset) / slope;
-                switch (volume.header.datatype) {
-                    case NiftiHeader.NIFTI_TYPE_INT8:
-                    case NiftiHeader.NIFTI_TYPE_UINT8: {
-                        pixeldata[index] = (byte)v;
-                        break;
-                    }
-                    case NiftiHeader.NIFTI_TYPE_INT16:
-                    case NiftiHeader.NIFTI_TYPE_UINT16: {
-                        short s = (short)v;
-                        writeShort(pixeldata, index, s);
-                        break;
-                    }
-                    case NiftiHeader.NIFTI_TYPE_INT32:
-                    case NiftiHeader.NIFTI_TYPE_UINT32: {
-                        // the maximum bit storage supported for Pixel Data is 16
-                        // therefore, an unfortunate precision reduction must take place
-                        int i = (int)v >>> 16;
-                        writeShort(pixeldata, index, (short)i);
-                        break;
-                    }
-//                    case NiftiHeader.NIFTI_TYPE_INT64:
-//                    case NiftiHeader.NIFTI_TYPE_UINT64: {
-//                        long l = (long)v;
-//                        writeLong(pixeldata, index, (short)l);
-//                        break;
-//                    }
-                    case NiftiHeader.NIFTI_TYPE_FLOAT32: {
-                        obj.putFloat(Tag.RescaleIntercept, VR.DS, -1024);
-                        obj.putFloat(Tag.RescaleSlope, VR.DS, 1);
-                        short s = (short)((float)v + 1024);
-                        writeShort(pixeldata, index, s);
-                        break;
-                    }
-                    case NiftiHeader.NIFTI_TYPE_FLOAT64: {
-                        obj.putFloat(Tag.RescaleIntercept, VR.DS, -1024);
-                        obj.putFloat(Tag.RescaleSlope, VR.DS, 1);
-                        short s = (short)(v + 1024);
-                        writeShort(pixeldata, index, s);
-                        break;
-                    }
-                    default:
-                        throw new RuntimeIOException("Unsupported NIFTI data type " + NiftiHeader.decodeDatatype(volume.header.datatype));
-                }
-                index += sizeof_unit;
+        // slices are identified by their index among the selected ones
+        final int countZ = slices.countZ();
+        final BufferPool pool = this.bufferPool;
+        final UidGenerator.VolumeUids uids = uidGenerator().newVolume(contentDigest);
+        final String studyInstanceUid = uids.studyInstanceUid();
+        final int nSlices = countZ * slices.countT();
+        final WindowPolicy policy = this.windowPolicy;
+        final ConversionMetrics.Recorder recorder = this.recorder;
+        // ends with the conversion of the last slice, whichever thread converts it
+        final FlightEvent volumeEvent = FlightEvents.volume();
+        // null if the window is to be estimated for each slice
+        DicomInjector window = WindowEstimator.fixedWindow(policy, volume.getHeader());
+        // the temporary file of a streamed volume, if it was written to disk
+        FileChannel spooled = null;
+        if (window == null && !volume.isRandomAccess() && spoolDirectory != null) {
+            // the window is estimated over the whole volume, so it is read to its end beforehand
+            long t0 = System.nanoTime();
+            spooled = createSpoolFile();
+            try {
+                volume = volume.spool(spooled);
+            } catch (IOException ex) {
+                closeQuietly(spooled);
+                throw new RuntimeIOException(ex);
+            } catch (RuntimeException ex) {
+                closeQuietly(spooled);
+                throw ex;
             }
+            recorder.record(ConversionMetrics.Stage.RECEIVE, System.nanoTime() - t0);
         }
-        obj.putBytes(Tag.PixelData, sizeof_unit == 1 ? VR.OB : VR.OW, pixeldata, false);
-    }
-
-    private WindowDicomInjector createWindowInjector(NiftiVolume volume) {
-        double min = Double.MAX_VALUE;
-        double max = Double.MIN_VALUE;
-        
-        for (int d = 0 ; d < volume.data.dimension() ; d++) {
-            for (int z = 0 ; z < volume.data.sizeZ() ; z++) {
-                for (int y = 0; y < volume.data.sizeY(); y++) {
-                    for (int x = 0; x < volume.data.sizeX(); x++) {
-                        double v = volume.data.get(x, y, z, d);
-                        if (min > v) {
-                            min = v;
-                        }
-                        if (max < v) {
-                            max = v;
-                        }
-                    }
+        final NiftiSliceReader reader = volume;
+        final FileChannel spool = spooled;
+        if (window == null && reader.isRandomAccess()) {
+            long t0 = System.nanoTime();
+            window = WindowEstimator.volumeWindow(policy, reader, slices, kernel, ForkJoinPool.commonPool());
+            recorder.record(ConversionMetrics.Stage.WINDOW, System.nanoTime() - t0);
+        }
+        final DicomInjector volumeWindow = window;
+
+        // series attributes are built up front, so that they are shared by all
+        // slices and their UIDs do not depend on the order of conversion
+        final DicomObject[] seriesLayers = new DicomObject[slices.countT()];
+        for (int i = 0; i < seriesLayers.length; i++) {
+            seriesLayers[i] = seriesLayer(reader.getHeader(), kernel, volumeWindow, studyInstanceUid,
+                    uids.seriesInstanceUid(slices.t(i)));
+        }
+        final LongAdder convertNanos = new LongAdder();
+        final AtomicInteger remaining = new AtomicInteger(nSlices);
+
+        SliceSpliterator.SliceSource source = new SliceSpliterator.SliceSource() {
+            @Override
+            public ByteBuffer read(int index, byte[] dst) {
+                try {
+                    int nz = slices.z(index % countZ);
+                    int dim = slices.t(index / countZ);
+                    long t0 = System.nanoTime();
+                    ByteBuffer data = dst != null ? reader.readSlice(nz, dim, dst) : reader.readSlice(nz, dim);
+                    recorder.record(ConversionMetrics.Stage.READ, System.nanoTime() - t0);
+                    return data;
+                } catch (IOException ex) {
+                    throw new RuntimeIOException(ex);
                 }
             }
+
+            @Override
+            public DicomObject convert(int index, ByteBuffer data) {
+                int nz = slices.z(index % countZ);
+                int dim = slices.t(index / countZ);
+                FlightEvent sliceEvent = FlightEvents.slice();
+                long t0 = System.nanoTime();
+                DicomObject obj = convertSlice(reader.getHeader(), kernel, policy, volumeWindow == null,
+                        seriesLayers[index / countZ], pool, data, reader.sizeX() * reader.sizeY(), nz,
+                        uids.sopInstanceUid(dim, nz), recorder);
+                convertNanos.add(System.nanoTime() - t0);
+                sliceEvent.request(recorder.requestId())
+                        .volume(reader.getHeader().dim, kernel.datatype())
+                        .slice(dim * reader.sizeZ() + nz)
+                        .bytes(reader.sliceSize())
+                        .commit();
+                recorder.count(ConversionMetrics.Counter.SLICES, 1);
+                recorder.count(ConversionMetrics.Counter.VOXELS, (long) reader.sizeX() * reader.sizeY());
+                recorder.count(ConversionMetrics.Counter.BYTES, reader.sliceSize());
+                boolean last = remaining.decrementAndGet() == 0;
+                if (last) {
+                    recorder.count(ConversionMetrics.Counter.VOLUMES, 1);
+                    volumeEvent.request(recorder.requestId())
+                            .volume(reader.getHeader().dim, kernel.datatype())
+                            .bytes((long) nSlices * reader.sliceSize())
+                            .commit();
+                }
+                if (last && spool != null) {
+                    // every slice was read
+                    closeQuietly(spool);
+                }
+                if (last && logger.isDebugEnabled()) {
+                    long nVoxels = (long) nSlices * reader.sizeX() * reader.sizeY();
+                    long nanos = convertNanos.sum();
+                    logger.debug("Converted {} voxels of type {} in {} ms of conversion time ({} voxels/s)",
+                            nVoxels, NiftiHeader.decodeDatatype(kernel.datatype()), nanos / 1_000_000,
+                            nanos > 0 ? nVoxels * 1_000_000_000L / nanos : 0);
+                }
+                return obj;
+            }
+        };
+        final Executor executor = this.executor;
+        final int maxInFlight = this.maxInFlight;
+        if (multiFrame) {
+            IntFunction<DicomObject> volumeConverter = i -> {
+                MultiFrameAssembler assembler = new MultiFrameAssembler(reader.getHeader(), slices.z(0),
+                        slices.getStride(), countZ, (int) frameSize, pool);
+                int from = i * countZ;
+                SliceSpliterator frames = new SliceSpliterator(source, reader.sliceSize(), reader.isRandomAccess(),
+                        executor, maxInFlight, pool, from, from + countZ);
+                int[] nz = {0};
+                frames.forEachRemaining(frame -> {
+                    assembler.add(nz[0]++, frame);
+                    recycle(pool, frame);
+                });
+                // a UID of its own, since the object holds other data than any slice
+                int dim = slices.t(i);
+                return assembler.build(uids.multiFrameInstanceUid(dim, slices.z(0), slices.z(countZ - 1),
+                        slices.getStride()));
+            };
+            return release(StreamSupport.stream(new VolumeSpliterator(volumeConverter,
+                    reader.isRandomAccess() && executor == null, 0, slices.countT()), false), spool);
         }
-        double center = (max + min) / 2;
-        double width = max - min;
-        return new WindowDicomInjector(center, width);
+        return release(StreamSupport.stream(new SliceSpliterator(source, reader.sliceSize(), reader.isRandomAccess(),
+                executor, maxInFlight, pool, 0, nSlices), false), spool);
     }
 
-    private static void writeShort(byte[] arr, int offset, short value) {
-        arr[offset] = (byte)(value & 0x0FF);
-        arr[offset + 1] = (byte)(value >>> 8);
+    private FileChannel createSpoolFile() {
+        try {
+            Path file = Files.createTempFile(spoolDirectory, "nifti-", ".raw");
+            try {
+                return FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.DELETE_ON_CLOSE);
+            } catch (IOException | RuntimeException ex) {
+                Files.deleteIfExists(file);
+                throw ex;
+            }
+        } catch (IOException ex) {
+            throw new RuntimeIOException(ex);
+        }
     }
 
-    private static void writeInt(byte[] arr, int offset, int value) {
-        arr[offset] = (byte)(value & 0x0FF);
-        arr[offset + 1] = (byte)((value >>> 8)&0x0FF);
-        arr[offset + 2] = (byte)((value >>> 16)&0x0FF);
-        arr[offset + 3] = (byte)((value >>> 24));
+    // release the temporary file of a spooled volume along with the stream
+    private static Stream<DicomObject> release(Stream<DicomObject> objects, FileChannel spool) {
+        return spool != null ? objects.onClose(() -> closeQuietly(spool)) : objects;
     }
 
-    private static void writeLong(byte[] arr, int offset, long value) {
-        arr[offset] = (byte)(value & 0x0FF);
-        arr[offset + 1] = (byte)((value >>> 8)&0x0FF);
-        arr[offset + 2] = (byte)((value >>> 16)&0x0FF);
-        arr[offset + 3] = (byte)((value >>> 24)&0x0FF);
-        arr[offset + 4] = (byte)((value >>> 32)&0x0FF);
-        arr[offset + 5] = (byte)((value >>> 40)&0x0FF);
-        arr[offset + 6] = (byte)((value >>> 48)&0x0FF);
-        arr[offset + 7] = (byte)((value >>> 56));
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            logger.warn("Failed to close NIFTI file", ex);
+        }
+    }
+
+    /** Estimate the memory needed to convert a volume with this converter's
+     * configuration, from its header alone. This covers the raw data of the
+     * slices being read, the pixel data of the objects being produced, and
+     * the objects which the consumer holds on to, such as those waiting for
+     * storage. Volumes are not read whole, so the estimate does not grow with
+     * the number of slices, except for multi-frame objects.
+     *
+     * @param header the NIFTI-1 header of the volume
+     * @param heldObjects the number of produced objects held at once by the consumer
+     * @return the estimated number of bytes
+     * @throws RuntimeIOException if the data type is not supported
+     * @throws IllegalArgumentException if the slice selection starts beyond the volume
+     */
+    public long estimateMemory(NiftiHeader header, int heldObjects) {
+        SliceKernel kernel = SliceKernel.forDatatype(header.datatype);
+        long[] size = selectedSizes(header);
+        long sizeZ = size[2];
+        long dimension = size[3];
+        long sliceSize = size[0] * size[1] * NiftiHeader.bytesPerVoxel(header.datatype);
+        long frameSize = size[0] * size[1] * kernel.bytesAllocated();
+        // the reader's own slice, and those read ahead of conversion
+        long raw = sliceSize * (executor != null ? maxInFlight + 1 : 1);
+        int producing = executor != null ? maxInFlight : 1;
+        if (!multiFrame) {
+            return raw + frameSize * Math.min((long) heldObjects + producing, sizeZ * dimension);
+        }
+        // frames are assembled into an object per volume
+        return raw + frameSize * producing + frameSize * sizeZ * Math.min((long) heldObjects + 1, dimension);
+    }
+
+    /** Count the DICOM objects which this converter produces from a volume.
+     * @param header the NIFTI-1 header of the volume
+     * @return the number of objects, one per selected slice, or one per selected volume of the 4th dimension if multi-frame
+     * @throws IllegalArgumentException if the slice selection starts beyond the volume
+     */
+    public long countObjects(NiftiHeader header) {
+        long[] size = selectedSizes(header);
+        return multiFrame ? size[3] : size[2] * size[3];
+    }
+
+    /** Estimate the size of the DICOM objects produced from a volume, from
+     * its header alone. This is the size of their pixel data, to which the
+     * attributes of each object add a few kilobytes.
+     *
+     * @param header the NIFTI-1 header of the volume
+     * @return the estimated number of bytes of all objects
+     * @throws RuntimeIOException if the data type is not supported
+     * @throws IllegalArgumentException if the slice selection starts beyond the volume
+     */
+    public long estimateOutputSize(NiftiHeader header) {
+        SliceKernel kernel = SliceKernel.forDatatype(header.datatype);
+        long[] size = selectedSizes(header);
+        return size[0] * size[1] * size[2] * size[3] * kernel.bytesAllocated();
+    }
+
+    /** @return the sizes of the x and y dimensions, and the numbers of selected z and 4th dimension indexes */
+    private long[] selectedSizes(NiftiHeader header) {
+        long[] size = sizes(header);
+        SliceSelection slices = sliceSelection.clamp((int) size[2], (int) size[3]);
+        size[2] = slices.countZ();
+        size[3] = slices.countT();
+        return size;
+    }
+
+    /** @return the sizes of the x, y, z and 4th dimensions, as read by {@link NiftiSliceReader} */
+    private static long[] sizes(NiftiHeader header) {
+        short[] dim = header.dim;
+        return new long[]{
+            Math.max(1, dim[1]),
+            dim[0] >= 2 ? Math.max(1, dim[2]) : 1,
+            dim[0] >= 3 ? Math.max(1, dim[3]) : 1,
+            dim[0] >= 4 ? Math.max(1, dim[4]) : 1
+        };
+    }
+
+    /** Build the attributes shared by all objects of a series.
+     * @param volumeWindow the VOI window of the whole volume, or null if estimated for each slice
+     */
+    private DicomObject seriesLayer(NiftiHeader header, SliceKernel kernel, DicomInjector volumeWindow,
+            String studyInstanceUid, String seriesInstanceUid) {
+        DicomObject obj = new BasicDicomObject(this.prototype);
+        obj.putString(Tag.StudyInstanceUID, VR.UI, studyInstanceUid);
+        obj.putString(Tag.SeriesInstanceUID, VR.UI, seriesInstanceUid);
+        kernel.putRescale(obj);
+        obj = new NIFTIDicomInjector(header).apply(obj);
+        if (volumeWindow != null) {
+            obj = volumeWindow.apply(obj);
+        }
+        if (seriesInjector != null) {
+            obj = seriesInjector.apply(obj);
+        }
+        return obj;
+    }
+
+    private DicomObject convertSlice(NiftiHeader header, SliceKernel kernel, WindowPolicy policy, boolean sliceWindow,
+            DicomObject seriesLayer, BufferPool pool, ByteBuffer data, int nVoxels, int nz, String instanceUid,
+            ConversionMetrics.Recorder recorder) {
+        DicomObject obj = new LayeredDicomObject(seriesLayer);
+
+        SliceKernel.ValueRange range = new SliceKernel.ValueRange();
+        long t0 = System.nanoTime();
+        putPixelData(obj, kernel, pool, data, nVoxels, range);
+        recorder.record(ConversionMetrics.Stage.PIXEL_DATA, System.nanoTime() - t0);
+
+        obj.putString(Tag.SOPInstanceUID, VR.UI, instanceUid);
+        obj.putString(Tag.FrameOfReferenceUID, VR.UI, instanceUid + ".0");
+        obj.putInt(Tag.InstanceNumber, VR.IS, nz+1);
+
+        if (sliceWindow) {
+            t0 = System.nanoTime();
+            obj = WindowEstimator.sliceWindow(policy, header, kernel, data, nVoxels, range).apply(obj);
+            recorder.record(ConversionMetrics.Stage.WINDOW, System.nanoTime() - t0);
+        }
+        return obj;
+    }
+
+    /**
+     * Put the pixel data of a slice in a DICOM object.
+     *
+     * @param obj the DICOM object to receive the pixel data
+     * @param kernel the conversion kernel for the volume's data type
+     * @param pool the pool from which to obtain the pixel data buffer, may be null
+     * @param data the raw voxel data of the slice
+     * @param nVoxels the number of voxels in the slice
+     * @param range the range of raw voxel values, to be filled by the kernel
+     */
+    static void putPixelData(DicomObject obj, SliceKernel kernel, BufferPool pool, ByteBuffer data, int nVoxels,
+            SliceKernel.ValueRange range) {
+        int size = nVoxels * kernel.bytesAllocated();
+        byte[] pixeldata = pool != null ? pool.acquire(size) : new byte[size];
+        kernel.convert(data, pixeldata, nVoxels, range);
+        obj.putBytes(Tag.PixelData, kernel.pixelDataVR(), pixeldata, false);
     }
 
     /** Inject DICOM attributes based on the NIFTI-1 header.
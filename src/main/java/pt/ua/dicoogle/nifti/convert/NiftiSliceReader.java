@@ -0,0 +1,394 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import niftijio.niftijio.NiftiHeader;
+
+/** A reader of single-file NIFTI-1 volumes which retrieves voxel data one slice
+ * at a time. Only the 348-byte header and the slice currently being read are
+ * kept in memory, so the volume is never materialized as a whole. No slice
+ * memory is allocated until a slice is read.
+ *
+ * Slices are identified by their z index and their 4th dimension index. When
+ * reading from an input stream, slices must be requested in storage order
+ * (z first, then the 4th dimension), and slices which are passed over are
+ * skipped without being decoded. When reading from a file channel, or any
+ * other {@link RandomAccessSource}, slices can be read in any order, and
+ * {@link #readSlice(int, int, byte[])} may be called from multiple threads.
+ * Otherwise, this implementation is not thread-safe.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class NiftiSliceReader {
+
+    /** The size of a NIFTI-1 header, in bytes. */
+    public static final int HEADER_SIZE = 348;
+    /** The minimum offset of the voxel data in a single-file NIFTI-1 (header plus extension flag). */
+    private static final int MIN_DATA_OFFSET = HEADER_SIZE + 4;
+
+    /** Content which can be read at any position, possibly concurrently. */
+    @FunctionalInterface
+    public interface RandomAccessSource {
+        /** Read content at the given position, advancing the buffer's position.
+         * @param dst the buffer to receive the content
+         * @param position the position in the content
+         * @return the number of bytes read, or -1 at the end of the content
+         * @throws IOException on a read failure
+         */
+        int read(ByteBuffer dst, long position) throws IOException;
+    }
+
+    private final InputStream in;
+    private final RandomAccessSource source;
+    private final long dataOffset;
+    private final NiftiHeader header;
+    private final ByteOrder order;
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+    private final int dimension;
+    private final int sliceSize;
+    // allocated on the first read, so that headers can be looked into beforehand
+    private byte[] slice;
+
+    // index of the next slice in the stream, counting from the start of the voxel data
+    private long nextSlice = 0;
+
+    /** Create a slice reader, reading the volume's header right away.
+     *
+     * @param in the input stream with the contents of a single-file NIFTI-1 volume
+     * @throws IOException if the header could not be read or is not a valid NIFTI-1 header
+     */
+    public NiftiSliceReader(InputStream in) throws IOException {
+        this(in, null, readHeaderBytes(in));
+        skipFully(in, dataOffset - HEADER_SIZE);
+    }
+
+    /** Create a random access slice reader, reading the volume's header right away.
+     * The channel's position is not used nor modified.
+     *
+     * @param channel a file channel with the contents of a single-file NIFTI-1 volume
+     * @throws IOException if the header could not be read or is not a valid NIFTI-1 header
+     */
+    public NiftiSliceReader(FileChannel channel) throws IOException {
+        this(channel::read);
+    }
+
+    /** Create a random access slice reader over any positional source, such
+     * as an indexed GZip file, reading the volume's header right away.
+     *
+     * @param source the contents of a single-file NIFTI-1 volume
+     * @throws IOException if the header could not be read or is not a valid NIFTI-1 header
+     */
+    public NiftiSliceReader(RandomAccessSource source) throws IOException {
+        this(null, source, readHeaderBytes(source));
+    }
+
+    private NiftiSliceReader(InputStream in, RandomAccessSource source, byte[] hdr) throws IOException {
+        this.in = in;
+        this.source = source;
+        ByteBuffer bb = headerBuffer(hdr);
+        this.order = bb.order();
+        this.header = checkHeader(parseHeader(bb));
+        short[] dim = header.dim;
+        this.sizeX = Math.max(1, (int) dim[1]);
+        this.sizeY = dim[0] >= 2 ? Math.max(1, (int) dim[2]) : 1;
+        this.sizeZ = dim[0] >= 3 ? Math.max(1, (int) dim[3]) : 1;
+        this.dimension = dim[0] >= 4 ? Math.max(1, (int) dim[4]) : 1;
+
+        int bytesPerVoxel = NiftiHeader.bytesPerVoxel(header.datatype);
+        if (bytesPerVoxel <= 0) {
+            throw new IOException("Unsupported NIFTI data type " + NiftiHeader.decodeDatatype(header.datatype));
+        }
+        long size = (long) sizeX * sizeY * bytesPerVoxel;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("NIFTI slices of " + sizeX + "x" + sizeY + " "
+                    + NiftiHeader.decodeDatatype(header.datatype) + " voxels are too large");
+        }
+        this.sliceSize = (int) size;
+        this.dataOffset = Math.max(MIN_DATA_OFFSET, (long) header.vox_offset);
+    }
+
+    // a reader of the same volume, with the voxel data alone in the given source
+    private NiftiSliceReader(NiftiSliceReader volume, RandomAccessSource source) {
+        this.in = null;
+        this.source = source;
+        this.dataOffset = 0;
+        this.header = volume.header;
+        this.order = volume.order;
+        this.sizeX = volume.sizeX;
+        this.sizeY = volume.sizeY;
+        this.sizeZ = volume.sizeZ;
+        this.dimension = volume.dimension;
+        this.sliceSize = volume.sliceSize;
+    }
+
+    public NiftiHeader getHeader() {
+        return header;
+    }
+
+    /** @return the byte order of the voxel data */
+    public ByteOrder getByteOrder() {
+        return order;
+    }
+
+    public int sizeX() {
+        return sizeX;
+    }
+
+    public int sizeY() {
+        return sizeY;
+    }
+
+    public int sizeZ() {
+        return sizeZ;
+    }
+
+    /** @return the size of the 4th dimension (1 for 3D volumes) */
+    public int dimension() {
+        return dimension;
+    }
+
+    /** @return the size of a slice of raw voxel data, in bytes */
+    public int sliceSize() {
+        return sliceSize;
+    }
+
+    /** @return whether slices can be read in any order, and concurrently */
+    public boolean isRandomAccess() {
+        return source != null;
+    }
+
+    /** Write the voxel data of a volume read from an input stream into a
+     * file, so that its slices can be read at random. The voxel data is read
+     * to its end right away, and no slice may have been read before.
+     *
+     * @param channel a readable and writable file channel, which receives the
+     * voxel data from its start
+     * @return a random access slice reader of the same volume over the channel
+     * @throws IOException on a read or write failure
+     * @throws IllegalStateException if this reader is already random access, or has read slices
+     */
+    public NiftiSliceReader spool(FileChannel channel) throws IOException {
+        if (in == null || nextSlice > 0) {
+            throw new IllegalStateException("Only unread streamed volumes can be spooled");
+        }
+        long size = (long) sizeZ * dimension * sliceSize;
+        ReadableByteChannel data = Channels.newChannel(in);
+        for (long position = 0; position < size;) {
+            long n = channel.transferFrom(data, position, size - position);
+            if (n <= 0) {
+                throw new EOFException("Unexpected end of NIFTI data");
+            }
+            position += n;
+        }
+        nextSlice = (long) sizeZ * dimension;
+        return new NiftiSliceReader(this, channel::read);
+    }
+
+    /** Read the raw voxel data of a slice. When reading from an input stream,
+     * slices between the previously read slice and the requested one are skipped.
+     *
+     * @param nz the z index of the slice
+     * @param dim the 4th dimension index of the slice
+     * @return a buffer with the slice's raw voxel data in the volume's byte order,
+     * which is only valid until the next call to this method
+     * @throws IOException on a read failure, or if the slice was already passed over
+     */
+    public ByteBuffer readSlice(int nz, int dim) throws IOException {
+        if (slice == null) {
+            slice = new byte[sliceSize];
+        }
+        return readSlice(nz, dim, slice);
+    }
+
+    /** Read the raw voxel data of a slice into the given array. When reading
+     * from an input stream, slices between the previously read slice and the
+     * requested one are skipped.
+     *
+     * @param nz the z index of the slice
+     * @param dim the 4th dimension index of the slice
+     * @param dst the array to receive the data, at least {@link #sliceSize()} bytes long
+     * @return a buffer wrapping {@code dst} in the volume's byte order
+     * @throws IOException on a read failure, or if the slice was already passed over
+     */
+    public ByteBuffer readSlice(int nz, int dim, byte[] dst) throws IOException {
+        if (nz < 0 || nz >= sizeZ || dim < 0 || dim >= dimension) {
+            throw new IndexOutOfBoundsException("No such slice (" + nz + ", " + dim + ")");
+        }
+        long index = (long) dim * sizeZ + nz;
+        if (source != null) {
+            ByteBuffer bb = ByteBuffer.wrap(dst, 0, sliceSize);
+            long position = dataOffset + index * sliceSize;
+            while (bb.hasRemaining()) {
+                int n = source.read(bb, position + bb.position());
+                if (n < 0) {
+                    throw new EOFException("Unexpected end of NIFTI data");
+                }
+            }
+        } else {
+            if (index < nextSlice) {
+                throw new IOException("Slice (" + nz + ", " + dim + ") was already read");
+            }
+            skipFully(in, (index - nextSlice) * sliceSize);
+            readFully(in, dst, 0, sliceSize);
+            nextSlice = index + 1;
+        }
+        return ByteBuffer.wrap(dst, 0, sliceSize).order(order);
+    }
+
+    /** Read and check the header of a volume, without reading further.
+     * @param in the input stream with the contents of a single-file NIFTI-1 volume
+     * @return the header
+     * @throws IOException if the header could not be read or is not a valid NIFTI-1 header
+     */
+    public static NiftiHeader readHeader(InputStream in) throws IOException {
+        return checkHeader(parseHeader(headerBuffer(readHeaderBytes(in))));
+    }
+
+    /** @return the header bytes, in the byte order of the header */
+    private static ByteBuffer headerBuffer(byte[] hdr) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(hdr).order(ByteOrder.LITTLE_ENDIAN);
+        if (bb.getInt(0) != HEADER_SIZE) {
+            bb.order(ByteOrder.BIG_ENDIAN);
+            if (bb.getInt(0) != HEADER_SIZE) {
+                throw new IOException("Not a NIFTI-1 file: bad header size");
+            }
+        }
+        return bb;
+    }
+
+    private static NiftiHeader checkHeader(NiftiHeader header) throws IOException {
+        if (!"n+1".equals(header.magic.toString())) {
+            throw new IOException("Not a single-file NIFTI-1 volume (magic \"" + header.magic + "\")");
+        }
+        short[] dim = header.dim;
+        if (dim[0] < 1 || dim[0] > 7) {
+            throw new IOException("Invalid number of dimensions " + dim[0]);
+        }
+        return header;
+    }
+
+    private static byte[] readHeaderBytes(InputStream in) throws IOException {
+        byte[] hdr = new byte[HEADER_SIZE];
+        readFully(in, hdr, 0, HEADER_SIZE);
+        return hdr;
+    }
+
+    private static byte[] readHeaderBytes(RandomAccessSource source) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE);
+        while (bb.hasRemaining()) {
+            if (source.read(bb, bb.position()) < 0) {
+                throw new EOFException("Unexpected end of NIFTI header");
+            }
+        }
+        return bb.array();
+    }
+
+    private static NiftiHeader parseHeader(ByteBuffer bb) {
+        NiftiHeader hdr = new NiftiHeader();
+        hdr.little_endian = bb.order() == ByteOrder.LITTLE_ENDIAN;
+        hdr.sizeof_hdr = bb.getInt(0);
+        for (int i = 0; i < 8; i++) {
+            hdr.dim[i] = bb.getShort(40 + 2 * i);
+        }
+        for (int i = 0; i < 3; i++) {
+            hdr.intent[i] = bb.getFloat(56 + 4 * i);
+        }
+        hdr.intent_code = bb.getShort(68);
+        hdr.datatype = bb.getShort(70);
+        hdr.bitpix = bb.getShort(72);
+        hdr.slice_start = bb.getShort(74);
+        for (int i = 0; i < 8; i++) {
+            hdr.pixdim[i] = bb.getFloat(76 + 4 * i);
+        }
+        hdr.vox_offset = bb.getFloat(108);
+        hdr.scl_slope = bb.getFloat(112);
+        hdr.scl_inter = bb.getFloat(116);
+        hdr.slice_end = bb.getShort(120);
+        hdr.slice_code = bb.get(122);
+        hdr.xyzt_units = bb.get(123);
+        hdr.cal_max = bb.getFloat(124);
+        hdr.cal_min = bb.getFloat(128);
+        hdr.slice_duration = bb.getFloat(132);
+        hdr.toffset = bb.getFloat(136);
+        hdr.glmax = bb.getInt(140);
+        hdr.glmin = bb.getInt(144);
+        hdr.descrip = new StringBuffer(readString(bb, 148, 80));
+        hdr.aux_file = new StringBuffer(readString(bb, 228, 24));
+        hdr.qform_code = bb.getShort(252);
+        hdr.sform_code = bb.getShort(254);
+        for (int i = 0; i < 3; i++) {
+            hdr.quatern[i] = bb.getFloat(256 + 4 * i);
+            hdr.qoffset[i] = bb.getFloat(268 + 4 * i);
+        }
+        for (int i = 0; i < 4; i++) {
+            hdr.srow_x[i] = bb.getFloat(280 + 4 * i);
+            hdr.srow_y[i] = bb.getFloat(296 + 4 * i);
+            hdr.srow_z[i] = bb.getFloat(312 + 4 * i);
+        }
+        hdr.intent_name = new StringBuffer(readString(bb, 328, 16));
+        hdr.magic = new StringBuffer(readString(bb, 344, 4));
+        return hdr;
+    }
+
+    // read a null-terminated string of fixed capacity
+    private static String readString(ByteBuffer bb, int offset, int length) {
+        byte[] arr = bb.array();
+        int end = offset;
+        while (end < offset + length && arr[end] != 0) {
+            end++;
+        }
+        return new String(arr, offset, end - offset, StandardCharsets.US_ASCII);
+    }
+
+    private static void readFully(InputStream in, byte[] buf, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = in.read(buf, offset, length);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of NIFTI data");
+            }
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                // skip is allowed to give up early, so confirm that the stream has not ended
+                if (in.read() < 0) {
+                    throw new EOFException("Unexpected end of NIFTI data");
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+import java.nio.ByteBuffer;
+import niftijio.niftijio.NiftiHeader;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.VR;
+import pt.ua.dicoogle.nifti.util.RuntimeIOException;
+
+/** A conversion routine from raw NIFTI-1 voxel data to DICOM pixel data,
+ * specialized for one data type. A kernel is selected once per volume with
+ * {@link #forDatatype(short)}, and then converts whole slices at a time,
+ * without allocating and without branching on the data type per voxel.
+ *
+ * Pixel data is always written in little endian.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+abstract class SliceKernel {
+
+    private final short datatype;
+    private final int bytesAllocated;
+
+    SliceKernel(short datatype, int bytesAllocated) {
+        this.datatype = datatype;
+        this.bytesAllocated = bytesAllocated;
+    }
+
+    /** Obtain the kernel for the given NIFTI data type. Vectorized kernels
+     * are used when available (see {@link VectorKernels}).
+     * @param datatype the NIFTI-1 data type code
+     * @return the kernel for this data type
+     * @throws RuntimeIOException if the data type is not supported
+     */
+    static SliceKernel forDatatype(short datatype) {
+        return VectorKernels.vectorize(scalarForDatatype(datatype));
+    }
+
+    /** Obtain the scalar kernel for the given NIFTI data type.
+     * @param datatype the NIFTI-1 data type code
+     * @return the kernel for this data type
+     * @throws RuntimeIOException if the data type is not supported
+     */
+    static SliceKernel scalarForDatatype(short datatype) {
+        switch (datatype) {
+            case NiftiHeader.NIFTI_TYPE_INT8:
+                return new Int8Kernel(datatype, false);
+            case NiftiHeader.NIFTI_TYPE_UINT8:
+                return new Int8Kernel(datatype, true);
+            case NiftiHeader.NIFTI_TYPE_INT16:
+                return new Int16Kernel(datatype, false);
+            case NiftiHeader.NIFTI_TYPE_UINT16:
+                return new Int16Kernel(datatype, true);
+            case NiftiHeader.NIFTI_TYPE_INT32:
+                return new Int32Kernel(datatype, false);
+            case NiftiHeader.NIFTI_TYPE_UINT32:
+                return new Int32Kernel(datatype, true);
+            case NiftiHeader.NIFTI_TYPE_FLOAT32:
+                return new Float32Kernel(datatype);
+            case NiftiHeader.NIFTI_TYPE_FLOAT64:
+                return new Float64Kernel(datatype);
+            default:
+                throw new RuntimeIOException("Unsupported NIFTI data type " + NiftiHeader.decodeDatatype(datatype));
+        }
+    }
+
+    /** @return the NIFTI-1 data type handled by this kernel */
+    short datatype() {
+        return datatype;
+    }
+
+    /** @return the number of bytes of each output pixel (either 1 or 2) */
+    int bytesAllocated() {
+        return bytesAllocated;
+    }
+
+    /** @return the VR of the pixel data produced by this kernel */
+    VR pixelDataVR() {
+        return bytesAllocated == 1 ? VR.OB : VR.OW;
+    }
+
+    /** Put the attributes which describe how the kernel's output is to be
+     * rescaled. This is called once per slice.
+     * @param obj the DICOM object of the slice
+     */
+    void putRescale(DicomObject obj) {
+        // the header's rescale parameters apply by default
+    }
+
+    /** Convert a run of voxels to pixel data.
+     *
+     * @param src the raw voxel data, in the volume's byte order (absolute indexing is used)
+     * @param dst the output pixel data buffer, at least {@code count * bytesAllocated()} bytes long
+     * @param count the number of voxels to convert
+     * @param range the range of raw voxel values, to be widened with the values of these voxels
+     */
+    abstract void convert(ByteBuffer src, byte[] dst, int count, ValueRange range);
+
+    /** Add a run of raw voxel values to a histogram.
+     *
+     * @param src the raw voxel data, in the volume's byte order (absolute indexing is used)
+     * @param count the number of voxels to add
+     * @param hist the histogram
+     */
+    abstract void accumulate(ByteBuffer src, int count, VoxelHistogram hist);
+
+    /** @return whether all raw voxel values handled by this kernel are integers */
+    boolean isIntegral() {
+        return true;
+    }
+
+    /** A running range of raw voxel values. */
+    static final class ValueRange {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+
+        void include(double lo, double hi) {
+            if (lo < min) {
+                min = lo;
+            }
+            if (hi > max) {
+                max = hi;
+            }
+        }
+
+        boolean isEmpty() {
+            return min > max;
+        }
+    }
+
+    private static final class Int8Kernel extends SliceKernel {
+        private final boolean unsigned;
+
+        Int8Kernel(short datatype, boolean unsigned) {
+            super(datatype, 1);
+            this.unsigned = unsigned;
+        }
+
+        @Override
+        void convert(ByteBuffer src, byte[] dst, int count, ValueRange range) {
+            final int mask = unsigned ? 0xFF : -1;
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                byte b = src.get(i);
+                dst[i] = b;
+                int v = b & mask;
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+            if (count > 0) {
+                range.include(min, max);
+            }
+        }
+
+        @Override
+        void accumulate(ByteBuffer src, int count, VoxelHistogram hist) {
+            final int mask = unsigned ? 0xFF : -1;
+            for (int i = 0; i < count; i++) {
+                hist.add(src.get(i) & mask);
+            }
+        }
+    }
+
+    private static final class Int16Kernel extends SliceKernel {
+        private final boolean unsigned;
+
+        Int16Kernel(short datatype, boolean unsigned) {
+            super(datatype, 2);
+            this.unsigned = unsigned;
+        }
+
+        @Override
+        void convert(ByteBuffer src, byte[] dst, int count, ValueRange range) {
+            final int mask = unsigned ? 0xFFFF : -1;
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (int i = 0, o = 0; i < count; i++, o += 2) {
+                short s = src.getShort(o);
+                dst[o] = (byte) s;
+                dst[o + 1] = (byte) (s >>> 8);
+                int v = s & mask;
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+            if (count > 0) {
+                range.include(min, max);
+            }
+        }
+
+        @Override
+        void accumulate(ByteBuffer src, int count, VoxelHistogram hist) {
+            final int mask = unsigned ? 0xFFFF : -1;
+            for (int i = 0; i < count; i++) {
+                hist.add(src.getShort(i << 1) & mask);
+            }
+        }
+    }
+
+    private static final class Int32Kernel extends SliceKernel {
+        private final boolean unsigned;
+
+        Int32Kernel(short datatype, boolean unsigned) {
+            super(datatype, 2);
+            this.unsigned = unsigned;
+        }
+
+        @Override
+        void convert(ByteBuffer src, byte[] dst, int count, ValueRange range) {
+            final long mask = unsigned ? 0xFFFF_FFFFL : -1L;
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int i = 0, o = 0; i < count; i++, o += 2) {
+                int v = src.getInt(i << 2);
+                // the maximum bit storage supported for Pixel Data is 16
+                // therefore, an unfortunate precision reduction must take place
+                int s = v >>> 16;
+                dst[o] = (byte) s;
+                dst[o + 1] = (byte) (s >>> 8);
+                long l = v & mask;
+                min = Math.min(min, l);
+                max = Math.max(max, l);
+            }
+            if (count > 0) {
+                range.include(min, max);
+            }
+        }
+
+        @Override
+        void accumulate(ByteBuffer src, int count, VoxelHistogram hist) {
+            final long mask = unsigned ? 0xFFFF_FFFFL : -1L;
+            for (int i = 0; i < count; i++) {
+                hist.add(src.getInt(i << 2) & mask);
+            }
+        }
+    }
+
+    private static final class Float32Kernel extends SliceKernel {
+        Float32Kernel(short datatype) {
+            super(datatype, 2);
+        }
+
+        @Override
+        void putRescale(DicomObject obj) {
+            obj.putFloat(Tag.RescaleIntercept, VR.DS, -1024);
+            obj.putFloat(Tag.RescaleSlope, VR.DS, 1);
+        }
+
+        @Override
+        void convert(ByteBuffer src, byte[] dst, int count, ValueRange range) {
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for (int i = 0, o = 0; i < count; i++, o += 2) {
+                float v = src.getFloat(i << 2);
+                short s = (short) (v + 1024);
+                dst[o] = (byte) s;
+                dst[o + 1] = (byte) (s >>> 8);
+                // NaN voxels are left out of the range
+                if (v < min) {
+                    min = v;
+                }
+                if (v > max) {
+                    max = v;
+                }
+            }
+            range.include(min, max);
+        }
+
+        @Override
+        void accumulate(ByteBuffer src, int count, VoxelHistogram hist) {
+            for (int i = 0; i < count; i++) {
+                hist.add(src.getFloat(i << 2));
+            }
+        }
+
+        @Override
+        boolean isIntegral() {
+            return false;
+        }
+    }
+
+    private static final class Float64Kernel extends SliceKernel {
+        Float64Kernel(short datatype) {
+            super(datatype, 2);
+        }
+
+        @Override
+        void putRescale(DicomObject obj) {
+            obj.putFloat(Tag.RescaleIntercept, VR.DS, -1024);
+            obj.putFloat(Tag.RescaleSlope, VR.DS, 1);
+        }
+
+        @Override
+        void convert(ByteBuffer src, byte[] dst, int count, ValueRange range) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = 0, o = 0; i < count; i++, o += 2) {
+                double v = src.getDouble(i << 3);
+                short s = (short) (v + 1024);
+                dst[o] = (byte) s;
+                dst[o + 1] = (byte) (s >>> 8);
+                // NaN voxels are left out of the range
+                if (v < min) {
+                    min = v;
+                }
+                if (v > max) {
+                    max = v;
+                }
+            }
+            range.include(min, max);
+        }
+
+        @Override
+        void accumulate(ByteBuffer src, int count, VoxelHistogram hist) {
+            for (int i = 0; i < count; i++) {
+                hist.add(src.getDouble(i << 3));
+            }
+        }
+
+        @Override
+        boolean isIntegral() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+/** A selection of the slices of a volume to convert: a range of z indexes,
+ * taken every so many slices, in each of a range of indexes of the 4th
+ * dimension. Indexes start at 0, and ranges include both ends. Slices which
+ * are not selected are never decoded: they are skipped over when the volume
+ * is streamed, and not read at all when it is read at random.
+ *
+ * Selected slices keep the instance numbers, UIDs and positions which they
+ * would have if the whole volume were converted.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public final class SliceSelection {
+
+    private static final SliceSelection ALL = new SliceSelection(0, Integer.MAX_VALUE, 0, Integer.MAX_VALUE, 1);
+
+    private final int zFirst;
+    private final int zLast;
+    private final int tFirst;
+    private final int tLast;
+    private final int stride;
+
+    /** Create a slice selection.
+     * @param zFirst the first z index
+     * @param zLast the last z index, included
+     * @param tFirst the first index of the 4th dimension
+     * @param tLast the last index of the 4th dimension, included
+     * @param stride the distance between selected z indexes
+     */
+    public SliceSelection(int zFirst, int zLast, int tFirst, int tLast, int stride) {
+        if (zFirst < 0 || zLast < zFirst) {
+            throw new IllegalArgumentException("Invalid z range " + zFirst + "-" + zLast);
+        }
+        if (tFirst < 0 || tLast < tFirst) {
+            throw new IllegalArgumentException("Invalid 4th dimension range " + tFirst + "-" + tLast);
+        }
+        if (stride < 1) {
+            throw new IllegalArgumentException("Invalid stride " + stride);
+        }
+        this.zFirst = zFirst;
+        this.zLast = zLast;
+        this.tFirst = tFirst;
+        this.tLast = tLast;
+        this.stride = stride;
+    }
+
+    /** @return a selection of every slice */
+    public static SliceSelection all() {
+        return ALL;
+    }
+
+    /** Parse a slice selection. Ranges are written as {@code first-last},
+     * {@code first-} (up to the end of the volume) or as a single index.
+     *
+     * @param zRange the range of z indexes, or null for all of them
+     * @param tRange the range of indexes of the 4th dimension, or null for all of them
+     * @param stride the distance between selected z indexes, or null for 1
+     * @return the slice selection
+     * @throws IllegalArgumentException if any of the parameters is not valid
+     */
+    public static SliceSelection parse(String zRange, String tRange, String stride) {
+        int[] z = parseRange("zRange", zRange);
+        int[] t = parseRange("tRange", tRange);
+        int s = 1;
+        if (stride != null && !stride.trim().isEmpty()) {
+            try {
+                s = Integer.parseInt(stride.trim());
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid stride \"" + stride + "\"");
+            }
+        }
+        return new SliceSelection(z[0], z[1], t[0], t[1], s);
+    }
+
+    private static int[] parseRange(String name, String range) {
+        if (range == null || range.trim().isEmpty()) {
+            return new int[]{0, Integer.MAX_VALUE};
+        }
+        String s = range.trim();
+        int dash = s.indexOf('-');
+        try {
+            if (dash < 0) {
+                int i = Integer.parseInt(s);
+                return new int[]{i, i};
+            }
+            int first = Integer.parseInt(s.substring(0, dash).trim());
+            String last = s.substring(dash + 1).trim();
+            return new int[]{first, last.isEmpty() ? Integer.MAX_VALUE : Integer.parseInt(last)};
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid " + name + " \"" + range + "\"");
+        }
+    }
+
+    /** Restrict the selection to the slices of a volume.
+     * @param sizeZ the number of slices of the volume
+     * @param dimension the size of the 4th dimension of the volume
+     * @return the selection of the volume's slices
+     * @throws IllegalArgumentException if no slice of the volume is selected
+     */
+    public SliceSelection clamp(int sizeZ, int dimension) {
+        if (zFirst >= sizeZ) {
+            throw new IllegalArgumentException("zRange starts beyond the " + sizeZ + " slice(s) of the volume");
+        }
+        if (tFirst >= dimension) {
+            throw new IllegalArgumentException("tRange starts beyond the " + dimension
+                    + " volume(s) of the 4th dimension");
+        }
+        if (zLast < sizeZ && tLast < dimension) {
+            return this;
+        }
+        return new SliceSelection(zFirst, Math.min(zLast, sizeZ - 1), tFirst, Math.min(tLast, dimension - 1), stride);
+    }
+
+    /** @return whether every slice of a volume is selected */
+    public boolean isAll() {
+        return zFirst == 0 && tFirst == 0 && stride == 1 && zLast == Integer.MAX_VALUE && tLast == Integer.MAX_VALUE;
+    }
+
+    /** @return the number of selected z indexes, once clamped to a volume */
+    public int countZ() {
+        return (zLast - zFirst) / stride + 1;
+    }
+
+    /** @return the number of selected indexes of the 4th dimension, once clamped to a volume */
+    public int countT() {
+        return tLast - tFirst + 1;
+    }
+
+    /** @return the z index of the i-th selected z index */
+    int z(int i) {
+        return zFirst + i * stride;
+    }
+
+    /** @return the index of the 4th dimension of the i-th selected one */
+    int t(int i) {
+        return tFirst + i;
+    }
+
+    public int getZFirst() {
+        return zFirst;
+    }
+
+    public int getZLast() {
+        return zLast;
+    }
+
+    public int getTFirst() {
+        return tFirst;
+    }
+
+    public int getTLast() {
+        return tLast;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    @Override
+    public String toString() {
+        return "z " + zFirst + "-" + (zLast == Integer.MAX_VALUE ? "" : zLast) + " every " + stride
+                + ", t " + tFirst + "-" + (tLast == Integer.MAX_VALUE ? "" : tLast);
+    }
+}
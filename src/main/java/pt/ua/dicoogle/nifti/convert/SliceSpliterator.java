@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import org.dcm4che2.data.DicomObject;
+import pt.ua.dicoogle.nifti.util.BufferPool;
+
+/** A spliterator of DICOM objects over the (z, 4th dimension) slice
+ * coordinates of a volume, in storage order. Slices are identified by their
+ * linear index {@code dim * sizeZ + z}.
+ *
+ * When the volume can be read at random, the spliterator splits evenly by
+ * slice index, so that parallel streams scale with the number of slices.
+ * Otherwise, it can be given an executor, in which case slices are still
+ * read in order by the consuming thread, but converted ahead of time in the
+ * executor, with a bounded number of slices in flight. Either way, the
+ * encounter order of the objects is that of the slices.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+final class SliceSpliterator implements Spliterator<DicomObject> {
+
+    /** The operations for reading and converting a slice. */
+    interface SliceSource {
+        /** Read the raw data of a slice.
+         * @param index the slice index
+         * @param dst an array to hold the raw data, or null to use the reader's own buffer
+         * @return the raw voxel data
+         */
+        ByteBuffer read(int index, byte[] dst);
+
+        /** Convert the raw data of a slice. May be called from multiple threads.
+         * @param index the slice index
+         * @param data the raw voxel data
+         * @return the DICOM object
+         */
+        DicomObject convert(int index, ByteBuffer data);
+    }
+
+    private static final int MIN_SPLIT = 2;
+
+    private final SliceSource source;
+    private final int sliceSize;
+    private final boolean randomAccess;
+    private final Executor executor;
+    private final int maxInFlight;
+    private final BufferPool pool;
+    private final int end;
+    private int index;
+    private byte[] buffer;
+    private ArrayDeque<CompletableFuture<DicomObject>> inFlight;
+    private int nextRead;
+
+    /** Create a spliterator over a range of slices.
+     * @param source the slice reading and conversion operations
+     * @param sliceSize the size of a slice's raw data in bytes
+     * @param randomAccess whether slices can be read at random and concurrently
+     * @param executor the executor for converting slices ahead of time, or null to convert them on demand
+     * @param maxInFlight the maximum number of slices converted ahead of time
+     * @param pool the pool of raw data buffers for slices converted ahead of time, may be null
+     * @param from the index of the first slice
+     * @param to the index after the last slice
+     */
+    SliceSpliterator(SliceSource source, int sliceSize, boolean randomAccess, Executor executor, int maxInFlight,
+            BufferPool pool, int from, int to) {
+        this.source = source;
+        this.sliceSize = sliceSize;
+        this.randomAccess = randomAccess;
+        this.executor = executor;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.pool = pool;
+        this.index = from;
+        this.nextRead = from;
+        this.end = to;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super DicomObject> action) {
+        if (index >= end) {
+            return false;
+        }
+        if (executor == null) {
+            if (randomAccess && buffer == null) {
+                // each split needs its own buffer
+                buffer = new byte[sliceSize];
+            }
+            ByteBuffer data = source.read(index, buffer);
+            DicomObject obj = source.convert(index, data);
+            index++;
+            action.accept(obj);
+            return true;
+        }
+
+        if (inFlight == null) {
+            inFlight = new ArrayDeque<>(maxInFlight);
+        }
+        while (nextRead < end && inFlight.size() < maxInFlight) {
+            final int i = nextRead++;
+            // raw data is read in order by this thread, so it needs a copy of its own
+            final byte[] raw = pool != null ? pool.acquire(sliceSize) : new byte[sliceSize];
+            final ByteBuffer data;
+            try {
+                data = source.read(i, raw);
+            } catch (RuntimeException ex) {
+                release(raw);
+                throw ex;
+            }
+            inFlight.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return source.convert(i, data);
+                } finally {
+                    release(raw);
+                }
+            }, executor));
+        }
+        DicomObject obj;
+        try {
+            obj = inFlight.poll().join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw ex;
+        }
+        index++;
+        action.accept(obj);
+        return true;
+    }
+
+    private void release(byte[] raw) {
+        if (pool != null) {
+            pool.release(raw);
+        }
+    }
+
+    @Override
+    public Spliterator<DicomObject> trySplit() {
+        // slices of streamed volumes must be read in order,
+        // and slices converted ahead of time may not be handed over
+        if (!randomAccess || executor != null) {
+            return null;
+        }
+        int remaining = end - index;
+        if (remaining < MIN_SPLIT) {
+            return null;
+        }
+        int mid = index + remaining / 2;
+        SliceSpliterator prefix = new SliceSpliterator(source, sliceSize, true, null, maxInFlight, pool, index, mid);
+        this.index = mid;
+        this.nextRead = mid;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return end - index;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+/** Vectorized variants of the slice kernels.
+ *
+ * The Vector API is only available from Java 17 onwards, as an incubator
+ * module. This implementation, used in older runtimes, keeps the scalar
+ * kernels. It is replaced by the one in the Java 17 section of the
+ * multi-release jar ({@code src/main/java17}).
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+final class VectorKernels {
+
+    private VectorKernels() {}
+
+    /** @return whether kernels are vectorized in this runtime */
+    static boolean isAvailable() {
+        return false;
+    }
+
+    /** Obtain a vectorized variant of a scalar kernel, producing the same output.
+     * @param kernel a scalar kernel
+     * @return the vectorized kernel, or the given kernel if it cannot be vectorized
+     */
+    static SliceKernel vectorize(SliceKernel kernel) {
+        return kernel;
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import org.dcm4che2.data.DicomObject;
+
+/** A spliterator of multi-frame DICOM objects, one for each index of the
+ * 4th dimension of a volume, in storage order. When the volume can be read
+ * at random, the spliterator splits evenly by 4th dimension index.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+final class VolumeSpliterator implements Spliterator<DicomObject> {
+
+    private final IntFunction<DicomObject> converter;
+    private final boolean splittable;
+    private final int end;
+    private int index;
+
+    /** Create a spliterator over a range of 4th dimension indices.
+     * @param converter the function converting all slices of a 4th dimension index into a single object
+     * @param splittable whether the volume can be read at random and concurrently
+     * @param from the first 4th dimension index
+     * @param to the index after the last 4th dimension index
+     */
+    VolumeSpliterator(IntFunction<DicomObject> converter, boolean splittable, int from, int to) {
+        this.converter = converter;
+        this.splittable = splittable;
+        this.index = from;
+        this.end = to;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super DicomObject> action) {
+        if (index >= end) {
+            return false;
+        }
+        DicomObject obj = converter.apply(index);
+        index++;
+        action.accept(obj);
+        return true;
+    }
+
+    @Override
+    public Spliterator<DicomObject> trySplit() {
+        int remaining = end - index;
+        if (!splittable || remaining < 2) {
+            return null;
+        }
+        int mid = index + remaining / 2;
+        VolumeSpliterator prefix = new VolumeSpliterator(converter, true, index, mid);
+        this.index = mid;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return end - index;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+    }
+}
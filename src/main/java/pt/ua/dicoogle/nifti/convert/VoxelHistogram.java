@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+/** A histogram of raw voxel values over a fixed range, used for estimating
+ * percentile windows. Values outside of the range are clamped to the first
+ * or last bin, and NaN values are ignored.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+final class VoxelHistogram {
+
+    /** The number of bins used for histograms of non-integral value ranges. */
+    static final int DEFAULT_BINS = 4096;
+    /** The widest integral value range for which each value gets its own bin. */
+    private static final int MAX_EXACT_BINS = 1 << 16;
+
+    private final double lo;
+    private final double hi;
+    private final double scale;
+    private final long[] bins;
+    private long count;
+
+    private VoxelHistogram(double lo, double hi, int nBins) {
+        this.lo = lo;
+        this.hi = hi;
+        this.bins = new long[nBins];
+        this.scale = hi > lo ? nBins / (hi - lo) : 0;
+    }
+
+    /** Create a histogram for the given value range.
+     * @param lo the lowest value
+     * @param hi the highest value
+     * @param integral whether all values are integers, in which case each value
+     * has its own bin if the range is narrow enough
+     * @return a new, empty histogram
+     */
+    static VoxelHistogram forRange(double lo, double hi, boolean integral) {
+        if (integral && hi - lo < MAX_EXACT_BINS) {
+            int nBins = (int) (hi - lo) + 1;
+            return new VoxelHistogram(lo, lo + nBins, nBins);
+        }
+        return new VoxelHistogram(lo, hi, DEFAULT_BINS);
+    }
+
+    /** Create an empty histogram with the same range and bins as this one. */
+    VoxelHistogram emptyCopy() {
+        return new VoxelHistogram(lo, hi, bins.length);
+    }
+
+    void add(double v) {
+        if (v != v) {
+            return;
+        }
+        int b = (int) ((v - lo) * scale);
+        if (b < 0) {
+            b = 0;
+        } else if (b >= bins.length) {
+            b = bins.length - 1;
+        }
+        bins[b]++;
+        count++;
+    }
+
+    /** Add all counts of another histogram with the same range and bins. */
+    void merge(VoxelHistogram other) {
+        for (int i = 0; i < bins.length; i++) {
+            bins[i] += other.bins[i];
+        }
+        count += other.count;
+    }
+
+    long count() {
+        return count;
+    }
+
+    /** Estimate the value at the given percentile.
+     * @param p the percentile, between 0 and 100
+     * @return the lower edge of the bin containing the percentile, or NaN if the histogram is empty
+     */
+    double percentile(double p) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long target = (long) Math.ceil(p / 100 * count);
+        long acc = 0;
+        for (int i = 0; i < bins.length; i++) {
+            acc += bins[i];
+            if (acc >= target && bins[i] > 0) {
+                return scale > 0 ? lo + i / scale : lo;
+            }
+        }
+        return hi;
+    }
+}
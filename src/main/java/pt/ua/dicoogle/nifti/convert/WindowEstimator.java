@@ -0,0 +1,248 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import niftijio.niftijio.NiftiHeader;
+import pt.ua.dicoogle.nifti.config.WindowPreset;
+import pt.ua.dicoogle.nifti.dicom.DicomInjector;
+import pt.ua.dicoogle.nifti.dicom.WindowDicomInjector;
+import pt.ua.dicoogle.nifti.util.RuntimeIOException;
+
+/** Utility class for determining VOI windows according to a {@link WindowPolicy}.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+final class WindowEstimator {
+
+    /** An injector which leaves the window to the viewer. */
+    static final DicomInjector NO_WINDOW = obj -> obj;
+
+    // the number of slices visited by each leaf task of a volume scan
+    private static final int SLICES_PER_TASK = 4;
+
+    private WindowEstimator() {}
+
+    /** Obtain a window which does not depend on the voxel data.
+     *
+     * @param policy the window policy
+     * @param header the volume's header
+     * @return the window injector, or null if the window has to be estimated from the voxel data
+     */
+    static DicomInjector fixedWindow(WindowPolicy policy, NiftiHeader header) {
+        WindowPreset preset = policy.getPreset();
+        if (preset != null) {
+            return new WindowDicomInjector(preset.getCenter(), preset.getWidth());
+        }
+        if (policy.isUseHeader() && header.cal_max > header.cal_min) {
+            // the calibration range is already in real world units
+            return createWindowInjector(header.cal_min, header.cal_max);
+        }
+        return null;
+    }
+
+    /** Estimate the window of a slice from its raw voxel data.
+     *
+     * @param policy the window policy
+     * @param header the volume's header
+     * @param kernel the volume's conversion kernel
+     * @param data the slice's raw voxel data
+     * @param nVoxels the number of voxels in the slice
+     * @param range the range of raw values in the slice, as collected by the kernel
+     * @return the window injector
+     */
+    static DicomInjector sliceWindow(WindowPolicy policy, NiftiHeader header, SliceKernel kernel,
+            ByteBuffer data, int nVoxels, SliceKernel.ValueRange range) {
+        if (range.isEmpty()) {
+            return NO_WINDOW;
+        }
+        if (policy.isFullRange()) {
+            return rawWindow(header, range.min, range.max);
+        }
+        VoxelHistogram hist = VoxelHistogram.forRange(range.min, range.max, kernel.isIntegral());
+        kernel.accumulate(data, nVoxels, hist);
+        return rawWindow(header, hist.percentile(policy.getLowPercentile()), hist.percentile(policy.getHighPercentile()));
+    }
+
+    /** Estimate the window of a whole volume, scanning its slices in parallel.
+     * This takes one pass over the volume for the full value range, plus
+     * another one if percentiles are required. Only the selected slices are
+     * scanned, so the window is that of the slices converted.
+     *
+     * @param policy the window policy
+     * @param reader a random access reader of the volume
+     * @param selection the selection of slices to scan, clamped to the volume
+     * @param kernel the volume's conversion kernel
+     * @param pool the pool in which to scan the volume
+     * @return the window injector
+     */
+    static DicomInjector volumeWindow(WindowPolicy policy, NiftiSliceReader reader, SliceSelection selection,
+            SliceKernel kernel, ForkJoinPool pool) {
+        if (!reader.isRandomAccess()) {
+            throw new IllegalArgumentException("Volume scans require a random access reader");
+        }
+        final int nSlices = selection.countZ() * selection.countT();
+        SliceKernel.ValueRange range = pool.invoke(new RangeTask(reader, selection, kernel, 0, nSlices));
+        if (range.isEmpty()) {
+            return NO_WINDOW;
+        }
+        if (policy.isFullRange()) {
+            return rawWindow(reader.getHeader(), range.min, range.max);
+        }
+        VoxelHistogram empty = VoxelHistogram.forRange(range.min, range.max, kernel.isIntegral());
+        VoxelHistogram hist = pool.invoke(new HistogramTask(reader, selection, kernel, empty, 0, nSlices));
+        return rawWindow(reader.getHeader(), hist.percentile(policy.getLowPercentile()), hist.percentile(policy.getHighPercentile()));
+    }
+
+    // create a window from a range of raw voxel values
+    private static DicomInjector rawWindow(NiftiHeader header, double rawMin, double rawMax) {
+        // a zero slope means that no scaling is to be applied
+        final float slope = header.scl_slope != 0 ? header.scl_slope : 1;
+        final float offset = header.scl_slope != 0 ? header.scl_inter : 0;
+        double lo = rawMin * slope + offset;
+        double hi = rawMax * slope + offset;
+        return createWindowInjector(Math.min(lo, hi), Math.max(lo, hi));
+    }
+
+    private static DicomInjector createWindowInjector(double min, double max) {
+        double center = (max + min) / 2;
+        double width = max - min;
+        if (!(width > 1.0)) {
+            // not enough dynamic range for a valid window, leave it to the viewer
+            return NO_WINDOW;
+        }
+        return new WindowDicomInjector(center, width);
+    }
+
+    /** Base task for visiting a range of slices in parallel. */
+    private static abstract class SliceTask<T> extends RecursiveTask<T> {
+        final NiftiSliceReader reader;
+        final SliceSelection selection;
+        final SliceKernel kernel;
+        final int from;
+        final int to;
+
+        SliceTask(NiftiSliceReader reader, SliceSelection selection, SliceKernel kernel, int from, int to) {
+            this.reader = reader;
+            this.selection = selection;
+            this.kernel = kernel;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected T compute() {
+            if (to - from <= SLICES_PER_TASK) {
+                byte[] buf = new byte[reader.sliceSize()];
+                int nVoxels = reader.sizeX() * reader.sizeY();
+                int countZ = selection.countZ();
+                T acc = leaf();
+                try {
+                    for (int i = from; i < to; i++) {
+                        ByteBuffer data = reader.readSlice(selection.z(i % countZ), selection.t(i / countZ), buf);
+                        visit(acc, data, nVoxels);
+                    }
+                } catch (IOException ex) {
+                    throw new RuntimeIOException(ex);
+                }
+                return acc;
+            }
+            int mid = (from + to) >>> 1;
+            SliceTask<T> left = split(from, mid);
+            left.fork();
+            T right = split(mid, to).compute();
+            return combine(left.join(), right);
+        }
+
+        abstract SliceTask<T> split(int from, int to);
+
+        abstract T leaf();
+
+        abstract void visit(T acc, ByteBuffer data, int nVoxels);
+
+        abstract T combine(T a, T b);
+    }
+
+    private static final class RangeTask extends SliceTask<SliceKernel.ValueRange> {
+        private byte[] scratch;
+
+        RangeTask(NiftiSliceReader reader, SliceSelection selection, SliceKernel kernel, int from, int to) {
+            super(reader, selection, kernel, from, to);
+        }
+
+        @Override
+        SliceTask<SliceKernel.ValueRange> split(int from, int to) {
+            return new RangeTask(reader, selection, kernel, from, to);
+        }
+
+        @Override
+        SliceKernel.ValueRange leaf() {
+            return new SliceKernel.ValueRange();
+        }
+
+        @Override
+        void visit(SliceKernel.ValueRange acc, ByteBuffer data, int nVoxels) {
+            // the kernel collects the range while converting, the output is discarded
+            if (scratch == null) {
+                scratch = new byte[nVoxels * kernel.bytesAllocated()];
+            }
+            kernel.convert(data, scratch, nVoxels, acc);
+        }
+
+        @Override
+        SliceKernel.ValueRange combine(SliceKernel.ValueRange a, SliceKernel.ValueRange b) {
+            a.include(b.min, b.max);
+            return a;
+        }
+    }
+
+    private static final class HistogramTask extends SliceTask<VoxelHistogram> {
+        private final VoxelHistogram empty;
+
+        HistogramTask(NiftiSliceReader reader, SliceSelection selection, SliceKernel kernel, VoxelHistogram empty,
+                int from, int to) {
+            super(reader, selection, kernel, from, to);
+            this.empty = empty;
+        }
+
+        @Override
+        SliceTask<VoxelHistogram> split(int from, int to) {
+            return new HistogramTask(reader, selection, kernel, empty, from, to);
+        }
+
+        @Override
+        VoxelHistogram leaf() {
+            return empty.emptyCopy();
+        }
+
+        @Override
+        void visit(VoxelHistogram acc, ByteBuffer data, int nVoxels) {
+            kernel.accumulate(data, nVoxels, acc);
+        }
+
+        @Override
+        VoxelHistogram combine(VoxelHistogram a, VoxelHistogram b) {
+            a.merge(b);
+            return a;
+        }
+    }
+}
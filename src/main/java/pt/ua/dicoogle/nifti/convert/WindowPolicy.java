@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+import pt.ua.dicoogle.nifti.config.NIFTIPluginSettings;
+import pt.ua.dicoogle.nifti.config.WindowPreset;
+
+/** Describes how the VOI window (Window Center and Width) of the converted
+ * images is determined. In order of precedence, the window is taken from:
+ * <ol>
+ *   <li>a fixed preset, if one is given;</li>
+ *   <li>the calibration range of the NIFTI header (cal_min, cal_max), if
+ *   enabled and set;</li>
+ *   <li>the given percentiles of the voxel values. These are estimated over
+ *   the whole volume in parallel when the volume is randomly accessible.
+ *   Streamed volumes are written to disk beforehand, unless the converter
+ *   has no spool directory (see {@link NIFTIConverterImpl#setSpoolDirectory(java.nio.file.Path)}),
+ *   in which case they are estimated over each slice while it is converted.</li>
+ * </ol>
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public final class WindowPolicy {
+
+    private final WindowPreset preset;
+    private final boolean useHeader;
+    private final double lowPercentile;
+    private final double highPercentile;
+
+    /** Create a window policy.
+     * @param preset a fixed window preset, or null
+     * @param useHeader whether to use the calibration range of the header when set
+     * @param lowPercentile the percentile at the lower end of estimated windows
+     * @param highPercentile the percentile at the upper end of estimated windows
+     */
+    public WindowPolicy(WindowPreset preset, boolean useHeader, double lowPercentile, double highPercentile) {
+        if (lowPercentile < 0 || highPercentile > 100 || lowPercentile >= highPercentile) {
+            throw new IllegalArgumentException("Invalid window percentiles " + lowPercentile + "-" + highPercentile);
+        }
+        this.preset = preset;
+        this.useHeader = useHeader;
+        this.lowPercentile = lowPercentile;
+        this.highPercentile = highPercentile;
+    }
+
+    /** @return a policy which uses the header's calibration range, or the full range of voxel values */
+    public static WindowPolicy minMax() {
+        return new WindowPolicy(null, true, 0, 100);
+    }
+
+    /** Create a window policy from the plugin's settings.
+     * @param modality the modality of the series, used for looking up presets (may be null)
+     * @param bodyPart the examined body part of the series, used for looking up presets (may be null)
+     * @return the window policy
+     */
+    public static WindowPolicy fromSettings(String modality, String bodyPart) {
+        NIFTIPluginSettings settings = NIFTIPluginSettings.INSTANCE;
+        return new WindowPolicy(
+                settings.findWindowPreset(modality, bodyPart),
+                settings.isWindowFromHeader(),
+                settings.getWindowLowPercentile(),
+                settings.getWindowHighPercentile());
+    }
+
+    public WindowPreset getPreset() {
+        return preset;
+    }
+
+    public boolean isUseHeader() {
+        return useHeader;
+    }
+
+    public double getLowPercentile() {
+        return lowPercentile;
+    }
+
+    public double getHighPercentile() {
+        return highPercentile;
+    }
+
+    /** @return whether the estimated windows span the full range of voxel values */
+    public boolean isFullRange() {
+        return lowPercentile <= 0 && highPercentile >= 100;
+    }
+}
@@ -29,18 +29,23 @@ import org.dcm4che2.data.VR;
 class BodyPartDicomInjector implements DicomInjector {
 
     private final String bodyPart;
+    private final InjectorPlan plan;
     public BodyPartDicomInjector(String bodyPart) {
         this.bodyPart = bodyPart;
+        this.plan = InjectorPlan.of(this::compileTo);
     }
 
     @Override
     public DicomObject apply(DicomObject obj) {
+        return plan.apply(obj);
+    }
+
+    void compileTo(InjectorPlan.Builder plan) {
         if (bodyPart != null) {
-            obj.putString(Tag.BodyPartExamined, VR.CS, bodyPart);
+            plan.putString(Tag.BodyPartExamined, VR.CS, bodyPart);
         } else {
-            obj.putNull(Tag.BodyPartExamined, VR.CS);
+            plan.putNull(Tag.BodyPartExamined, VR.CS);
         }
-        return obj;
     }
 
 }
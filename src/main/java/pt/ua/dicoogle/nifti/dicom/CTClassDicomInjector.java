@@ -28,6 +28,7 @@ import org.dcm4che2.data.VR;
  */
 public class CTClassDicomInjector implements DicomInjector {
     private static final String CT_SOP_CLASS_UID = "1.2.840.10008.5.1.4.1.1.2";
+    private static final String ENHANCED_CT_SOP_CLASS_UID = "1.2.840.10008.5.1.4.1.1.2.1";
     
     public static enum ImageType {
         AXIAL,     /// identifies a CT Axial Image
@@ -40,10 +41,23 @@ public class CTClassDicomInjector implements DicomInjector {
 
     private final ImageType type;
     private final PhotometricInterpretation photoInterpret;
+    private final boolean enhanced;
+    private final InjectorPlan plan;
     
-    public CTClassDicomInjector(ImageType type, PhotometricInterpretation photoInterpret) {
+    /** Create a CT class injector.
+     * @param type the image type
+     * @param photoInterpret the photometric interpretation
+     * @param enhanced whether to inject an Enhanced CT image (multi-frame) instead of a CT image
+     */
+    public CTClassDicomInjector(ImageType type, PhotometricInterpretation photoInterpret, boolean enhanced) {
         this.type = type;
         this.photoInterpret = photoInterpret;
+        this.enhanced = enhanced;
+        this.plan = InjectorPlan.of(this::compileTo);
+    }
+
+    public CTClassDicomInjector(ImageType type, PhotometricInterpretation photoInterpret) {
+        this(type, photoInterpret, false);
     }
     
     public CTClassDicomInjector() {
@@ -52,29 +66,34 @@ public class CTClassDicomInjector implements DicomInjector {
     
     @Override
     public DicomObject apply(DicomObject obj) {
-        obj.putString(Tag.Modality, VR.CS, "CT");
-        obj.putString(Tag.SOPClassUID, VR.UI, CT_SOP_CLASS_UID);
-        obj.putString(Tag.ImageType, VR.CS, this.type.name());
-        obj.putString(Tag.PhotometricInterpretation, VR.CS, this.photoInterpret.name());
-        if (!obj.contains(Tag.RescaleIntercept)) {
-            obj.putDouble(Tag.RescaleIntercept, VR.DS, 0.0);
-        }
-        if (!obj.contains(Tag.RescaleSlope)) {
-            obj.putDouble(Tag.RescaleSlope, VR.DS, 1.0);
-        }
-
-        // Type 2 attributes
-        placeholdElement(obj, Tag.KVP, VR.DS);
-        placeholdElement(obj, Tag.AcquisitionNumber, VR.IS);
-        
-        return obj;
+        return plan.apply(obj);
     }
-    
-    // create empty element if it does not exist yet
-    private static void placeholdElement(DicomObject obj, int tag, VR vr) {
-        if (!obj.contains(tag)) {
-            obj.putNull(tag, vr);
+
+    void compileTo(InjectorPlan.Builder plan) {
+        if (enhanced) {
+            compileEnhanced(plan);
+            return;
         }
+        plan.putString(Tag.Modality, VR.CS, "CT");
+        plan.putString(Tag.SOPClassUID, VR.UI, CT_SOP_CLASS_UID);
+        plan.putString(Tag.ImageType, VR.CS, this.type.name());
+        plan.putString(Tag.PhotometricInterpretation, VR.CS, this.photoInterpret.name());
+        plan.putDoubleIfAbsent(Tag.RescaleIntercept, VR.DS, 0.0);
+        plan.putDoubleIfAbsent(Tag.RescaleSlope, VR.DS, 1.0);
+        // Type 2 attributes
+        plan.placehold(Tag.KVP, VR.DS);
+        plan.placehold(Tag.AcquisitionNumber, VR.IS);
     }
 
+    private void compileEnhanced(InjectorPlan.Builder plan) {
+        plan.putString(Tag.Modality, VR.CS, "CT");
+        plan.putString(Tag.SOPClassUID, VR.UI, ENHANCED_CT_SOP_CLASS_UID);
+        plan.putStrings(Tag.ImageType, VR.CS, "DERIVED", "PRIMARY", this.type.name(), "NONE");
+        plan.putString(Tag.PhotometricInterpretation, VR.CS, this.photoInterpret.name());
+        plan.putString(Tag.PixelPresentation, VR.CS, "MONOCHROME");
+        plan.putString(Tag.VolumetricProperties, VR.CS, "VOLUME");
+        plan.putString(Tag.VolumeBasedCalculationTechnique, VR.CS, "NONE");
+        // rescaling and acquisition details are described by the functional groups
+        plan.placehold(Tag.AcquisitionNumber, VR.IS);
+    }
 }
@@ -18,42 +18,56 @@
  */
 package pt.ua.dicoogle.nifti.dicom;
 
-import java.util.function.Function;
-import org.dcm4che2.data.DicomObject;
+import java.util.ArrayList;
+import java.util.List;
 import org.dcm4che2.data.Tag;
 import org.dcm4che2.data.VR;
 import pt.ua.dicoogle.nifti.dicom.CTClassDicomInjector.ImageType;
 import pt.ua.dicoogle.nifti.dicom.CTClassDicomInjector.PhotometricInterpretation;
 
-/** Utility class for creating DICOM attribute injection functions.
+/** Utility class for creating DICOM attribute injection functions. The
+ * injectors added to the builder are compiled into a single flat plan, which
+ * applies all of their attributes in one pass.
  *
  * @author Eduardo Pinho <eduardopinho@ua.pt>
  */
 public class DicomInjectorBuilder {
 
-    private Function<DicomObject, DicomObject> fn;
+    private List<InjectorPlan.Compilable> injectors = new ArrayList<>();
+    private boolean enhanced = false;
 
     public DicomInjectorBuilder() {
-        fn = i -> i;
     }
     
     public DicomInjectorBuilder generalClinic(String manufacturer, String institutionName) {
-        fn = fn.andThen(new GeneralClinicDicomInjector(manufacturer, institutionName));
+        injectors.add(new GeneralClinicDicomInjector(manufacturer, institutionName)::compileTo);
+        return this;
+    }
+
+    /** Choose whether the modality specific injectors added afterwards produce
+     * enhanced (multi-frame) image classes, such as Enhanced CT and Enhanced MR.
+     * This should match the output mode of the converter
+     * (see {@link pt.ua.dicoogle.nifti.convert.NIFTIConverterImpl#setMultiFrame(boolean)}).
+     *
+     * @param enhanced whether to use enhanced image classes
+     * @return this builder
+     */
+    public DicomInjectorBuilder enhanced(boolean enhanced) {
+        this.enhanced = enhanced;
         return this;
     }
 
     public DicomInjectorBuilder CT(ImageType type, PhotometricInterpretation photometricInterpretation) {
-        fn = fn.andThen(new CTClassDicomInjector(type, photometricInterpretation));
+        injectors.add(new CTClassDicomInjector(type, photometricInterpretation, enhanced)::compileTo);
         return this;
     }
     
     public DicomInjectorBuilder CT() {
-        fn = fn.andThen(new CTClassDicomInjector());
-        return this;
+        return this.CT(ImageType.AXIAL, PhotometricInterpretation.MONOCHROME2);
     }
 
     public DicomInjectorBuilder MR() {
-        fn = fn.andThen(new MRClassDicomInjector());
+        injectors.add(new MRClassDicomInjector(MRClassDicomInjector.ImageType.OTHER, enhanced)::compileTo);
         return this;
     }
     
@@ -67,35 +81,40 @@ public class DicomInjectorBuilder {
             case "MR":
                 return this.MR();
             case "MRT1":
-                fn = fn.andThen(new MRClassDicomInjector(MRClassDicomInjector.ImageType.T1_MAP));
+                injectors.add(new MRClassDicomInjector(MRClassDicomInjector.ImageType.T1_MAP, enhanced)::compileTo);
                 break;
             case "MRT2":
-                fn = fn.andThen(new MRClassDicomInjector(MRClassDicomInjector.ImageType.T2_MAP));
+                injectors.add(new MRClassDicomInjector(MRClassDicomInjector.ImageType.T2_MAP, enhanced)::compileTo);
                 break;
             default:
-                fn = fn.andThen(dcm -> {
-                    dcm.putString(Tag.Modality, VR.CS, modality);
-                    return dcm;
-                });
+                injectors.add(plan -> plan.putString(Tag.Modality, VR.CS, modality));
         }
         return this;
     }
 
     public DicomInjectorBuilder patient(String patientName, String patientID) {
-        fn = fn.andThen(new PatientDicomInjector(patientName, patientID));
+        injectors.add(new PatientDicomInjector(patientName, patientID)::compileTo);
         return this;
     }
 
     public DicomInjectorBuilder bodyPart(String bodyPart) {
-        fn = fn.andThen(new BodyPartDicomInjector(bodyPart));
+        injectors.add(new BodyPartDicomInjector(bodyPart)::compileTo);
         return this;
     }
 
+    /** Compile the injectors added so far into a single injector, and reset this builder.
+     * Attributes which would be overwritten by a later injector are left out.
+     *
+     * @return the injector
+     */
     public DicomInjector build() {
-        final Function<DicomObject, DicomObject> finalFn = this.fn;
-        DicomInjector finalInjector = dcm -> finalFn.apply(dcm);
-        this.fn = i -> i;
-        return finalInjector;
+        InjectorPlan.Builder plan = new InjectorPlan.Builder();
+        for (InjectorPlan.Compilable injector : this.injectors) {
+            injector.compileTo(plan);
+        }
+        this.injectors = new ArrayList<>();
+        this.enhanced = false;
+        return plan.build();
     }
 
 }
@@ -22,7 +22,7 @@
 package pt.ua.dicoogle.nifti.dicom;
 
 import org.dcm4che2.data.DicomObject;
-import org.dcm4che2.data.ElementDictionary;
+import org.dcm4che2.data.Tag;
 import org.dcm4che2.data.VR;
 
 /**
@@ -34,21 +34,24 @@ public class GeneralClinicDicomInjector implements DicomInjector {
     public GeneralClinicDicomInjector(String manufacturer, String institutionName) {
         this.manufacturer = manufacturer;
         this.institutionName = institutionName;
+        this.plan = InjectorPlan.of(this::compileTo);
     }
     
     private final String manufacturer;
     private final String institutionName;
+    private final InjectorPlan plan;
     
     @Override
     public DicomObject apply(DicomObject obj) {
-        final ElementDictionary dict = ElementDictionary.getDictionary();
-        
+        return plan.apply(obj);
+    }
+
+    void compileTo(InjectorPlan.Builder plan) {
         if (manufacturer != null) {
-            obj.putString(dict.tagForName("Manufacturer"), VR.LO, manufacturer);
+            plan.putString(Tag.Manufacturer, VR.LO, manufacturer);
         }
         if (institutionName != null) {
-            obj.putString(dict.tagForName("InstitutionName"), VR.LO, institutionName);
+            plan.putString(Tag.InstitutionName, VR.LO, institutionName);
         }
-        return obj;
     }
 }
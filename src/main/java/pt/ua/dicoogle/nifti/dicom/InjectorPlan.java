@@ -0,0 +1,246 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.dicom;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.VR;
+
+/** A flat, immutable sequence of attribute operations, which injects the
+ * attributes of one or more injectors in a single pass. Tags are resolved
+ * and string values are encoded when the plan is built, and operations
+ * without any effect on the outcome are left out.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+final class InjectorPlan implements DicomInjector {
+
+    /** An injector which can describe its effect as plan operations. */
+    @FunctionalInterface
+    interface Compilable {
+        /** Add the operations of this injector to a plan.
+         * @param plan the plan builder
+         */
+        void compileTo(Builder plan);
+    }
+
+    private static final int PUT_BYTES = 0;
+    private static final int PUT_STRING = 1;
+    private static final int PUT_NULL = 2;
+    private static final int PLACEHOLD = 3;
+    private static final int PUT_DOUBLE_IF_ABSENT = 4;
+    private static final int CUSTOM = 5;
+
+    private final int[] ops;
+    private final int[] tags;
+    private final VR[] vrs;
+    private final Object[] values;
+
+    private InjectorPlan(List<Op> plan) {
+        int n = plan.size();
+        ops = new int[n];
+        tags = new int[n];
+        vrs = new VR[n];
+        values = new Object[n];
+        for (int i = 0; i < n; i++) {
+            Op op = plan.get(i);
+            ops[i] = op.op;
+            tags[i] = op.tag;
+            vrs[i] = op.vr;
+            values[i] = op.value;
+        }
+    }
+
+    /** Compile a single injector.
+     * @param injector the injector
+     * @return its plan
+     */
+    static InjectorPlan of(Compilable injector) {
+        Builder builder = new Builder();
+        injector.compileTo(builder);
+        return builder.build();
+    }
+
+    /** @return the number of operations in this plan */
+    int size() {
+        return ops.length;
+    }
+
+    @Override
+    public DicomObject apply(DicomObject obj) {
+        for (int i = 0; i < ops.length; i++) {
+            switch (ops[i]) {
+                case PUT_BYTES:
+                    // the encoded value is shared by all objects, none of which modify it
+                    obj.putBytes(tags[i], vrs[i], (byte[]) values[i], false);
+                    break;
+                case PUT_STRING:
+                    obj.putString(tags[i], vrs[i], (String) values[i]);
+                    break;
+                case PUT_NULL:
+                    obj.putNull(tags[i], vrs[i]);
+                    break;
+                case PLACEHOLD:
+                    if (!obj.contains(tags[i])) {
+                        obj.putNull(tags[i], vrs[i]);
+                    }
+                    break;
+                case PUT_DOUBLE_IF_ABSENT:
+                    if (!obj.contains(tags[i])) {
+                        obj.putDouble(tags[i], vrs[i], (Double) values[i]);
+                    }
+                    break;
+                default:
+                    obj = ((DicomInjector) values[i]).apply(obj);
+            }
+        }
+        return obj;
+    }
+
+    private static final class Op {
+        final int op;
+        final int tag;
+        final VR vr;
+        final Object value;
+
+        Op(int op, int tag, VR vr, Object value) {
+            this.op = op;
+            this.tag = tag;
+            this.vr = vr;
+            this.value = value;
+        }
+
+        boolean isUnconditional() {
+            return op == PUT_BYTES || op == PUT_STRING || op == PUT_NULL;
+        }
+    }
+
+    /** A builder of injector plans. Operations are applied in the order in which they are added. */
+    static final class Builder {
+        private final List<Op> ops = new ArrayList<>();
+
+        /** Put a string value.
+         * @param tag the attribute tag
+         * @param vr the value representation
+         * @param value the value
+         * @return this builder
+         */
+        Builder putString(int tag, VR vr, String value) {
+            if (isAscii(value)) {
+                // the encoding of ASCII text is the same in every character set
+                ops.add(new Op(PUT_BYTES, tag, vr, vr.toBytes(value, false, null)));
+            } else {
+                ops.add(new Op(PUT_STRING, tag, vr, value));
+            }
+            return this;
+        }
+
+        /** Put a multi-valued string.
+         * @param tag the attribute tag
+         * @param vr the value representation
+         * @param values the values
+         * @return this builder
+         */
+        Builder putStrings(int tag, VR vr, String... values) {
+            return putString(tag, vr, String.join("\\", values));
+        }
+
+        /** Put an empty attribute.
+         * @param tag the attribute tag
+         * @param vr the value representation
+         * @return this builder
+         */
+        Builder putNull(int tag, VR vr) {
+            ops.add(new Op(PUT_NULL, tag, vr, null));
+            return this;
+        }
+
+        /** Put an empty attribute, unless the object already has one.
+         * @param tag the attribute tag
+         * @param vr the value representation
+         * @return this builder
+         */
+        Builder placehold(int tag, VR vr) {
+            ops.add(new Op(PLACEHOLD, tag, vr, null));
+            return this;
+        }
+
+        /** Put a decimal value, unless the object already has one.
+         * @param tag the attribute tag
+         * @param vr the value representation
+         * @param value the value
+         * @return this builder
+         */
+        Builder putDoubleIfAbsent(int tag, VR vr, double value) {
+            ops.add(new Op(PUT_DOUBLE_IF_ABSENT, tag, vr, value));
+            return this;
+        }
+
+        /** Apply an arbitrary injector at this point of the plan.
+         * @param injector the injector
+         * @return this builder
+         */
+        Builder custom(DicomInjector injector) {
+            if (injector instanceof InjectorPlan) {
+                // inline the operations of another plan
+                InjectorPlan plan = (InjectorPlan) injector;
+                for (int i = 0; i < plan.ops.length; i++) {
+                    ops.add(new Op(plan.ops[i], plan.tags[i], plan.vrs[i], plan.values[i]));
+                }
+            } else {
+                ops.add(new Op(CUSTOM, 0, null, injector));
+            }
+            return this;
+        }
+
+        /** Build the plan, leaving out the operations whose effect is
+         * overwritten by a later operation.
+         * @return the plan
+         */
+        InjectorPlan build() {
+            List<Op> plan = new ArrayList<>(ops.size());
+            // tags which are certainly written later on
+            Set<Integer> overwritten = new HashSet<>();
+            for (int i = ops.size() - 1; i >= 0; i--) {
+                Op op = ops.get(i);
+                if (op.op == CUSTOM) {
+                    // custom injectors may read anything written before them
+                    overwritten.clear();
+                    plan.add(op);
+                } else if (!overwritten.contains(op.tag)) {
+                    if (op.isUnconditional()) {
+                        overwritten.add(op.tag);
+                    }
+                    plan.add(op);
+                }
+            }
+            Collections.reverse(plan);
+            return new InjectorPlan(plan);
+        }
+
+        private static boolean isAscii(String value) {
+            return StandardCharsets.US_ASCII.newEncoder().canEncode(value);
+        }
+    }
+}
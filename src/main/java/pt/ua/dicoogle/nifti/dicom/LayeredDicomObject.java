@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.dicom;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomElement;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.SpecificCharacterSet;
+import org.dcm4che2.data.Tag;
+
+/** A DICOM object made of a shared base layer and an overlay of its own.
+ * Attributes put in this object go to the overlay and take precedence over
+ * those of the base layer, which is never modified. Attributes of the base
+ * layer which are removed from this object are merely hidden.
+ *
+ * This allows the attributes which are common to a whole series to be built
+ * once, and shared by all of its objects without copying. The base layer
+ * must not be modified while any object over it is in use, and its elements
+ * must not be modified in place through this object (such as by adding items
+ * to one of its sequences).
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class LayeredDicomObject extends BasicDicomObject {
+
+    private final DicomObject base;
+    // tags of the base layer which were removed from this object
+    private Set<Integer> hidden;
+    private boolean baseCleared = false;
+
+    /** Create a DICOM object over a base layer, with an empty overlay.
+     * @param base the base layer, which is not copied
+     */
+    public LayeredDicomObject(DicomObject base) {
+        this.base = base;
+    }
+
+    /** @return the base layer of this object */
+    public DicomObject getBase() {
+        return base;
+    }
+
+    private DicomElement baseElement(int tag) {
+        if (baseCleared || (hidden != null && hidden.contains(tag))) {
+            return null;
+        }
+        return base.get(tag);
+    }
+
+    @Override
+    public DicomElement get(int tag) {
+        DicomElement e = super.get(tag);
+        return e != null ? e : baseElement(tag);
+    }
+
+    @Override
+    public boolean contains(int tag) {
+        return get(tag) != null;
+    }
+
+    @Override
+    public boolean containsValue(int tag) {
+        DicomElement e = get(tag);
+        return e != null && !e.isEmpty();
+    }
+
+    @Override
+    public DicomElement remove(int tag) {
+        DicomElement e = super.remove(tag);
+        DicomElement b = baseElement(tag);
+        if (b != null) {
+            if (hidden == null) {
+                hidden = new HashSet<>();
+            }
+            hidden.add(tag);
+        }
+        return e != null ? e : b;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        baseCleared = true;
+    }
+
+    @Override
+    public int size() {
+        int n = 0;
+        for (Iterator<DicomElement> it = iterator(); it.hasNext(); it.next()) {
+            n++;
+        }
+        return n;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return !iterator().hasNext();
+    }
+
+    @Override
+    public Iterator<DicomElement> iterator() {
+        return new MergingIterator(super.iterator(), baseCleared ? null : base.iterator());
+    }
+
+    @Override
+    public Iterator<DicomElement> iterator(int fromTag, int toTag) {
+        return new MergingIterator(super.iterator(fromTag, toTag), baseCleared ? null : base.iterator(fromTag, toTag));
+    }
+
+    @Override
+    public boolean accept(Visitor visitor) {
+        for (Iterator<DicomElement> it = iterator(); it.hasNext();) {
+            if (!visitor.visit(it.next())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void copyTo(DicomObject dst) {
+        for (Iterator<DicomElement> it = iterator(); it.hasNext();) {
+            dst.add(it.next());
+        }
+    }
+
+    @Override
+    public SpecificCharacterSet getSpecificCharacterSet() {
+        return super.get(Tag.SpecificCharacterSet) != null || baseElement(Tag.SpecificCharacterSet) == null
+                ? super.getSpecificCharacterSet()
+                : base.getSpecificCharacterSet();
+    }
+
+    /** Iterates over the elements of the overlay and of the base layer in
+     * ascending tag order, skipping base elements which are shadowed or hidden.
+     */
+    private final class MergingIterator implements Iterator<DicomElement> {
+        private final Iterator<DicomElement> overlay;
+        private final Iterator<DicomElement> under;
+        private DicomElement nextOverlay;
+        private DicomElement nextUnder;
+
+        MergingIterator(Iterator<DicomElement> overlay, Iterator<DicomElement> under) {
+            this.overlay = overlay;
+            this.under = under;
+            this.nextOverlay = overlay.hasNext() ? overlay.next() : null;
+            advanceUnder();
+        }
+
+        private void advanceUnder() {
+            nextUnder = null;
+            while (under != null && under.hasNext()) {
+                DicomElement e = under.next();
+                if (hidden == null || !hidden.contains(e.tag())) {
+                    nextUnder = e;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextOverlay != null || nextUnder != null;
+        }
+
+        @Override
+        public DicomElement next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int cmp = nextOverlay == null ? 1
+                    : nextUnder == null ? -1
+                    : Integer.compareUnsigned(nextOverlay.tag(), nextUnder.tag());
+            DicomElement e;
+            if (cmp <= 0) {
+                e = nextOverlay;
+                nextOverlay = overlay.hasNext() ? overlay.next() : null;
+                if (cmp == 0) {
+                    // shadowed by the overlay
+                    advanceUnder();
+                }
+            } else {
+                e = nextUnder;
+                advanceUnder();
+            }
+            return e;
+        }
+    }
+}
@@ -34,6 +34,7 @@ import org.dcm4che2.data.VR;
 public class MRClassDicomInjector implements DicomInjector {
 
     private static final String MR_SOP_CLASS_UID = "1.2.840.10008.5.1.4.1.1.4";
+    private static final String ENHANCED_MR_SOP_CLASS_UID = "1.2.840.10008.5.1.4.1.1.4.1";
 
     public static enum ImageType {
 
@@ -73,12 +74,27 @@ public class MRClassDicomInjector implements DicomInjector {
     private final PhotometricInterpretation photoInterpret;
     private final List<ScanningSequence> scanningSequences;
     private final List<SequenceVariant> sequenceVariants;
-
-    public MRClassDicomInjector(ImageType type, PhotometricInterpretation photoInterpret, List<ScanningSequence> scanningSequence, List<SequenceVariant> sequenceVariant) {
+    private final boolean enhanced;
+    private final InjectorPlan plan;
+
+    /** Create an MR class injector.
+     * @param type the image type
+     * @param photoInterpret the photometric interpretation
+     * @param scanningSequence the scanning sequences
+     * @param sequenceVariant the sequence variants
+     * @param enhanced whether to inject an Enhanced MR image (multi-frame) instead of an MR image
+     */
+    public MRClassDicomInjector(ImageType type, PhotometricInterpretation photoInterpret, List<ScanningSequence> scanningSequence, List<SequenceVariant> sequenceVariant, boolean enhanced) {
         this.type = type;
         this.photoInterpret = photoInterpret;
         this.scanningSequences = new ArrayList<>(scanningSequence);
         this.sequenceVariants = new ArrayList<>(sequenceVariant);
+        this.enhanced = enhanced;
+        this.plan = InjectorPlan.of(this::compileTo);
+    }
+
+    public MRClassDicomInjector(ImageType type, PhotometricInterpretation photoInterpret, List<ScanningSequence> scanningSequence, List<SequenceVariant> sequenceVariant) {
+        this(type, photoInterpret, scanningSequence, sequenceVariant, false);
     }
 
     public MRClassDicomInjector(ImageType type, PhotometricInterpretation photoInterpret, ScanningSequence scanningSequence, SequenceVariant sequenceVariant) {
@@ -89,47 +105,62 @@ public class MRClassDicomInjector implements DicomInjector {
         this(type, PhotometricInterpretation.MONOCHROME2, ScanningSequence.RM, SequenceVariant.NONE);
     }
 
+    public MRClassDicomInjector(ImageType type, boolean enhanced) {
+        this(type, PhotometricInterpretation.MONOCHROME2, Collections.singletonList(ScanningSequence.RM),
+                Collections.singletonList(SequenceVariant.NONE), enhanced);
+    }
+
     public MRClassDicomInjector() {
         this(ImageType.OTHER, PhotometricInterpretation.MONOCHROME2, ScanningSequence.RM, SequenceVariant.NONE);
     }
 
     @Override
     public DicomObject apply(DicomObject obj) {
-        obj.putString(Tag.Modality, VR.CS, "MR");
-        obj.putString(Tag.SOPClassUID, VR.UI, MR_SOP_CLASS_UID);
-        obj.putString(Tag.ImageType, VR.CS, this.type.dicomValue());
-        obj.putString(Tag.PhotometricInterpretation, VR.CS, this.photoInterpret.name());
+        return plan.apply(obj);
+    }
 
-        putCSElements(obj, Tag.ScanningSequence, this.scanningSequences);
-        putCSElements(obj, Tag.SequenceVariant, this.sequenceVariants);
+    void compileTo(InjectorPlan.Builder plan) {
+        if (enhanced) {
+            compileEnhanced(plan);
+            return;
+        }
+        plan.putString(Tag.Modality, VR.CS, "MR");
+        plan.putString(Tag.SOPClassUID, VR.UI, MR_SOP_CLASS_UID);
+        plan.putString(Tag.ImageType, VR.CS, this.type.dicomValue());
+        plan.putString(Tag.PhotometricInterpretation, VR.CS, this.photoInterpret.name());
+        plan.putStrings(Tag.ScanningSequence, VR.CS, names(this.scanningSequences));
+        plan.putStrings(Tag.SequenceVariant, VR.CS, names(this.sequenceVariants));
 
         // Type 2 attributes
-        placeholdElement(obj, Tag.ScanOptions, VR.CS); // 1-n
-        placeholdElement(obj, Tag.MRAcquisitionType, VR.CS); // 1
-        placeholdElement(obj, Tag.RepetitionTime, VR.DS); // 1
-        placeholdElement(obj, Tag.EchoTime, VR.DS);
-        placeholdElement(obj, Tag.EchoTrainLength, VR.US);
-        placeholdElement(obj, Tag.InversionTime, VR.DS);
-        
-        return obj;
+        plan.placehold(Tag.ScanOptions, VR.CS); // 1-n
+        plan.placehold(Tag.MRAcquisitionType, VR.CS); // 1
+        plan.placehold(Tag.RepetitionTime, VR.DS); // 1
+        plan.placehold(Tag.EchoTime, VR.DS);
+        plan.placehold(Tag.EchoTrainLength, VR.US);
+        plan.placehold(Tag.InversionTime, VR.DS);
+    }
+
+    private void compileEnhanced(InjectorPlan.Builder plan) {
+        plan.putString(Tag.Modality, VR.CS, "MR");
+        plan.putString(Tag.SOPClassUID, VR.UI, ENHANCED_MR_SOP_CLASS_UID);
+        // sequence and timing parameters belong to the functional groups, and are not known
+        plan.putStrings(Tag.ImageType, VR.CS, "DERIVED", "PRIMARY", this.type.dicomValue(), "NONE");
+        plan.putString(Tag.PhotometricInterpretation, VR.CS, this.photoInterpret.name());
+        plan.putString(Tag.PixelPresentation, VR.CS, "MONOCHROME");
+        plan.putString(Tag.VolumetricProperties, VR.CS, "VOLUME");
+        plan.putString(Tag.VolumeBasedCalculationTechnique, VR.CS, "NONE");
+        plan.putString(Tag.ComplexImageComponent, VR.CS, "MAGNITUDE");
+        plan.putString(Tag.AcquisitionContrast, VR.CS, "UNKNOWN");
     }
 
-    // put multiple CS elements from a collection of enumerates into a DICOM object
-    private static <T extends Enum<T>> void putCSElements(DicomObject obj, int tag, Collection<T> elements) {
+    // the names of a collection of enumerates, as the values of a CS element
+    private static <T extends Enum<T>> String[] names(Collection<T> elements) {
         String[] arr = new String[elements.size()];
         int i = 0;
         for (T elem : elements) {
             arr[i] = elem.name();
             i++;
         }
-        obj.putStrings(tag, VR.CS, arr);
+        return arr;
     }
-    
-    // create empty element if it does not exist yet
-    private static void placeholdElement(DicomObject obj, int tag, VR vr) {
-        if (!obj.contains(tag)) {
-            obj.putNull(tag, vr);
-        }
-    }
-
 }
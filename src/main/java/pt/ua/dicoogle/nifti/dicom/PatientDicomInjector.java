@@ -34,19 +34,24 @@ public class PatientDicomInjector implements DicomInjector {
     public PatientDicomInjector(String patientName, String patientId) {
         this.patientName = patientName;
         this.patientId = patientId;
+        this.plan = InjectorPlan.of(this::compileTo);
     }
     
     private final String patientName;
     private final String patientId;
+    private final InjectorPlan plan;
     
     @Override
     public DicomObject apply(DicomObject obj) {
+        return plan.apply(obj);
+    }
+
+    void compileTo(InjectorPlan.Builder plan) {
         if (patientName != null) {
-            obj.putString(Tag.PatientName, VR.PN, patientName);
+            plan.putString(Tag.PatientName, VR.PN, patientName);
         }
         if (patientId != null) {
-            obj.putString(Tag.PatientID, VR.LO, patientId);
+            plan.putString(Tag.PatientID, VR.LO, patientId);
         }
-        return obj;
     }
 }
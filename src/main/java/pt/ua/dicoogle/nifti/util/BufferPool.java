@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.util;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A bounded pool of reusable byte arrays, keyed by their exact size.
+ *
+ * Arrays obtained with {@link #acquire(int)} should be handed back with
+ * {@link #release(byte[])} once they are no longer in use. Released arrays
+ * are kept for reuse as long as the total size of the retained arrays stays
+ * within the pool's capacity, and are otherwise left to the garbage
+ * collector. Arrays which are never released are not a leak, but are still
+ * counted as in flight. This class is thread-safe.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class BufferPool {
+
+    private final ConcurrentHashMap<Integer, Deque<byte[]>> free = new ConcurrentHashMap<>();
+    private final AtomicLong retained = new AtomicLong();
+    private final AtomicLong inFlight = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile long capacity;
+
+    /** Create a buffer pool.
+     * @param capacity the maximum total size of the arrays retained for reuse, in bytes
+     */
+    public BufferPool(long capacity) {
+        setCapacity(capacity);
+    }
+
+    /** Redefine the pool's capacity. Arrays already retained are not discarded.
+     * @param capacity the maximum total size of the arrays retained for reuse, in bytes
+     */
+    public void setCapacity(long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Negative capacity");
+        }
+        this.capacity = capacity;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /** Obtain an array of the given size, reusing a released one if available.
+     * The contents of the array are undefined.
+     *
+     * @param size the size of the array
+     * @return a byte array of exactly {@code size} bytes
+     */
+    public byte[] acquire(int size) {
+        Deque<byte[]> q = free.get(size);
+        byte[] buf = q != null ? q.pollFirst() : null;
+        if (buf != null) {
+            retained.addAndGet(-size);
+            hits.increment();
+        } else {
+            buf = new byte[size];
+            misses.increment();
+        }
+        inFlight.addAndGet(size);
+        return buf;
+    }
+
+    /** Hand back an array obtained from this pool. The array must no longer be used by the caller.
+     * @param buf the array
+     */
+    public void release(byte[] buf) {
+        final int size = buf.length;
+        inFlight.addAndGet(-size);
+        long r;
+        do {
+            r = retained.get();
+            if (r + size > capacity) {
+                return;
+            }
+        } while (!retained.compareAndSet(r, r + size));
+        free.computeIfAbsent(size, k -> new ConcurrentLinkedDeque<>()).offerFirst(buf);
+    }
+
+    /** @return the number of acquisitions served with a reused array */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** @return the number of acquisitions which required a new array */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** @return the total size of the acquired arrays which were not released yet, in bytes */
+    public long getBytesInFlight() {
+        return inFlight.get();
+    }
+
+    /** @return the total size of the arrays retained for reuse, in bytes */
+    public long getBytesRetained() {
+        return retained.get();
+    }
+}
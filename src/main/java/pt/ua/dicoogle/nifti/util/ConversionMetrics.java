@@ -0,0 +1,284 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.util;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Latency histograms of the stages of conversion, along with counters of
+ * the data converted. Conversions report stages through a {@link Recorder},
+ * usually the {@link Timings} of a single request, which adds up the time it
+ * spent in each stage and records it here. This class is thread-safe.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class ConversionMetrics {
+
+    /** The stages of a conversion. */
+    public enum Stage {
+        /** receiving uploaded files, when they are spooled */
+        RECEIVE("receive"),
+        /** inflating compressed files, per file */
+        INFLATE("inflate"),
+        /** reading the raw voxel data of a slice */
+        READ("read"),
+        /** estimating a VOI window, per volume or per slice */
+        WINDOW("window"),
+        /** converting the voxels of a slice into pixel data */
+        PIXEL_DATA("pixel_data"),
+        /** injecting the attributes of a series */
+        INJECT("inject"),
+        /** storing an object */
+        STORE("store"),
+        /** serving a conversion request as a whole */
+        REQUEST("request");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        /** @return the name of the stage in exported metrics */
+        public String label() {
+            return label;
+        }
+    }
+
+    /** The quantities counted over all conversions. */
+    public enum Counter {
+        VOLUMES("volumes"),
+        SLICES("slices"),
+        VOXELS("voxels"),
+        /** the raw voxel data read, in bytes */
+        BYTES("voxel_bytes");
+
+        private final String label;
+
+        Counter(String label) {
+            this.label = label;
+        }
+
+        /** @return the name of the counter in exported metrics */
+        public String label() {
+            return label;
+        }
+    }
+
+    /** A sink of stage timings and counts. Implementations must be thread-safe. */
+    public interface Recorder {
+        /** A recorder which discards everything. */
+        Recorder NONE = new Recorder() {
+            @Override
+            public void record(Stage stage, long nanos) {
+            }
+
+            @Override
+            public void count(Counter counter, long n) {
+            }
+        };
+
+        /** Record the time spent in one pass through a stage.
+         * @param stage the stage
+         * @param nanos the elapsed time, in nanoseconds
+         */
+        void record(Stage stage, long nanos);
+
+        /** Add to a counter.
+         * @param counter the counter
+         * @param n the amount to add
+         */
+        void count(Counter counter, long n);
+
+        /** @return the identifier of the request on whose behalf is recorded, or 0 if none */
+        default long requestId() {
+            return 0;
+        }
+    }
+
+    /** A histogram of latencies, with fixed buckets. */
+    public static final class Histogram {
+        private final double[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observe(long nanos) {
+            double seconds = nanos / 1e9;
+            int i = 0;
+            while (i < bounds.length && seconds > bounds[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        /** @return the upper bounds of the buckets, in seconds, not including the last unbounded bucket */
+        public double[] getBounds() {
+            return bounds.clone();
+        }
+
+        /** @return the number of observations up to each bound, the last one being the total count */
+        public long[] getCumulativeCounts() {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                total += buckets[i].sum();
+                counts[i] = total;
+            }
+            return counts;
+        }
+
+        /** @return the number of observations */
+        public long getCount() {
+            long total = 0;
+            for (LongAdder bucket : buckets) {
+                total += bucket.sum();
+            }
+            return total;
+        }
+
+        /** @return the sum of the observations, in seconds */
+        public double getSum() {
+            return sumNanos.sum() / 1e9;
+        }
+    }
+
+    /** The timings of a single request, which are also recorded in the metrics
+     * it was created from. The time of stages running in parallel adds up, so
+     * the totals may exceed the duration of the request.
+     */
+    public static final class Timings implements Recorder {
+        private final ConversionMetrics metrics;
+        private final long id;
+        private final LongAdder[] totals = new LongAdder[Stage.values().length];
+
+        private Timings(ConversionMetrics metrics, long id) {
+            this.metrics = metrics;
+            this.id = id;
+            for (int i = 0; i < totals.length; i++) {
+                totals[i] = new LongAdder();
+            }
+        }
+
+        @Override
+        public void record(Stage stage, long nanos) {
+            metrics.record(stage, nanos);
+            totals[stage.ordinal()].add(nanos);
+        }
+
+        @Override
+        public void count(Counter counter, long n) {
+            metrics.count(counter, n);
+        }
+
+        @Override
+        public long requestId() {
+            return id;
+        }
+
+        /** @param stage a stage
+         * @return the total time spent in the stage, in nanoseconds
+         */
+        public long getNanos(Stage stage) {
+            return totals[stage.ordinal()].sum();
+        }
+
+        /** Describe the timings as the value of a {@code Server-Timing} header,
+         * with the total time of each stage which was gone through, in milliseconds.
+         * @param elapsedNanos the time elapsed since the request was received, in nanoseconds
+         * @return the header value
+         */
+        public String toServerTiming(long elapsedNanos) {
+            StringBuilder sb = new StringBuilder();
+            for (Stage stage : Stage.values()) {
+                long nanos = getNanos(stage);
+                if (stage != Stage.REQUEST && nanos > 0) {
+                    sb.append(stage.label()).append(";dur=").append(millis(nanos)).append(", ");
+                }
+            }
+            return sb.append("total;dur=").append(millis(elapsedNanos)).toString();
+        }
+
+        private static String millis(long nanos) {
+            return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+        }
+    }
+
+    /** The default bucket bounds of the latency histograms, in seconds. */
+    private static final double[] DEFAULT_BOUNDS = {
+        0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 60
+    };
+
+    private final Histogram[] histograms = new Histogram[Stage.values().length];
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+    private final AtomicLong requests = new AtomicLong();
+
+    public ConversionMetrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram(DEFAULT_BOUNDS);
+        }
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+    }
+
+    /** Record the duration of a stage.
+     * @param stage the stage
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(Stage stage, long nanos) {
+        histograms[stage.ordinal()].observe(nanos);
+    }
+
+    /** Add to a counter.
+     * @param counter the counter
+     * @param n the amount to add
+     */
+    public void count(Counter counter, long n) {
+        counters[counter.ordinal()].add(n);
+    }
+
+    /** @param stage a stage
+     * @return the latency histogram of the stage
+     */
+    public Histogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /** @param counter a counter
+     * @return the counter's value
+     */
+    public long getCount(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    /** @return a recorder of the timings of a new request, with an identifier of its own */
+    public Timings newTimings() {
+        return new Timings(this, requests.incrementAndGet());
+    }
+}
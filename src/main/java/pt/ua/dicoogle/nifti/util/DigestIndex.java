@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** A persistent index from conversion keys to the URIs of the objects
+ * which were stored as the outcome of that conversion. A key is a digest of
+ * the content of a file plus the parameters of its conversion (see
+ * {@link #key(byte[], List)}).
+ *
+ * The index is kept in memory and backed by an append-only file, with one
+ * line per entry: the key followed by the URIs, separated by tabs. Later
+ * entries of the same key take precedence. This class is thread-safe.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class DigestIndex implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(DigestIndex.class);
+
+    private final Path file;
+    private final ConcurrentMap<String, List<String>> entries = new ConcurrentHashMap<>();
+    private final BufferedWriter writer;
+
+    private DigestIndex(Path file) throws IOException {
+        this.file = file;
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    // a truncated line from an interrupted write has no URIs
+                    if (fields.length >= 2) {
+                        entries.put(fields[0], Collections.unmodifiableList(
+                                Arrays.asList(Arrays.copyOfRange(fields, 1, fields.length))));
+                    }
+                }
+            }
+            logger.info("Loaded {} conversion digests from {}", entries.size(), file);
+        }
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /** Open a digest index, loading its entries.
+     * @param file the index file, created if it does not exist
+     * @return the digest index
+     * @throws IOException if the file could not be read or opened for writing
+     */
+    public static DigestIndex open(Path file) throws IOException {
+        return new DigestIndex(file);
+    }
+
+    /** Build the key of a conversion.
+     * @param contentDigest a digest of the file's content
+     * @param params the parameters which affect the outcome of the conversion, may contain nulls
+     * @return the key, as a hexadecimal string
+     */
+    public static String key(byte[] contentDigest, List<String> params) {
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest(contentDigest, params)) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /** Digest the content of a file along with the parameters of its conversion,
+     * which identifies the outcome of the conversion, as does its key.
+     * @param contentDigest a digest of the file's content
+     * @param params the parameters which affect the outcome of the conversion, may contain nulls
+     * @return the SHA-256 digest
+     */
+    public static byte[] digest(byte[] contentDigest, List<String> params) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+        md.update(contentDigest);
+        for (String param : params) {
+            // distinguish null from the empty string, and delimit each parameter
+            md.update(param == null ? new byte[]{0} : ("\1" + param + "\0").getBytes(StandardCharsets.UTF_8));
+        }
+        return md.digest();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /** @param key a conversion key
+     * @return the URIs of the objects stored by that conversion, or null if unknown
+     */
+    public List<String> get(String key) {
+        return entries.get(key);
+    }
+
+    /** Record the outcome of a conversion, both in memory and in the index file.
+     * @param key the conversion key
+     * @param uris the URIs of the stored objects, must not be empty
+     * @throws IOException if the entry could not be written to the file
+     */
+    public void put(String key, List<String> uris) throws IOException {
+        if (uris.isEmpty()) {
+            throw new IllegalArgumentException("No URIs to record");
+        }
+        List<String> copy = Collections.unmodifiableList(new ArrayList<>(uris));
+        synchronized (writer) {
+            writer.write(key);
+            for (String uri : copy) {
+                writer.write('\t');
+                writer.write(uri);
+            }
+            writer.newLine();
+            writer.flush();
+        }
+        entries.put(key, copy);
+    }
+
+    /** @return the number of conversions in the index */
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (writer) {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.util;
+
+/** A unit of work reported to the JDK Flight Recorder, timed from its
+ * creation (see {@link FlightEvents}) until it is committed. Each kind of
+ * event keeps the attributes which apply to it and ignores the others, so
+ * that callers may describe their work without knowing the kind of event.
+ * Events are not thread-safe, although they may be committed by a thread
+ * other than the one which created them.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public interface FlightEvent {
+
+    /** An event which is not recorded. */
+    FlightEvent NONE = new FlightEvent() {
+        @Override
+        public void commit() {
+        }
+    };
+
+    /** @param id the identifier of the request the work was done for
+     * @return this event
+     */
+    default FlightEvent request(long id) {
+        return this;
+    }
+
+    /** @param dim the dimensions of the volume, as in the NIFTI-1 header ({@code dim[0]} is their number)
+     * @param datatype the NIFTI-1 data type of the voxels
+     * @return this event
+     */
+    default FlightEvent volume(short[] dim, short datatype) {
+        return this;
+    }
+
+    /** @param index the linear index of the slice in the volume
+     * @return this event
+     */
+    default FlightEvent slice(int index) {
+        return this;
+    }
+
+    /** @param bytes the number of bytes of data worked on
+     * @return this event
+     */
+    default FlightEvent bytes(long bytes) {
+        return this;
+    }
+
+    /** @param scheme the storage scheme of the converted objects
+     * @return this event
+     */
+    default FlightEvent scheme(String scheme) {
+        return this;
+    }
+
+    /** @param status the HTTP status code of the reply
+     * @return this event
+     */
+    default FlightEvent status(int status) {
+        return this;
+    }
+
+    /** End the unit of work, and record it if a recording takes the event. */
+    void commit();
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.util;
+
+/** The JDK Flight Recorder events of the conversion pipeline.
+ *
+ * Custom events require the {@code jdk.jfr} API, which is only part of
+ * Java 11 and later. This implementation, used in older runtimes, hands out
+ * events which are never recorded. It is replaced by the one in the Java 11
+ * section of the multi-release jar ({@code src/main/java11}).
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public final class FlightEvents {
+
+    private FlightEvents() {}
+
+    /** @return whether events can be recorded in this runtime */
+    public static boolean isAvailable() {
+        return false;
+    }
+
+    /** Begin the event of a request to the web service.
+     * @return the event, which is not recorded unless a recording takes it
+     */
+    public static FlightEvent request() {
+        return FlightEvent.NONE;
+    }
+
+    /** Begin the event of decoding a volume, from its header to its last slice.
+     * @return the event, which is not recorded unless a recording takes it
+     */
+    public static FlightEvent volume() {
+        return FlightEvent.NONE;
+    }
+
+    /** Begin the event of converting a slice (or a volume's frame) to a DICOM object.
+     * @return the event, which is not recorded unless a recording takes it
+     */
+    public static FlightEvent slice() {
+        return FlightEvent.NONE;
+    }
+
+    /** Begin the event of storing a DICOM object.
+     * @return the event, which is not recorded unless a recording takes it
+     */
+    public static FlightEvent store() {
+        return FlightEvent.NONE;
+    }
+}
@@ -0,0 +1,467 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** An index of access points into a GZip file, from which inflation can
+ * start without inflating what comes before.
+ *
+ * The access points are the starts of the file's members, since each member
+ * is an independent deflate stream. Files in the BGZF format (as written by
+ * bgzip) have a member every 64 KiB of data, and can thus be read at random
+ * through the index (see {@link IndexedGzipFile}), whereas files with a
+ * single member only have an access point at the start. The index is built
+ * in a single inflation pass, which also verifies the file's integrity.
+ *
+ * Indexes are persisted in a small binary file: a magic number, the span,
+ * the inflated size and the number of access points, followed by the
+ * compressed and inflated offsets of each access point, all big endian.
+ * Instances of this class are immutable.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public final class GzipIndex {
+    private static final Logger logger = LoggerFactory.getLogger(GzipIndex.class);
+
+    /** The default minimum distance between access points, in inflated bytes. */
+    public static final long DEFAULT_SPAN = 64 << 10;
+    /** The extension of index files. */
+    public static final String EXTENSION = ".gzidx";
+
+    private static final int MAGIC = 0x475a4931; // "GZI1"
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final long span;
+    private final long size;
+    private final long[] compressed;
+    private final long[] inflated;
+
+    private GzipIndex(long span, long size, long[] compressed, long[] inflated) {
+        this.span = span;
+        this.size = size;
+        this.compressed = compressed;
+        this.inflated = inflated;
+    }
+
+    /** Build the index of a GZip stream, inflating it entirely. The stream is not closed.
+     *
+     * @param in the compressed stream
+     * @param span the minimum distance between access points, in inflated bytes
+     * @return the index
+     * @throws IOException if the stream could not be read, or is not valid GZip content
+     */
+    public static GzipIndex build(InputStream in, long span) throws IOException {
+        if (span < 0) {
+            throw new IllegalArgumentException("span must not be negative");
+        }
+        return new Builder(in, span).build();
+    }
+
+    /** Obtain the index of a GZip file, loading it if it was already built,
+     * or else building it and saving it for later use. An index older than
+     * the file, or built with a different span, is built again.
+     *
+     * @param file the GZip file
+     * @param directory the directory of index files, or null to keep the index next to the file
+     * @param span the minimum distance between access points, in inflated bytes
+     * @return the index
+     * @throws IOException if the file could not be read, or is not valid GZip content
+     */
+    public static GzipIndex forFile(Path file, Path directory, long span) throws IOException {
+        Path indexFile = indexFile(file, directory);
+        boolean current = Files.exists(indexFile)
+                && Files.getLastModifiedTime(indexFile).compareTo(Files.getLastModifiedTime(file)) >= 0;
+        return obtain(file, indexFile, current, directory, span);
+    }
+
+    /** Obtain the index of a GZip file by a digest of its compressed content,
+     * loading it if an index of the same content was built before, or else
+     * building it and saving it for later use. Unlike {@link #forFile(Path, Path, long)},
+     * the index applies to any copy of the content, such as each upload of
+     * the same file.
+     *
+     * @param file the GZip file
+     * @param contentDigest a digest of the file's compressed content
+     * @param directory the directory of index files
+     * @param span the minimum distance between access points, in inflated bytes
+     * @return the index
+     * @throws IOException if the file could not be read, or is not valid GZip content
+     */
+    public static GzipIndex forContent(Path file, byte[] contentDigest, Path directory, long span)
+            throws IOException {
+        Path indexFile = indexFile(contentDigest, directory);
+        return obtain(file, indexFile, Files.exists(indexFile), directory, span);
+    }
+
+    private static GzipIndex obtain(Path file, Path indexFile, boolean current, Path directory, long span)
+            throws IOException {
+        if (current) {
+            try {
+                GzipIndex index = load(indexFile);
+                if (index.span == span) {
+                    return index;
+                }
+            } catch (IOException ex) {
+                logger.warn("Ignoring unreadable GZip index {}", indexFile, ex);
+            }
+        }
+        GzipIndex index;
+        try (InputStream in = Files.newInputStream(file)) {
+            index = build(in, span);
+        }
+        try {
+            if (directory != null) {
+                Files.createDirectories(directory);
+            }
+            index.save(indexFile);
+        } catch (IOException ex) {
+            // the index is still usable, only not for later
+            logger.warn("Failed to save GZip index {}", indexFile, ex);
+        }
+        return index;
+    }
+
+    /** Tell whether a file starts with a BGZF member, as written by bgzip.
+     * Only such files have enough members to be worth indexing.
+     *
+     * @param file the file
+     * @return whether the file's first member is in the BGZF format
+     * @throws IOException if the file could not be read
+     */
+    public static boolean isBgzf(Path file) throws IOException {
+        byte[] header = new byte[18];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n = 0;
+            for (int r; n < header.length && (r = in.read(header, n, header.length - n)) >= 0; n += r) {
+                // reading the member header
+            }
+            return n == header.length && GzipInflater.isBgzf(header);
+        }
+    }
+
+    /** Determine where the index of a GZip file is kept.
+     * @param file the GZip file
+     * @param directory the directory of index files, or null to keep the index next to the file
+     * @return the path to the index file
+     */
+    public static Path indexFile(Path file, Path directory) {
+        String name = file.getFileName().toString();
+        if (directory == null) {
+            return file.resolveSibling(name + EXTENSION);
+        }
+        // files of the same name in different directories have different indexes
+        String path = file.toAbsolutePath().normalize().toString();
+        return directory.resolve(name + "-" + Integer.toHexString(path.hashCode()) + EXTENSION);
+    }
+
+    /** Determine where the index of a GZip file is kept, by the file's content.
+     * @param contentDigest a digest of the file's compressed content
+     * @param directory the directory of index files
+     * @return the path to the index file
+     */
+    public static Path indexFile(byte[] contentDigest, Path directory) {
+        StringBuilder name = new StringBuilder(contentDigest.length * 2 + EXTENSION.length());
+        for (byte b : contentDigest) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return directory.resolve(name.append(EXTENSION).toString());
+    }
+
+    /** Load an index from a file.
+     * @param file the index file
+     * @return the index
+     * @throws IOException if the file could not be read, or is not an index
+     */
+    public static GzipIndex load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a GZip index: " + file);
+            }
+            long span = in.readLong();
+            long size = in.readLong();
+            int n = in.readInt();
+            if (n < 1) {
+                throw new IOException("Invalid GZip index: " + file);
+            }
+            long[] compressed = new long[n];
+            long[] inflated = new long[n];
+            for (int i = 0; i < n; i++) {
+                compressed[i] = in.readLong();
+                inflated[i] = in.readLong();
+            }
+            return new GzipIndex(span, size, compressed, inflated);
+        }
+    }
+
+    /** Save the index to a file, replacing it at once.
+     * @param file the index file
+     * @throws IOException on a write failure
+     */
+    public void save(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(span);
+            out.writeLong(size);
+            out.writeInt(compressed.length);
+            for (int i = 0; i < compressed.length; i++) {
+                out.writeLong(compressed[i]);
+                out.writeLong(inflated[i]);
+            }
+        } catch (IOException ex) {
+            Files.deleteIfExists(tmp);
+            throw ex;
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** @return the minimum distance between access points with which the index was built */
+    public long getSpan() {
+        return span;
+    }
+
+    /** @return the size of the inflated content, in bytes */
+    public long getSize() {
+        return size;
+    }
+
+    /** @return the number of access points, including the start of the file */
+    public int getAccessPoints() {
+        return compressed.length;
+    }
+
+    /** @return the largest amount of data to inflate before reaching any position, in bytes */
+    public long getMaxGap() {
+        long max = 0;
+        for (int i = 0; i < inflated.length; i++) {
+            long next = i + 1 < inflated.length ? inflated[i + 1] : size;
+            max = Math.max(max, next - inflated[i]);
+        }
+        return max;
+    }
+
+    /** Whether the index allows reading at random, which is the case when
+     * no position is further than twice the span from an access point.
+     * @return whether the indexed file can be read at random
+     */
+    public boolean isSeekable() {
+        return getMaxGap() <= 2 * Math.max(span, 1);
+    }
+
+    /** Find the last access point at or before an inflated position.
+     * @param position the position in the inflated content
+     * @return the index of the access point
+     */
+    public int accessPoint(long position) {
+        int i = Arrays.binarySearch(inflated, position);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /** @param point the index of an access point
+     * @return the offset of the access point in the compressed file
+     */
+    public long compressedOffset(int point) {
+        return compressed[point];
+    }
+
+    /** @param point the index of an access point
+     * @return the offset of the access point in the inflated content
+     */
+    public long inflatedOffset(int point) {
+        return inflated[point];
+    }
+
+    /** A single pass over the members of a GZip stream. */
+    private static final class Builder {
+        private final InputStream in;
+        private final long span;
+        private final byte[] buf = new byte[64 << 10];
+        private final byte[] out = new byte[64 << 10];
+        // the compressed offset of buf[0]
+        private long bufOffset = 0;
+        private int length = 0;
+        private int position = 0;
+        private long[] compressed = new long[16];
+        private long[] inflated = new long[16];
+        private int n = 0;
+
+        Builder(InputStream in, long span) {
+            this.in = in;
+            this.span = span;
+        }
+
+        GzipIndex build() throws IOException {
+            long size = 0;
+            Inflater inflater = new Inflater(true);
+            CRC32 crc = new CRC32();
+            try {
+                do {
+                    long memberStart = bufOffset + position;
+                    readHeader();
+                    // empty members do not make for new access points
+                    if (n == 0 || size - inflated[n - 1] >= Math.max(span, 1)) {
+                        add(memberStart, size);
+                    }
+                    inflater.reset();
+                    crc.reset();
+                    long memberSize = 0;
+                    while (!inflater.finished()) {
+                        if (inflater.needsInput()) {
+                            if (!fill()) {
+                                throw new EOFException("Unexpected end of GZip content");
+                            }
+                            inflater.setInput(buf, position, length - position);
+                            position = length;
+                        }
+                        int r;
+                        try {
+                            r = inflater.inflate(out);
+                        } catch (DataFormatException ex) {
+                            throw new ZipException("Invalid GZip content: " + ex.getMessage());
+                        }
+                        if (r == 0 && inflater.needsDictionary()) {
+                            throw new ZipException("Invalid GZip content: needs a dictionary");
+                        }
+                        crc.update(out, 0, r);
+                        memberSize += r;
+                    }
+                    // give back what the inflater did not use
+                    position = length - inflater.getRemaining();
+                    if (readIntLE() != (int) crc.getValue() || readIntLE() != (int) memberSize) {
+                        throw new ZipException("Corrupt GZip content: bad size or CRC");
+                    }
+                    size += memberSize;
+                } while (hasMember());
+            } finally {
+                inflater.end();
+            }
+            return new GzipIndex(span, size, Arrays.copyOf(compressed, n), Arrays.copyOf(inflated, n));
+        }
+
+        private void add(long compressedOffset, long inflatedOffset) {
+            if (n == compressed.length) {
+                compressed = Arrays.copyOf(compressed, n * 2);
+                inflated = Arrays.copyOf(inflated, n * 2);
+            }
+            compressed[n] = compressedOffset;
+            inflated[n] = inflatedOffset;
+            n++;
+        }
+
+        // like GZIPInputStream, anything after the last member other than another member is ignored
+        private boolean hasMember() throws IOException {
+            if (!fill()) {
+                return false;
+            }
+            if ((buf[position] & 0xff) != 0x1f) {
+                return false;
+            }
+            if (position + 1 >= length) {
+                // keep the first byte while looking at the second one
+                System.arraycopy(buf, position, buf, 0, 1);
+                bufOffset += position;
+                length = 1;
+                position = 0;
+                int r = in.read(buf, 1, buf.length - 1);
+                if (r <= 0) {
+                    return false;
+                }
+                length += r;
+            }
+            return (buf[position + 1] & 0xff) == 0x8b;
+        }
+
+        private void readHeader() throws IOException {
+            if (readByte() != 0x1f || readByte() != 0x8b) {
+                throw new ZipException("Not in GZIP format");
+            }
+            if (readByte() != 8) {
+                throw new ZipException("Unsupported compression method");
+            }
+            int flags = readByte();
+            skip(6);
+            if ((flags & FEXTRA) != 0) {
+                skip(readByte() | readByte() << 8);
+            }
+            if ((flags & FNAME) != 0) {
+                while (readByte() != 0) {
+                    // skipping the name
+                }
+            }
+            if ((flags & FCOMMENT) != 0) {
+                while (readByte() != 0) {
+                    // skipping the comment
+                }
+            }
+            if ((flags & FHCRC) != 0) {
+                skip(2);
+            }
+        }
+
+        private boolean fill() throws IOException {
+            while (position >= length) {
+                bufOffset += length;
+                position = 0;
+                length = in.read(buf);
+                if (length < 0) {
+                    length = 0;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int readByte() throws IOException {
+            if (!fill()) {
+                throw new EOFException("Unexpected end of GZip content");
+            }
+            return buf[position++] & 0xff;
+        }
+
+        private int readIntLE() throws IOException {
+            return readByte() | readByte() << 8 | readByte() << 16 | readByte() << 24;
+        }
+
+        private void skip(int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                readByte();
+            }
+        }
+    }
+}
@@ -0,0 +1,586 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.util;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/** An inflater of GZip streams which runs ahead of their consumer.
+ *
+ * Each opened stream is inflated by a dedicated thread into a ring of
+ * buffers, so that inflation overlaps with the parsing and conversion of the
+ * data already inflated. Streams in the BGZF format (blocked GZip, as written
+ * by bgzip), whose members record their own compressed size, are instead cut
+ * into members by that thread and the members are inflated in parallel, still
+ * delivered in order. Other multi-member streams are inflated sequentially,
+ * since the end of a member is only known once it is inflated.
+ *
+ * The inflater keeps totals of the compressed and inflated bytes and of the
+ * time spent inflating, from which the decompression throughput is derived.
+ * Its threads end once idle, so it needs no shutdown. This class is thread-safe,
+ * but each opened stream should be read by a single thread.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class GzipInflater {
+
+    /** The size of the header of a BGZF member, up to its compressed data. */
+    private static final int BGZF_HEADER_SIZE = 18;
+    /** The size of the trailer of a GZip member (CRC-32 and inflated size). */
+    private static final int GZIP_TRAILER_SIZE = 8;
+    /** The maximum inflated size of a BGZF member. */
+    private static final int BGZF_MAX_BLOCK_SIZE = 1 << 16;
+    private static final long IDLE_TIMEOUT_SECONDS = 30;
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    /** A piece of inflated data. */
+    private static final class Chunk {
+        static final Chunk END = new Chunk(null, -1);
+
+        final byte[] data;
+        final int length;
+
+        Chunk(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    // one dedicated thread per open stream
+    private final ThreadPoolExecutor readers;
+    // shared by all streams for inflating BGZF members
+    private final ThreadPoolExecutor blockInflaters;
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder inflatedBytes = new LongAdder();
+    private final LongAdder inflateNanos = new LongAdder();
+    private final AtomicInteger openStreams = new AtomicInteger();
+    private volatile int threads;
+    private volatile int bufferSize;
+    private volatile int readAhead;
+
+    /** Create a GZip inflater.
+     * @param threads the number of threads inflating BGZF members in parallel, 1 to inflate them sequentially
+     * @param bufferSize the size of each buffer of inflated data, in bytes
+     * @param readAhead the number of buffers inflated ahead of the consumer, 0 to inflate in the consuming thread
+     */
+    public GzipInflater(int threads, int bufferSize, int readAhead) {
+        int id = INSTANCES.incrementAndGet();
+        this.readers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), daemonThreads("nifti-inflate-" + id + "-"));
+        this.blockInflaters = new ThreadPoolExecutor(1, 1, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), daemonThreads("nifti-inflate-block-" + id + "-"));
+        this.blockInflaters.allowCoreThreadTimeOut(true);
+        configure(threads, bufferSize, readAhead);
+    }
+
+    /** Redefine the inflater's parameters. Streams already open are not affected.
+     * @param threads the number of threads inflating BGZF members in parallel, 1 to inflate them sequentially
+     * @param bufferSize the size of each buffer of inflated data, in bytes
+     * @param readAhead the number of buffers inflated ahead of the consumer, 0 to inflate in the consuming thread
+     */
+    public synchronized void configure(int threads, int bufferSize, int readAhead) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be positive");
+        }
+        if (readAhead < 0) {
+            throw new IllegalArgumentException("readAhead must not be negative");
+        }
+        if (threads > blockInflaters.getMaximumPoolSize()) {
+            blockInflaters.setMaximumPoolSize(threads);
+            blockInflaters.setCorePoolSize(threads);
+        } else {
+            blockInflaters.setCorePoolSize(threads);
+            blockInflaters.setMaximumPoolSize(threads);
+        }
+        this.threads = threads;
+        this.bufferSize = bufferSize;
+        this.readAhead = readAhead;
+    }
+
+    /** Open a GZip stream for inflation. The header of the first member is
+     * read right away, and inflation proceeds in the background.
+     *
+     * @param in the compressed stream, which is closed along with the returned stream
+     * @return a stream of the inflated data
+     * @throws IOException if the content is not in the GZip format, or could not be read
+     */
+    public InputStream open(InputStream in) throws IOException {
+        return open(in, null);
+    }
+
+    /** Open a GZip stream for inflation. The header of the first member is
+     * read right away, and inflation proceeds in the background.
+     *
+     * @param in the compressed stream, which is closed along with the returned stream
+     * @param onClose an action receiving the time spent inflating the stream in
+     * nanoseconds, once the stream is closed, may be null
+     * @return a stream of the inflated data
+     * @throws IOException if the content is not in the GZip format, or could not be read
+     */
+    public InputStream open(InputStream in, LongConsumer onClose) throws IOException {
+        final int bufferSize = this.bufferSize;
+        final int readAhead = this.readAhead;
+        final int threads = this.threads;
+        final LongAdder nanos = new LongAdder();
+        final LongConsumer report = onClose != null ? onClose : n -> { };
+        Source source = new Source(in);
+        BufferedInputStream buffered = new BufferedInputStream(source, bufferSize);
+        if (threads > 1 && isBgzf(peek(buffered, BGZF_HEADER_SIZE))) {
+            // enough members in flight to keep every thread busy
+            int capacity = Math.max(2 * threads, readAhead * (bufferSize / BGZF_MAX_BLOCK_SIZE));
+            return new ReadAhead(source, capacity, null, ready -> produceMembers(buffered, ready, nanos),
+                    () -> report.accept(nanos.sum()));
+        }
+        InputStream inflating = new Metered(new GZIPInputStream(buffered, bufferSize), source, nanos);
+        if (readAhead == 0) {
+            return new FilterInputStream(inflating) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    if (!closed) {
+                        closed = true;
+                        report.accept(nanos.sum());
+                    }
+                }
+            };
+        }
+        // one more buffer for the one being consumed
+        BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(readAhead + 1);
+        for (int i = 0; i <= readAhead; i++) {
+            free.add(new byte[bufferSize]);
+        }
+        return new ReadAhead(source, readAhead + 1, free, ready -> produceBuffers(inflating, free, ready),
+                () -> report.accept(nanos.sum()));
+    }
+
+    /** @return the total number of compressed bytes read */
+    public long getCompressedBytes() {
+        return compressedBytes.sum();
+    }
+
+    /** @return the total number of bytes inflated */
+    public long getInflatedBytes() {
+        return inflatedBytes.sum();
+    }
+
+    /** @return the total time spent inflating, in nanoseconds, summed over all threads */
+    public long getInflateNanos() {
+        return inflateNanos.sum();
+    }
+
+    /** @return the decompression throughput, in inflated bytes per second of inflation work, or 0 if nothing was inflated yet */
+    public double getThroughput() {
+        long nanos = inflateNanos.sum();
+        return nanos > 0 ? inflatedBytes.sum() * 1e9 / nanos : 0;
+    }
+
+    /** @return the number of streams which were opened and not closed yet */
+    public int getOpenStreams() {
+        return openStreams.get();
+    }
+
+    /** Inflate a stream into buffers taken from the ring, until the end of the stream. */
+    private void produceBuffers(InputStream inflating, BlockingQueue<byte[]> free,
+            BlockingQueue<Future<Chunk>> ready) throws IOException, InterruptedException {
+        for (;;) {
+            byte[] buf = free.take();
+            int n = readFully(inflating, buf, 0, buf.length);
+            if (n > 0) {
+                ready.put(CompletableFuture.completedFuture(new Chunk(buf, n)));
+            }
+            if (n < buf.length) {
+                ready.put(CompletableFuture.completedFuture(Chunk.END));
+                return;
+            }
+        }
+    }
+
+    /** Cut a BGZF stream into members, each inflated by one of the block inflaters. */
+    private void produceMembers(InputStream in, BlockingQueue<Future<Chunk>> ready, LongAdder nanos)
+            throws IOException, InterruptedException {
+        for (;;) {
+            byte[] header = new byte[BGZF_HEADER_SIZE];
+            int n = readFully(in, header, 0, BGZF_HEADER_SIZE);
+            if (n == 0) {
+                ready.put(CompletableFuture.completedFuture(Chunk.END));
+                return;
+            }
+            if (n < BGZF_HEADER_SIZE || !isBgzf(header)) {
+                throw new ZipException("Not a BGZF member");
+            }
+            int memberSize = ((header[16] & 0xff) | (header[17] & 0xff) << 8) + 1;
+            if (memberSize < BGZF_HEADER_SIZE + GZIP_TRAILER_SIZE) {
+                throw new ZipException("Invalid BGZF member size " + memberSize);
+            }
+            byte[] member = Arrays.copyOf(header, memberSize);
+            if (readFully(in, member, BGZF_HEADER_SIZE, memberSize - BGZF_HEADER_SIZE) < memberSize - BGZF_HEADER_SIZE) {
+                throw new EOFException("Unexpected end of BGZF member");
+            }
+            ready.put(CompletableFuture.supplyAsync(() -> inflateMember(member, nanos), blockInflaters));
+        }
+    }
+
+    private Chunk inflateMember(byte[] member, LongAdder nanos) {
+        long start = System.nanoTime();
+        int trailer = member.length - GZIP_TRAILER_SIZE;
+        int size = readIntLE(member, trailer + 4);
+        if (size < 0 || size > BGZF_MAX_BLOCK_SIZE) {
+            throw new RuntimeIOException(new ZipException("Invalid BGZF inflated size " + size));
+        }
+        // one spare byte to detect members longer than declared
+        byte[] out = new byte[size + 1];
+        int n = 0;
+        Inflater inflater = new Inflater(true);
+        try {
+            // raw inflation needs a byte past the compressed data, which the trailer provides
+            inflater.setInput(member, BGZF_HEADER_SIZE, trailer - BGZF_HEADER_SIZE + 1);
+            while (!inflater.finished()) {
+                int r = inflater.inflate(out, n, out.length - n);
+                if (r == 0 && (inflater.needsInput() || inflater.needsDictionary() || n == out.length)) {
+                    throw new ZipException("Corrupt BGZF member");
+                }
+                n += r;
+            }
+        } catch (DataFormatException ex) {
+            throw new RuntimeIOException(new ZipException("Corrupt BGZF member: " + ex.getMessage()));
+        } catch (ZipException ex) {
+            throw new RuntimeIOException(ex);
+        } finally {
+            inflater.end();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(out, 0, n);
+        if (n != size || (int) crc.getValue() != readIntLE(member, trailer)) {
+            throw new RuntimeIOException(new ZipException("Corrupt BGZF member: bad size or CRC"));
+        }
+        long elapsed = System.nanoTime() - start;
+        inflatedBytes.add(n);
+        inflateNanos.add(elapsed);
+        nanos.add(elapsed);
+        return new Chunk(out, n);
+    }
+
+    /** Whether a member header is that of a BGZF member, with the block size
+     * in its first extra subfield.
+     */
+    static boolean isBgzf(byte[] header) {
+        return header.length >= BGZF_HEADER_SIZE
+                && header[0] == (byte) 0x1f && header[1] == (byte) 0x8b && header[2] == 8
+                && (header[3] & 0x04) != 0
+                && header[10] == 6 && header[11] == 0
+                && header[12] == 'B' && header[13] == 'C'
+                && header[14] == 2 && header[15] == 0;
+    }
+
+    /** Tell whether a stream starts with a BGZF member, as written by bgzip,
+     * without consuming any of it.
+     * @param in the compressed stream
+     * @return whether the stream's first member is in the BGZF format
+     * @throws IOException if the stream could not be read
+     */
+    public static boolean startsWithBgzf(BufferedInputStream in) throws IOException {
+        return isBgzf(peek(in, BGZF_HEADER_SIZE));
+    }
+
+    private static byte[] peek(BufferedInputStream in, int n) throws IOException {
+        in.mark(n);
+        byte[] bytes = new byte[n];
+        int r = readFully(in, bytes, 0, n);
+        in.reset();
+        return r == n ? bytes : new byte[0];
+    }
+
+    // read until the array is filled or the stream ends, returning the number of bytes read
+    private static int readFully(InputStream in, byte[] buf, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int n = in.read(buf, offset + total, length - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private static int readIntLE(byte[] b, int offset) {
+        return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8
+                | (b[offset + 2] & 0xff) << 16 | (b[offset + 3] & 0xff) << 24;
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /** The compressed stream, counting its bytes and the time spent waiting for them. */
+    private final class Source extends FilterInputStream {
+        long waitNanos;
+
+        Source(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            int n = in.read(b, off, len);
+            waitNanos += System.nanoTime() - start;
+            if (n > 0) {
+                compressedBytes.add(n);
+            }
+            return n;
+        }
+    }
+
+    /** An inflating stream, counting the inflated bytes and the time spent
+     * inflating them, not including the time waiting for compressed data.
+     */
+    private final class Metered extends FilterInputStream {
+        private final Source source;
+        private final LongAdder nanos;
+
+        Metered(InputStream inflating, Source source, LongAdder nanos) {
+            super(inflating);
+            this.source = source;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long waited = source.waitNanos;
+            long start = System.nanoTime();
+            int n = in.read(b, off, len);
+            account(System.nanoTime() - start - (source.waitNanos - waited));
+            if (n > 0) {
+                inflatedBytes.add(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long waited = source.waitNanos;
+            long start = System.nanoTime();
+            long skipped = in.skip(n);
+            account(System.nanoTime() - start - (source.waitNanos - waited));
+            inflatedBytes.add(skipped);
+            return skipped;
+        }
+
+        private void account(long elapsed) {
+            inflateNanos.add(elapsed);
+            nanos.add(elapsed);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Producer {
+        void produce(BlockingQueue<Future<Chunk>> ready) throws IOException, InterruptedException;
+    }
+
+    /** The consuming end of a stream inflated in the background. */
+    private final class ReadAhead extends InputStream {
+        private final InputStream source;
+        private final BlockingQueue<Future<Chunk>> ready;
+        private final BlockingQueue<byte[]> free;
+        private final Future<?> producer;
+        private final Runnable onClose;
+        private Chunk current;
+        private int position;
+        private IOException failure;
+        private boolean end;
+        private boolean closed;
+
+        /**
+         * @param source the compressed stream
+         * @param capacity the maximum number of chunks waiting to be consumed
+         * @param free the ring of buffers to hand back once consumed, or null if chunks are not reused
+         * @param producer the inflation routine
+         * @param onClose an action to run once closed
+         */
+        ReadAhead(InputStream source, int capacity, BlockingQueue<byte[]> free, Producer producer, Runnable onClose) {
+            this.source = source;
+            this.ready = new ArrayBlockingQueue<>(capacity);
+            this.free = free;
+            this.onClose = onClose;
+            openStreams.incrementAndGet();
+            this.producer = readers.submit(() -> {
+                try {
+                    producer.produce(ready);
+                } catch (InterruptedException ex) {
+                    // closed by the consumer
+                } catch (IOException | RuntimeException ex) {
+                    CompletableFuture<Chunk> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(ex);
+                    try {
+                        // the consumer either takes it, or closes the stream
+                        ready.put(failed);
+                    } catch (InterruptedException e) {
+                        // closed by the consumer
+                    }
+                }
+            });
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!next()) {
+                return -1;
+            }
+            return current.data[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!next()) {
+                return -1;
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current.data, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n && next()) {
+                int k = (int) Math.min(n - skipped, current.length - position);
+                position += k;
+                skipped += k;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return current != null && !closed ? current.length - position : 0;
+        }
+
+        /** Make sure that the current chunk has data left to read.
+         * @return false at the end of the stream
+         */
+        private boolean next() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            while (current == null || position >= current.length) {
+                if (end) {
+                    return false;
+                }
+                recycle();
+                Chunk chunk;
+                try {
+                    chunk = ready.take().get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while inflating");
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof RuntimeIOException) {
+                        cause = cause.getCause();
+                    }
+                    failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                    throw failure;
+                }
+                if (chunk == Chunk.END) {
+                    end = true;
+                    return false;
+                }
+                current = chunk;
+                position = 0;
+            }
+            return true;
+        }
+
+        private void recycle() {
+            if (current != null && free != null) {
+                free.offer(current.data);
+            }
+            current = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            openStreams.decrementAndGet();
+            producer.cancel(true);
+            ready.clear();
+            try {
+                source.close();
+            } finally {
+                onClose.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+/** A GZip file whose inflated content can be read at any position, by
+ * inflating from the nearest access point of its index (see {@link GzipIndex}).
+ * Reads do not share any state, so this class is thread-safe, and reads at
+ * different positions may proceed in parallel.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class IndexedGzipFile implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 << 10;
+
+    private final FileChannel channel;
+    private final GzipIndex index;
+
+    /** Open an indexed GZip file.
+     * @param file the GZip file
+     * @param index the file's index
+     * @throws IOException if the file could not be opened
+     */
+    public IndexedGzipFile(Path file, GzipIndex index) throws IOException {
+        this(FileChannel.open(file, StandardOpenOption.READ), index);
+    }
+
+    /** Read an indexed GZip file through an open channel, which is closed along with it.
+     * @param channel the channel of the GZip file
+     * @param index the file's index
+     */
+    public IndexedGzipFile(FileChannel channel, GzipIndex index) {
+        this.channel = channel;
+        this.index = index;
+    }
+
+    public GzipIndex getIndex() {
+        return index;
+    }
+
+    /** @return the size of the inflated content, in bytes */
+    public long size() {
+        return index.getSize();
+    }
+
+    /** Read inflated content at the given position, until the buffer is full
+     * or the content ends. The buffer's position is advanced by the number
+     * of bytes read.
+     *
+     * @param dst the buffer to receive the content
+     * @param position the position in the inflated content
+     * @return the number of bytes read, or -1 if the position is at or past the end of the content
+     * @throws IOException on a read failure, or if the file is not valid GZip content
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        if (position >= index.getSize()) {
+            return -1;
+        }
+        int point = index.accessPoint(position);
+        try (InputStream in = new GZIPInputStream(
+                new ChannelInputStream(channel, index.compressedOffset(point)), BUFFER_SIZE)) {
+            long toSkip = position - index.inflatedOffset(point);
+            while (toSkip > 0) {
+                long skipped = in.skip(toSkip);
+                if (skipped <= 0) {
+                    return -1;
+                }
+                toSkip -= skipped;
+            }
+            int total = 0;
+            while (dst.hasRemaining()) {
+                int n = dst.hasArray()
+                        ? in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining())
+                        : readInto(in, dst);
+                if (n < 0) {
+                    break;
+                }
+                if (dst.hasArray()) {
+                    dst.position(dst.position() + n);
+                }
+                total += n;
+            }
+            return total;
+        }
+    }
+
+    private static int readInto(InputStream in, ByteBuffer dst) throws IOException {
+        byte[] tmp = new byte[Math.min(dst.remaining(), BUFFER_SIZE)];
+        int n = in.read(tmp);
+        if (n > 0) {
+            dst.put(tmp, 0, n);
+        }
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /** A stream over a file channel from a given position, which does not
+     * change the channel's own position, nor close it.
+     */
+    private static final class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+
+        ChannelInputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = Math.max(0, Math.min(n, channel.size() - position));
+            position += skipped;
+            return skipped;
+        }
+
+        // GZIPInputStream only looks for another member if more content is available
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0, channel.size() - position));
+        }
+    }
+}
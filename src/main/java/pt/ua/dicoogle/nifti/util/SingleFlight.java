@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/** A collapser of concurrent executions of the same task. While a task is
+ * running for a given key, other callers with the same key wait for its
+ * outcome instead of running the task again. Keys are forgotten as soon as
+ * their task finishes. This class is thread-safe.
+ *
+ * @param <K> the type of the task keys
+ * @param <V> the type of the task results
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /** Run a task, unless one with the same key is already running, in
+     * which case its outcome is awaited and shared.
+     *
+     * @param key the task key
+     * @param task the task
+     * @return the result of the task
+     * @throws ExecutionException if the task failed, with the original exception as the cause
+     * @throws InterruptedException if interrupted while waiting for another caller's task
+     */
+    public V execute(K key, Callable<V> task) throws ExecutionException, InterruptedException {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            return running.get();
+        }
+        try {
+            V result = task.call();
+            future.complete(result);
+            return result;
+        } catch (Exception ex) {
+            future.completeExceptionally(ex);
+            throw new ExecutionException(ex);
+        } catch (Error ex) {
+            future.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /** @return the number of tasks currently running */
+    public int size() {
+        return inFlight.size();
+    }
+}
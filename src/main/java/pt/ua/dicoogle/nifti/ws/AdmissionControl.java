@@ -0,0 +1,206 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.ws;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Admission of conversions against a budget of memory, estimated from the
+ * header of each volume before any voxel data is read. Conversions which do
+ * not fit in the remaining budget wait for others to release theirs, up to a
+ * timeout, while those which would never fit are rejected right away.
+ *
+ * Admission is also held back while the heap is under pressure, that is,
+ * while the occupancy of the tenured generation after the latest collection
+ * is over a watermark. This is read through the collection usage threshold of
+ * its memory pool, which is set to the watermark. This class is thread-safe.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+class AdmissionControl {
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionControl.class);
+
+    /** How often the heap pressure is checked while waiting, in milliseconds. */
+    private static final long POLL_MILLIS = 100;
+
+    /** A conversion which was not admitted. */
+    static final class Rejected extends Exception {
+        private final boolean tooLarge;
+
+        Rejected(String message, boolean tooLarge) {
+            super(message);
+            this.tooLarge = tooLarge;
+        }
+
+        /** @return whether the conversion would never fit in the budget, rather than not fitting for now */
+        boolean isTooLarge() {
+            return tooLarge;
+        }
+
+        /** @return the status code with which to reply: 413 if too large, or 503 */
+        int getStatus() {
+            return tooLarge ? 413 : 503;
+        }
+    }
+
+    /** The memory reserved for an admitted conversion, released when closed. */
+    final class Reservation implements AutoCloseable {
+        private final long bytes;
+        private boolean released;
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            synchronized (AdmissionControl.this) {
+                if (!released) {
+                    released = true;
+                    reserved -= bytes;
+                    AdmissionControl.this.notifyAll();
+                }
+            }
+        }
+    }
+
+    private final MemoryPoolMXBean tenured;
+    private final AtomicLong rejected = new AtomicLong();
+    private long budget;
+    private double watermark;
+    // the usage of the tenured generation over which the heap is under pressure
+    private long threshold;
+    private long reserved;
+
+    /** Create an admission control with no budget and no heap watermark. */
+    AdmissionControl() {
+        this(findTenuredPool());
+    }
+
+    /** Create an admission control with no budget and no heap watermark.
+     * @param tenured the memory pool of the tenured generation, or null to ignore heap pressure
+     */
+    AdmissionControl(MemoryPoolMXBean tenured) {
+        this.tenured = tenured;
+    }
+
+    /** Change the budget and the heap watermark. Conversions already admitted keep their reservations.
+     * @param budget the number of bytes which admitted conversions may use at once, 0 for no limit
+     * @param watermark the fraction of the tenured generation over which admission is held back, 0 for none
+     */
+    synchronized void configure(long budget, double watermark) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("budget must not be negative");
+        }
+        if (watermark < 0 || watermark > 1) {
+            throw new IllegalArgumentException("watermark must be between 0 and 1");
+        }
+        if (budget != this.budget) {
+            this.budget = budget;
+            notifyAll();
+        }
+        if (watermark != this.watermark && tenured != null) {
+            long max = tenured.getUsage().getMax();
+            if (max > 0) {
+                threshold = watermark > 0 ? (long) (max * watermark) : 0;
+                tenured.setCollectionUsageThreshold(threshold);
+                logger.debug("Holding back conversions when {} is over {} bytes after collection",
+                        tenured.getName(), threshold);
+            }
+            this.watermark = watermark;
+        }
+    }
+
+    /** Admit a conversion, reserving its memory until the reservation is
+     * closed. Waits while there is not enough budget left or the heap is
+     * under pressure.
+     *
+     * @param bytes the estimated memory of the conversion, 0 to wait only for the heap
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return the reservation
+     * @throws Rejected if the conversion does not fit in the budget, or was not admitted in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized Reservation reserve(long bytes, long timeout, TimeUnit unit) throws Rejected, InterruptedException {
+        if (budget > 0 && bytes > budget) {
+            rejected.incrementAndGet();
+            throw new Rejected("conversion needs an estimated " + bytes + " bytes of memory, over the budget of "
+                    + budget + " bytes", true);
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean pressure;
+        while ((pressure = isUnderPressure()) || (budget > 0 && reserved + bytes > budget)) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                rejected.incrementAndGet();
+                throw new Rejected(pressure ? "the heap is under pressure, please retry later"
+                        : "not enough memory for the conversion, please retry later", false);
+            }
+            // heap pressure comes and goes without notice
+            wait(Math.min(remaining, POLL_MILLIS));
+        }
+        reserved += bytes;
+        return new Reservation(bytes);
+    }
+
+    /** @return whether the tenured generation was over the watermark after the latest collection,
+     * and still is
+     */
+    boolean isUnderPressure() {
+        // the flag of the latest collection stays up until the next one, which an idle heap may not see
+        return tenured != null && watermark > 0 && tenured.isCollectionUsageThresholdExceeded()
+                && tenured.getUsage().getUsed() >= threshold;
+    }
+
+    /** @return the number of bytes which admitted conversions may use at once, 0 for no limit */
+    synchronized long getBudget() {
+        return budget;
+    }
+
+    /** @return the number of bytes reserved by admitted conversions */
+    synchronized long getReserved() {
+        return reserved;
+    }
+
+    /** @return the number of conversions which were not admitted */
+    long getRejected() {
+        return rejected.get();
+    }
+
+    /** Find the memory pool of the tenured generation, the only heap pool
+     * with a usage threshold in the collectors of HotSpot.
+     * @return the memory pool, or null if there is none
+     */
+    private static MemoryPoolMXBean findTenuredPool() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()
+                    && pool.isCollectionUsageThresholdSupported()) {
+                return pool;
+            }
+        }
+        logger.info("No tenured memory pool found, conversions will not be held back on heap pressure");
+        return null;
+    }
+}
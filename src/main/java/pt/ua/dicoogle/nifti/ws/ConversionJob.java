@@ -0,0 +1,225 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.ws;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sf.json.JSONObject;
+
+/** The progress and outcome of the conversion of the files in one request.
+ * Counters are updated by the converting thread and may be read from any
+ * other thread at any time.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class ConversionJob {
+
+    public enum Status {
+        /** Waiting for a worker. */
+        PENDING,
+        /** Being converted. */
+        RUNNING,
+        /** All files were converted, the URIs of the stored objects are available. */
+        COMPLETED,
+        /** Some of the files failed, the URIs of the others are available. */
+        PARTIAL,
+        /** The conversion was aborted, or all files failed. */
+        FAILED
+    }
+
+    private final String id;
+    private final int nFiles;
+    private final long createdAt;
+    private final AtomicInteger filesDone = new AtomicInteger();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong slicesConverted = new AtomicLong();
+    private final AtomicLong slicesStored = new AtomicLong();
+    private volatile Status status = Status.PENDING;
+    private volatile List<String> uris = Collections.emptyList();
+    private volatile List<FileResult> files = Collections.emptyList();
+    private volatile String message;
+    private volatile long finishedAt;
+
+    /** Create a job.
+     * @param id the job identifier
+     * @param nFiles the number of files to convert
+     */
+    public ConversionJob(String id, int nFiles) {
+        this.id = id;
+        this.nFiles = nFiles;
+        this.createdAt = System.currentTimeMillis();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getFileCount() {
+        return nFiles;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /** @return the number of files already converted */
+    public int getFilesDone() {
+        return filesDone.get();
+    }
+
+    /** @return the number of bytes of NIFTI data read so far */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getSlicesConverted() {
+        return slicesConverted.get();
+    }
+
+    public long getSlicesStored() {
+        return slicesStored.get();
+    }
+
+    /** @return the URIs of the stored objects, only complete once the job is finished */
+    public List<String> getUris() {
+        return uris;
+    }
+
+    /** @return the outcome of each file, once the job is finished */
+    public List<FileResult> getFiles() {
+        return files;
+    }
+
+    /** @return the reason why the job failed, or null */
+    public String getMessage() {
+        return message;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /** @return when the job completed or failed, in milliseconds since the epoch, or 0 if not finished */
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    public boolean isFinished() {
+        return status == Status.COMPLETED || status == Status.PARTIAL || status == Status.FAILED;
+    }
+
+    void start() {
+        status = Status.RUNNING;
+    }
+
+    void sliceConverted() {
+        slicesConverted.incrementAndGet();
+    }
+
+    void sliceStored() {
+        slicesStored.incrementAndGet();
+    }
+
+    void fileDone() {
+        filesDone.incrementAndGet();
+    }
+
+    void complete(List<FileResult> files) {
+        this.files = Collections.unmodifiableList(new ArrayList<>(files));
+        this.uris = Collections.unmodifiableList(FileResult.uris(files));
+        this.finishedAt = System.currentTimeMillis();
+        Status outcome = Status.valueOf(FileResult.status(files));
+        if (outcome == Status.FAILED) {
+            this.message = "none of the files could be converted";
+        }
+        this.status = outcome;
+    }
+
+    void fail(String message) {
+        this.message = message;
+        this.finishedAt = System.currentTimeMillis();
+        this.status = Status.FAILED;
+    }
+
+    /** Count bytes read towards this job's progress.
+     * @param n the number of bytes read
+     */
+    void bytesRead(long n) {
+        bytesRead.addAndGet(n);
+    }
+
+    /** Count the bytes read from a stream towards this job's progress.
+     * @param in the input stream
+     * @return an input stream which reads from {@code in}
+     */
+    InputStream countBytes(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytesRead.incrementAndGet();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    bytesRead.addAndGet(n);
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                bytesRead.addAndGet(skipped);
+                return skipped;
+            }
+        };
+    }
+
+    /** @return a JSON description of the job's progress, with the URIs once completed */
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.element("id", id);
+        json.element("status", status.name());
+        json.element("nNiftiFiles", nFiles);
+        json.element("filesDone", filesDone.get());
+        json.element("slicesConverted", slicesConverted.get());
+        json.element("slicesStored", slicesStored.get());
+        json.element("bytesRead", bytesRead.get());
+        if (status != Status.PENDING && status != Status.RUNNING) {
+            json.element("dcmFiles", uris);
+            json.element("files", FileResult.toJSON(files));
+        }
+        if (message != null) {
+            json.element("message", message);
+        }
+        return json;
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.ws;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/** The outcome of converting one of the files of a request.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public final class FileResult {
+
+    private final String name;
+    private final List<String> uris;
+    private final String error;
+    // the status code of a file which was not admitted, 0 otherwise
+    private final int rejection;
+
+    private FileResult(String name, List<String> uris, String error, int rejection) {
+        this.name = name;
+        this.uris = uris;
+        this.error = error;
+        this.rejection = rejection;
+    }
+
+    /** @return the result of a file which was converted and stored */
+    public static FileResult completed(String name, List<String> uris) {
+        return new FileResult(name, Collections.unmodifiableList(new ArrayList<>(uris)), null, 0);
+    }
+
+    /** @return the result of a file which failed to be converted or stored */
+    public static FileResult failed(String name, String error) {
+        return new FileResult(name, Collections.emptyList(), error != null ? error : "unknown error", 0);
+    }
+
+    /** @param status the status code of the rejection, 413 or 503
+     * @return the result of a file which was not admitted for conversion
+     */
+    public static FileResult rejected(String name, String error, int status) {
+        return new FileResult(name, Collections.emptyList(), error != null ? error : "not admitted", status);
+    }
+
+    /** @return the file's name, or null if sent as the whole request entity */
+    public String getName() {
+        return name;
+    }
+
+    /** @return the URIs of the file's stored objects, empty if it failed */
+    public List<String> getUris() {
+        return uris;
+    }
+
+    /** @return the reason why the file failed, or null if it succeeded */
+    public String getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /** @return the status code with which the file was not admitted for conversion, or 0 if it was */
+    public int getRejection() {
+        return rejection;
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        if (name != null) {
+            json.element("name", name);
+        }
+        json.element("status", isSuccess() ? "COMPLETED" : "FAILED");
+        json.element("dcmFiles", uris);
+        if (error != null) {
+            json.element("message", error);
+        }
+        return json;
+    }
+
+    /** @return the URIs of the stored objects of all files, in order */
+    public static List<String> uris(List<FileResult> results) {
+        List<String> uris = new ArrayList<>();
+        for (FileResult r : results) {
+            uris.addAll(r.uris);
+        }
+        return uris;
+    }
+
+    /** @return "COMPLETED" if all files succeeded, "FAILED" if all failed, or "PARTIAL" */
+    public static String status(List<FileResult> results) {
+        int failed = 0;
+        for (FileResult r : results) {
+            if (!r.isSuccess()) {
+                failed++;
+            }
+        }
+        if (failed == 0) {
+            return "COMPLETED";
+        }
+        return failed == results.size() ? "FAILED" : "PARTIAL";
+    }
+
+    /** @return the status code with which to reply when no file was admitted for conversion:
+     * 413 if all were too large, 503 otherwise, or 0 if some file was admitted
+     */
+    public static int rejection(List<FileResult> results) {
+        int status = 0;
+        for (FileResult r : results) {
+            if (r.rejection == 0) {
+                return 0;
+            }
+            status = Math.max(status, r.rejection);
+        }
+        return status;
+    }
+
+    /** @return the JSON array of the results of all files */
+    public static JSONArray toJSON(List<FileResult> results) {
+        JSONArray array = new JSONArray();
+        for (FileResult r : results) {
+            array.element(r.toJSON());
+        }
+        return array;
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.ws;
+
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+import pt.ua.dicoogle.nifti.config.NIFTIPluginSettings;
+
+/** The registry of asynchronous conversion jobs. Finished jobs are kept
+ * for a time to live, after which they are evicted, lazily, the next time
+ * the registry is used. This class is thread-safe.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class JobRegistry {
+
+    private final ConcurrentMap<String, ConversionJob> jobs = new ConcurrentHashMap<>();
+    private final LongSupplier ttlMillis;
+    private final LongSupplier clock;
+
+    /** Create a registry with the time to live in the plugin's settings. */
+    public JobRegistry() {
+        this(() -> NIFTIPluginSettings.INSTANCE.getJobTtl() * 1000, System::currentTimeMillis);
+    }
+
+    JobRegistry(LongSupplier ttlMillis, LongSupplier clock) {
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+    }
+
+    /** Register a new job.
+     * @param nFiles the number of files to convert
+     * @return the job, pending
+     */
+    public ConversionJob create(int nFiles) {
+        evictExpired();
+        ConversionJob job = new ConversionJob(UUID.randomUUID().toString(), nFiles);
+        jobs.put(job.getId(), job);
+        return job;
+    }
+
+    /** Find a job.
+     * @param id the job identifier
+     * @return the job, or null if there is no such job or it has expired
+     */
+    public ConversionJob get(String id) {
+        evictExpired();
+        return id != null ? jobs.get(id) : null;
+    }
+
+    /** Forget a job, such as one which could not be started.
+     * @param id the job identifier
+     */
+    public void remove(String id) {
+        jobs.remove(id);
+    }
+
+    /** @return the number of jobs in the registry, including expired jobs not evicted yet */
+    public int size() {
+        return jobs.size();
+    }
+
+    /** Evict the finished jobs whose time to live has passed. */
+    public void evictExpired() {
+        long deadline = clock.getAsLong() - ttlMillis.getAsLong();
+        for (Iterator<ConversionJob> it = jobs.values().iterator(); it.hasNext();) {
+            ConversionJob job = it.next();
+            if (job.isFinished() && job.getFinishedAt() <= deadline) {
+                it.remove();
+            }
+        }
+    }
+}
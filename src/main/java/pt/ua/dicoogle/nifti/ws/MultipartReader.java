@@ -0,0 +1,365 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.ws;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** A reader of {@code multipart/form-data} content straight from a stream,
+ * one part after the other, without keeping parts in memory or on disk.
+ * Each part's content is available as a stream while it arrives, until
+ * the next part is requested.
+ *
+ * This implementation is not thread-safe.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+final class MultipartReader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_LINE = 8 * 1024;
+    private static final int MAX_HEADERS = 64;
+    private static final Pattern BOUNDARY = Pattern.compile("(?i);\\s*boundary=(\"([^\"]*)\"|[^;\\s]+)");
+    private static final Pattern DISPOSITION_PARAM = Pattern.compile("(?i);\\s*([a-z*]+)=(\"((?:[^\"\\\\]|\\\\.)*)\"|[^;\\s]+)");
+
+    /** Thrown when the content exceeds one of the size limits. */
+    static class SizeLimitException extends IOException {
+        SizeLimitException(String message) {
+            super(message);
+        }
+    }
+
+    /** A part of the content. */
+    static final class Part {
+        private final String name;
+        private final String fileName;
+        private final String contentType;
+        private final InputStream content;
+
+        private Part(String name, String fileName, String contentType, InputStream content) {
+            this.name = name;
+            this.fileName = fileName;
+            this.contentType = contentType;
+            this.content = content;
+        }
+
+        /** @return the name of the form field, or null */
+        String getName() {
+            return name;
+        }
+
+        /** @return the submitted file name, or null */
+        String getFileName() {
+            return fileName;
+        }
+
+        /** @return the part's content type, or null if not given */
+        String getContentType() {
+            return contentType;
+        }
+
+        /** @return the part's content, which can only be read until the next part is requested */
+        InputStream getInputStream() {
+            return content;
+        }
+    }
+
+    private final InputStream in;
+    // the delimiter between parts, which is preceded by a line break
+    private final byte[] delimiter;
+    private final long maxPartSize;
+    private final long maxContentSize;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+    private long contentRead = 0;
+
+    // the body scan: no delimiter starts before scanned, or one starts at delimiterAt
+    private int scanned = 0;
+    private int delimiterAt = -1;
+    private boolean inBody = false;
+    private boolean finished = false;
+    private PartStream current;
+
+    /** Create a reader.
+     * @param in the multipart content
+     * @param boundary the boundary parameter of the content type
+     * @param maxPartSize the maximum size of each part's content in bytes, or -1 for no limit
+     * @param maxContentSize the maximum size of the whole content in bytes, or -1 for no limit
+     */
+    MultipartReader(InputStream in, String boundary, long maxPartSize, long maxContentSize) {
+        if (boundary == null || boundary.isEmpty() || boundary.length() > 200) {
+            throw new IllegalArgumentException("Invalid multipart boundary");
+        }
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+        this.maxPartSize = maxPartSize;
+        this.maxContentSize = maxContentSize;
+        // the first delimiter needs no line break before it, so one is made up
+        buf[limit++] = '\r';
+        buf[limit++] = '\n';
+        inBody = true;
+    }
+
+    /** Obtain the boundary of multipart content.
+     * @param contentType the content type
+     * @return the boundary, or null if not given
+     */
+    static String boundary(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        Matcher m = BOUNDARY.matcher(contentType);
+        if (!m.find()) {
+            return null;
+        }
+        return m.group(2) != null ? m.group(2) : m.group(1);
+    }
+
+    /** Move on to the next part, skipping whatever is left of the current one.
+     * @return the next part, or null if there are no more parts
+     * @throws IOException on a read failure, malformed content, or content beyond the size limits
+     */
+    Part next() throws IOException {
+        if (finished) {
+            return null;
+        }
+        if (current != null) {
+            current.closed = true;
+            current = null;
+        }
+        // skip the preamble or the rest of the current part
+        while (readBody(null, 0, BUFFER_SIZE) >= 0) {
+            // skipping
+        }
+        if (!fill(2)) {
+            throw new EOFException("Unexpected end of multipart content");
+        }
+        if (buf[pos] == '-' && buf[pos + 1] == '-') {
+            // the closing delimiter, anything after it is ignored
+            finished = true;
+            return null;
+        }
+        // the rest of the delimiter line is padding
+        readLine();
+
+        String disposition = null;
+        String contentType = null;
+        int nHeaders = 0;
+        for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+            if (++nHeaders > MAX_HEADERS) {
+                throw new IOException("Too many headers in multipart content");
+            }
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String header = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = line.substring(colon + 1).trim();
+            if ("content-disposition".equals(header)) {
+                disposition = value;
+            } else if ("content-type".equals(header)) {
+                contentType = value;
+            }
+        }
+        inBody = true;
+        current = new PartStream();
+        return new Part(dispositionParam(disposition, "name"), dispositionParam(disposition, "filename"),
+                contentType, current);
+    }
+
+    private static String dispositionParam(String disposition, String param) {
+        if (disposition == null) {
+            return null;
+        }
+        Matcher m = DISPOSITION_PARAM.matcher(disposition);
+        while (m.find()) {
+            if (param.equalsIgnoreCase(m.group(1))) {
+                return m.group(3) != null ? m.group(3).replaceAll("\\\\(.)", "$1") : m.group(2);
+            }
+        }
+        return null;
+    }
+
+    private String readLine() throws IOException {
+        int i = pos;
+        while (true) {
+            if (i + 1 >= limit) {
+                // the buffer may be compacted, so the position is kept as an offset
+                int offset = i - pos;
+                if (!fill(offset + 2)) {
+                    throw new EOFException("Unexpected end of multipart headers");
+                }
+                i = pos + offset;
+            }
+            if (buf[i] == '\r' && buf[i + 1] == '\n') {
+                String line = new String(buf, pos, i - pos, StandardCharsets.ISO_8859_1);
+                pos = i + 2;
+                return line;
+            }
+            if (++i - pos > MAX_HEADER_LINE) {
+                throw new IOException("Multipart header line too long");
+            }
+        }
+    }
+
+    /** Read from the current body, up to the next delimiter, which is consumed at the end.
+     * @param dst the array to read into, or null to skip
+     * @return the number of bytes read, or -1 at the end of the body
+     */
+    private int readBody(byte[] dst, int off, int len) throws IOException {
+        if (!inBody) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (delimiterAt < 0 && limit - pos < delimiter.length) {
+            fill(delimiter.length);
+        }
+        int end = bodyEnd();
+        if (end == pos) {
+            if (delimiterAt == pos) {
+                pos += delimiter.length;
+                delimiterAt = -1;
+                scanned = pos;
+                inBody = false;
+                return -1;
+            }
+            if (eof) {
+                throw new EOFException("Unexpected end of multipart content");
+            }
+            // a delimiter may start here, more data is needed to tell
+            fill(limit - pos + 1);
+            return readBody(dst, off, len);
+        }
+        int n = Math.min(len, end - pos);
+        if (dst != null) {
+            System.arraycopy(buf, pos, dst, off, n);
+        }
+        pos += n;
+        return n;
+    }
+
+    /** @return the end of the body bytes in the buffer which can be handed out */
+    private int bodyEnd() {
+        if (delimiterAt >= 0) {
+            return delimiterAt;
+        }
+        int last = limit - delimiter.length;
+        for (int i = Math.max(scanned, pos); i <= last; i++) {
+            if (buf[i] == delimiter[0] && matchesDelimiter(i)) {
+                delimiterAt = i;
+                return i;
+            }
+        }
+        scanned = Math.max(pos, last + 1);
+        // bytes which could be the start of a delimiter are held back, unless the content ended
+        return eof ? limit : scanned;
+    }
+
+    private boolean matchesDelimiter(int at) {
+        for (int j = 1; j < delimiter.length; j++) {
+            if (buf[at + j] != delimiter[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Ensure that at least {@code min} bytes are buffered, unless the content ends.
+     * @return whether there are at least {@code min} bytes buffered
+     */
+    private boolean fill(int min) throws IOException {
+        if (limit - pos >= min) {
+            return true;
+        }
+        if (pos > 0) {
+            int shift = pos;
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= shift;
+            pos = 0;
+            scanned = Math.max(0, scanned - shift);
+            if (delimiterAt >= 0) {
+                delimiterAt -= shift;
+            }
+        }
+        while (limit - pos < min && !eof) {
+            int n = in.read(buf, limit, buf.length - limit);
+            if (n < 0) {
+                eof = true;
+                break;
+            }
+            limit += n;
+            contentRead += n;
+            if (maxContentSize >= 0 && contentRead > maxContentSize) {
+                throw new SizeLimitException("The multipart content exceeds " + maxContentSize + " bytes");
+            }
+        }
+        return limit - pos >= min;
+    }
+
+    /** The content of the current part. */
+    private final class PartStream extends InputStream {
+        private long read = 0;
+        private boolean closed = false;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                return -1;
+            }
+            int n = readBody(b, off, len);
+            if (n > 0) {
+                read += n;
+                if (maxPartSize >= 0 && read > maxPartSize) {
+                    throw new SizeLimitException("The multipart file exceeds " + maxPartSize + " bytes");
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public int available() {
+            if (closed || !inBody) {
+                return 0;
+            }
+            return Math.max(0, (delimiterAt >= 0 ? delimiterAt : scanned) - pos);
+        }
+
+        @Override
+        public void close() {
+            // the rest of the part is skipped when moving on to the next one
+            closed = true;
+        }
+    }
+}
@@ -18,15 +18,40 @@
  */
 package pt.ua.dicoogle.nifti.ws;
 
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URI;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -42,11 +67,23 @@ import org.dcm4che2.data.Tag;
 import org.dcm4che2.data.VR;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import pt.ua.dicoogle.nifti.UidGenerator;
 import pt.ua.dicoogle.nifti.config.NIFTIPluginSettings;
-import pt.ua.dicoogle.nifti.convert.NIFTIConverter;
 import pt.ua.dicoogle.nifti.convert.NIFTIConverterImpl;
+import pt.ua.dicoogle.nifti.convert.NiftiSliceReader;
+import pt.ua.dicoogle.nifti.convert.SliceSelection;
+import pt.ua.dicoogle.nifti.convert.WindowPolicy;
 import pt.ua.dicoogle.nifti.dicom.DicomInjectorBuilder;
+import pt.ua.dicoogle.nifti.util.BufferPool;
+import pt.ua.dicoogle.nifti.util.ConversionMetrics;
+import pt.ua.dicoogle.nifti.util.DigestIndex;
+import pt.ua.dicoogle.nifti.util.FlightEvent;
+import pt.ua.dicoogle.nifti.util.FlightEvents;
+import pt.ua.dicoogle.nifti.util.GzipIndex;
+import pt.ua.dicoogle.nifti.util.GzipInflater;
+import pt.ua.dicoogle.nifti.util.IndexedGzipFile;
 import pt.ua.dicoogle.nifti.util.RuntimeIOException;
+import pt.ua.dicoogle.nifti.util.SingleFlight;
 import pt.ua.dicoogle.sdk.StorageInterface;
 import pt.ua.dicoogle.sdk.core.DicooglePlatformInterface;
 import pt.ua.dicoogle.sdk.core.PlatformCommunicatorInterface;
@@ -58,19 +95,100 @@ import pt.ua.dicoogle.sdk.core.PlatformCommunicatorInterface;
 public class NIFTIConvertWebServlet  extends HttpServlet implements PlatformCommunicatorInterface {
     private static final Logger logger = LoggerFactory.getLogger(NIFTIConvertWebServlet.class);
     
-    private final ForkJoinPool pool = new ForkJoinPool(1);
+    // conversions run in a bounded pool of workers, created on demand from the settings
+    private WorkerPool workers;
+    // converted objects are handed over to a separate stage for storage
+    private StorageStage storageStage;
+    private boolean shutdown = false;
+    // pixel buffers are shared by all requests
+    private final BufferPool bufferPool = new BufferPool(NIFTIPluginSettings.DEFAULT_BUFFER_POOL_CAPACITY);
+    // compressed files are inflated ahead of conversion
+    private final GzipInflater inflater = new GzipInflater(1,
+            NIFTIPluginSettings.DEFAULT_INFLATE_BUFFER_SIZE, NIFTIPluginSettings.DEFAULT_INFLATE_READ_AHEAD);
+    // stage latencies and data counters of all conversions
+    private final ConversionMetrics metrics = new ConversionMetrics();
+    private final AdmissionControl admission = new AdmissionControl();
+    private final AtomicInteger requestsInFlight = new AtomicInteger();
+    // conversions of files which are being uploaded more than once at the same time
+    private final SingleFlight<String, List<String>> inFlight = new SingleFlight<>();
+    private DigestIndex digestIndex;
+    private final JobRegistry jobs;
     
+    /** An input stream which digests everything passed through it, including skipped bytes. */
+    private static class DigestingInputStream extends DigestInputStream {
+        private final byte[] buf = new byte[8192];
+
+        DigestingInputStream(InputStream in) {
+            super(in, newSha256());
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n) {
+                int r = read(buf, 0, (int) Math.min(n - skipped, buf.length));
+                if (r < 0) {
+                    break;
+                }
+                skipped += r;
+            }
+            return skipped;
+        }
+
+        /** Digest the rest of the stream.
+         * @return the digest of the whole stream
+         */
+        byte[] finish() throws IOException {
+            while (read(buf) >= 0) {
+                // just digesting
+            }
+            return getMessageDigest().digest();
+        }
+
+        private static MessageDigest newSha256() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException ex) {
+                // every Java platform is required to support SHA-256
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
     private static class NiftiFileEntry<S extends InputStream> {
         final String name;
         final S inputStream;
+        // the file's channel, if it was spooled to disk, so that it can be read at random
+        final FileChannel channel;
+        // the file's inflated content, if it was spooled compressed, over the same channel
+        final IndexedGzipFile gzip;
+        final byte[] digest;
+
+        public NiftiFileEntry(String name, S inputStream, byte[] digest) {
+            this(name, inputStream, null, null, digest);
+        }
 
-        public NiftiFileEntry(String name, S inputStream) {
+        public NiftiFileEntry(String name, S inputStream, FileChannel channel, IndexedGzipFile gzip, byte[] digest) {
             this.name = name;
             this.inputStream = inputStream;
+            this.channel = channel;
+            this.gzip = gzip;
+            this.digest = digest;
         }
     }
     
     private DicooglePlatformInterface platform;
+
+    public NIFTIConvertWebServlet() {
+        this(new JobRegistry());
+    }
+
+    /** Create the web service.
+     * @param jobs the registry of asynchronous conversion jobs
+     */
+    public NIFTIConvertWebServlet(JobRegistry jobs) {
+        this.jobs = jobs;
+    }
     
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse response)
@@ -82,26 +200,140 @@ public class NIFTIConvertWebServlet  extends HttpServlet implements PlatformComm
     
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        String modality = req.getParameter("modality");
-        String manufacturer = req.getParameter("manufacturer");
-        String institutionName = req.getParameter("institutionName");
-        String patientName = req.getParameter("patientName");
-        String patientID = req.getParameter("patientID");
-        String bodyPart = req.getParameter("bodyPart");
-        String filenameType = req.getParameter("type");
-
-        Stream<NiftiFileEntry<InputStream>> niftiObjects;
-        int nFiles;
+        final long start = System.nanoTime();
+        final FlightEvent event = FlightEvents.request();
+        final ConversionMetrics.Timings timings = metrics.newTimings();
+        requestsInFlight.incrementAndGet();
+        try {
+            convert(req, resp, timings, start);
+        } finally {
+            requestsInFlight.decrementAndGet();
+            metrics.record(ConversionMetrics.Stage.REQUEST, System.nanoTime() - start);
+            event.request(timings.requestId())
+                    .scheme(NIFTIPluginSettings.INSTANCE.getStorageScheme())
+                    .bytes(req.getContentLengthLong())
+                    .status(resp.getStatus())
+                    .commit();
+        }
+    }
+
+    private void convert(HttpServletRequest req, HttpServletResponse resp, ConversionMetrics.Timings timings,
+            long start) throws ServletException, IOException {
+        final UidGenerator uidGenerator = UidGenerator.fromSettings();
+        final DigestIndex index = digestIndex();
+        inflater.configure(NIFTIPluginSettings.INSTANCE.getInflateThreads(),
+                NIFTIPluginSettings.INSTANCE.getInflateBufferSize(), NIFTIPluginSettings.INSTANCE.getInflateReadAhead());
+        admission.configure(NIFTIPluginSettings.INSTANCE.getMemoryBudget(), NIFTIPluginSettings.INSTANCE.getHeapWatermark());
+        final boolean multipart = req.getContentType() != null && req.getContentType().startsWith("multipart/form-data");
+        // streamed parts can only be read once, so files which must be digested beforehand are spooled
+        final boolean streaming = multipart && NIFTIPluginSettings.INSTANCE.isMultipartStreaming()
+                && !uidGenerator.isDeterministic() && index == null;
+        // the container would spool the whole content while looking for parameters in it
+        final Function<String, String> params = streaming ? queryParameters(req) : req::getParameter;
+
+        String modality = params.apply("modality");
+        String manufacturer = params.apply("manufacturer");
+        String institutionName = params.apply("institutionName");
+        String patientName = params.apply("patientName");
+        String patientID = params.apply("patientID");
+        String bodyPart = params.apply("bodyPart");
+        String filenameType = params.apply("type");
+        boolean multiFrame = Boolean.parseBoolean(params.apply("multiframe"));
+        boolean async = Boolean.parseBoolean(params.apply("async"));
+        String zRange = params.apply("zRange");
+        String tRange = params.apply("tRange");
+        String stride = params.apply("stride");
+
+        // files are either listed up front, or streamed one after the other
+        List<PendingFile> niftiObjects = null;
+        FileSource streamedObjects = null;
+        // whether the whole entity is spooled before it is converted
+        boolean spoolEntity = false;
         resp.setContentType("application/json; charset=UTF-8");
+        final SliceSelection sliceSelection;
+        try {
+            sliceSelection = SliceSelection.parse(zRange, tRange, stride);
+        } catch (IllegalArgumentException ex) {
+            JSONObject reply = new JSONObject();
+            reply.put("error", ex.getMessage());
+            resp.getWriter().print(reply.toString());
+            resp.setStatus(400);
+            return;
+        }
         if (req.getContentType() == null) {
             JSONObject reply = new JSONObject();
             reply.put("error", "no content");
             resp.getWriter().print(reply.toString());
             resp.setStatus(400);
             return;
-        } else if (req.getContentType().startsWith("multipart/form-data")) {
-            // for now we just retrieve the first valid part
-            Collection<Part> parts = req.getParts().stream().filter( part -> {
+        }
+        final String boundary = streaming ? MultipartReader.boundary(req.getContentType()) : null;
+        if (streaming && boundary == null) {
+            JSONObject reply = new JSONObject();
+            reply.put("error", "no boundary in multipart content type");
+            resp.getWriter().print(reply.toString());
+            resp.setStatus(400);
+            return;
+        }
+        WorkerPool pool;
+        try {
+            pool = workers();
+        } catch (RejectedExecutionException ex) {
+            replyBusy(resp, ex);
+            return;
+        }
+        if (pool.isSaturated()) {
+            // turned away before reading any content
+            replyBusy(resp, null);
+            return;
+        }
+        try {
+            // intake of valid requests is held back while the heap is under pressure
+            admission.reserve(0, NIFTIPluginSettings.INSTANCE.getAdmissionTimeout(), TimeUnit.SECONDS).close();
+        } catch (AdmissionControl.Rejected ex) {
+            replyRejected(resp, ex.getStatus(), ex.getMessage());
+            return;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            replyBusy(resp, null);
+            return;
+        }
+        if (streaming) {
+            // parts are converted while they arrive, in order
+            MultipartReader reader = new MultipartReader(req.getInputStream(), boundary,
+                    NIFTIPluginSettings.INSTANCE.getMultipartMaxFileSize(),
+                    NIFTIPluginSettings.INSTANCE.getMultipartMaxRequestSize());
+            streamedObjects = () -> {
+                for (MultipartReader.Part part = reader.next(); part != null; part = reader.next()) {
+                    if (part.getContentType() == null) {
+                        logger.warn("Unknown content type retrieved in part named {}, ignoring", part.getName());
+                        continue;
+                    }
+                    final MultipartReader.Part p = part;
+                    return new PendingFile(p.getName(), () -> new NiftiFileEntry<InputStream>(p.getName(),
+                            open(p.getInputStream(), p.getContentType(), timings), null),
+                            isGzip(p.getContentType()) ? () -> new NiftiFileEntry<InputStream>(p.getName(),
+                                    p.getInputStream(), null) : null);
+                }
+                return null;
+            };
+        } else if (multipart) {
+            Collection<Part> allParts;
+            try {
+                // the container receives the whole content here
+                long t0 = System.nanoTime();
+                allParts = req.getParts();
+                timings.record(ConversionMetrics.Stage.RECEIVE, System.nanoTime() - t0);
+            } catch (IllegalStateException ex) {
+                // the container enforces the size limits while spooling
+                logger.warn("Rejected multipart content: {}", ex.getMessage());
+                JSONObject reply = new JSONObject();
+                reply.put("error", "multipart content too large");
+                resp.getWriter().print(reply.toString());
+                resp.setStatus(413);
+                return;
+            }
+            Collection<Part> parts = allParts.stream().filter( part -> {
                 if (part.getContentType() == null) {
                     logger.warn("Unknown content type retrieved in part named {}, ignoring", part.getName());
                     return false;
@@ -116,37 +348,47 @@ public class NIFTIConvertWebServlet  extends HttpServlet implements PlatformComm
                 resp.setStatus(400);
                 return;
             }
-            nFiles = parts.size();
-
-            parts = parts.stream()
-                    .filter( part -> {
-                        String ctype = part.getContentType();
-                        if (ctype == null) {
-                            logger.warn("Unknown content type retrieved, ignoring");
-                            return false;
-                        }
-                        return true;
-                    }).collect(Collectors.toList());
-            nFiles = parts.size();
-            niftiObjects = parts.stream().sequential()
-                    .map( part -> {
+            // the same digest identifies the file for deterministic UIDs and for the index,
+            // spooled parts are digested while copied instead
+            final boolean digestParts = (uidGenerator.isDeterministic() || index != null) && !async;
+            // parts are opened by whoever converts them, so that they are also digested concurrently
+            niftiObjects = parts.stream()
+                    .map( part -> new PendingFile(part.getName(), () -> {
                         String ctype = part.getContentType();
-                        String name = part.getName();
-                        try {
-                            return new NiftiFileEntry<InputStream>(name, isGzip(ctype)
-                                    ? new GZIPInputStream(part.getInputStream())
-                                    : part.getInputStream());
-                        } catch (IOException ex) {
-                            logger.warn("Failed to fetch file", ex);
-                            return null;
+                        // parts can be read more than once, so the file is digested beforehand
+                        byte[] digest = null;
+                        if (digestParts) {
+                            try (InputStream in = openPart(part, ctype, timings)) {
+                                digest = NIFTIConverterImpl.digest(in);
+                            }
                         }
-                    })
-                    .filter(Objects::nonNull);
+                        return new NiftiFileEntry<InputStream>(part.getName(), openPart(part, ctype, timings), digest);
+                    }, isGzip(part.getContentType()) ? () -> new NiftiFileEntry<InputStream>(part.getName(),
+                            part.getInputStream(), null) : null))
+                    .collect(Collectors.toList());
         } else {
-            nFiles = 1;
-            niftiObjects = Stream.of(new NiftiFileEntry<InputStream>(null, isGzip(req.getContentType())
-                    ? new GZIPInputStream(req.getInputStream())
-                    : req.getInputStream()));
+            InputStream in = req.getInputStream();
+            // files which must be digested beforehand are spooled, as are those of asynchronous conversions
+            spoolEntity = async || index != null || uidGenerator.isDeterministic();
+            if (spoolEntity) {
+                // the entity is spooled to disk, within the same limits as multipart content,
+                // which are otherwise enforced by the container or the multipart reader
+                in = limit(in, NIFTIPluginSettings.INSTANCE.getMultipartMaxFileSize());
+                in = limit(in, NIFTIPluginSettings.INSTANCE.getMultipartMaxRequestSize());
+            }
+            final InputStream entity = in;
+            final String ctype = req.getContentType();
+            niftiObjects = Collections.singletonList(new PendingFile(null,
+                    () -> new NiftiFileEntry<InputStream>(null, open(entity, ctype, timings), null),
+                    isGzip(ctype) ? () -> new NiftiFileEntry<InputStream>(null, entity, null) : null));
+        }
+
+        // the parameters as given, since defaults may be random
+        final List<String> keyParams = new ArrayList<>(Arrays.asList(modality, manufacturer, institutionName,
+                patientName, patientID, bodyPart, filenameType, String.valueOf(multiFrame)));
+        if (!sliceSelection.isAll()) {
+            // whole conversions keep the keys which they had before slices could be selected
+            keyParams.add(sliceSelection.toString());
         }
 
         if (modality == null) {
@@ -171,49 +413,152 @@ public class NIFTIConvertWebServlet  extends HttpServlet implements PlatformComm
         
         if (null != bodyPart) bodyPart = convertBodyPartId(bodyPart);
 
-        NIFTIConverter converter = new NIFTIConverterImpl();
+        final WindowPolicy windowPolicy = WindowPolicy.fromSettings(modality.toUpperCase(), bodyPart);
+        bufferPool.setCapacity(NIFTIPluginSettings.INSTANCE.getBufferPoolCapacity());
+        // streamed files whose window is estimated are written to disk, as spooled parts are,
+        // except for streamed parts, whose conversion overlaps their upload
+        final Path spoolDirectory = streaming || NIFTIPluginSettings.INSTANCE.isWindowPerStreamedSlice()
+                ? null : spoolDirectory();
+        final int convertAhead = NIFTIPluginSettings.INSTANCE.getConvertAhead();
+        final Path gzipIndexDirectory = NIFTIPluginSettings.INSTANCE.getInflateIndexDirectory() != null
+                ? Paths.get(NIFTIPluginSettings.INSTANCE.getInflateIndexDirectory()) : null;
+        final long gzipIndexSpan = NIFTIPluginSettings.INSTANCE.getInflateIndexSpan();
+        // each file has a converter of its own, since files may be converted concurrently
+        Supplier<NIFTIConverterImpl> converters = () -> {
+            NIFTIConverterImpl converter = new NIFTIConverterImpl();
+            converter.setWindowPolicy(windowPolicy);
+            converter.setBufferPool(bufferPool);
+            converter.setMultiFrame(multiFrame);
+            converter.setSliceSelection(sliceSelection);
+            converter.setUidGenerator(uidGenerator);
+            converter.setRecorder(timings);
+            converter.setSpoolDirectory(spoolDirectory);
+            converter.setGzipIndex(gzipIndexDirectory, gzipIndexSpan);
+            if (convertAhead > 0) {
+                // slices are still read by the worker, and converted by the common pool
+                converter.setExecutor(ForkJoinPool.commonPool(), convertAhead);
+            }
+            return converter;
+        };
         UnaryOperator<DicomObject> injector = new DicomInjectorBuilder()
                 .patient(patientName, patientID)
                 .generalClinic(manufacturer, institutionName)
                 .bodyPart(bodyPart)
+                .enhanced(multiFrame)
                 .modality(modality.toUpperCase())
                 .build();
 
         // fetch storage interface
         StorageInterface storage = platform.getStorageForSchema(NIFTIPluginSettings.INSTANCE.getStorageScheme());
-        // will do this synchronously for now
-        try {
+        final Conversion conversion = new Conversion(converters, injector, storage, index, keyParams, timings);
 
-            List<String> uris = pool.submit(() -> niftiObjects
-                    .flatMap(o -> {
-                        try {
-                            return converter.convert(o.inputStream)
-                                    .map(dcm -> injectSeriesInfo(dcm, o.name))
-                                    .map(dcm -> {
-                                        if ("visceral".equals(filenameType)) {
-                                            return dcm;
-                                        } else {
-                                            return dcm;
-                                        }
-                                    });
-                        } catch (RuntimeIOException ex) {
-                            logger.warn("Failed to convert NIFTI file", ex);
-                            return null;
-                        }
-                    })
-                    .filter(Objects::nonNull)
-                    .map(injector)
-                    .map(dcm -> storage.store(dcm))
-                    .filter(Objects::nonNull)
-                    .map(URI::toString)
-                    .collect(Collectors.toList())).get();
+        List<NiftiFileEntry<InputStream>> spooled = null;
+        if (async || spoolEntity) {
+            // the request's content is gone once replied to, so the files are received beforehand
+            long t0 = System.nanoTime();
+            try {
+                spooled = spool(streamedObjects != null ? streamedObjects : FileSource.of(niftiObjects),
+                        uidGenerator.isDeterministic() || index != null, gzipIndexDirectory, gzipIndexSpan, timings);
+                timings.record(ConversionMetrics.Stage.RECEIVE, System.nanoTime() - t0);
+            } catch (IOException ex) {
+                logger.warn("Failed to receive NIFTI files", ex);
+                JSONObject reply = new JSONObject();
+                reply.element("status", "failed");
+                reply.element("message", ex.getMessage());
+                resp.getWriter().print(reply.toString());
+                resp.setStatus(ex instanceof MultipartReader.SizeLimitException ? 413 : 500);
+                return;
+            }
+            if (spooled.isEmpty()) {
+                JSONObject reply = new JSONObject();
+                reply.put("error", "no valid content in multipart entity");
+                resp.getWriter().print(reply.toString());
+                resp.setStatus(400);
+                return;
+            }
+        }
+
+        if (async) {
+            final List<NiftiFileEntry<InputStream>> files = spooled;
+            ConversionJob job = jobs.create(files.size());
+            // the files were read while received
+            for (NiftiFileEntry<InputStream> o : files) {
+                job.bytesRead(o.channel.size());
+            }
+            try {
+                pool.execute(() -> runJob(job, conversion, files, pool));
+            } catch (RejectedExecutionException ex) {
+                jobs.remove(job.getId());
+                for (NiftiFileEntry<InputStream> o : files) {
+                    closeQuietly(o.inputStream);
+                }
+                replyBusy(resp, ex);
+                return;
+            }
+            String location = req.getContextPath() + "/jobs/" + job.getId();
+            JSONObject reply = new JSONObject();
+            reply.element("status", "ACCEPTED");
+            reply.element("nNiftiFiles", files.size());
+            reply.element("jobId", job.getId());
+            reply.element("location", location);
+            resp.setHeader("Location", location);
+            putServerTiming(resp, timings, start);
+            resp.getWriter().print(reply.toString());
+            resp.setStatus(202);
+            return;
+        }
+
+        try {
+            final List<PendingFile> files = spooled != null
+                    ? spooled.stream().map(PendingFile::of).collect(Collectors.toList())
+                    : niftiObjects;
+            final FileSource streamed = streamedObjects;
+            final ConversionJob job = new ConversionJob(null, files != null ? files.size() : 0);
+            if (spooled != null) {
+                for (NiftiFileEntry<InputStream> o : spooled) {
+                    job.bytesRead(o.channel.size());
+                }
+            }
+            List<FileResult> results;
+            try {
+                results = pool.submit(() -> streamed != null
+                        ? convertStreamed(conversion, streamed, job)
+                        : convertAll(conversion, files, job, pool)).get();
+            } catch (RejectedExecutionException ex) {
+                if (spooled != null) {
+                    for (NiftiFileEntry<InputStream> o : spooled) {
+                        closeQuietly(o.inputStream);
+                    }
+                }
+                replyBusy(resp, ex);
+                return;
+            }
+            if (results.isEmpty()) {
+                JSONObject reply = new JSONObject();
+                reply.put("error", "no valid content in multipart entity");
+                resp.getWriter().print(reply.toString());
+                resp.setStatus(400);
+                return;
+            }
+            logger.debug("Buffer pool: {} hits, {} misses, {} bytes in flight, {} bytes retained",
+                    bufferPool.getHits(), bufferPool.getMisses(), bufferPool.getBytesInFlight(), bufferPool.getBytesRetained());
+            logger.debug("Inflation: {} bytes from {} compressed bytes, at {} MB/s",
+                    inflater.getInflatedBytes(), inflater.getCompressedBytes(), (long) (inflater.getThroughput() / 1e6));
             
+            int rejection = FileResult.rejection(results);
+            if (rejection != 0) {
+                replyRejected(resp, rejection, results.get(0).getError());
+                return;
+            }
+            String status = FileResult.status(results);
             JSONObject reply = new JSONObject();
-            reply.element("status", "COMPLETED");
-            reply.element("nNiftiFiles", nFiles);
-            reply.element("dcmFiles", uris);
+            reply.element("status", status);
+            reply.element("nNiftiFiles", results.size());
+            reply.element("dcmFiles", FileResult.uris(results));
+            reply.element("files", FileResult.toJSON(results));
+            putServerTiming(resp, timings, start);
             resp.getWriter().print(reply.toString());
-            resp.setStatus(200);
+            resp.setStatus("FAILED".equals(status) ? 500 : 200);
         } catch (InterruptedException | ExecutionException ex) {
             logger.warn("Interrupted", ex);
             JSONObject reply = new JSONObject();
@@ -224,6 +569,635 @@ public class NIFTIConvertWebServlet  extends HttpServlet implements PlatformComm
         }
     }
 
+    /** A file of a request, opened on demand. */
+    private static final class PendingFile {
+        @FunctionalInterface
+        interface Opener {
+            NiftiFileEntry<InputStream> open() throws IOException;
+        }
+
+        final String name;
+        final Opener opener;
+        // opens the file as sent, if it was sent GZip compressed, or null
+        final Opener compressed;
+
+        PendingFile(String name, Opener opener) {
+            this(name, opener, null);
+        }
+
+        PendingFile(String name, Opener opener, Opener compressed) {
+            this.name = name;
+            this.opener = opener;
+            this.compressed = compressed;
+        }
+
+        static PendingFile of(NiftiFileEntry<InputStream> entry) {
+            return new PendingFile(entry.name, () -> entry);
+        }
+    }
+
+    /** A source of the files of a request, read one after the other. */
+    @FunctionalInterface
+    private interface FileSource {
+        /** @return the next file, or null if there are no more files */
+        PendingFile next() throws IOException;
+
+        static FileSource of(List<PendingFile> files) {
+            Iterator<PendingFile> it = files.iterator();
+            return () -> it.hasNext() ? it.next() : null;
+        }
+    }
+
+    /** The conversion parameters of a request. */
+    private static class Conversion {
+        final Supplier<NIFTIConverterImpl> converters;
+        final UnaryOperator<DicomObject> injector;
+        final StorageInterface storage;
+        // null if deduplication is disabled
+        final DigestIndex index;
+        final List<String> keyParams;
+        final ConversionMetrics.Recorder recorder;
+
+        Conversion(Supplier<NIFTIConverterImpl> converters, UnaryOperator<DicomObject> injector,
+                StorageInterface storage, DigestIndex index, List<String> keyParams,
+                ConversionMetrics.Recorder recorder) {
+            this.converters = converters;
+            this.injector = injector;
+            this.storage = storage;
+            this.index = index;
+            this.keyParams = keyParams;
+            this.recorder = recorder;
+        }
+    }
+
+    /** A task which takes over the conversion of a request's files, unless it
+     * is claimed by the request before it starts.
+     */
+    private static final class Helper implements Runnable {
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private final Runnable work;
+
+        Helper(Runnable work) {
+            this.work = work;
+        }
+
+        @Override
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                work.run();
+            } finally {
+                done.complete(null);
+            }
+        }
+
+        /** Wait for the helper to finish, unless it has not started yet, in which case it never will. */
+        void await() {
+            if (claimed.compareAndSet(false, true)) {
+                return;
+            }
+            done.join();
+        }
+    }
+
+    /** Convert and store the files of a request. Up to the number of files
+     * per request in the plugin's settings are converted at once, by this
+     * thread and by helpers handed to idle workers. A file which fails does
+     * not affect the others.
+     *
+     * @param c the conversion parameters
+     * @param files the files
+     * @param job the job in which to report progress
+     * @param pool the pool of workers which may help
+     * @return the outcome of each file, in order
+     */
+    private List<FileResult> convertAll(Conversion c, List<PendingFile> files, ConversionJob job, WorkerPool pool) {
+        final FileResult[] results = new FileResult[files.size()];
+        final AtomicInteger next = new AtomicInteger();
+        Runnable work = () -> {
+            for (int i = next.getAndIncrement(); i < results.length; i = next.getAndIncrement()) {
+                results[i] = convertFile(c, files.get(i), job);
+            }
+        };
+        int maxHelpers = Math.min(files.size(), NIFTIPluginSettings.INSTANCE.getFilesPerRequest()) - 1;
+        List<Helper> helpers = new ArrayList<>();
+        // helpers are only handed to idle workers, so that they never keep other requests waiting
+        while (helpers.size() < maxHelpers && pool.hasIdleWorker()) {
+            Helper helper = new Helper(work);
+            try {
+                pool.execute(helper);
+            } catch (RejectedExecutionException ex) {
+                break;
+            }
+            helpers.add(helper);
+        }
+        // this thread converts files too, and never waits for a helper which has not started
+        work.run();
+        for (Helper helper : helpers) {
+            helper.await();
+        }
+        return Arrays.asList(results);
+    }
+
+    /** Convert and store streamed files, one after the other, as they arrive.
+     * A file which fails does not affect the others, but content which cannot
+     * be read ends the conversion.
+     *
+     * @param c the conversion parameters
+     * @param files the files
+     * @param job the job in which to report progress
+     * @return the outcome of each file, in order
+     */
+    private List<FileResult> convertStreamed(Conversion c, FileSource files, ConversionJob job) {
+        List<FileResult> results = new ArrayList<>();
+        try {
+            for (PendingFile file = files.next(); file != null; file = files.next()) {
+                results.add(convertFile(c, file, job));
+            }
+        } catch (IOException ex) {
+            logger.warn("Failed to read multipart content", ex);
+            results.add(FileResult.failed(null, "failed to read multipart content: " + ex.getMessage()));
+        }
+        return results;
+    }
+
+    private FileResult convertFile(Conversion c, PendingFile file, ConversionJob job) {
+        NiftiFileEntry<InputStream> o = null;
+        try {
+            o = file.opener.open();
+            return FileResult.completed(file.name, convertEntry(c, o, job));
+        } catch (AdmissionControl.Rejected ex) {
+            logger.info("Turning away NIFTI file {}: {}", file.name, ex.getMessage());
+            return FileResult.rejected(file.name, ex.getMessage(), ex.getStatus());
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+            if (cause instanceof AdmissionControl.Rejected) {
+                logger.info("Turning away NIFTI file {}: {}", file.name, cause.getMessage());
+                return FileResult.rejected(file.name, cause.getMessage(), ((AdmissionControl.Rejected) cause).getStatus());
+            }
+            logger.warn("Failed to convert NIFTI file {}", file.name, cause);
+            return FileResult.failed(file.name, cause.getMessage());
+        } catch (IOException | RuntimeException ex) {
+            logger.warn("Failed to convert NIFTI file {}", file.name, ex);
+            return FileResult.failed(file.name, ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return FileResult.failed(file.name, "interrupted");
+        } finally {
+            job.fileDone();
+            if (o != null) {
+                closeQuietly(o.inputStream);
+            }
+        }
+    }
+
+    /** Convert and store a file, unless it was already converted.
+     * @return the URIs of the stored objects, in order
+     */
+    private List<String> convertEntry(Conversion c, NiftiFileEntry<InputStream> o, ConversionJob job)
+            throws IOException, InterruptedException, ExecutionException, AdmissionControl.Rejected {
+        final DigestIndex index = c.index;
+        if (index == null || o.digest == null) {
+            return convertAndStore(o, c, job, null);
+        }
+        String key = DigestIndex.key(o.digest, keyParams(c, o));
+        List<String> stored = index.get(key);
+        if (stored != null) {
+            logger.info("File {} was already converted, replying with {} stored objects", o.name, stored.size());
+            return stored;
+        }
+        // concurrent uploads of the same file wait for the first one
+        return inFlight.execute(key, () -> {
+            List<String> done = index.get(key);
+            if (done != null) {
+                return done;
+            }
+            return convertAndStore(o, c, job, key);
+        });
+    }
+
+    /** @return the parameters which affect the outcome of converting a file */
+    private static List<String> keyParams(Conversion c, NiftiFileEntry<InputStream> o) {
+        List<String> params = new ArrayList<>(c.keyParams);
+        if (o.name != null) {
+            params.add(o.name);
+        }
+        return params;
+    }
+
+    /** Convert and store a file.
+     * @param key the key under which to record the stored objects in the index,
+     * if the storage gave a URI for each of them, or null
+     * @return the URIs of the stored objects, in order
+     */
+    private List<String> convertAndStore(NiftiFileEntry<InputStream> o, Conversion c, ConversionJob job, String key)
+            throws IOException, InterruptedException, ExecutionException, AdmissionControl.Rejected {
+        final NIFTIConverterImpl converter = c.converters.get();
+        // series attributes are injected once per series, rather than once per object
+        converter.setSeriesInjector(dcm -> {
+            long t0 = System.nanoTime();
+            DicomObject injected = c.injector.apply(injectSeriesInfo(dcm, o.name));
+            c.recorder.record(ConversionMetrics.Stage.INJECT, System.nanoTime() - t0);
+            return injected;
+        });
+        // only the header is read before the conversion is admitted; spooled files are read at random
+        NiftiSliceReader reader = o.gzip != null ? new NiftiSliceReader(o.gzip::read)
+                : o.channel != null ? new NiftiSliceReader(o.channel)
+                : new NiftiSliceReader(job.countBytes(o.inputStream));
+        int depth = NIFTIPluginSettings.INSTANCE.getStoreQueueDepth();
+        long cost = converter.estimateMemory(reader.getHeader(), depth);
+        try (AdmissionControl.Reservation reservation = admission.reserve(cost,
+                    NIFTIPluginSettings.INSTANCE.getAdmissionTimeout(), TimeUnit.SECONDS);
+                StorageStage.Pipeline pipeline = storageStage().open(c.storage, depth, c.recorder)) {
+            // the same file converted with other parameters is given other UIDs
+            byte[] digest = o.digest != null ? DigestIndex.digest(o.digest, keyParams(c, o)) : null;
+            // closed in order to release the file of a streamed volume, if it was spooled
+            try (Stream<DicomObject> converted = converter.convert(reader, digest)) {
+                // the next slice is converted while the previous ones are stored
+                for (Iterator<DicomObject> it = converted.iterator(); it.hasNext();) {
+                    DicomObject dcm = it.next();
+                    job.sliceConverted();
+                    pipeline.put(dcm, stored -> {
+                        // the storage is done with the object, so its pixel buffer can be reused
+                        converter.recycle(stored);
+                        job.sliceStored();
+                    });
+                }
+                List<String> stored = pipeline.finish();
+                if (key != null && !stored.isEmpty()) {
+                    if (pipeline.isComplete()) {
+                        c.index.put(key, stored);
+                    } else {
+                        // a later upload would be replied to with some of the objects missing
+                        logger.info("Not recording file {} in the index, since some objects have no URI", o.name);
+                    }
+                }
+                return stored;
+            }
+        }
+    }
+
+    private void runJob(ConversionJob job, Conversion c, List<NiftiFileEntry<InputStream>> files, WorkerPool pool) {
+        job.start();
+        try {
+            List<PendingFile> pending = files.stream().map(PendingFile::of).collect(Collectors.toList());
+            job.complete(convertAll(c, pending, job, pool));
+            logger.info("Conversion job {} finished as {} with {} stored objects",
+                    job.getId(), job.getStatus(), job.getUris().size());
+        } catch (RuntimeException ex) {
+            logger.warn("Conversion job {} failed", job.getId(), ex);
+            job.fail(ex.getMessage());
+        } finally {
+            for (NiftiFileEntry<InputStream> o : files) {
+                closeQuietly(o.inputStream);
+            }
+        }
+    }
+
+    /** Receive the files of a request into temporary files in the multipart
+     * location (see {@link NIFTIPluginSettings#getMultipartLocation()}), which
+     * are deleted once their streams are closed. The spooled files can be read
+     * at random through their channels. Each file is read once, and digested while copied.
+     * Files in the BGZF format are kept compressed if there is a directory of GZip indexes,
+     * and read at random through their index.
+     * @param files the files, as sent
+     * @param digest whether to digest the files
+     * @param indexDirectory the directory of GZip indexes, or null to spool compressed files inflated
+     * @param indexSpan the minimum distance between the access points of GZip indexes
+     * @param recorder the recorder of the time spent inflating
+     * @return the files, over temporary files
+     * @throws IOException if a file could not be received, in which case no temporary files are left behind
+     * @throws MultipartReader.SizeLimitException if the content exceeds the multipart size limits
+     */
+    private List<NiftiFileEntry<InputStream>> spool(FileSource files, boolean digest, Path indexDirectory,
+            long indexSpan, ConversionMetrics.Recorder recorder) throws IOException {
+        final Path directory = spoolDirectory();
+        List<NiftiFileEntry<InputStream>> spooled = new ArrayList<>();
+        try {
+            for (PendingFile file = files.next(); file != null; file = files.next()) {
+                NiftiFileEntry<InputStream> o;
+                if (indexDirectory != null && file.compressed != null) {
+                    NiftiFileEntry<InputStream> sent = file.compressed.open();
+                    BufferedInputStream in = new BufferedInputStream(sent.inputStream);
+                    if (GzipInflater.startsWithBgzf(in)) {
+                        spooled.add(spoolBgzf(sent.name, in, digest, directory, indexDirectory, indexSpan));
+                        continue;
+                    }
+                    // files with a single member cannot be read at random, so they are spooled inflated
+                    o = new NiftiFileEntry<>(sent.name, inflate(in, recorder), null);
+                } else {
+                    o = file.opener.open();
+                }
+                Path tmp = Files.createTempFile(directory, "nifti-", ".nii");
+                try (InputStream in = o.inputStream) {
+                    DigestingInputStream digesting = digest ? new DigestingInputStream(in) : null;
+                    Files.copy(digesting != null ? digesting : in, tmp, StandardCopyOption.REPLACE_EXISTING);
+                    FileChannel channel = FileChannel.open(tmp, StandardOpenOption.READ,
+                            StandardOpenOption.DELETE_ON_CLOSE);
+                    spooled.add(new NiftiFileEntry<>(o.name, Channels.newInputStream(channel), channel, null,
+                            digesting != null ? digesting.finish() : null));
+                } catch (IOException | RuntimeException ex) {
+                    Files.deleteIfExists(tmp);
+                    throw ex;
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            for (NiftiFileEntry<InputStream> o : spooled) {
+                closeQuietly(o.inputStream);
+            }
+            throw ex;
+        }
+        return spooled;
+    }
+
+    /** Receive a file in the BGZF format into a temporary file, compressed as sent.
+     * The file's index is named after a digest of the compressed content, so
+     * that later uploads of the same file reuse it.
+     */
+    private static NiftiFileEntry<InputStream> spoolBgzf(String name, InputStream compressed, boolean digest,
+            Path directory, Path indexDirectory, long indexSpan) throws IOException {
+        Path tmp = Files.createTempFile(directory, "nifti-", ".nii.gz");
+        try (DigestingInputStream in = new DigestingInputStream(compressed)) {
+            Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+            GzipIndex index = GzipIndex.forContent(tmp, in.finish(), indexDirectory, indexSpan);
+            byte[] contentDigest = null;
+            if (digest) {
+                // the digest is that of the inflated content, as with other files
+                try (InputStream inflated = new GZIPInputStream(Files.newInputStream(tmp))) {
+                    contentDigest = NIFTIConverterImpl.digest(inflated);
+                }
+            }
+            FileChannel channel = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE);
+            // closing the stream closes the channel, which is all that the indexed file holds
+            return new NiftiFileEntry<>(name, Channels.newInputStream(channel), channel,
+                    new IndexedGzipFile(channel, index), contentDigest);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(tmp);
+            throw ex;
+        }
+    }
+
+    /** @return the multipart location, in which files are spooled, created if missing */
+    private static Path spoolDirectory() throws IOException {
+        return Files.createDirectories(Paths.get(NIFTIPluginSettings.INSTANCE.getMultipartLocation()));
+    }
+
+    /** Limit the size of content.
+     * @param in the content
+     * @param maxSize the maximum number of bytes to read, or -1 for no limit
+     * @return a stream which fails with a {@link MultipartReader.SizeLimitException} beyond the limit
+     */
+    private static InputStream limit(InputStream in, long maxSize) {
+        if (maxSize < 0) {
+            return in;
+        }
+        return new FilterInputStream(in) {
+            private long read = 0;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    count(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    count(n);
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                count(skipped);
+                return skipped;
+            }
+
+            private void count(long n) throws MultipartReader.SizeLimitException {
+                read += n;
+                if (read > maxSize) {
+                    throw new MultipartReader.SizeLimitException("The content exceeds " + maxSize + " bytes");
+                }
+            }
+        };
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException ex) {
+            logger.warn("Failed to close NIFTI file", ex);
+        }
+    }
+
+    private static void replyRejected(HttpServletResponse resp, int status, String message) throws IOException {
+        JSONObject reply = new JSONObject();
+        reply.element("status", status == 413 ? "rejected" : "busy");
+        reply.element("error", message);
+        if (status == 503) {
+            resp.setHeader("Retry-After", String.valueOf(NIFTIPluginSettings.INSTANCE.getWorkerRetryAfter()));
+        }
+        resp.getWriter().print(reply.toString());
+        resp.setStatus(status);
+    }
+
+    private static void replyBusy(HttpServletResponse resp, RejectedExecutionException ex) throws IOException {
+        logger.info("Turning away a conversion request: {}", ex != null ? ex.getMessage() : "all workers are busy");
+        JSONObject reply = new JSONObject();
+        reply.element("status", "busy");
+        reply.element("error", "too many conversions in progress, please retry later");
+        resp.setHeader("Retry-After", String.valueOf(NIFTIPluginSettings.INSTANCE.getWorkerRetryAfter()));
+        resp.getWriter().print(reply.toString());
+        resp.setStatus(503);
+    }
+
+    /** Obtain the pool of conversion workers, creating it if necessary.
+     * When the pool's settings change, the previous pool is left to finish
+     * its tasks in the background.
+     * @return the worker pool
+     * @throws RejectedExecutionException if the service is shutting down
+     */
+    private synchronized WorkerPool workers() {
+        if (shutdown) {
+            throw new RejectedExecutionException("The conversion service is shutting down");
+        }
+        int threads = NIFTIPluginSettings.INSTANCE.getWorkerThreads();
+        int queueDepth = NIFTIPluginSettings.INSTANCE.getWorkerQueueDepth();
+        if (workers == null || !workers.matches(threads, queueDepth)) {
+            if (workers != null) {
+                workers.shutdown();
+            }
+            logger.info("Starting {} conversion workers, with up to {} conversions waiting", threads, queueDepth);
+            workers = new WorkerPool(threads, queueDepth);
+        }
+        return workers;
+    }
+
+    /** Obtain the storage stage, creating it if necessary. When the number
+     * of writer threads changes, conversions in progress keep using the
+     * previous stage, whose threads end once idle.
+     * @return the storage stage
+     */
+    private synchronized StorageStage storageStage() {
+        int threads = NIFTIPluginSettings.INSTANCE.getStoreThreads();
+        if (storageStage == null || (!shutdown && storageStage.getThreads() != threads)) {
+            storageStage = new StorageStage(threads);
+        }
+        return storageStage;
+    }
+
+    /** @return the number of conversions running */
+    public int getConversionsRunning() {
+        WorkerPool pool = currentWorkers();
+        return pool != null ? pool.getActiveCount() : 0;
+    }
+
+    /** @return the number of conversions waiting for a worker */
+    public int getConversionsWaiting() {
+        WorkerPool pool = currentWorkers();
+        return pool != null ? pool.getQueueSize() : 0;
+    }
+
+    /** @return the number of converted objects waiting for a storage writer */
+    public int getObjectsWaitingStorage() {
+        StorageStage stage = currentStorageStage();
+        return stage != null ? stage.getWaiting() : 0;
+    }
+
+    /** @return the number of converted objects being stored */
+    public int getObjectsBeingStored() {
+        StorageStage stage = currentStorageStage();
+        return stage != null ? stage.getStoring() : 0;
+    }
+
+    private synchronized WorkerPool currentWorkers() {
+        return workers;
+    }
+
+    private synchronized StorageStage currentStorageStage() {
+        return storageStage;
+    }
+
+    /** Stop accepting conversions, and wait for those in progress to finish,
+     * up to the drain timeout in the plugin's settings. Conversions still
+     * running afterwards are interrupted.
+     */
+    public void shutdown() {
+        WorkerPool pool;
+        synchronized (this) {
+            shutdown = true;
+            pool = workers;
+        }
+        if (pool != null) {
+            long timeout = NIFTIPluginSettings.INSTANCE.getWorkerDrainTimeout();
+            logger.info("Waiting up to {} seconds for {} running and {} waiting conversions",
+                    timeout, pool.getActiveCount(), pool.getQueueSize());
+            try {
+                if (!pool.drain(timeout, TimeUnit.SECONDS)) {
+                    logger.warn("Conversions did not finish in time and were interrupted");
+                }
+                StorageStage stage = currentStorageStage();
+                if (stage != null && !stage.drain(timeout, TimeUnit.SECONDS)) {
+                    logger.warn("Converted objects were not stored in time and were interrupted");
+                }
+            } catch (InterruptedException ex) {
+                logger.warn("Interrupted while waiting for conversions to finish");
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (digestIndex != null) {
+                try {
+                    digestIndex.close();
+                } catch (IOException ex) {
+                    logger.warn("Failed to close the index of converted files", ex);
+                }
+                digestIndex = null;
+            }
+        }
+    }
+
+    /** Obtain the index of converted files, opening it if necessary.
+     * @return the index, or null if deduplication is disabled or the index is unavailable
+     */
+    private synchronized DigestIndex digestIndex() {
+        if (shutdown || !NIFTIPluginSettings.INSTANCE.isDedupEnabled()) {
+            return null;
+        }
+        Path file = Paths.get(NIFTIPluginSettings.INSTANCE.getDedupIndexFile());
+        if (digestIndex != null && digestIndex.getFile().equals(file)) {
+            return digestIndex;
+        }
+        try {
+            if (digestIndex != null) {
+                digestIndex.close();
+            }
+            digestIndex = DigestIndex.open(file);
+        } catch (IOException ex) {
+            logger.warn("Failed to open the index of converted files, files will not be deduplicated", ex);
+            digestIndex = null;
+        }
+        return digestIndex;
+    }
+
+    private InputStream openPart(Part part, String contentType, ConversionMetrics.Recorder recorder)
+            throws IOException {
+        return open(part.getInputStream(), contentType, recorder);
+    }
+
+    private InputStream open(InputStream in, String contentType, ConversionMetrics.Recorder recorder)
+            throws IOException {
+        return isGzip(contentType) ? inflate(in, recorder) : in;
+    }
+
+    private InputStream inflate(InputStream in, ConversionMetrics.Recorder recorder) throws IOException {
+        return inflater.open(in, nanos -> recorder.record(ConversionMetrics.Stage.INFLATE, nanos));
+    }
+
+    private static void putServerTiming(HttpServletResponse resp, ConversionMetrics.Timings timings, long start) {
+        if (NIFTIPluginSettings.INSTANCE.isServerTiming()) {
+            resp.setHeader("Server-Timing", timings.toServerTiming(System.nanoTime() - start));
+        }
+    }
+
+    /** Obtain the parameters in the query string of a request, without
+     * looking into its content.
+     * @param req the request
+     * @return a lookup of the first value of each parameter
+     */
+    static Function<String, String> queryParameters(HttpServletRequest req) {
+        Map<String, String> params = new HashMap<>();
+        String query = req.getQueryString();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                String name = decode(eq < 0 ? pair : pair.substring(0, eq));
+                params.putIfAbsent(name, eq < 0 ? "" : decode(pair.substring(eq + 1)));
+            }
+        }
+        return params::get;
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            // every Java platform is required to support UTF-8
+            throw new IllegalStateException(ex);
+        } catch (IllegalArgumentException ex) {
+            return s;
+        }
+    }
+
     private static DicomObject injectSeriesInfo(DicomObject obj, String filename) {
         if (filename == null) return obj;
         if (filename.endsWith(".nii.gz")) {
@@ -265,6 +1239,31 @@ public class NIFTIConvertWebServlet  extends HttpServlet implements PlatformComm
         return contentType != null && contentType.split(";")[0].trim().endsWith("gzip");
     }
 
+    /** @return the pool of pixel buffers shared by all conversions of this service */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /** @return the inflater of compressed files, with the decompression totals of this service */
+    public GzipInflater getInflater() {
+        return inflater;
+    }
+
+    /** @return the admission control of this service, with its memory reservations and rejections */
+    AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    /** @return the stage latencies and data counters of all conversions of this service */
+    public ConversionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** @return the number of conversion requests being served */
+    public int getRequestsInFlight() {
+        return requestsInFlight.get();
+    }
+
     @Override
     public void setPlatformProxy(DicooglePlatformInterface core) {
         this.platform = core;
@@ -0,0 +1,207 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.ws;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import niftijio.niftijio.NiftiHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.ua.dicoogle.nifti.config.NIFTIPluginSettings;
+import pt.ua.dicoogle.nifti.convert.NIFTIConverterImpl;
+import pt.ua.dicoogle.nifti.convert.NiftiSliceReader;
+import pt.ua.dicoogle.nifti.convert.SliceSelection;
+import pt.ua.dicoogle.nifti.util.RuntimeIOException;
+
+/** Web service for inspecting NIFTI files before converting them, at
+ * {@code /inspect}. Only the header of each file is read, and inflated if
+ * compressed, so that the reply does not depend on the size of the volume.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class NIFTIInspectWebServlet extends HttpServlet {
+    private static final Logger logger = LoggerFactory.getLogger(NIFTIInspectWebServlet.class);
+
+    /** Just enough compressed input to inflate the header in one go. */
+    private static final int GZIP_BUFFER_SIZE = 4096;
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        resp.setContentType("application/json; charset=UTF-8");
+        // the container would read the whole content while looking for parameters in it
+        Function<String, String> params = NIFTIConvertWebServlet.queryParameters(req);
+        NIFTIConverterImpl converter = new NIFTIConverterImpl();
+        converter.setMultiFrame(Boolean.parseBoolean(params.apply("multiframe")));
+        try {
+            converter.setSliceSelection(SliceSelection.parse(params.apply("zRange"), params.apply("tRange"),
+                    params.apply("stride")));
+        } catch (IllegalArgumentException ex) {
+            replyError(resp, 400, ex.getMessage());
+            return;
+        }
+
+        String contentType = req.getContentType();
+        if (contentType == null) {
+            replyError(resp, 400, "no content");
+            return;
+        }
+        JSONArray files = new JSONArray();
+        if (contentType.startsWith("multipart/form-data")) {
+            String boundary = MultipartReader.boundary(contentType);
+            if (boundary == null) {
+                replyError(resp, 400, "no boundary in multipart content type");
+                return;
+            }
+            // the data of each part is passed over to reach the next one
+            MultipartReader reader = new MultipartReader(req.getInputStream(), boundary,
+                    NIFTIPluginSettings.INSTANCE.getMultipartMaxFileSize(),
+                    NIFTIPluginSettings.INSTANCE.getMultipartMaxRequestSize());
+            try {
+                for (MultipartReader.Part part = reader.next(); part != null; part = reader.next()) {
+                    if (part.getContentType() == null) {
+                        logger.warn("Unknown content type retrieved in part named {}, ignoring", part.getName());
+                        continue;
+                    }
+                    JSONObject file = inspect(converter, part.getInputStream());
+                    file.element("name", part.getName());
+                    files.element(file);
+                }
+            } catch (MultipartReader.SizeLimitException ex) {
+                replyError(resp, 413, ex.getMessage());
+                return;
+            }
+            if (files.isEmpty()) {
+                replyError(resp, 400, "no valid content in multipart entity");
+                return;
+            }
+        } else {
+            JSONObject file = inspect(converter, req.getInputStream());
+            if (file.has("error")) {
+                replyError(resp, 400, file.getString("error"));
+                return;
+            }
+            files.element(file);
+        }
+
+        JSONObject reply = new JSONObject();
+        reply.element("nNiftiFiles", files.size());
+        reply.element("files", files);
+        resp.getWriter().print(reply.toString());
+        resp.setStatus(200);
+    }
+
+    /** Read the header of a file and describe it, along with the outcome of converting it.
+     * @param converter a converter with the conversion parameters of the request
+     * @param content the file's content, possibly GZip compressed
+     * @return the description of the file, or an error
+     */
+    static JSONObject inspect(NIFTIConverterImpl converter, InputStream content) throws IOException {
+        JSONObject json = new JSONObject();
+        NiftiHeader header;
+        try {
+            header = NiftiSliceReader.readHeader(open(content));
+        } catch (IOException ex) {
+            if (ex instanceof MultipartReader.SizeLimitException) {
+                throw ex;
+            }
+            logger.debug("Failed to read NIFTI header", ex);
+            json.element("error", ex.getMessage());
+            return json;
+        }
+        int ndim = header.dim[0];
+        JSONArray dims = new JSONArray();
+        JSONArray pixdim = new JSONArray();
+        for (int i = 1; i <= ndim; i++) {
+            dims.element(header.dim[i]);
+            pixdim.element(number(header.pixdim[i]));
+        }
+        json.element("dims", dims);
+        json.element("datatype", NiftiHeader.decodeDatatype(header.datatype));
+        json.element("bitpix", header.bitpix);
+        json.element("pixdim", pixdim);
+
+        JSONObject qform = new JSONObject();
+        qform.element("code", header.qform_code);
+        qform.element("quatern", numbers(header.quatern));
+        qform.element("offset", numbers(header.qoffset));
+        qform.element("qfac", number(header.pixdim[0]));
+        json.element("qform", qform);
+        JSONObject sform = new JSONObject();
+        sform.element("code", header.sform_code);
+        sform.element("srowX", numbers(header.srow_x));
+        sform.element("srowY", numbers(header.srow_y));
+        sform.element("srowZ", numbers(header.srow_z));
+        json.element("sform", sform);
+        json.element("calMin", number(header.cal_min));
+        json.element("calMax", number(header.cal_max));
+
+        try {
+            json.element("objects", converter.countObjects(header));
+            json.element("outputBytes", converter.estimateOutputSize(header));
+            json.element("memoryBytes", converter.estimateMemory(header,
+                    NIFTIPluginSettings.INSTANCE.getStoreQueueDepth()));
+        } catch (RuntimeIOException | IllegalArgumentException ex) {
+            // the header is valid, but the volume cannot be converted as requested
+            json.element("message", ex.getMessage());
+        }
+        return json;
+    }
+
+    /** Inflate the content if compressed, telling it apart by its magic number. */
+    private static InputStream open(InputStream content) throws IOException {
+        InputStream in = new BufferedInputStream(content, 2);
+        in.mark(2);
+        boolean gzip = in.read() == 0x1f && in.read() == 0x8b;
+        in.reset();
+        return gzip ? new GZIPInputStream(in, GZIP_BUFFER_SIZE) : in;
+    }
+
+    private static JSONArray numbers(float[] values) {
+        JSONArray array = new JSONArray();
+        for (float v : values) {
+            array.element(number(v));
+        }
+        return array;
+    }
+
+    // JSON has no representation of NaN nor infinity
+    private static Object number(float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            return String.valueOf(value);
+        }
+        // the shortest decimal of the float, rather than that of its double
+        return Double.valueOf(Float.toString(value));
+    }
+
+    private static void replyError(HttpServletResponse resp, int status, String message) throws IOException {
+        JSONObject reply = new JSONObject();
+        reply.element("error", message);
+        resp.getWriter().print(reply.toString());
+        resp.setStatus(status);
+    }
+}
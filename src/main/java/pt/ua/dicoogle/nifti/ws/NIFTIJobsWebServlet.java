@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.ws;
+
+import java.io.IOException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import net.sf.json.JSONObject;
+
+/** Web service for polling asynchronous conversion jobs, at {@code /jobs/{id}}.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class NIFTIJobsWebServlet extends HttpServlet {
+
+    private final JobRegistry jobs;
+
+    public NIFTIJobsWebServlet(JobRegistry jobs) {
+        this.jobs = jobs;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        resp.setContentType("application/json; charset=UTF-8");
+        String path = req.getPathInfo();
+        String id = path != null && path.length() > 1 ? path.substring(1) : null;
+        ConversionJob job = jobs.get(id);
+        if (job == null) {
+            JSONObject reply = new JSONObject();
+            reply.element("error", "no such job");
+            resp.setStatus(404);
+            resp.getWriter().print(reply.toString());
+            return;
+        }
+        if (!job.isFinished()) {
+            resp.setHeader("Cache-Control", "no-cache");
+        }
+        resp.setStatus(200);
+        resp.getWriter().print(job.toJSON().toString());
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.ws;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import pt.ua.dicoogle.nifti.util.BufferPool;
+import pt.ua.dicoogle.nifti.util.ConversionMetrics;
+import pt.ua.dicoogle.nifti.util.GzipInflater;
+
+/** Web service exposing the metrics of the conversion service, at
+ * {@code /metrics}, in the Prometheus text exposition format.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class NIFTIMetricsWebServlet extends HttpServlet {
+
+    private final NIFTIConvertWebServlet convert;
+    private final JobRegistry jobs;
+
+    public NIFTIMetricsWebServlet(NIFTIConvertWebServlet convert, JobRegistry jobs) {
+        this.convert = convert;
+        this.jobs = jobs;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        resp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        resp.setStatus(200);
+        write(resp.getWriter());
+    }
+
+    /** Write all metrics.
+     * @param out the writer
+     */
+    void write(PrintWriter out) {
+        ConversionMetrics metrics = convert.getMetrics();
+        header(out, "nifti_stage_seconds", "histogram", "Time spent in each stage of conversion.");
+        for (ConversionMetrics.Stage stage : ConversionMetrics.Stage.values()) {
+            ConversionMetrics.Histogram histogram = metrics.getHistogram(stage);
+            String label = "stage=\"" + stage.label() + "\"";
+            double[] bounds = histogram.getBounds();
+            long[] counts = histogram.getCumulativeCounts();
+            for (int i = 0; i < bounds.length; i++) {
+                sample(out, "nifti_stage_seconds_bucket{" + label + ",le=\"" + number(bounds[i]) + "\"}", counts[i]);
+            }
+            sample(out, "nifti_stage_seconds_bucket{" + label + ",le=\"+Inf\"}", counts[bounds.length]);
+            sample(out, "nifti_stage_seconds_sum{" + label + "}", histogram.getSum());
+            sample(out, "nifti_stage_seconds_count{" + label + "}", counts[bounds.length]);
+        }
+        for (ConversionMetrics.Counter counter : ConversionMetrics.Counter.values()) {
+            String name = "nifti_" + counter.label() + "_total";
+            header(out, name, "counter", "Total " + counter.label().replace('_', ' ') + " converted.");
+            sample(out, name, metrics.getCount(counter));
+        }
+
+        GzipInflater inflater = convert.getInflater();
+        counter(out, "nifti_inflate_compressed_bytes_total", "Compressed bytes read for inflation.",
+                inflater.getCompressedBytes());
+        counter(out, "nifti_inflate_bytes_total", "Bytes inflated.", inflater.getInflatedBytes());
+        counter(out, "nifti_inflate_seconds_total", "Time spent inflating, summed over all threads.",
+                inflater.getInflateNanos() / 1e9);
+        gauge(out, "nifti_inflate_streams_open", "Compressed files being inflated.", inflater.getOpenStreams());
+
+        gauge(out, "nifti_requests_in_flight", "Conversion requests being served.", convert.getRequestsInFlight());
+        gauge(out, "nifti_conversions_running", "Conversions running in a worker.", convert.getConversionsRunning());
+        gauge(out, "nifti_conversions_waiting", "Conversions waiting for a worker.", convert.getConversionsWaiting());
+        gauge(out, "nifti_objects_waiting_storage", "Converted objects waiting to be stored.",
+                convert.getObjectsWaitingStorage());
+        gauge(out, "nifti_objects_being_stored", "Converted objects being stored.", convert.getObjectsBeingStored());
+        gauge(out, "nifti_jobs", "Asynchronous conversion jobs which can be queried.", jobs.size());
+
+        AdmissionControl admission = convert.getAdmission();
+        gauge(out, "nifti_admission_budget_bytes", "Memory which admitted conversions may use at once, 0 for no limit.",
+                admission.getBudget());
+        gauge(out, "nifti_admission_reserved_bytes", "Estimated memory reserved by admitted conversions.",
+                admission.getReserved());
+        counter(out, "nifti_admission_rejected_total", "Conversions turned away for lack of memory.",
+                admission.getRejected());
+        gauge(out, "nifti_heap_pressure", "Whether conversions are held back on heap pressure (1) or not (0).",
+                admission.isUnderPressure() ? 1 : 0);
+
+        BufferPool pool = convert.getBufferPool();
+        counter(out, "nifti_buffer_pool_hits_total", "Buffer acquisitions served with a reused buffer.",
+                pool.getHits());
+        counter(out, "nifti_buffer_pool_misses_total", "Buffer acquisitions which required a new buffer.",
+                pool.getMisses());
+        gauge(out, "nifti_buffer_pool_bytes_in_flight", "Bytes of buffers acquired and not released.",
+                pool.getBytesInFlight());
+        gauge(out, "nifti_buffer_pool_bytes_retained", "Bytes of buffers retained for reuse.",
+                pool.getBytesRetained());
+        out.flush();
+    }
+
+    private static void counter(PrintWriter out, String name, String help, double value) {
+        header(out, name, "counter", help);
+        sample(out, name, value);
+    }
+
+    private static void gauge(PrintWriter out, String name, String help, double value) {
+        header(out, name, "gauge", help);
+        sample(out, name, value);
+    }
+
+    private static void header(PrintWriter out, String name, String type, String help) {
+        out.print("# HELP " + name + " " + help + "\n");
+        out.print("# TYPE " + name + " " + type + "\n");
+    }
+
+    private static void sample(PrintWriter out, String name, double value) {
+        out.print(name + " " + number(value) + "\n");
+    }
+
+    private static String number(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return BigDecimal.valueOf(value).toPlainString();
+    }
+}
@@ -23,6 +23,7 @@ import org.eclipse.jetty.server.handler.HandlerList;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 
+import pt.ua.dicoogle.nifti.config.NIFTIPluginSettings;
 import pt.ua.dicoogle.sdk.JettyPluginInterface;
 import pt.ua.dicoogle.sdk.core.DicooglePlatformInterface;
 import pt.ua.dicoogle.sdk.core.PlatformCommunicatorInterface;
@@ -33,14 +34,19 @@ import pt.ua.dicoogle.sdk.settings.ConfigurationHolder;
  * @author Luís A. Bastião Silva - <bastiao@ua.pt>
  */
 public class NIFTIServletPlugin implements JettyPluginInterface, PlatformCommunicatorInterface {
-    private static final String NIFTI_FILE_PATH = System.getProperty("java.io.tmpdir");
-
     private boolean enabled;
     private ConfigurationHolder settings;
     private final NIFTIConvertWebServlet wsConvert;
+    private final NIFTIJobsWebServlet wsJobs;
+    private final NIFTIMetricsWebServlet wsMetrics;
+    private final NIFTIInspectWebServlet wsInspect;
     
     public NIFTIServletPlugin() {
-        this.wsConvert = new NIFTIConvertWebServlet();
+        JobRegistry jobs = new JobRegistry();
+        this.wsConvert = new NIFTIConvertWebServlet(jobs);
+        this.wsJobs = new NIFTIJobsWebServlet(jobs);
+        this.wsMetrics = new NIFTIMetricsWebServlet(this.wsConvert, jobs);
+        this.wsInspect = new NIFTIInspectWebServlet();
         this.enabled = true;
     }
 
@@ -50,6 +56,11 @@ public class NIFTIServletPlugin implements JettyPluginInterface, PlatformCommuni
         this.wsConvert.setPlatformProxy(pi);
     }
 
+    /** Stop accepting conversions and wait for those in progress. */
+    public void shutdown() {
+        this.wsConvert.shutdown();
+    }
+
     @Override
     public String getName() {
         return "NIFTI";
@@ -92,8 +103,15 @@ public class NIFTIServletPlugin implements JettyPluginInterface, PlatformCommuni
         handler.setContextPath("/nifti");
         
         ServletHolder convertServletHolder = new ServletHolder(this.wsConvert); 
-        convertServletHolder.getRegistration().setMultipartConfig(new MultipartConfigElement(NIFTI_FILE_PATH));
+        // only used when multipart content is spooled, see NIFTIPluginSettings#isMultipartStreaming
+        NIFTIPluginSettings settings = NIFTIPluginSettings.INSTANCE;
+        convertServletHolder.getRegistration().setMultipartConfig(new MultipartConfigElement(
+                settings.getMultipartLocation(), settings.getMultipartMaxFileSize(),
+                settings.getMultipartMaxRequestSize(), settings.getMultipartFileSizeThreshold()));
         handler.addServlet(convertServletHolder, "/convert");
+        handler.addServlet(new ServletHolder(this.wsJobs), "/jobs/*");
+        handler.addServlet(new ServletHolder(this.wsMetrics), "/metrics");
+        handler.addServlet(new ServletHolder(this.wsInspect), "/inspect");
 
         HandlerList l = new HandlerList();
         l.addHandler(handler);
@@ -0,0 +1,271 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.ws;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.dcm4che2.data.DicomElement;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import pt.ua.dicoogle.nifti.util.ConversionMetrics;
+import pt.ua.dicoogle.nifti.util.FlightEvent;
+import pt.ua.dicoogle.nifti.util.FlightEvents;
+import pt.ua.dicoogle.sdk.StorageInterface;
+
+/** The storage stage of conversions: a pool of writer threads which store
+ * the objects handed over by the converting threads, so that conversion
+ * and storage overlap. Each conversion opens its own {@link Pipeline},
+ * which bounds the number of objects it has waiting or being stored, and
+ * keeps the order of the stored objects' URIs.
+ *
+ * With no writer threads, objects are stored right away by the converting
+ * thread.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+class StorageStage {
+
+    private static final AtomicInteger STAGE_COUNT = new AtomicInteger();
+    private static final long IDLE_TIMEOUT_SECONDS = 30;
+
+    private final int threads;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicInteger storing = new AtomicInteger();
+
+    /** Create a storage stage.
+     * @param threads the number of writer threads, 0 to store in the converting threads
+     */
+    StorageStage(int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("threads must not be negative");
+        }
+        this.threads = threads;
+        if (threads == 0) {
+            this.executor = null;
+        } else {
+            final int stage = STAGE_COUNT.incrementAndGet();
+            final AtomicInteger count = new AtomicInteger();
+            ThreadFactory factory = r -> {
+                Thread t = new Thread(r, "nifti-store-" + stage + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            };
+            // the queue is bounded by the pipelines, and idle writers end,
+            // so that a stage which is no longer used needs no shutdown
+            this.executor = new ThreadPoolExecutor(threads, threads, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), factory);
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /** Open a pipeline for the objects of one conversion.
+     * @param storage the storage in which to keep the objects
+     * @param depth the maximum number of objects waiting or being stored at once
+     * @return the pipeline
+     */
+    Pipeline open(StorageInterface storage, int depth) {
+        return open(storage, depth, ConversionMetrics.Recorder.NONE);
+    }
+
+    /** Open a pipeline for the objects of one conversion, recording the time taken to store each object.
+     * @param storage the storage in which to keep the objects
+     * @param depth the maximum number of objects waiting or being stored at once
+     * @param recorder the recorder of storage times
+     * @return the pipeline
+     */
+    Pipeline open(StorageInterface storage, int depth, ConversionMetrics.Recorder recorder) {
+        return new Pipeline(storage, Math.max(1, depth), recorder);
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    /** @return the number of objects waiting for a writer */
+    int getWaiting() {
+        return waiting.get();
+    }
+
+    /** @return the number of objects being stored */
+    int getStoring() {
+        return storing.get();
+    }
+
+    /** Stop accepting objects and wait for the pending ones to be stored.
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return whether all objects were stored in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+        if (executor == null) {
+            return true;
+        }
+        executor.shutdown();
+        if (executor.awaitTermination(timeout, unit)) {
+            return true;
+        }
+        executor.shutdownNow();
+        return false;
+    }
+
+    /** The hand-off of one conversion's objects to the storage stage. Objects
+     * are put by a single converting thread, which blocks while the pipeline
+     * is full. Not thread-safe.
+     */
+    class Pipeline implements AutoCloseable {
+        private final StorageInterface storage;
+        private final Semaphore slots;
+        private final ConversionMetrics.Recorder recorder;
+        private final List<CompletableFuture<URI>> results = new ArrayList<>();
+        private volatile Throwable failure;
+        private boolean complete = true;
+
+        private Pipeline(StorageInterface storage, int depth, ConversionMetrics.Recorder recorder) {
+            this.storage = storage;
+            this.slots = new Semaphore(depth);
+            this.recorder = recorder;
+        }
+
+        /** Hand an object over to be stored, waiting for room in the pipeline.
+         * @param obj the object
+         * @param onStored an action on the object once stored, run by the writer thread
+         * @throws InterruptedException if interrupted while waiting for room
+         * @throws ExecutionException if an object put before failed to be stored
+         * @throws RejectedExecutionException if the stage was shut down
+         */
+        void put(DicomObject obj, Consumer<DicomObject> onStored) throws InterruptedException, ExecutionException {
+            if (executor == null) {
+                URI uri = store(obj);
+                onStored.accept(obj);
+                results.add(CompletableFuture.completedFuture(uri));
+                return;
+            }
+            checkFailure();
+            slots.acquire();
+            CompletableFuture<URI> result = new CompletableFuture<>();
+            waiting.incrementAndGet();
+            try {
+                executor.execute(() -> {
+                    waiting.decrementAndGet();
+                    storing.incrementAndGet();
+                    URI uri = null;
+                    Throwable error = null;
+                    try {
+                        uri = store(obj);
+                        onStored.accept(obj);
+                    } catch (Throwable ex) {
+                        error = ex;
+                        failure = ex;
+                    } finally {
+                        storing.decrementAndGet();
+                        slots.release();
+                    }
+                    // completed last, so that the object has left the stage for whoever waits on it
+                    if (error != null) {
+                        result.completeExceptionally(error);
+                    } else {
+                        result.complete(uri);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                waiting.decrementAndGet();
+                slots.release();
+                throw ex;
+            }
+            results.add(result);
+        }
+
+        private URI store(DicomObject obj) {
+            FlightEvent event = FlightEvents.store();
+            long t0 = System.nanoTime();
+            try {
+                return storage.store(obj);
+            } finally {
+                recorder.record(ConversionMetrics.Stage.STORE, System.nanoTime() - t0);
+                if (event != FlightEvent.NONE) {
+                    DicomElement pixelData = obj.get(Tag.PixelData);
+                    event.request(recorder.requestId())
+                            .scheme(storage.getScheme())
+                            .bytes(pixelData != null ? pixelData.length() : 0)
+                            .commit();
+                }
+            }
+        }
+
+        private void checkFailure() throws ExecutionException {
+            Throwable ex = failure;
+            if (ex != null) {
+                throw new ExecutionException("Failed to store a converted object", ex);
+            }
+        }
+
+        /** Wait for all objects to be stored.
+         * @return the URIs of the stored objects, in the order in which they were put,
+         * leaving out those for which the storage gave no URI (see {@link #isComplete()})
+         * @throws InterruptedException if interrupted while waiting
+         * @throws ExecutionException if an object failed to be stored
+         */
+        List<String> finish() throws InterruptedException, ExecutionException {
+            List<String> uris = new ArrayList<>(results.size());
+            for (CompletableFuture<URI> result : results) {
+                URI uri = result.get();
+                if (uri != null) {
+                    uris.add(uri.toString());
+                } else {
+                    complete = false;
+                }
+            }
+            return uris;
+        }
+
+        /** Tell whether the storage gave a URI for every object, once {@link #finish()} returned.
+         * @return whether the URIs of the stored objects account for all objects put
+         */
+        boolean isComplete() {
+            return complete;
+        }
+
+        /** Wait for the objects which were put to leave the pipeline, stored or not,
+         * so that none of them is still in use after the conversion ends.
+         */
+        @Override
+        public void close() {
+            for (CompletableFuture<URI> result : results) {
+                try {
+                    result.join();
+                } catch (RuntimeException ex) {
+                    // already reported by finish, or the conversion failed before
+                }
+            }
+        }
+    }
+}
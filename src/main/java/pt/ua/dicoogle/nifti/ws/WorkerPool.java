@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.ws;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A fixed pool of conversion workers with a bounded queue of waiting tasks.
+ * Tasks which do not fit in the queue are rejected right away, rather than
+ * queued without limit, so that callers can shed load.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+class WorkerPool {
+
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+    private final int threads;
+    private final int queueDepth;
+    private final ThreadPoolExecutor executor;
+
+    /** Create a worker pool.
+     * @param threads the number of worker threads
+     * @param queueDepth the maximum number of tasks waiting for a worker
+     */
+    WorkerPool(int threads, int queueDepth) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        if (queueDepth < 0) {
+            throw new IllegalArgumentException("queueDepth must not be negative");
+        }
+        this.threads = threads;
+        this.queueDepth = queueDepth;
+        final int pool = POOL_COUNT.incrementAndGet();
+        final AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, "nifti-worker-" + pool + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        BlockingQueue<Runnable> queue = queueDepth > 0 ? new ArrayBlockingQueue<>(queueDepth) : new SynchronousQueue<>();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                queue, factory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /** Submit a task.
+     * @param task the task
+     * @return the task's future
+     * @throws RejectedExecutionException if all workers are busy and the queue is full, or the pool was shut down
+     */
+    <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    /** Submit a task.
+     * @param task the task
+     * @throws RejectedExecutionException if all workers are busy and the queue is full, or the pool was shut down
+     */
+    void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /** @return whether all workers are busy and the queue is full, so that a task would be rejected */
+    boolean isSaturated() {
+        return executor.getActiveCount() >= threads && executor.getQueue().remainingCapacity() == 0;
+    }
+
+    /** @return whether a worker is free to take a task right away */
+    boolean hasIdleWorker() {
+        return executor.getActiveCount() + executor.getQueue().size() < threads;
+    }
+
+    /** @return whether this pool has the given dimensions */
+    boolean matches(int threads, int queueDepth) {
+        return this.threads == threads && this.queueDepth == queueDepth;
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /** @return the approximate number of workers running tasks */
+    int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /** @return the number of tasks waiting for a worker */
+    int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /** Stop accepting tasks, letting the running and queued tasks finish. */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /** Stop accepting tasks and wait for the running and queued tasks to
+     * finish. The tasks still running after the timeout are interrupted.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return whether all tasks finished in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        if (executor.awaitTermination(timeout, unit)) {
+            return true;
+        }
+        executor.shutdownNow();
+        return false;
+    }
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import niftijio.niftijio.NiftiHeader;
+
+/** The JDK Flight Recorder events of the conversion pipeline, for Java 11 and later.
+ *
+ * Events are in the "Dicoogle/NIfTI" category, and are enabled like any
+ * other, e.g. with {@code jcmd <pid> JFR.start}. While no recording takes an
+ * event, beginning it costs no more than a check of whether it is enabled,
+ * and a shared event which does nothing is handed out instead. Events carry
+ * the identifier of their request, so that the volumes, slices and objects
+ * of an upload can be told apart from those of concurrent ones.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public final class FlightEvents {
+
+    private static final RequestEvent REQUEST = new RequestEvent();
+    private static final VolumeEvent VOLUME = new VolumeEvent();
+    private static final SliceEvent SLICE = new SliceEvent();
+    private static final StoreEvent STORE = new StoreEvent();
+
+    private FlightEvents() {}
+
+    /** @return whether events can be recorded in this runtime */
+    public static boolean isAvailable() {
+        return true;
+    }
+
+    /** Begin the event of a request to the web service.
+     * @return the event, which is not recorded unless a recording takes it
+     */
+    public static FlightEvent request() {
+        return REQUEST.isEnabled() ? begin(new RequestEvent()) : FlightEvent.NONE;
+    }
+
+    /** Begin the event of decoding a volume, from its header to its last slice.
+     * @return the event, which is not recorded unless a recording takes it
+     */
+    public static FlightEvent volume() {
+        return VOLUME.isEnabled() ? begin(new VolumeEvent()) : FlightEvent.NONE;
+    }
+
+    /** Begin the event of converting a slice (or a volume's frame) to a DICOM object.
+     * @return the event, which is not recorded unless a recording takes it
+     */
+    public static FlightEvent slice() {
+        return SLICE.isEnabled() ? begin(new SliceEvent()) : FlightEvent.NONE;
+    }
+
+    /** Begin the event of storing a DICOM object.
+     * @return the event, which is not recorded unless a recording takes it
+     */
+    public static FlightEvent store() {
+        return STORE.isEnabled() ? begin(new StoreEvent()) : FlightEvent.NONE;
+    }
+
+    private static <E extends Event & FlightEvent> FlightEvent begin(E event) {
+        event.begin();
+        return event;
+    }
+
+    private static String dims(short[] dim) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= dim[0] && i < dim.length; i++) {
+            if (i > 1) {
+                sb.append('x');
+            }
+            sb.append(dim[i]);
+        }
+        return sb.toString();
+    }
+
+    @Name("pt.ua.dicoogle.nifti.Request")
+    @Label("NIfTI Request")
+    @Description("A request to convert NIfTI files")
+    @Category({"Dicoogle", "NIfTI"})
+    @StackTrace(false)
+    static final class RequestEvent extends Event implements FlightEvent {
+        @Label("Request")
+        long request;
+        @Label("Storage Scheme")
+        String storageScheme;
+        @Label("Content Length")
+        @DataAmount
+        long bytes;
+        @Label("Status")
+        int status;
+
+        @Override
+        public FlightEvent request(long id) {
+            this.request = id;
+            return this;
+        }
+
+        @Override
+        public FlightEvent scheme(String scheme) {
+            this.storageScheme = scheme;
+            return this;
+        }
+
+        @Override
+        public FlightEvent bytes(long bytes) {
+            this.bytes = bytes;
+            return this;
+        }
+
+        @Override
+        public FlightEvent status(int status) {
+            this.status = status;
+            return this;
+        }
+    }
+
+    @Name("pt.ua.dicoogle.nifti.VolumeDecode")
+    @Label("NIfTI Volume Decode")
+    @Description("The decoding of a NIfTI volume, from its header to its last slice")
+    @Category({"Dicoogle", "NIfTI"})
+    @StackTrace(false)
+    static final class VolumeEvent extends Event implements FlightEvent {
+        @Label("Request")
+        long request;
+        @Label("Dimensions")
+        String dims;
+        @Label("Data Type")
+        String datatype;
+        @Label("Voxel Data")
+        @DataAmount
+        long bytes;
+
+        @Override
+        public FlightEvent request(long id) {
+            this.request = id;
+            return this;
+        }
+
+        @Override
+        public FlightEvent volume(short[] dim, short datatype) {
+            this.dims = dims(dim);
+            this.datatype = NiftiHeader.decodeDatatype(datatype);
+            return this;
+        }
+
+        @Override
+        public FlightEvent bytes(long bytes) {
+            this.bytes = bytes;
+            return this;
+        }
+    }
+
+    @Name("pt.ua.dicoogle.nifti.SliceConversion")
+    @Label("NIfTI Slice Conversion")
+    @Description("The conversion of a NIfTI slice to a DICOM object")
+    @Category({"Dicoogle", "NIfTI"})
+    @StackTrace(false)
+    static final class SliceEvent extends Event implements FlightEvent {
+        @Label("Request")
+        long request;
+        @Label("Dimensions")
+        String dims;
+        @Label("Data Type")
+        String datatype;
+        @Label("Slice")
+        int slice;
+        @Label("Voxel Data")
+        @DataAmount
+        long bytes;
+
+        @Override
+        public FlightEvent request(long id) {
+            this.request = id;
+            return this;
+        }
+
+        @Override
+        public FlightEvent volume(short[] dim, short datatype) {
+            this.dims = dims(dim);
+            this.datatype = NiftiHeader.decodeDatatype(datatype);
+            return this;
+        }
+
+        @Override
+        public FlightEvent slice(int index) {
+            this.slice = index;
+            return this;
+        }
+
+        @Override
+        public FlightEvent bytes(long bytes) {
+            this.bytes = bytes;
+            return this;
+        }
+    }
+
+    @Name("pt.ua.dicoogle.nifti.Store")
+    @Label("NIfTI Store")
+    @Description("The storage of a converted DICOM object")
+    @Category({"Dicoogle", "NIfTI"})
+    @StackTrace(false)
+    static final class StoreEvent extends Event implements FlightEvent {
+        @Label("Request")
+        long request;
+        @Label("Storage Scheme")
+        String storageScheme;
+        @Label("Pixel Data")
+        @DataAmount
+        long bytes;
+
+        @Override
+        public FlightEvent request(long id) {
+            this.request = id;
+            return this;
+        }
+
+        @Override
+        public FlightEvent scheme(String scheme) {
+            this.storageScheme = scheme;
+            return this;
+        }
+
+        @Override
+        public FlightEvent bytes(long bytes) {
+            this.bytes = bytes;
+            return this;
+        }
+    }
+}
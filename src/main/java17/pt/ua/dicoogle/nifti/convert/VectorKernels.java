@@ -0,0 +1,267 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+import niftijio.niftijio.NiftiHeader;
+import org.dcm4che2.data.DicomObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Vectorized variants of the slice kernels, for Java 17 and later.
+ *
+ * The 16-bit and 32-bit integer kernels convert and compute the value range
+ * with the Vector API, which the JIT compiles to SIMD instructions. The
+ * remaining kernels and operations stay scalar: in particular, the float to
+ * integer lane conversions needed by the floating point kernels are not
+ * intrinsified in Java 17, which makes them slower than the scalar loops.
+ *
+ * The Vector API is an incubator module: it is only used if the runtime was
+ * started with {@code --add-modules jdk.incubator.vector}, if the system
+ * property {@code dicoogle.nifti.vectorize} is not {@code false}, and if
+ * the vectorized kernels pass a self-test against the scalar ones (the
+ * incubating API is not stable across releases).
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+final class VectorKernels {
+    private static final Logger logger = LoggerFactory.getLogger(VectorKernels.class);
+
+    private static final boolean AVAILABLE = checkAvailable();
+
+    private VectorKernels() {}
+
+    /** @return whether kernels are vectorized in this runtime */
+    static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /** Obtain a vectorized variant of a scalar kernel, producing the same output.
+     * @param kernel a scalar kernel
+     * @return the vectorized kernel, or the given kernel if it cannot be vectorized
+     */
+    static SliceKernel vectorize(SliceKernel kernel) {
+        return AVAILABLE ? create(kernel) : kernel;
+    }
+
+    private static SliceKernel create(SliceKernel kernel) {
+        switch (kernel.datatype()) {
+            case NiftiHeader.NIFTI_TYPE_INT16:
+                return new Int16Kernel(kernel, false);
+            case NiftiHeader.NIFTI_TYPE_UINT16:
+                return new Int16Kernel(kernel, true);
+            case NiftiHeader.NIFTI_TYPE_INT32:
+                return new Int32Kernel(kernel, false);
+            case NiftiHeader.NIFTI_TYPE_UINT32:
+                return new Int32Kernel(kernel, true);
+            default:
+                return kernel;
+        }
+    }
+
+    private static boolean checkAvailable() {
+        if (!Boolean.parseBoolean(System.getProperty("dicoogle.nifti.vectorize", "true"))) {
+            return false;
+        }
+        if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            logger.debug("Vector API module not present, slice kernels are not vectorized");
+            return false;
+        }
+        try {
+            short[] datatypes = {
+                NiftiHeader.NIFTI_TYPE_INT16, NiftiHeader.NIFTI_TYPE_UINT16,
+                NiftiHeader.NIFTI_TYPE_INT32, NiftiHeader.NIFTI_TYPE_UINT32
+            };
+            for (short datatype : datatypes) {
+                for (ByteOrder order : new ByteOrder[]{ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+                    if (!selfTest(SliceKernel.scalarForDatatype(datatype), order)) {
+                        logger.warn("Vectorized slice kernels disagree with the scalar ones, not using them");
+                        return false;
+                    }
+                }
+            }
+        } catch (LinkageError | RuntimeException ex) {
+            logger.warn("Vector API unusable, slice kernels are not vectorized", ex);
+            return false;
+        }
+        logger.info("Using vectorized slice kernels ({} bit vectors)", VectorShape.preferredShape().vectorBitSize());
+        return true;
+    }
+
+    // convert a pseudo-random slice with both kernels, with a length which leaves a scalar tail
+    private static boolean selfTest(SliceKernel scalar, ByteOrder order) {
+        final int count = 67;
+        int voxelSize = NiftiHeader.bytesPerVoxel(scalar.datatype());
+        ByteBuffer src = ByteBuffer.allocate(count * voxelSize).order(order);
+        long seed = 0x2545F4914F6CDD1DL;
+        for (int i = 0; i < src.capacity(); i++) {
+            seed ^= seed << 13;
+            seed ^= seed >>> 7;
+            seed ^= seed << 17;
+            src.put(i, (byte) seed);
+        }
+        byte[] expected = new byte[count * scalar.bytesAllocated()];
+        byte[] actual = new byte[expected.length];
+        SliceKernel.ValueRange expectedRange = new SliceKernel.ValueRange();
+        SliceKernel.ValueRange actualRange = new SliceKernel.ValueRange();
+        scalar.convert(src, expected, count, expectedRange);
+        create(scalar).convert(src, actual, count, actualRange);
+        return Arrays.equals(expected, actual)
+                && expectedRange.min == actualRange.min && expectedRange.max == actualRange.max;
+    }
+
+    /** Base of the vectorized kernels, delegating all but the conversion to the scalar kernel. */
+    private static abstract class VectorKernel extends SliceKernel {
+        final SliceKernel scalar;
+
+        VectorKernel(SliceKernel scalar) {
+            super(scalar.datatype(), scalar.bytesAllocated());
+            this.scalar = scalar;
+        }
+
+        @Override
+        final void convert(ByteBuffer src, byte[] dst, int count, ValueRange range) {
+            if (!src.hasArray()) {
+                scalar.convert(src, dst, count, range);
+                return;
+            }
+            convert(src.array(), src.arrayOffset(), src.order(), dst, count, range);
+        }
+
+        abstract void convert(byte[] src, int offset, ByteOrder order, byte[] dst, int count, ValueRange range);
+
+        @Override
+        void putRescale(DicomObject obj) {
+            scalar.putRescale(obj);
+        }
+
+        @Override
+        void accumulate(ByteBuffer src, int count, VoxelHistogram hist) {
+            scalar.accumulate(src, count, hist);
+        }
+
+        @Override
+        boolean isIntegral() {
+            return scalar.isIntegral();
+        }
+    }
+
+    private static final class Int16Kernel extends VectorKernel {
+        private static final VectorSpecies<Short> S = ShortVector.SPECIES_PREFERRED;
+        // unsigned values are compared as signed after flipping the sign bit
+        private final short flip;
+
+        Int16Kernel(SliceKernel scalar, boolean unsigned) {
+            super(scalar);
+            this.flip = unsigned ? Short.MIN_VALUE : 0;
+        }
+
+        @Override
+        void convert(byte[] src, int offset, ByteOrder order, byte[] dst, int count, ValueRange range) {
+            final int bound = S.loopBound(count);
+            ShortVector vmin = ShortVector.broadcast(S, Short.MAX_VALUE);
+            ShortVector vmax = ShortVector.broadcast(S, Short.MIN_VALUE);
+            int i = 0;
+            for (; i < bound; i += S.length()) {
+                ShortVector v = ShortVector.fromByteArray(S, src, offset + (i << 1), order);
+                v.intoByteArray(dst, i << 1, ByteOrder.LITTLE_ENDIAN);
+                ShortVector key = v.lanewise(VectorOperators.XOR, flip);
+                vmin = vmin.min(key);
+                vmax = vmax.max(key);
+            }
+            int min = vmin.reduceLanes(VectorOperators.MIN);
+            int max = vmax.reduceLanes(VectorOperators.MAX);
+            for (; i < count; i++) {
+                int p = offset + (i << 1);
+                short s = order == ByteOrder.BIG_ENDIAN
+                        ? (short) ((src[p] << 8) | (src[p + 1] & 0xFF))
+                        : (short) ((src[p + 1] << 8) | (src[p] & 0xFF));
+                dst[i << 1] = (byte) s;
+                dst[(i << 1) + 1] = (byte) (s >>> 8);
+                short key = (short) (s ^ flip);
+                min = Math.min(min, key);
+                max = Math.max(max, key);
+            }
+            if (count > 0) {
+                if (flip != 0) {
+                    range.include((min ^ flip) & 0xFFFF, (max ^ flip) & 0xFFFF);
+                } else {
+                    range.include(min, max);
+                }
+            }
+        }
+    }
+
+    private static final class Int32Kernel extends VectorKernel {
+        private static final VectorSpecies<Integer> I = IntVector.SPECIES_PREFERRED;
+        private static final VectorSpecies<Short> S = VectorSpecies.of(short.class,
+                VectorShape.forBitSize(I.vectorBitSize() / 2));
+        // unsigned values are compared as signed after flipping the sign bit
+        private final int flip;
+
+        Int32Kernel(SliceKernel scalar, boolean unsigned) {
+            super(scalar);
+            this.flip = unsigned ? Integer.MIN_VALUE : 0;
+        }
+
+        @Override
+        void convert(byte[] src, int offset, ByteOrder order, byte[] dst, int count, ValueRange range) {
+            final int bound = I.loopBound(count);
+            IntVector vmin = IntVector.broadcast(I, Integer.MAX_VALUE);
+            IntVector vmax = IntVector.broadcast(I, Integer.MIN_VALUE);
+            int i = 0;
+            for (; i < bound; i += I.length()) {
+                IntVector v = IntVector.fromByteArray(I, src, offset + (i << 2), order);
+                // only the 16 most significant bits are kept, as in the scalar kernel
+                ShortVector s = (ShortVector) v.lanewise(VectorOperators.LSHR, 16)
+                        .convertShape(VectorOperators.I2S, S, 0);
+                s.intoByteArray(dst, i << 1, ByteOrder.LITTLE_ENDIAN);
+                IntVector key = v.lanewise(VectorOperators.XOR, flip);
+                vmin = vmin.min(key);
+                vmax = vmax.max(key);
+            }
+            int min = vmin.reduceLanes(VectorOperators.MIN);
+            int max = vmax.reduceLanes(VectorOperators.MAX);
+            ByteBuffer tail = ByteBuffer.wrap(src, offset, count << 2).order(order);
+            for (; i < count; i++) {
+                int v = tail.getInt(offset + (i << 2));
+                int s = v >>> 16;
+                dst[i << 1] = (byte) s;
+                dst[(i << 1) + 1] = (byte) (s >>> 8);
+                int key = v ^ flip;
+                min = Math.min(min, key);
+                max = Math.max(max, key);
+            }
+            if (count > 0) {
+                if (flip != 0) {
+                    range.include((min ^ flip) & 0xFFFF_FFFFL, (max ^ flip) & 0xFFFF_FFFFL);
+                } else {
+                    range.include(min, max);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class UidGeneratorTest {
+    private static final Logger logger = LoggerFactory.getLogger(UidGeneratorTest.class);
+
+    private static final String ROOT = "1.2.351.99999";
+    // components are numbers without leading zeros
+    private static final Pattern UID_PATTERN = Pattern.compile("(0|[1-9][0-9]*)(\\.(0|[1-9][0-9]*))*");
+    private static final int N_THREADS = 8;
+    private static final int UIDS_PER_THREAD = 50_000;
+
+    @Test
+    public void testUniqueConcurrently() throws Exception {
+        final UidGenerator generator = UidGenerator.unique(ROOT);
+        assertFalse(generator.isDeterministic());
+        Set<String> uids = generateConcurrently(generator, null);
+        assertEquals(N_THREADS * UIDS_PER_THREAD, uids.size());
+    }
+
+    @Test
+    public void testSharedByRoot() {
+        assertSame(UidGenerator.unique(ROOT), UidGenerator.unique(ROOT));
+        // distinct generators never collide either
+        UniqueUidGenerator a = new UniqueUidGenerator(ROOT);
+        UniqueUidGenerator b = new UniqueUidGenerator(ROOT);
+        assertNotEquals(a.next(), b.next());
+    }
+
+    @Test
+    public void testDeterministic() {
+        UidGenerator generator = UidGenerator.deterministic(ROOT);
+        assertTrue(generator.isDeterministic());
+        byte[] digest = {1, 2, 3, 4};
+        UidGenerator.VolumeUids a = generator.newVolume(digest);
+        UidGenerator.VolumeUids b = generator.newVolume(digest.clone());
+        assertEquals(a.studyInstanceUid(), b.studyInstanceUid());
+        assertEquals(a.seriesInstanceUid(3), b.seriesInstanceUid(3));
+        assertEquals(a.sopInstanceUid(3, 7), b.sopInstanceUid(3, 7));
+        assertNotEquals(a.sopInstanceUid(3, 7), a.sopInstanceUid(7, 3));
+        checkUid(a.sopInstanceUid(0, 0));
+
+        // multi-frame objects differ from their first slice, and by the slices they hold
+        assertEquals(a.multiFrameInstanceUid(3, 0, 10, 1), b.multiFrameInstanceUid(3, 0, 10, 1));
+        assertNotEquals(a.sopInstanceUid(3, 0), a.multiFrameInstanceUid(3, 0, 10, 1));
+        assertNotEquals(a.multiFrameInstanceUid(3, 0, 10, 1), a.multiFrameInstanceUid(3, 0, 10, 2));
+        assertNotEquals(a.multiFrameInstanceUid(3, 0, 10, 1), a.multiFrameInstanceUid(3, 0, 9, 1));
+        checkUid(a.multiFrameInstanceUid(0, 0, 0, 1));
+
+        UidGenerator.VolumeUids c = generator.newVolume(new byte[]{1, 2, 3, 5});
+        assertNotEquals(a.studyInstanceUid(), c.studyInstanceUid());
+
+        // without a digest, UIDs are unique
+        assertNotEquals(generator.newVolume(null).studyInstanceUid(), generator.newVolume(null).studyInstanceUid());
+    }
+
+    @Test
+    public void testDeterministicConcurrently() throws Exception {
+        Set<String> uids = generateConcurrently(UidGenerator.deterministic(ROOT), new byte[]{42});
+        assertEquals(N_THREADS * UIDS_PER_THREAD, uids.size());
+    }
+
+    // each thread generates the instance UIDs of its own series
+    private static Set<String> generateConcurrently(UidGenerator generator, byte[] digest) throws Exception {
+        final Set<String> uids = ConcurrentHashMap.newKeySet();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int t = 0; t < N_THREADS; t++) {
+                final int dim = t;
+                tasks.add(executor.submit(() -> {
+                    UidGenerator.VolumeUids volume = generator.newVolume(digest);
+                    String[] local = new String[UIDS_PER_THREAD];
+                    start.await();
+                    for (int i = 0; i < UIDS_PER_THREAD; i++) {
+                        local[i] = volume.sopInstanceUid(dim, i);
+                    }
+                    for (String uid : local) {
+                        uids.add(uid);
+                    }
+                    return null;
+                }));
+            }
+            long t0 = System.nanoTime();
+            start.countDown();
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+            long nanos = System.nanoTime() - t0;
+            logger.info("{}: {} UIDs in {} ms ({} UIDs/s)", generator.getClass().getSimpleName(),
+                    N_THREADS * UIDS_PER_THREAD, nanos / 1_000_000, N_THREADS * UIDS_PER_THREAD * 1_000_000_000L / nanos);
+        } finally {
+            executor.shutdown();
+        }
+        for (String uid : uids) {
+            checkUid(uid);
+        }
+        return uids;
+    }
+
+    private static void checkUid(String uid) {
+        assertTrue(uid, uid.startsWith(ROOT + "."));
+        assertTrue(uid, UID_PATTERN.matcher(uid).matches());
+        // room for the frame of reference suffix
+        assertTrue(uid, uid.length() <= 62);
+    }
+}
@@ -18,22 +18,44 @@
  */
 package pt.ua.dicoogle.nifti.convert;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
+import niftijio.niftijio.NiftiHeader;
 import org.dcm4che2.data.DicomElement;
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.ElementDictionary;
 import org.dcm4che2.data.SpecificCharacterSet;
+import org.dcm4che2.data.Tag;
 import org.dcm4che2.data.VR;
 import static org.junit.Assert.*;
 import org.junit.Before;
 import org.junit.Test;
+import pt.ua.dicoogle.nifti.UidGenerator;
 import pt.ua.dicoogle.nifti.dicom.DicomInjector;
+import pt.ua.dicoogle.nifti.dicom.LayeredDicomObject;
 import pt.ua.dicoogle.nifti.dicom.PatientDicomInjector;
+import pt.ua.dicoogle.nifti.util.BufferPool;
+import pt.ua.dicoogle.nifti.util.GzipIndex;
+import pt.ua.dicoogle.nifti.util.GzipInflaterTest;
 
 /**
  *
@@ -65,7 +87,8 @@ public class NIFTIConverterTest {
         
         List<DicomObject> objects = converter.convert(content).collect(Collectors.toList());
         assertNotNull(objects);
-        assertTrue(objects.size() > 0);
+        // 11 slices in each of the 7 volumes
+        assertEquals(11 * 7, objects.size());
         
         for (DicomObject dcm : objects) {
             checkUid(dcm, "StudyInstanceUID");
@@ -115,6 +138,547 @@ public class NIFTIConverterTest {
         }
     }
     
+    @Test
+    public void testSeriesInjector() throws IOException {
+        NIFTIConverterImpl converter = new NIFTIConverterImpl();
+        AtomicInteger applied = new AtomicInteger();
+        DicomInjector patient = new PatientDicomInjector("Patient^Anonymous", "123456789");
+        converter.setSeriesInjector(dcm -> {
+            applied.incrementAndGet();
+            return patient.apply(dcm);
+        });
+
+        List<DicomObject> objects = converter.convert(content).collect(Collectors.toList());
+        // once per series, not once per slice
+        assertEquals(7, applied.get());
+        checkSliceOrder(objects, 11, 7);
+        for (DicomObject dcm : objects) {
+            assertEquals("123456789", dcm.getString(Tag.PatientID));
+            assertNotNull(dcm.get(Tag.PixelData));
+            assertNotNull(dcm.get(Tag.BitsAllocated));
+        }
+        // the series attributes are shared, not copied
+        LayeredDicomObject first = (LayeredDicomObject) objects.get(0);
+        assertSame(first.getBase(), ((LayeredDicomObject) objects.get(10)).getBase());
+        assertNotSame(first.getBase(), ((LayeredDicomObject) objects.get(11)).getBase());
+    }
+
+    @Test
+    public void testConvertFile() throws IOException {
+        Path file = Files.createTempFile("test", ".nii");
+        try {
+            Files.copy(content, file, StandardCopyOption.REPLACE_EXISTING);
+            NIFTIConverterImpl converter = new NIFTIConverterImpl();
+            converter.setWindowPolicy(new WindowPolicy(null, true, 1, 99));
+
+            List<DicomObject> objects;
+            try (Stream<DicomObject> stream = converter.convert(file)) {
+                objects = stream.collect(Collectors.toList());
+            }
+            assertEquals(11 * 7, objects.size());
+
+            // the window is estimated once for the whole volume
+            String center = objects.get(0).getString(Tag.WindowCenter);
+            String width = objects.get(0).getString(Tag.WindowWidth);
+            assertNotNull(center);
+            assertNotNull(width);
+            for (DicomObject dcm : objects) {
+                assertEquals(center, dcm.getString(Tag.WindowCenter));
+                assertEquals(width, dcm.getString(Tag.WindowWidth));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testIncrementalStream() throws IOException {
+        long total = 0;
+        try (InputStream in = new GZIPInputStream(NIFTIConverterTest.class.getResourceAsStream("test.nii.gz"))) {
+            while (in.read() >= 0) {
+                total++;
+            }
+        }
+        AtomicLong read = new AtomicLong();
+        InputStream counted = new FilterInputStream(content) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    read.incrementAndGet();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    read.addAndGet(n);
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                read.addAndGet(skipped);
+                return skipped;
+            }
+        };
+        NIFTIConverterImpl converter = new NIFTIConverterImpl();
+        // the window is estimated, but streamed volumes are not written to disk by default
+        converter.setWindowPolicy(new WindowPolicy(null, false, 1, 99));
+        Iterator<DicomObject> objects = converter.convert(counted).iterator();
+        assertTrue(objects.hasNext());
+        assertNotNull(objects.next().getString(Tag.WindowCenter));
+        // the first object is produced once its slice is read, long before the end of the volume
+        assertTrue(read.get() < total / 2);
+    }
+
+    @Test
+    public void testStreamWindow() throws IOException {
+        Path dir = Files.createTempDirectory("spool");
+        try {
+            NIFTIConverterImpl converter = new NIFTIConverterImpl();
+            converter.setWindowPolicy(new WindowPolicy(null, true, 1, 99));
+            converter.setSpoolDirectory(dir);
+
+            // the streamed volume is written to disk, so that its window is estimated once
+            List<DicomObject> objects = converter.convert(content).collect(Collectors.toList());
+            assertEquals(11 * 7, objects.size());
+            String center = objects.get(0).getString(Tag.WindowCenter);
+            String width = objects.get(0).getString(Tag.WindowWidth);
+            assertNotNull(center);
+            for (DicomObject dcm : objects) {
+                assertEquals(center, dcm.getString(Tag.WindowCenter));
+                assertEquals(width, dcm.getString(Tag.WindowWidth));
+            }
+            // and deleted once the last slice is converted
+            try (Stream<Path> files = Files.list(dir)) {
+                assertEquals(0, files.count());
+            }
+
+            // without a spool directory, each slice has a window of its own
+            converter.setSpoolDirectory(null);
+            List<DicomObject> slices = converter.convert(
+                    new GZIPInputStream(NIFTIConverterTest.class.getResourceAsStream("test.nii.gz")))
+                    .collect(Collectors.toList());
+            assertEquals(11 * 7, slices.size());
+            assertTrue(slices.stream().map(dcm -> dcm.getString(Tag.WindowCenter)).distinct().count() > 1);
+        } finally {
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testParallelFile() throws IOException {
+        Path file = Files.createTempFile("test", ".nii");
+        try {
+            Files.copy(content, file, StandardCopyOption.REPLACE_EXISTING);
+            NIFTIConverterImpl converter = new NIFTIConverterImpl();
+
+            List<DicomObject> objects;
+            try (Stream<DicomObject> stream = converter.convert(file)) {
+                objects = stream.parallel().collect(Collectors.toList());
+            }
+            checkSliceOrder(objects, 11, 7);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testExecutor() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            NIFTIConverterImpl converter = new NIFTIConverterImpl();
+            converter.setExecutor(executor, 4);
+
+            List<DicomObject> objects = converter.convert(content).collect(Collectors.toList());
+            checkSliceOrder(objects, 11, 7);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testBufferPool() throws IOException {
+        BufferPool pool = new BufferPool(1 << 20);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            NIFTIConverterImpl converter = new NIFTIConverterImpl();
+            converter.setBufferPool(pool);
+            converter.setExecutor(executor, 2);
+
+            List<DicomObject> objects = converter.convert(content).collect(Collectors.toList());
+            checkSliceOrder(objects, 11, 7);
+            // raw slice buffers were recycled during the conversion, pixel data buffers were not
+            assertTrue(pool.getHits() > 0);
+            assertEquals(11 * 7 * 23 * 17 * 2, pool.getBytesInFlight());
+
+            for (DicomObject dcm : objects) {
+                converter.recycle(dcm);
+                assertFalse(dcm.contains(Tag.PixelData));
+            }
+            assertEquals(0, pool.getBytesInFlight());
+
+            // a second conversion reuses the recycled pixel data buffers
+            long misses = pool.getMisses();
+            converter.setExecutor(null, 1);
+            InputStream again = new GZIPInputStream(NIFTIConverterTest.class.getResourceAsStream("test.nii.gz"));
+            converter.convert(again).forEach(converter::recycle);
+            assertEquals(misses, pool.getMisses());
+            assertEquals(0, pool.getBytesInFlight());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testEstimates() throws IOException {
+        byte[] volume = SyntheticVolume.create(SyntheticVolume.datatype("INT16"), new int[]{10, 8, 5, 3});
+        NiftiHeader header = new NiftiSliceReader(new ByteArrayInputStream(volume)).getHeader();
+        // slices of 160 bytes, both raw and as pixel data
+        NIFTIConverterImpl converter = new NIFTIConverterImpl();
+        assertEquals(160 + 160 * 5, converter.estimateMemory(header, 4));
+        // no more objects than there are slices
+        assertEquals(160 + 160 * 15, converter.estimateMemory(header, 100));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            converter.setExecutor(executor, 3);
+            assertEquals(160 * 4 + 160 * 7, converter.estimateMemory(header, 4));
+        } finally {
+            executor.shutdown();
+        }
+
+        // objects of 5 frames, one per volume
+        NIFTIConverterImpl multiFrameConverter = new NIFTIConverterImpl();
+        multiFrameConverter.setMultiFrame(true);
+        assertEquals(160 + 160 + 160 * 5 * 3, multiFrameConverter.estimateMemory(header, 4));
+        assertEquals(160 + 160 + 160 * 5, multiFrameConverter.estimateMemory(header, 0));
+
+        assertEquals(15, converter.countObjects(header));
+        assertEquals(3, multiFrameConverter.countObjects(header));
+        assertEquals(160 * 15, converter.estimateOutputSize(header));
+        assertEquals(160 * 15, multiFrameConverter.estimateOutputSize(header));
+
+        // 2 of the 5 slices in 2 of the 3 volumes
+        SliceSelection selection = SliceSelection.parse("1-", "1-", "2");
+        converter.setSliceSelection(selection);
+        multiFrameConverter.setSliceSelection(selection);
+        assertEquals(4, converter.countObjects(header));
+        assertEquals(2, multiFrameConverter.countObjects(header));
+        assertEquals(160 * 4, converter.estimateOutputSize(header));
+        assertEquals(160 + 160 + 160 * 2 * 2, multiFrameConverter.estimateMemory(header, 4));
+    }
+
+    @Test
+    public void testMultiFrame() throws IOException {
+        NIFTIConverterImpl converter = new NIFTIConverterImpl();
+        converter.setMultiFrame(true);
+        List<DicomObject> objects = converter.convert(content).collect(Collectors.toList());
+        // one object for each of the 7 volumes
+        assertEquals(7, objects.size());
+
+        NIFTIConverterImpl singleFrameConverter = new NIFTIConverterImpl();
+        InputStream again = new GZIPInputStream(NIFTIConverterTest.class.getResourceAsStream("test.nii.gz"));
+        List<DicomObject> slices = singleFrameConverter.convert(again).collect(Collectors.toList());
+
+        final int frameSize = 23 * 17 * 2;
+        for (int dim = 0; dim < 7; dim++) {
+            DicomObject dcm = objects.get(dim);
+            checkUid(dcm, "SeriesInstanceUID");
+            checkUid(dcm, "SOPInstanceUID");
+            assertEquals(11, dcm.getInt(Tag.NumberOfFrames));
+            assertFalse(dcm.contains(Tag.WindowCenter));
+            assertFalse(dcm.contains(Tag.RescaleSlope));
+            byte[] pixelData = dcm.getBytes(Tag.PixelData);
+            assertEquals(11 * frameSize, pixelData.length);
+            for (int z = 0; z < 11; z++) {
+                byte[] slice = slices.get(dim * 11 + z).getBytes(Tag.PixelData);
+                for (int i = 0; i < frameSize; i++) {
+                    assertEquals(slice[i], pixelData[z * frameSize + i]);
+                }
+            }
+
+            DicomObject shared = dcm.getNestedDicomObject(Tag.SharedFunctionalGroupsSequence);
+            assertNotNull(shared);
+            assertNotNull(shared.getNestedDicomObject(Tag.PixelMeasuresSequence));
+            assertNotNull(shared.getNestedDicomObject(Tag.PlaneOrientationSequence));
+            assertEquals("US", shared.getNestedDicomObject(Tag.PixelValueTransformationSequence)
+                    .getString(Tag.RescaleType));
+            DicomElement perFrame = dcm.get(Tag.PerFrameFunctionalGroupsSequence);
+            assertEquals(11, perFrame.countItems());
+            for (int z = 0; z < 11; z++) {
+                DicomObject frame = perFrame.getDicomObject(z);
+                assertEquals(z + 1, frame.getNestedDicomObject(Tag.FrameContentSequence).getInt(Tag.InStackPositionNumber));
+                assertNotNull(frame.getNestedDicomObject(Tag.PlanePositionSequence));
+            }
+        }
+    }
+
+    @Test
+    public void testMultiFrameRescaleType() throws IOException {
+        NIFTIConverterImpl converter = new NIFTIConverterImpl();
+        converter.setMultiFrame(true);
+        converter.setSeriesInjector(dcm -> {
+            dcm.putString(Tag.Modality, VR.CS, "CT");
+            return dcm;
+        });
+        DicomObject dcm = converter.convert(content).findFirst().get();
+        // Enhanced CT images are in Hounsfield units
+        assertEquals("HU", dcm.getNestedDicomObject(Tag.SharedFunctionalGroupsSequence)
+                .getNestedDicomObject(Tag.PixelValueTransformationSequence).getString(Tag.RescaleType));
+    }
+
+    @Test
+    public void testMultiFrameTooLarge() throws IOException {
+        byte[] volume = SyntheticVolume.create(NiftiHeader.NIFTI_TYPE_INT16, new int[]{1, 1, 1, 1});
+        // 4096 frames of 512x512 int16 take 2 GiB, which only the header announces
+        ByteBuffer.wrap(volume).order(ByteOrder.LITTLE_ENDIAN)
+                .putShort(42, (short) 512).putShort(44, (short) 512).putShort(46, (short) 4096);
+        NIFTIConverterImpl converter = new NIFTIConverterImpl();
+        converter.setMultiFrame(true);
+        try {
+            converter.convert(new ByteArrayInputStream(volume));
+            fail("Expected the multi-frame objects to be rejected");
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage().contains("too large"));
+        }
+    }
+
+    @Test
+    public void testParallelMultiFrameFile() throws IOException {
+        Path file = Files.createTempFile("nifti-test", ".nii");
+        try {
+            Files.copy(content, file, StandardCopyOption.REPLACE_EXISTING);
+            NIFTIConverterImpl converter = new NIFTIConverterImpl();
+            converter.setMultiFrame(true);
+            List<DicomObject> objects;
+            try (Stream<DicomObject> stream = converter.convert(file)) {
+                objects = stream.parallel().collect(Collectors.toList());
+            }
+            assertEquals(7, objects.size());
+            for (DicomObject dcm : objects) {
+                assertEquals(11, dcm.getInt(Tag.NumberOfFrames));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testConvertGzipFile() throws IOException {
+        byte[] raw = readAll(content);
+        List<DicomObject> expected = new NIFTIConverterImpl().convert(new ByteArrayInputStream(raw))
+                .collect(Collectors.toList());
+        Path single = Files.createTempFile("nifti-test", ".nii.gz");
+        Path blocked = Files.createTempFile("nifti-test", ".nii.gz");
+        Path dir = Files.createTempDirectory("nifti-test");
+        try {
+            Files.copy(NIFTIConverterTest.class.getResourceAsStream("test.nii.gz"), single,
+                    StandardCopyOption.REPLACE_EXISTING);
+            Files.write(blocked, GzipInflaterTest.bgzf(raw, 1000));
+            NIFTIConverterImpl converter = new NIFTIConverterImpl();
+            converter.setGzipIndex(dir, 2000);
+            for (Path file : Arrays.asList(single, blocked)) {
+                List<DicomObject> objects;
+                try (Stream<DicomObject> stream = converter.convert(file)) {
+                    objects = stream.parallel().collect(Collectors.toList());
+                }
+                checkSliceOrder(objects, 11, 7);
+                for (int i = 0; i < objects.size(); i++) {
+                    assertArrayEquals(expected.get(i).getBytes(Tag.PixelData), objects.get(i).getBytes(Tag.PixelData));
+                }
+                // only files in the BGZF format are indexed
+                assertEquals(file == blocked, Files.exists(GzipIndex.indexFile(file, dir)));
+            }
+
+            // without a directory, files are inflated in order, and indexes are not saved next to them
+            NIFTIConverterImpl unsaved = new NIFTIConverterImpl();
+            unsaved.setGzipIndex(null, 2000);
+            List<DicomObject> objects;
+            try (Stream<DicomObject> stream = unsaved.convert(blocked)) {
+                objects = stream.parallel().collect(Collectors.toList());
+            }
+            checkSliceOrder(objects, 11, 7);
+            assertFalse(Files.exists(GzipIndex.indexFile(blocked, null)));
+        } finally {
+            Files.deleteIfExists(GzipIndex.indexFile(single, dir));
+            Files.deleteIfExists(GzipIndex.indexFile(blocked, dir));
+            Files.delete(dir);
+            Files.delete(single);
+            Files.delete(blocked);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        for (int n; (n = in.read(buf)) >= 0; ) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testDeterministicUids() throws IOException {
+        NIFTIConverterImpl converter = new NIFTIConverterImpl();
+        converter.setUidGenerator(UidGenerator.deterministic("1.2.351.99999"));
+        byte[] digest = {7, 7, 7};
+        List<DicomObject> a = converter.convert(content, digest).collect(Collectors.toList());
+        InputStream again = new GZIPInputStream(NIFTIConverterTest.class.getResourceAsStream("test.nii.gz"));
+        List<DicomObject> b = converter.convert(again, digest).collect(Collectors.toList());
+        assertEquals(a.size(), b.size());
+        for (int i = 0; i < a.size(); i++) {
+            assertEquals(a.get(i).getString(Tag.SOPInstanceUID), b.get(i).getString(Tag.SOPInstanceUID));
+            assertEquals(a.get(i).getString(Tag.SeriesInstanceUID), b.get(i).getString(Tag.SeriesInstanceUID));
+        }
+        assertEquals(11 * 7, a.stream().map(dcm -> dcm.getString(Tag.SOPInstanceUID)).distinct().count());
+    }
+
+    @Test
+    public void testSliceSelection() throws IOException {
+        byte[] raw = readAll(content);
+        NIFTIConverterImpl full = new NIFTIConverterImpl();
+        full.setUidGenerator(UidGenerator.deterministic("1.2.351.99999"));
+        byte[] digest = {7, 7, 7};
+        List<DicomObject> expected = full.convert(new ByteArrayInputStream(raw), digest).collect(Collectors.toList());
+
+        NIFTIConverterImpl converter = new NIFTIConverterImpl();
+        converter.setUidGenerator(UidGenerator.deterministic("1.2.351.99999"));
+        converter.setSliceSelection(SliceSelection.parse("2-8", "4-5", "3"));
+        // slices which are not selected are skipped, rather than read
+        AtomicInteger bytesRead = new AtomicInteger();
+        InputStream in = new ByteArrayInputStream(raw) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                int n = super.read(b, off, len);
+                bytesRead.addAndGet(Math.max(0, n));
+                return n;
+            }
+        };
+        List<DicomObject> objects = converter.convert(in, digest).collect(Collectors.toList());
+        assertEquals(6, objects.size());
+        int i = 0;
+        for (int dim = 4; dim <= 5; dim++) {
+            for (int z = 2; z <= 8; z += 3) {
+                DicomObject dcm = objects.get(i++);
+                DicomObject same = expected.get(dim * 11 + z);
+                // selected slices are converted as they would be in the whole volume
+                assertEquals(z + 1, dcm.getInt(Tag.InstanceNumber));
+                assertEquals(same.getString(Tag.SOPInstanceUID), dcm.getString(Tag.SOPInstanceUID));
+                assertEquals(same.getString(Tag.SeriesInstanceUID), dcm.getString(Tag.SeriesInstanceUID));
+                assertArrayEquals(same.getBytes(Tag.PixelData), dcm.getBytes(Tag.PixelData));
+            }
+        }
+        int sliceSize = 23 * 17 * 2;
+        assertTrue(bytesRead.get() <= raw.length - sliceSize * (11 * 7 - 6));
+
+        Path file = Files.createTempFile("nifti-test", ".nii");
+        try {
+            Files.write(file, raw);
+            List<DicomObject> read;
+            try (Stream<DicomObject> stream = converter.convert(file)) {
+                read = stream.parallel().collect(Collectors.toList());
+            }
+            assertEquals(6, read.size());
+            for (int k = 0; k < read.size(); k++) {
+                assertEquals(objects.get(k).getInt(Tag.InstanceNumber), read.get(k).getInt(Tag.InstanceNumber));
+                assertArrayEquals(objects.get(k).getBytes(Tag.PixelData), read.get(k).getBytes(Tag.PixelData));
+            }
+        } finally {
+            Files.delete(file);
+        }
+
+        try {
+            converter.setSliceSelection(SliceSelection.parse("11-", null, null));
+            converter.convert(new ByteArrayInputStream(raw));
+            fail("Expected a selection beyond the volume to be rejected");
+        } catch (IllegalArgumentException ex) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testMultiFrameSliceSelection() throws IOException {
+        byte[] raw = readAll(content);
+        NIFTIConverterImpl converter = new NIFTIConverterImpl();
+        converter.setMultiFrame(true);
+        List<DicomObject> all = converter.convert(new ByteArrayInputStream(raw)).collect(Collectors.toList());
+        converter.setSliceSelection(new SliceSelection(1, 10, 6, 6, 4));
+        List<DicomObject> objects = converter.convert(new ByteArrayInputStream(raw)).collect(Collectors.toList());
+        assertEquals(1, objects.size());
+
+        DicomObject dcm = objects.get(0);
+        DicomObject whole = all.get(6);
+        assertEquals(3, dcm.getInt(Tag.NumberOfFrames));
+        final int frameSize = 23 * 17 * 2;
+        byte[] pixelData = dcm.getBytes(Tag.PixelData);
+        byte[] wholePixelData = whole.getBytes(Tag.PixelData);
+        assertEquals(3 * frameSize, pixelData.length);
+        DicomElement perFrame = dcm.get(Tag.PerFrameFunctionalGroupsSequence);
+        DicomElement wholePerFrame = whole.get(Tag.PerFrameFunctionalGroupsSequence);
+        for (int f = 0; f < 3; f++) {
+            int z = 1 + f * 4;
+            for (int i = 0; i < frameSize; i++) {
+                assertEquals(wholePixelData[z * frameSize + i], pixelData[f * frameSize + i]);
+            }
+            // frames are positioned where their slices are
+            assertArrayEquals(
+                    wholePerFrame.getDicomObject(z).getNestedDicomObject(Tag.PlanePositionSequence)
+                            .getDoubles(Tag.ImagePositionPatient),
+                    perFrame.getDicomObject(f).getNestedDicomObject(Tag.PlanePositionSequence)
+                            .getDoubles(Tag.ImagePositionPatient), 1e-6);
+        }
+    }
+
+    @Test
+    public void testMultiFrameUids() throws IOException {
+        byte[] raw = readAll(content);
+        byte[] digest = {7, 7, 7};
+        NIFTIConverterImpl converter = new NIFTIConverterImpl();
+        converter.setUidGenerator(UidGenerator.deterministic("1.2.351.99999"));
+        DicomObject slice = converter.convert(new ByteArrayInputStream(raw), digest).findFirst().get();
+        converter.setMultiFrame(true);
+        DicomObject whole = converter.convert(new ByteArrayInputStream(raw), digest).findFirst().get();
+        converter.setSliceSelection(SliceSelection.parse(null, null, "2"));
+        DicomObject decimated = converter.convert(new ByteArrayInputStream(raw), digest).findFirst().get();
+
+        // the objects hold different data, so they must not share UIDs
+        assertNotEquals(slice.getString(Tag.SOPInstanceUID), whole.getString(Tag.SOPInstanceUID));
+        assertNotEquals(whole.getString(Tag.SOPInstanceUID), decimated.getString(Tag.SOPInstanceUID));
+        assertEquals(whole.getString(Tag.SOPInstanceUID) + ".0", whole.getString(Tag.FrameOfReferenceUID));
+        checkUid(whole, "SOPInstanceUID");
+    }
+
+    @Test
+    public void testSliceSelectionSupport() throws IOException {
+        NIFTIConverter converter = in -> Stream.empty();
+        assertEquals(0, converter.convert(content, SliceSelection.all()).count());
+        try {
+            converter.convert(content, SliceSelection.parse("1", null, null));
+            fail("Expected the selection to be unsupported");
+        } catch (UnsupportedOperationException ex) {
+            // ok
+        }
+    }
+
+    // check that the objects are ordered by series, then by instance number
+    private void checkSliceOrder(List<DicomObject> objects, int sizeZ, int dimension) {
+        assertEquals(sizeZ * dimension, objects.size());
+        for (int dim = 0; dim < dimension; dim++) {
+            String seriesUid = objects.get(dim * sizeZ).getString(Tag.SeriesInstanceUID);
+            for (int z = 0; z < sizeZ; z++) {
+                DicomObject dcm = objects.get(dim * sizeZ + z);
+                assertEquals(seriesUid, dcm.getString(Tag.SeriesInstanceUID));
+                assertEquals(z + 1, dcm.getInt(Tag.InstanceNumber));
+            }
+        }
+    }
+
     private void checkUid(DicomObject dcm, String tagName) {
         DicomElement e = dcm.get(ElementDictionary.getDictionary().tagForName(tagName));
         assertNotNull(tagName + " not null", e);
@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import niftijio.niftijio.NiftiHeader;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class NiftiSliceReaderTest {
+
+    private InputStream content;
+
+    @Before
+    public void setup() throws IOException {
+        content = new GZIPInputStream(NiftiSliceReaderTest.class.getResourceAsStream("test.nii.gz"));
+    }
+
+    @Test
+    public void testHeader() throws IOException {
+        NiftiSliceReader reader = new NiftiSliceReader(content);
+        NiftiHeader header = reader.getHeader();
+
+        assertEquals(ByteOrder.BIG_ENDIAN, reader.getByteOrder());
+        assertEquals(NiftiHeader.NIFTI_TYPE_INT32, header.datatype);
+        assertEquals(23, reader.sizeX());
+        assertEquals(17, reader.sizeY());
+        assertEquals(11, reader.sizeZ());
+        assertEquals(7, reader.dimension());
+        assertEquals(23 * 17 * 4, reader.sliceSize());
+    }
+
+    @Test
+    public void testReadSlices() throws IOException {
+        NiftiSliceReader reader = new NiftiSliceReader(content);
+
+        ByteBuffer slice = reader.readSlice(0, 0);
+        assertEquals(reader.sliceSize(), slice.remaining());
+        // skipping slices is allowed
+        slice = reader.readSlice(3, 1);
+        assertEquals(reader.sliceSize(), slice.remaining());
+        slice = reader.readSlice(reader.sizeZ() - 1, reader.dimension() - 1);
+        assertEquals(reader.sliceSize(), slice.remaining());
+    }
+
+    @Test
+    public void testSpool() throws IOException {
+        NiftiSliceReader streamed = new NiftiSliceReader(content);
+        Path file = Files.createTempFile("test", ".raw");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            NiftiSliceReader spooled = streamed.spool(channel);
+            assertTrue(spooled.isRandomAccess());
+            assertEquals(streamed.sliceSize(), spooled.sliceSize());
+            assertEquals((long) streamed.sizeZ() * streamed.dimension() * streamed.sliceSize(), channel.size());
+
+            NiftiSliceReader reference = new NiftiSliceReader(
+                    new GZIPInputStream(NiftiSliceReaderTest.class.getResourceAsStream("test.nii.gz")));
+            for (int dim = 0; dim < reference.dimension(); dim++) {
+                for (int nz = 0; nz < reference.sizeZ(); nz++) {
+                    assertEquals(reference.readSlice(nz, dim), spooled.readSlice(nz, dim));
+                }
+            }
+            // slices can be read again, in any order
+            ByteBuffer last = spooled.readSlice(reference.sizeZ() - 1, reference.dimension() - 1,
+                    new byte[spooled.sliceSize()]);
+            assertNotEquals(last, spooled.readSlice(0, 0));
+            assertEquals(last, spooled.readSlice(reference.sizeZ() - 1, reference.dimension() - 1));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadBackwards() throws IOException {
+        NiftiSliceReader reader = new NiftiSliceReader(content);
+        reader.readSlice(2, 0);
+        reader.readSlice(1, 0);
+    }
+
+    @Test
+    public void testLazySlice() throws IOException {
+        byte[] volume = SyntheticVolume.create(NiftiHeader.NIFTI_TYPE_INT16, new int[]{1, 1, 1, 1});
+        // slices of 1.8 GB, which only the header announces
+        ByteBuffer.wrap(volume).order(ByteOrder.LITTLE_ENDIAN).putShort(42, (short) 30000).putShort(44, (short) 30000);
+        NiftiSliceReader reader = new NiftiSliceReader(new ByteArrayInputStream(volume));
+        assertEquals(30000 * 30000 * 2, reader.sliceSize());
+        assertTrue(new NIFTIConverterImpl().estimateMemory(reader.getHeader(), 1) >= 2L * reader.sliceSize());
+    }
+
+    @Test
+    public void testSliceTooLarge() throws IOException {
+        byte[] volume = SyntheticVolume.create(NiftiHeader.NIFTI_TYPE_FLOAT64, new int[]{1, 1, 1, 1});
+        // slices of 32767x32767 doubles do not fit in an array
+        ByteBuffer.wrap(volume).order(ByteOrder.LITTLE_ENDIAN).putShort(42, (short) 32767).putShort(44, (short) 32767);
+        try {
+            new NiftiSliceReader(new ByteArrayInputStream(volume));
+            fail("Expected the slice size to be rejected");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("too large"));
+        }
+    }
+}
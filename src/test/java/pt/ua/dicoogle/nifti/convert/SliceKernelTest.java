@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import niftijio.niftijio.NiftiHeader;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import pt.ua.dicoogle.nifti.util.RuntimeIOException;
+
+/**
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class SliceKernelTest {
+
+    @Test
+    public void testUint8() {
+        ByteBuffer src = ByteBuffer.wrap(new byte[]{0, 1, (byte) 200, (byte) 255});
+        byte[] dst = new byte[4];
+        SliceKernel.ValueRange range = new SliceKernel.ValueRange();
+        SliceKernel kernel = SliceKernel.forDatatype(NiftiHeader.NIFTI_TYPE_UINT8);
+        kernel.convert(src, dst, 4, range);
+
+        assertEquals(1, kernel.bytesAllocated());
+        assertArrayEquals(src.array(), dst);
+        assertEquals(0, range.min, 0);
+        assertEquals(255, range.max, 0);
+    }
+
+    @Test
+    public void testInt16BigEndian() {
+        ByteBuffer src = ByteBuffer.allocate(6).order(ByteOrder.BIG_ENDIAN);
+        src.putShort(0, (short) -1000).putShort(2, (short) 0).putShort(4, (short) 3000);
+        byte[] dst = new byte[6];
+        SliceKernel.ValueRange range = new SliceKernel.ValueRange();
+        SliceKernel.forDatatype(NiftiHeader.NIFTI_TYPE_INT16).convert(src, dst, 3, range);
+
+        ByteBuffer out = ByteBuffer.wrap(dst).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(-1000, out.getShort(0));
+        assertEquals(0, out.getShort(2));
+        assertEquals(3000, out.getShort(4));
+        assertEquals(-1000, range.min, 0);
+        assertEquals(3000, range.max, 0);
+    }
+
+    @Test
+    public void testFloat32() {
+        ByteBuffer src = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        src.putFloat(0, -1024f).putFloat(4, Float.NaN).putFloat(8, 10.5f);
+        byte[] dst = new byte[6];
+        SliceKernel.ValueRange range = new SliceKernel.ValueRange();
+        SliceKernel.forDatatype(NiftiHeader.NIFTI_TYPE_FLOAT32).convert(src, dst, 3, range);
+
+        ByteBuffer out = ByteBuffer.wrap(dst).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0, out.getShort(0));
+        assertEquals(1034, out.getShort(4));
+        assertEquals(-1024, range.min, 0);
+        assertEquals(10.5, range.max, 0);
+    }
+
+    @Test(expected = RuntimeIOException.class)
+    public void testUnsupported() {
+        SliceKernel.forDatatype(NiftiHeader.NIFTI_TYPE_COMPLEX64);
+    }
+}
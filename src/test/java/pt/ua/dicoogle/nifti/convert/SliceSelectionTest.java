@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class SliceSelectionTest {
+
+    @Test
+    public void testParse() {
+        assertTrue(SliceSelection.parse(null, null, null).isAll());
+        assertTrue(SliceSelection.parse("", " ", "").isAll());
+        assertTrue(SliceSelection.parse("0-", null, "1").isAll());
+
+        SliceSelection s = SliceSelection.parse("2-8", "4", "3");
+        assertFalse(s.isAll());
+        assertEquals(2, s.getZFirst());
+        assertEquals(8, s.getZLast());
+        assertEquals(4, s.getTFirst());
+        assertEquals(4, s.getTLast());
+        assertEquals(3, s.getStride());
+        assertEquals(3, s.countZ());
+        assertEquals(1, s.countT());
+        assertEquals(2, s.z(0));
+        assertEquals(8, s.z(2));
+        assertEquals(4, s.t(0));
+
+        s = SliceSelection.parse(" 5 - ", "1-2", null);
+        assertEquals(5, s.getZFirst());
+        assertEquals(Integer.MAX_VALUE, s.getZLast());
+        assertEquals(2, s.getTLast());
+    }
+
+    @Test
+    public void testInvalid() {
+        for (String[] params : new String[][]{
+                {"a", null, null}, {"3-1", null, null}, {"-2", null, null},
+                {null, "1-x", null}, {null, null, "0"}, {null, null, "two"}}) {
+            try {
+                SliceSelection.parse(params[0], params[1], params[2]);
+                fail("Expected " + String.join(",", String.valueOf(params[0]), String.valueOf(params[1]),
+                        String.valueOf(params[2])) + " to be rejected");
+            } catch (IllegalArgumentException ex) {
+                // ok
+            }
+        }
+    }
+
+    @Test
+    public void testClamp() {
+        SliceSelection all = SliceSelection.all().clamp(11, 7);
+        assertEquals(11, all.countZ());
+        assertEquals(7, all.countT());
+
+        // the last index need not fall on the stride
+        SliceSelection s = SliceSelection.parse("1-", "5-100", "4").clamp(11, 7);
+        assertEquals(10, s.getZLast());
+        assertEquals(3, s.countZ());
+        assertEquals(9, s.z(2));
+        assertEquals(2, s.countT());
+
+        try {
+            SliceSelection.parse("11", null, null).clamp(11, 7);
+            fail("Expected a z range beyond the volume to be rejected");
+        } catch (IllegalArgumentException ex) {
+            // ok
+        }
+        try {
+            SliceSelection.parse(null, "7-", null).clamp(11, 7);
+            fail("Expected a 4th dimension range beyond the volume to be rejected");
+        } catch (IllegalArgumentException ex) {
+            // ok
+        }
+    }
+}
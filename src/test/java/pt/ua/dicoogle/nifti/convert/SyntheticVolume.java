@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import niftijio.niftijio.NiftiHeader;
+import pt.ua.dicoogle.nifti.util.RuntimeIOException;
+
+/** Generator of in-memory single-file NIFTI-1 volumes for benchmarks and load tests.
+ * Voxel values are pseudo-random, with a fixed seed, over a range typical
+ * of the data type (such as CT-like values for 16-bit integers).
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public final class SyntheticVolume {
+
+    private static final int DATA_OFFSET = NiftiSliceReader.HEADER_SIZE + 4;
+
+    private SyntheticVolume() {}
+
+    /** Resolve the name of a data type, as used in benchmark parameters.
+     * @param name one of UINT8, INT16, UINT16, INT32, FLOAT32, FLOAT64
+     * @return the NIFTI data type code
+     */
+    public static short datatype(String name) {
+        switch (name) {
+            case "UINT8": return NiftiHeader.NIFTI_TYPE_UINT8;
+            case "INT16": return NiftiHeader.NIFTI_TYPE_INT16;
+            case "UINT16": return NiftiHeader.NIFTI_TYPE_UINT16;
+            case "INT32": return NiftiHeader.NIFTI_TYPE_INT32;
+            case "FLOAT32": return NiftiHeader.NIFTI_TYPE_FLOAT32;
+            case "FLOAT64": return NiftiHeader.NIFTI_TYPE_FLOAT64;
+            default: throw new IllegalArgumentException("Unsupported data type " + name);
+        }
+    }
+
+    /** Parse volume dimensions.
+     * @param size the dimensions, such as "256x256x64" or "64x64x32x10"
+     * @return the sizes of the x, y, z and 4th dimensions
+     */
+    public static int[] dimensions(String size) {
+        String[] parts = size.split("x");
+        int[] dims = {1, 1, 1, 1};
+        for (int i = 0; i < parts.length && i < 4; i++) {
+            dims[i] = Integer.parseInt(parts[i]);
+        }
+        return dims;
+    }
+
+    /** Create the contents of a little endian single-file NIFTI-1 volume.
+     * @param datatype the NIFTI data type code
+     * @param dims the sizes of the x, y, z and 4th dimensions
+     * @return the contents of the volume
+     */
+    public static byte[] create(short datatype, int[] dims) {
+        int bytesPerVoxel = NiftiHeader.bytesPerVoxel(datatype);
+        long nVoxels = (long) dims[0] * dims[1] * dims[2] * dims[3];
+        long size = DATA_OFFSET + nVoxels * bytesPerVoxel;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Volume too large: " + size + " bytes");
+        }
+        ByteBuffer bb = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt(0, NiftiSliceReader.HEADER_SIZE);
+        bb.putShort(40, (short) (dims[3] > 1 ? 4 : 3));
+        for (int i = 0; i < 4; i++) {
+            bb.putShort(42 + 2 * i, (short) dims[i]);
+        }
+        bb.putShort(70, datatype);
+        bb.putShort(72, (short) (bytesPerVoxel * 8));
+        bb.putFloat(76, 1f);
+        for (int i = 1; i <= 4; i++) {
+            bb.putFloat(76 + 4 * i, 1f);
+        }
+        bb.putFloat(108, DATA_OFFSET);
+        bb.putFloat(112, 1f);
+        byte[] descrip = "synthetic benchmark volume".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(descrip, 0, bb.array(), 148, descrip.length);
+        bb.put(344, (byte) 'n').put(345, (byte) '+').put(346, (byte) '1');
+
+        Random rnd = new Random(nVoxels * 31 + datatype);
+        bb.position(DATA_OFFSET);
+        for (long i = 0; i < nVoxels; i++) {
+            switch (datatype) {
+                case NiftiHeader.NIFTI_TYPE_UINT8:
+                    bb.put((byte) rnd.nextInt(256));
+                    break;
+                case NiftiHeader.NIFTI_TYPE_INT16:
+                    bb.putShort((short) (rnd.nextInt(4096) - 1024));
+                    break;
+                case NiftiHeader.NIFTI_TYPE_UINT16:
+                    bb.putShort((short) rnd.nextInt(4096));
+                    break;
+                case NiftiHeader.NIFTI_TYPE_INT32:
+                    bb.putInt(rnd.nextInt(1 << 20) - (1 << 19));
+                    break;
+                case NiftiHeader.NIFTI_TYPE_FLOAT32:
+                    bb.putFloat(rnd.nextFloat() * 4096 - 1024);
+                    break;
+                case NiftiHeader.NIFTI_TYPE_FLOAT64:
+                    bb.putDouble(rnd.nextDouble() * 4096 - 1024);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported data type " + datatype);
+            }
+        }
+        return bb.array();
+    }
+
+    /** Compress the contents of a volume, as in a .nii.gz file.
+     * @param contents the volume
+     * @return the compressed volume
+     */
+    public static byte[] gzip(byte[] contents) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(contents.length / 2);
+        try (GZIPOutputStream gz = new GZIPOutputStream(out, 1 << 16)) {
+            gz.write(contents);
+        } catch (IOException ex) {
+            throw new RuntimeIOException(ex);
+        }
+        return out.toByteArray();
+    }
+}
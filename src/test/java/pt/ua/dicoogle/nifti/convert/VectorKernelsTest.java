@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import niftijio.niftijio.NiftiHeader;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/** Checks that the vectorized kernels, when available in the runtime,
+ * produce exactly the same output as the scalar ones.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class VectorKernelsTest {
+
+    private static final short[] DATATYPES = {
+        NiftiHeader.NIFTI_TYPE_INT8, NiftiHeader.NIFTI_TYPE_UINT8,
+        NiftiHeader.NIFTI_TYPE_INT16, NiftiHeader.NIFTI_TYPE_UINT16,
+        NiftiHeader.NIFTI_TYPE_INT32, NiftiHeader.NIFTI_TYPE_UINT32,
+        NiftiHeader.NIFTI_TYPE_FLOAT32, NiftiHeader.NIFTI_TYPE_FLOAT64
+    };
+
+    @Test
+    public void testSameAsScalar() {
+        Random rnd = new Random(348);
+        for (short datatype : DATATYPES) {
+            SliceKernel scalar = SliceKernel.scalarForDatatype(datatype);
+            SliceKernel kernel = VectorKernels.vectorize(scalar);
+            assertEquals(scalar.datatype(), kernel.datatype());
+            assertEquals(scalar.bytesAllocated(), kernel.bytesAllocated());
+            for (ByteOrder order : new ByteOrder[]{ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+                // sizes with and without a scalar tail, including an empty slice
+                for (int count : new int[]{0, 1, 31, 64, 23 * 17, 256 * 256}) {
+                    ByteBuffer src = randomSlice(rnd, datatype, count, order);
+                    byte[] expected = new byte[count * scalar.bytesAllocated()];
+                    byte[] actual = new byte[expected.length];
+                    SliceKernel.ValueRange expectedRange = new SliceKernel.ValueRange();
+                    SliceKernel.ValueRange actualRange = new SliceKernel.ValueRange();
+                    scalar.convert(src, expected, count, expectedRange);
+                    kernel.convert(src, actual, count, actualRange);
+                    String what = NiftiHeader.decodeDatatype(datatype) + " " + order + " x" + count;
+                    assertArrayEquals(what, expected, actual);
+                    assertEquals(what, expectedRange.min, actualRange.min, 0);
+                    assertEquals(what, expectedRange.max, actualRange.max, 0);
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer randomSlice(Random rnd, short datatype, int count, ByteOrder order) {
+        ByteBuffer src = ByteBuffer.allocate(count * NiftiHeader.bytesPerVoxel(datatype)).order(order);
+        rnd.nextBytes(src.array());
+        if (datatype == NiftiHeader.NIFTI_TYPE_FLOAT32) {
+            for (int i = 0; i < count; i++) {
+                float v = rnd.nextInt(20) == 0 ? Float.NaN : (float) (rnd.nextGaussian() * 5000);
+                src.putFloat(i << 2, v);
+            }
+        } else if (datatype == NiftiHeader.NIFTI_TYPE_FLOAT64) {
+            for (int i = 0; i < count; i++) {
+                src.putDouble(i << 3, rnd.nextGaussian() * 5000);
+            }
+        }
+        return src;
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class VoxelHistogramTest {
+
+    @Test
+    public void testIntegralPercentiles() {
+        VoxelHistogram hist = VoxelHistogram.forRange(-50, 49, true);
+        for (int v = -50; v < 50; v++) {
+            hist.add(v);
+        }
+        assertEquals(100, hist.count());
+        assertEquals(-50, hist.percentile(0), 0);
+        assertEquals(-49, hist.percentile(2), 0);
+        assertEquals(48, hist.percentile(99), 0);
+        assertEquals(49, hist.percentile(100), 0);
+    }
+
+    @Test
+    public void testMergeAndNaN() {
+        VoxelHistogram a = VoxelHistogram.forRange(0, 1, false);
+        VoxelHistogram b = a.emptyCopy();
+        a.add(0.25);
+        a.add(Double.NaN);
+        b.add(0.75);
+        a.merge(b);
+        assertEquals(2, a.count());
+        assertEquals(0.25, a.percentile(50), 1e-3);
+        assertEquals(0.75, a.percentile(100), 1e-3);
+    }
+
+    @Test
+    public void testEmpty() {
+        VoxelHistogram hist = VoxelHistogram.forRange(0, 10, true);
+        assertTrue(Double.isNaN(hist.percentile(50)));
+    }
+}
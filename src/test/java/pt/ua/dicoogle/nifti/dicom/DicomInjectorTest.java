@@ -105,6 +105,67 @@ public class DicomInjectorTest {
         checkStringElement(dcm, "Manufacturer", VR.LO, "DicoogleIsBestPACS");
     }
     
+    @Test
+    public void testBuilderEnhanced() {
+        DicomInjector injector = new DicomInjectorBuilder()
+                .enhanced(true)
+                .modality("CT")
+                .build();
+        
+        dcm = injector.apply(dcm);
+        
+        checkStringElement(dcm, "Modality", VR.CS, "CT");
+        checkStringElement(dcm, Tag.SOPClassUID, VR.UI, "1.2.840.10008.5.1.4.1.1.2.1");
+        checkElement(dcm, "ImageType", VR.CS, 4);
+        assertFalse(dcm.contains(Tag.RescaleSlope));
+
+        dcm = new DicomInjectorBuilder()
+                .enhanced(true)
+                .modality("MR")
+                .build()
+                .apply(new BasicDicomObject());
+        checkStringElement(dcm, Tag.SOPClassUID, VR.UI, "1.2.840.10008.5.1.4.1.1.4.1");
+        checkElement(dcm, "ImageType", VR.CS, 4);
+    }
+    
+    @Test
+    public void testCompiledPlan() {
+        DicomInjector injector = new DicomInjectorBuilder()
+                .patient(null, null)
+                .generalClinic(null, "UA.PT Bioinformatics")
+                .modality("CT")
+                .modality("OT")
+                .build();
+        assertTrue(injector instanceof InjectorPlan);
+        // CT (8 operations) minus the overwritten modality, plus the institution and the last modality
+        assertEquals(9, ((InjectorPlan) injector).size());
+        assertEquals(0, InjectorPlan.of(new PatientDicomInjector(null, null)::compileTo).size());
+
+        dcm.putDouble(Tag.RescaleSlope, VR.DS, 2.0);
+        dcm.putString(Tag.KVP, VR.DS, "120");
+        dcm = injector.apply(dcm);
+        checkStringElement(dcm, "Modality", VR.CS, "OT");
+        checkStringElement(dcm, "InstitutionName", VR.LO, "UA.PT Bioinformatics");
+        assertFalse(dcm.contains(Tag.PatientName));
+        assertFalse(dcm.contains(Tag.Manufacturer));
+        // conditional attributes do not replace existing ones
+        assertEquals(2.0, dcm.getDouble(Tag.RescaleSlope), 1e-9);
+        assertEquals(0.0, dcm.getDouble(Tag.RescaleIntercept), 1e-9);
+        assertEquals("120", dcm.getString(Tag.KVP));
+        checkElement(dcm, "AcquisitionNumber", VR.IS);
+    }
+
+    @Test
+    public void testCompiledPlanCharset() {
+        DicomInjector injector = new DicomInjectorBuilder()
+                .patient("Esquina^José", "222")
+                .build();
+        dcm = injector.apply(dcm);
+        // values which are not plain ASCII are encoded with the object's character set
+        checkStringElement(dcm, "PatientName", VR.PN, "Esquina^José");
+        checkStringElement(dcm, "PatientID", VR.LO, "222");
+    }
+
     private void checkUid(DicomObject dcm, String tagName) {
         DicomElement e = dcm.get(dict.tagForName(tagName));
         assertNotNull(tagName + " not null", e);
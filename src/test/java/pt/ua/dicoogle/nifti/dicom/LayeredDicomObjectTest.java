@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.dicom;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomElement;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.VR;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class LayeredDicomObjectTest {
+
+    private DicomObject base;
+
+    @Before
+    public void setup() {
+        base = new BasicDicomObject();
+        base.putString(Tag.Modality, VR.CS, "CT");
+        base.putString(Tag.PatientName, VR.PN, "Patient^Anonymous");
+        base.putString(Tag.SeriesInstanceUID, VR.UI, "1.2.3");
+        base.putInt(Tag.Rows, VR.US, 17);
+    }
+
+    @Test
+    public void testOverlay() {
+        DicomObject obj = new LayeredDicomObject(base);
+        assertEquals("CT", obj.getString(Tag.Modality));
+        assertEquals(4, obj.size());
+
+        obj.putString(Tag.Modality, VR.CS, "MR");
+        obj.putInt(Tag.InstanceNumber, VR.IS, 3);
+        obj.putBytes(Tag.PixelData, VR.OW, new byte[4]);
+        assertEquals("MR", obj.getString(Tag.Modality));
+        assertEquals(3, obj.getInt(Tag.InstanceNumber));
+        assertEquals(6, obj.size());
+
+        // the base layer is left untouched
+        assertEquals("CT", base.getString(Tag.Modality));
+        assertFalse(base.contains(Tag.InstanceNumber));
+        assertEquals(4, base.size());
+    }
+
+    @Test
+    public void testRemove() {
+        DicomObject obj = new LayeredDicomObject(base);
+        obj.putString(Tag.PatientName, VR.PN, "Someone^Else");
+        assertEquals("Someone^Else", obj.remove(Tag.PatientName).getString(null, false));
+        assertFalse(obj.contains(Tag.PatientName));
+        assertNotNull(obj.remove(Tag.Rows));
+        assertNull(obj.get(Tag.Rows));
+        assertNull(obj.remove(Tag.Rows));
+        assertEquals(2, obj.size());
+        assertTrue(base.contains(Tag.PatientName));
+        assertTrue(base.contains(Tag.Rows));
+
+        // hidden attributes can be put again
+        obj.putInt(Tag.Rows, VR.US, 23);
+        assertEquals(23, obj.getInt(Tag.Rows));
+
+        obj.clear();
+        assertTrue(obj.isEmpty());
+        assertFalse(obj.iterator().hasNext());
+        assertEquals(4, base.size());
+    }
+
+    @Test
+    public void testIterationOrder() {
+        DicomObject obj = new LayeredDicomObject(base);
+        obj.putString(Tag.SOPInstanceUID, VR.UI, "1.2.3.4");
+        obj.putString(Tag.Modality, VR.CS, "MR");
+        obj.putBytes(Tag.PixelData, VR.OW, new byte[4]);
+        obj.remove(Tag.Rows);
+
+        List<Integer> tags = new ArrayList<>();
+        for (DicomElement e : obj) {
+            tags.add(e.tag());
+        }
+        assertEquals(5, tags.size());
+        for (int i = 1; i < tags.size(); i++) {
+            assertTrue(Integer.compareUnsigned(tags.get(i - 1), tags.get(i)) < 0);
+        }
+        assertFalse(tags.contains(Tag.Rows));
+
+        // a copy holds the merged attributes
+        DicomObject copy = new BasicDicomObject(obj);
+        assertEquals(5, copy.size());
+        assertEquals("MR", copy.getString(Tag.Modality));
+        assertEquals("1.2.3", copy.getString(Tag.SeriesInstanceUID));
+
+        Iterator<DicomElement> it = obj.iterator(Tag.Modality, Tag.PatientName);
+        assertEquals("MR", it.next().getString(null, false));
+        assertEquals(Tag.PatientName, it.next().tag());
+        assertFalse(it.hasNext());
+    }
+}
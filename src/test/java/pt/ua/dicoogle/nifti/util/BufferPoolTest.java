@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.util;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class BufferPoolTest {
+
+    @Test
+    public void testReuse() {
+        BufferPool pool = new BufferPool(1024);
+        byte[] a = pool.acquire(100);
+        assertEquals(100, a.length);
+        assertEquals(100, pool.getBytesInFlight());
+        pool.release(a);
+        assertEquals(0, pool.getBytesInFlight());
+        assertEquals(100, pool.getBytesRetained());
+
+        // arrays are only reused for the same size
+        byte[] b = pool.acquire(200);
+        assertNotSame(a, b);
+        assertSame(a, pool.acquire(100));
+        assertEquals(1, pool.getHits());
+        assertEquals(2, pool.getMisses());
+        assertEquals(300, pool.getBytesInFlight());
+        assertEquals(0, pool.getBytesRetained());
+    }
+
+    @Test
+    public void testCapacity() {
+        BufferPool pool = new BufferPool(150);
+        byte[] a = pool.acquire(100);
+        byte[] b = pool.acquire(100);
+        pool.release(a);
+        pool.release(b);
+        assertEquals(100, pool.getBytesRetained());
+        assertSame(a, pool.acquire(100));
+        assertNotSame(b, pool.acquire(100));
+
+        pool.setCapacity(0);
+        pool.release(a);
+        assertEquals(0, pool.getBytesRetained());
+    }
+}
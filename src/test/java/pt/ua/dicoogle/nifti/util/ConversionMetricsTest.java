@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.util;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class ConversionMetricsTest {
+
+    @Test
+    public void testHistogram() {
+        ConversionMetrics metrics = new ConversionMetrics();
+        metrics.record(ConversionMetrics.Stage.READ, 50_000); // 50 us
+        metrics.record(ConversionMetrics.Stage.READ, 2_000_000); // 2 ms
+        metrics.record(ConversionMetrics.Stage.READ, 5_000_000); // 5 ms, at the bound
+        metrics.record(ConversionMetrics.Stage.READ, 120_000_000_000L); // 2 min
+
+        ConversionMetrics.Histogram histogram = metrics.getHistogram(ConversionMetrics.Stage.READ);
+        double[] bounds = histogram.getBounds();
+        long[] counts = histogram.getCumulativeCounts();
+        assertEquals(bounds.length + 1, counts.length);
+        assertEquals(4, histogram.getCount());
+        assertEquals(4, counts[bounds.length]);
+        for (int i = 0; i < bounds.length; i++) {
+            long expected = (bounds[i] >= 50e-6 ? 1 : 0) + (bounds[i] >= 2e-3 ? 1 : 0) + (bounds[i] >= 5e-3 ? 1 : 0);
+            assertEquals("bucket " + bounds[i], expected, counts[i]);
+        }
+        assertEquals(120.00705, histogram.getSum(), 1e-9);
+        assertEquals(0, metrics.getHistogram(ConversionMetrics.Stage.STORE).getCount());
+    }
+
+    @Test
+    public void testTimings() {
+        ConversionMetrics metrics = new ConversionMetrics();
+        ConversionMetrics.Timings a = metrics.newTimings();
+        ConversionMetrics.Timings b = metrics.newTimings();
+        a.record(ConversionMetrics.Stage.INFLATE, 1_500_000);
+        a.record(ConversionMetrics.Stage.STORE, 250_000);
+        a.record(ConversionMetrics.Stage.STORE, 250_000);
+        b.record(ConversionMetrics.Stage.STORE, 1_000_000);
+        a.count(ConversionMetrics.Counter.SLICES, 3);
+        b.count(ConversionMetrics.Counter.SLICES, 2);
+
+        assertEquals(500_000, a.getNanos(ConversionMetrics.Stage.STORE));
+        assertEquals(0, a.getNanos(ConversionMetrics.Stage.READ));
+        assertEquals(3, metrics.getHistogram(ConversionMetrics.Stage.STORE).getCount());
+        assertEquals(5, metrics.getCount(ConversionMetrics.Counter.SLICES));
+        // only the stages gone through, in order
+        assertEquals("inflate;dur=1.500, store;dur=0.500, total;dur=3.000", a.toServerTiming(3_000_000));
+        assertEquals("total;dur=0.001", metrics.newTimings().toServerTiming(1_000));
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class DigestIndexTest {
+
+    @Test
+    public void testKey() {
+        byte[] digest = {1, 2, 3};
+        String key = DigestIndex.key(digest, Arrays.asList("CT", null));
+        assertEquals(64, key.length());
+        assertEquals(key, DigestIndex.key(digest.clone(), Arrays.asList("CT", null)));
+        assertNotEquals(key, DigestIndex.key(digest, Arrays.asList("MR", null)));
+        assertNotEquals(key, DigestIndex.key(digest, Arrays.asList("CT", "")));
+        assertNotEquals(key, DigestIndex.key(new byte[]{1, 2, 4}, Arrays.asList("CT", null)));
+        // parameters are delimited
+        assertNotEquals(DigestIndex.key(digest, Arrays.asList("ab", "c")),
+                DigestIndex.key(digest, Arrays.asList("a", "bc")));
+    }
+
+    @Test
+    public void testDigest() {
+        byte[] digest = {1, 2, 3};
+        byte[] withParams = DigestIndex.digest(digest, Arrays.asList("CT", null));
+        assertEquals(32, withParams.length);
+        assertArrayEquals(withParams, DigestIndex.digest(digest.clone(), Arrays.asList("CT", null)));
+        assertFalse(Arrays.equals(withParams, DigestIndex.digest(digest, Arrays.asList("MR", null))));
+        // the key is the same digest, in hexadecimal
+        StringBuilder hex = new StringBuilder();
+        for (byte b : withParams) {
+            hex.append(String.format("%02x", b));
+        }
+        assertEquals(hex.toString(), DigestIndex.key(digest, Arrays.asList("CT", null)));
+    }
+
+    @Test
+    public void testPersistence() throws IOException {
+        Path file = Files.createTempFile("nifti-digests", ".idx");
+        try {
+            Files.delete(file);
+            try (DigestIndex index = DigestIndex.open(file)) {
+                assertNull(index.get("a"));
+                index.put("a", Arrays.asList("file:/1.dcm", "file:/2.dcm"));
+                index.put("b", Arrays.asList("file:/3.dcm"));
+                index.put("a", Arrays.asList("file:/4.dcm"));
+                assertEquals(2, index.size());
+                assertEquals(Arrays.asList("file:/4.dcm"), index.get("a"));
+            }
+            try (DigestIndex index = DigestIndex.open(file)) {
+                assertEquals(2, index.size());
+                assertEquals(Arrays.asList("file:/4.dcm"), index.get("a"));
+                assertEquals(Arrays.asList("file:/3.dcm"), index.get("b"));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
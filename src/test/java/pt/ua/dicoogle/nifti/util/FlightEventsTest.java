@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.util;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/** Checks that flight recorder events can be described and committed in any
+ * runtime, whether or not they are recorded.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class FlightEventsTest {
+
+    @Test
+    public void testCommit() {
+        short[] dim = {4, 64, 64, 16, 2, 1, 1, 1};
+        FlightEvent[] events = {
+            FlightEvents.request(), FlightEvents.volume(), FlightEvents.slice(), FlightEvents.store()
+        };
+        for (FlightEvent event : events) {
+            assertNotNull(event);
+            // attributes which do not apply to the event are ignored
+            assertSame(event, event.request(1).volume(dim, (short) 4).slice(3).bytes(8192).scheme("mem").status(200));
+            event.commit();
+        }
+        if (!FlightEvents.isAvailable()) {
+            for (FlightEvent event : events) {
+                assertSame(FlightEvent.NONE, event);
+            }
+        }
+    }
+}
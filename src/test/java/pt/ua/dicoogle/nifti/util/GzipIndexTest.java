@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import java.util.zip.ZipException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class GzipIndexTest {
+
+    @Test
+    public void testSingleMember() throws IOException {
+        byte[] data = GzipInflaterTest.data(500000);
+        GzipIndex index = GzipIndex.build(new ByteArrayInputStream(GzipInflaterTest.gzip(data, 0, data.length)), 65536);
+        assertEquals(data.length, index.getSize());
+        assertEquals(1, index.getAccessPoints());
+        assertEquals(data.length, index.getMaxGap());
+        assertFalse(index.isSeekable());
+    }
+
+    @Test
+    public void testMembers() throws IOException {
+        byte[] data = GzipInflaterTest.data(1000000);
+        byte[] gz = GzipInflaterTest.bgzf(data, 10000);
+        // an access point at the first member at least 30000 bytes past the previous one
+        GzipIndex index = GzipIndex.build(new ByteArrayInputStream(gz), 30000);
+        assertEquals(data.length, index.getSize());
+        assertEquals(34, index.getAccessPoints());
+        assertEquals(30000, index.getMaxGap());
+        assertTrue(index.isSeekable());
+        assertEquals(0, index.compressedOffset(0));
+        assertEquals(0, index.inflatedOffset(0));
+        assertEquals(30000, index.inflatedOffset(1));
+        assertEquals(0, index.accessPoint(29999));
+        assertEquals(1, index.accessPoint(30000));
+        assertEquals(33, index.accessPoint(data.length));
+
+        // every member, including the empty one at the end
+        assertEquals(101, GzipIndex.build(new ByteArrayInputStream(gz), 0).getAccessPoints());
+    }
+
+    @Test
+    public void testRandomAccess() throws IOException {
+        byte[] data = GzipInflaterTest.data(1000000);
+        Path file = Files.createTempFile("nifti-test", ".gz");
+        Path dir = Files.createTempDirectory("nifti-test");
+        try {
+            Files.write(file, GzipInflaterTest.bgzf(data, 65280));
+            GzipIndex index = GzipIndex.forFile(file, dir, GzipIndex.DEFAULT_SPAN);
+            Path indexFile = GzipIndex.indexFile(file, dir);
+            assertTrue(Files.exists(indexFile));
+            assertEquals(dir, indexFile.getParent());
+
+            // loaded rather than built the second time
+            GzipIndex loaded = GzipIndex.forFile(file, dir, GzipIndex.DEFAULT_SPAN);
+            assertEquals(index.getAccessPoints(), loaded.getAccessPoints());
+            assertEquals(index.getSize(), loaded.getSize());
+            for (int i = 0; i < index.getAccessPoints(); i++) {
+                assertEquals(index.compressedOffset(i), loaded.compressedOffset(i));
+                assertEquals(index.inflatedOffset(i), loaded.inflatedOffset(i));
+            }
+
+            try (IndexedGzipFile gz = new IndexedGzipFile(file, loaded)) {
+                assertEquals(data.length, gz.size());
+                // reads at random, in parallel, across members
+                assertTrue(IntStream.range(0, 200).parallel().allMatch(i -> {
+                    int position = (i * 7919 * 13) % data.length;
+                    ByteBuffer bb = ByteBuffer.allocate(100000);
+                    try {
+                        int n = gz.read(bb, position);
+                        return n == Math.min(bb.capacity(), data.length - position) && Arrays.equals(
+                                Arrays.copyOfRange(data, position, position + n), Arrays.copyOf(bb.array(), n));
+                    } catch (IOException ex) {
+                        throw new RuntimeIOException(ex);
+                    }
+                }));
+                assertEquals(-1, gz.read(ByteBuffer.allocate(10), data.length));
+            }
+        } finally {
+            Files.deleteIfExists(GzipIndex.indexFile(file, dir));
+            Files.delete(dir);
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testForContent() throws IOException {
+        byte[] gz = GzipInflaterTest.bgzf(GzipInflaterTest.data(100000), 1000);
+        byte[] digest = {(byte) 0xca, (byte) 0xfe};
+        Path file = Files.createTempFile("nifti-test", ".gz");
+        Path copy = Files.createTempFile("nifti-test", ".gz");
+        Path dir = Files.createTempDirectory("nifti-test");
+        Path indexFile = GzipIndex.indexFile(digest, dir);
+        try {
+            assertEquals(dir.resolve("cafe" + GzipIndex.EXTENSION), indexFile);
+            Files.write(file, gz);
+            assertEquals(51, GzipIndex.forContent(file, digest, dir, 2000).getAccessPoints());
+            assertTrue(Files.exists(indexFile));
+
+            // a copy of the same content, written later, loads the same index
+            Files.write(copy, gz);
+            Files.setLastModifiedTime(copy, java.nio.file.attribute.FileTime.fromMillis(
+                    Files.getLastModifiedTime(indexFile).toMillis() + 2000));
+            java.nio.file.attribute.FileTime saved = Files.getLastModifiedTime(indexFile);
+            assertEquals(51, GzipIndex.forContent(copy, digest, dir, 2000).getAccessPoints());
+            assertEquals(saved, Files.getLastModifiedTime(indexFile));
+        } finally {
+            Files.deleteIfExists(indexFile);
+            Files.delete(dir);
+            Files.delete(copy);
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testStale() throws IOException {
+        Path file = Files.createTempFile("nifti-test", ".gz");
+        Path indexFile = GzipIndex.indexFile(file, null);
+        try {
+            byte[] data = GzipInflaterTest.data(100000);
+            Files.write(file, GzipInflaterTest.bgzf(data, 1000));
+            assertEquals(101, GzipIndex.forFile(file, null, 0).getAccessPoints());
+            assertEquals(file.resolveSibling(file.getFileName() + GzipIndex.EXTENSION), indexFile);
+            assertTrue(Files.exists(indexFile));
+
+            // a different span, then a changed file
+            assertEquals(51, GzipIndex.forFile(file, null, 2000).getAccessPoints());
+            Files.write(file, GzipInflaterTest.bgzf(data, 5000));
+            Files.setLastModifiedTime(file, java.nio.file.attribute.FileTime.fromMillis(
+                    Files.getLastModifiedTime(indexFile).toMillis() + 2000));
+            assertEquals(21, GzipIndex.forFile(file, null, 2000).getAccessPoints());
+        } finally {
+            Files.deleteIfExists(indexFile);
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testCorrupt() throws IOException {
+        byte[] data = GzipInflaterTest.data(100000);
+        byte[] gz = GzipInflaterTest.bgzf(data, 10000);
+        try {
+            GzipIndex.build(new ByteArrayInputStream(Arrays.copyOf(gz, gz.length - 40)), 0);
+            fail("truncated content was indexed");
+        } catch (IOException ex) {
+            // expected
+        }
+        gz[gz.length / 2] ^= 0x55;
+        try {
+            GzipIndex.build(new ByteArrayInputStream(gz), 0);
+            fail("corrupt content was indexed");
+        } catch (ZipException ex) {
+            // expected
+        }
+    }
+}
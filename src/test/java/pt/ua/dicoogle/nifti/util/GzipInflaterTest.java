@@ -0,0 +1,207 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class GzipInflaterTest {
+
+    /** Compressible data, with some noise. */
+    static byte[] data(int size) {
+        Random random = new Random(size);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ((i / 64) % 7 + (random.nextInt(8) == 0 ? random.nextInt(4) : 0));
+        }
+        return data;
+    }
+
+    static byte[] gzip(byte[] data, int from, int to) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+            gz.write(data, from, to - from);
+        }
+        return out.toByteArray();
+    }
+
+    /** Compress in the BGZF format, as written by bgzip. */
+    public static byte[] bgzf(byte[] data, int blockSize) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] deflated = new byte[blockSize + 1024];
+        for (int from = 0; from <= data.length; from += blockSize) {
+            int to = Math.min(data.length, from + blockSize);
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            deflater.setInput(data, from, to - from);
+            deflater.finish();
+            int n = deflater.deflate(deflated);
+            assertTrue(deflater.finished());
+            deflater.end();
+            int memberSize = 18 + n + 8;
+            out.write(new byte[]{ 0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+                (byte) (memberSize - 1), (byte) ((memberSize - 1) >> 8) }, 0, 18);
+            out.write(deflated, 0, n);
+            CRC32 crc = new CRC32();
+            crc.update(data, from, to - from);
+            writeIntLE(out, (int) crc.getValue());
+            writeIntLE(out, to - from);
+            if (to == data.length) {
+                // the empty member which ends a BGZF file
+                if (from == to) {
+                    break;
+                }
+                from = to - blockSize;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int v) {
+        out.write(v);
+        out.write(v >> 8);
+        out.write(v >> 16);
+        out.write(v >> 24);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[3000];
+        for (int n; (n = in.read(buf)) >= 0; ) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testReadAhead() throws IOException {
+        byte[] data = data(1 << 20);
+        byte[] gz = gzip(data, 0, data.length);
+        GzipInflater inflater = new GzipInflater(1, 4096, 3);
+        try (InputStream in = inflater.open(new ByteArrayInputStream(gz))) {
+            assertEquals(1, inflater.getOpenStreams());
+            assertArrayEquals(data, readAll(in));
+            assertEquals(-1, in.read());
+        }
+        assertEquals(0, inflater.getOpenStreams());
+        assertEquals(gz.length, inflater.getCompressedBytes());
+        assertEquals(data.length, inflater.getInflatedBytes());
+        assertTrue(inflater.getInflateNanos() > 0);
+        assertTrue(inflater.getThroughput() > 0);
+    }
+
+    @Test
+    public void testInline() throws IOException {
+        byte[] data = data(100000);
+        GzipInflater inflater = new GzipInflater(1, 4096, 0);
+        try (InputStream in = inflater.open(new ByteArrayInputStream(gzip(data, 0, data.length)))) {
+            assertArrayEquals(data, readAll(in));
+        }
+        assertEquals(data.length, inflater.getInflatedBytes());
+    }
+
+    @Test
+    public void testMultiMember() throws IOException {
+        byte[] data = data(300000);
+        ByteArrayOutputStream gz = new ByteArrayOutputStream();
+        gz.write(gzip(data, 0, 123456));
+        gz.write(gzip(data, 123456, data.length));
+        GzipInflater inflater = new GzipInflater(4, 8192, 2);
+        try (InputStream in = inflater.open(new ByteArrayInputStream(gz.toByteArray()))) {
+            assertArrayEquals(data, readAll(in));
+        }
+    }
+
+    @Test
+    public void testBgzf() throws IOException {
+        byte[] data = data(1000000);
+        byte[] gz = bgzf(data, 65280);
+        for (int threads : new int[]{ 1, 4 }) {
+            GzipInflater inflater = new GzipInflater(threads, 8192, 2);
+            try (InputStream in = inflater.open(new ByteArrayInputStream(gz))) {
+                // skipping spans several members
+                assertEquals(data[0], (byte) in.read());
+                assertEquals(200000, in.skip(200000));
+                byte[] rest = readAll(in);
+                assertArrayEquals(Arrays.copyOfRange(data, 200001, data.length), rest);
+            }
+            assertEquals(data.length, inflater.getInflatedBytes());
+            assertEquals(gz.length, inflater.getCompressedBytes());
+        }
+    }
+
+    @Test
+    public void testCorruptBgzf() throws IOException {
+        byte[] data = data(500000);
+        byte[] gz = bgzf(data, 65280);
+        // damage the data of a member in the middle
+        gz[gz.length / 2] ^= 0x55;
+        GzipInflater inflater = new GzipInflater(4, 8192, 2);
+        try (InputStream in = inflater.open(new ByteArrayInputStream(gz))) {
+            readAll(in);
+            fail("corrupt data was inflated");
+        } catch (ZipException ex) {
+            // expected
+        }
+        // a truncated file
+        try (InputStream in = inflater.open(new ByteArrayInputStream(Arrays.copyOf(gz, gz.length - 100)))) {
+            readAll(in);
+            fail("truncated data was inflated");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    @Test(expected = ZipException.class)
+    public void testNotGzip() throws IOException {
+        new GzipInflater(4, 8192, 2).open(new ByteArrayInputStream(new byte[100]));
+    }
+
+    @Test
+    public void testCloseEarly() throws IOException {
+        byte[] data = data(1 << 20);
+        GzipInflater inflater = new GzipInflater(2, 1024, 2);
+        for (byte[] gz : Arrays.asList(gzip(data, 0, data.length), bgzf(data, 65280))) {
+            InputStream in = inflater.open(new ByteArrayInputStream(gz));
+            byte[] head = new byte[5000];
+            assertTrue(in.read(head) > 0);
+            in.close();
+            assertEquals(0, inflater.getOpenStreams());
+            try {
+                in.read();
+                fail("read from a closed stream");
+            } catch (IOException ex) {
+                // expected
+            }
+        }
+    }
+}
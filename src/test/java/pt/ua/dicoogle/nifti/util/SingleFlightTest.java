@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class SingleFlightTest {
+
+    @Test
+    public void testCollapse() throws Exception {
+        SingleFlight<String, Integer> flight = new SingleFlight<>();
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            results.add(executor.submit(() -> flight.execute("a", () -> {
+                started.countDown();
+                release.await();
+                return runs.incrementAndGet();
+            })));
+            started.await();
+            List<Thread> followers = new CopyOnWriteArrayList<>();
+            for (int i = 0; i < 7; i++) {
+                results.add(executor.submit(() -> {
+                    followers.add(Thread.currentThread());
+                    return flight.execute("a", runs::incrementAndGet);
+                }));
+            }
+            // let the followers block on the running task
+            while (followers.size() < 7 || !followers.stream().allMatch(t -> t.getState() == Thread.State.WAITING)) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            for (Future<Integer> f : results) {
+                assertEquals(1, (int) f.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, runs.get());
+            assertEquals(0, flight.size());
+
+            // finished tasks are not remembered
+            assertEquals(2, (int) flight.execute("a", runs::incrementAndGet));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        SingleFlight<String, Integer> flight = new SingleFlight<>();
+        try {
+            flight.execute("a", () -> {
+                throw new IllegalStateException("failed");
+            });
+            fail("expected an exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(0, flight.size());
+        assertEquals(1, (int) flight.execute("a", () -> 1));
+    }
+}
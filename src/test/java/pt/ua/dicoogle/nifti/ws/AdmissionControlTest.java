@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.ws;
+
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class AdmissionControlTest {
+
+    @Test
+    public void testBudget() throws Exception {
+        AdmissionControl admission = new AdmissionControl(null);
+        admission.configure(1000, 0);
+        try {
+            admission.reserve(1001, 1, TimeUnit.SECONDS);
+            fail("should not fit");
+        } catch (AdmissionControl.Rejected ex) {
+            assertTrue(ex.isTooLarge());
+            assertEquals(413, ex.getStatus());
+        }
+
+        AdmissionControl.Reservation a = admission.reserve(600, 0, TimeUnit.SECONDS);
+        assertEquals(600, admission.getReserved());
+        try {
+            admission.reserve(600, 50, TimeUnit.MILLISECONDS);
+            fail("should not fit for now");
+        } catch (AdmissionControl.Rejected ex) {
+            assertFalse(ex.isTooLarge());
+            assertEquals(503, ex.getStatus());
+        }
+        assertEquals(2, admission.getRejected());
+
+        // waits for the budget to be released
+        CompletableFuture<AdmissionControl.Reservation> b = CompletableFuture.supplyAsync(() -> {
+            try {
+                return admission.reserve(600, 10, TimeUnit.SECONDS);
+            } catch (AdmissionControl.Rejected | InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        Thread.sleep(50);
+        assertFalse(b.isDone());
+        a.close();
+        a.close(); // released only once
+        b.get(5, TimeUnit.SECONDS).close();
+        assertEquals(0, admission.getReserved());
+
+        // no limit
+        admission.configure(0, 0);
+        admission.reserve(Long.MAX_VALUE / 2, 0, TimeUnit.SECONDS).close();
+    }
+
+    @Test
+    public void testHeapPressure() throws Exception {
+        AtomicBoolean exceeded = new AtomicBoolean(true);
+        AtomicLong threshold = new AtomicLong();
+        AtomicLong used = new AtomicLong(900);
+        MemoryPoolMXBean pool = (MemoryPoolMXBean) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{MemoryPoolMXBean.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getUsage":
+                    return new MemoryUsage(0, used.get(), 1000, 1000);
+                case "setCollectionUsageThreshold":
+                    threshold.set((Long) args[0]);
+                    return null;
+                case "isCollectionUsageThresholdExceeded":
+                    return exceeded.get();
+                case "getName":
+                    return "Tenured Gen";
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        AdmissionControl admission = new AdmissionControl(pool);
+        admission.configure(0, 0.75);
+        assertEquals(750, threshold.get());
+        assertTrue(admission.isUnderPressure());
+        try {
+            admission.reserve(0, 50, TimeUnit.MILLISECONDS);
+            fail("should be held back");
+        } catch (AdmissionControl.Rejected ex) {
+            assertEquals(503, ex.getStatus());
+        }
+
+        // admitted once the pressure goes away
+        CompletableFuture<AdmissionControl.Reservation> r = CompletableFuture.supplyAsync(() -> {
+            try {
+                return admission.reserve(100, 10, TimeUnit.SECONDS);
+            } catch (AdmissionControl.Rejected | InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        Thread.sleep(50);
+        assertFalse(r.isDone());
+        exceeded.set(false);
+        r.get(5, TimeUnit.SECONDS).close();
+
+        // nor is it held back once the usage falls under the watermark, before the next collection
+        exceeded.set(true);
+        assertTrue(admission.isUnderPressure());
+        used.set(500);
+        assertFalse(admission.isUnderPressure());
+        admission.reserve(0, 0, TimeUnit.SECONDS).close();
+
+        // the watermark can be turned off
+        exceeded.set(true);
+        admission.configure(0, 0);
+        assertEquals(0, threshold.get());
+        assertFalse(admission.isUnderPressure());
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.ws;
+
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomElement;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import pt.ua.dicoogle.sdk.StorageInterface;
+import pt.ua.dicoogle.sdk.core.DicooglePlatformInterface;
+
+/** An in-memory stand-in for Dicoogle's platform, with a single storage
+ * which either discards the objects, only counting them, or keeps copies of
+ * them in memory. The SDK interfaces are
+ * implemented with dynamic proxies, so that only the methods used by the
+ * plugin need to be known: other methods return null, zero or false.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class FakePlatform {
+
+    public static final String SCHEME = "mem";
+
+    private final AtomicLong objects = new AtomicLong();
+    private final AtomicLong pixelBytes = new AtomicLong();
+    // null if objects are discarded
+    private final Map<URI, DicomObject> stored;
+    private final StorageInterface storage;
+    private final DicooglePlatformInterface platform;
+
+    /** Create a platform whose storage discards the objects. */
+    public FakePlatform() {
+        this(false);
+    }
+
+    /** Create a platform.
+     * @param keep whether the storage keeps copies of the objects in memory, rather than discarding them
+     */
+    public FakePlatform(boolean keep) {
+        stored = keep ? new ConcurrentHashMap<>() : null;
+        storage = proxy(StorageInterface.class, (method, args) -> {
+            switch (method) {
+                case "store":
+                    if (args[0] instanceof DicomObject) {
+                        return store((DicomObject) args[0]);
+                    }
+                    return null;
+                case "getScheme":
+                    return SCHEME;
+                case "handles":
+                    return args[0] instanceof URI && SCHEME.equals(((URI) args[0]).getScheme());
+                default:
+                    return null;
+            }
+        });
+        platform = proxy(DicooglePlatformInterface.class, (method, args) -> {
+            if ("getStorageForSchema".equals(method)) {
+                return storage;
+            }
+            return null;
+        });
+    }
+
+    private URI store(DicomObject obj) {
+        long n = objects.incrementAndGet();
+        byte[] pixelData = obj.getBytes(Tag.PixelData);
+        if (pixelData != null) {
+            pixelBytes.addAndGet(pixelData.length);
+        }
+        URI uri = URI.create(SCHEME + ":/" + obj.getString(Tag.SOPInstanceUID) + "/" + n);
+        if (stored != null) {
+            stored.put(uri, copy(obj));
+        }
+        return uri;
+    }
+
+    // a copy which survives the reuse of the object's pixel data buffer
+    private static DicomObject copy(DicomObject obj) {
+        DicomObject copy = new BasicDicomObject();
+        obj.copyTo(copy);
+        DicomElement pixelData = obj.get(Tag.PixelData);
+        if (pixelData != null && !pixelData.hasItems()) {
+            copy.putBytes(Tag.PixelData, pixelData.vr(), pixelData.getBytes().clone());
+        }
+        return copy;
+    }
+
+    public DicooglePlatformInterface getPlatform() {
+        return platform;
+    }
+
+    public StorageInterface getStorage() {
+        return storage;
+    }
+
+    /** @return the number of objects stored so far */
+    public long getObjectCount() {
+        return objects.get();
+    }
+
+    /** @return the objects kept so far, by URI, or null if the storage discards them */
+    public Map<URI, DicomObject> getStoredObjects() {
+        return stored;
+    }
+
+    /** @return the number of bytes of pixel data stored so far */
+    public long getPixelBytes() {
+        return pixelBytes.get();
+    }
+
+    private interface Handler {
+        Object invoke(String method, Object[] args);
+    }
+
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (self, method, args) -> {
+            switch (method.getName()) {
+                case "equals":
+                    return self == args[0];
+                case "hashCode":
+                    return System.identityHashCode(self);
+                case "toString":
+                    return "Fake" + type.getSimpleName();
+                default:
+            }
+            Object value = handler.invoke(method.getName(), args == null ? new Object[0] : args);
+            return value != null ? value : defaultValue(method.getReturnType());
+        });
+        return type.cast(proxy);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == char.class) {
+            return '\0';
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == float.class) {
+            return 0f;
+        }
+        if (type == double.class) {
+            return 0.0;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        return type == short.class ? (Object) (short) 0 : (Object) (byte) 0;
+    }
+}
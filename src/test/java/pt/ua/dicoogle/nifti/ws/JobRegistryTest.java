@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.ws;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sf.json.JSONObject;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class JobRegistryTest {
+
+    @Test
+    public void testEviction() {
+        AtomicLong now = new AtomicLong(System.currentTimeMillis());
+        JobRegistry jobs = new JobRegistry(() -> 60_000, now::get);
+
+        ConversionJob done = jobs.create(1);
+        ConversionJob running = jobs.create(1);
+        assertNotSame(done.getId(), running.getId());
+        assertSame(done, jobs.get(done.getId()));
+        assertNull(jobs.get("nope"));
+        assertNull(jobs.get(null));
+
+        running.start();
+        done.start();
+        done.complete(Arrays.asList(FileResult.completed("a.nii", Arrays.asList("mem:/1"))));
+        now.set(done.getFinishedAt() + 59_000);
+        assertSame(done, jobs.get(done.getId()));
+
+        // only finished jobs expire
+        now.set(done.getFinishedAt() + 61_000);
+        assertNull(jobs.get(done.getId()));
+        assertSame(running, jobs.get(running.getId()));
+        assertEquals(1, jobs.size());
+    }
+
+    @Test
+    public void testProgress() throws IOException {
+        ConversionJob job = new ConversionJob("a", 2);
+        assertEquals(ConversionJob.Status.PENDING, job.getStatus());
+        job.start();
+        try (InputStream in = job.countBytes(new ByteArrayInputStream(new byte[100]))) {
+            assertEquals(0, in.read());
+            assertEquals(10, in.skip(10));
+            assertEquals(89, in.read(new byte[200]));
+            assertEquals(-1, in.read());
+        }
+        assertEquals(100, job.getBytesRead());
+        job.sliceConverted();
+        job.sliceStored();
+        job.fileDone();
+        assertFalse(job.isFinished());
+        assertFalse(job.toJSON().containsKey("dcmFiles"));
+
+        job.complete(Arrays.asList(FileResult.completed("a.nii", Arrays.asList("mem:/1")),
+                FileResult.failed("b.nii", "bad header")));
+        assertTrue(job.isFinished());
+        assertEquals(ConversionJob.Status.PARTIAL, job.getStatus());
+        assertEquals(Arrays.asList("mem:/1"), job.getUris());
+        JSONObject json = job.toJSON();
+        assertEquals("PARTIAL", json.getString("status"));
+        assertEquals(2, json.getJSONArray("files").size());
+        assertEquals(1, ((Number) json.get("slicesStored")).intValue());
+        assertEquals(1, json.getJSONArray("dcmFiles").size());
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.ws;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class MultipartReaderTest {
+
+    private static final String BOUNDARY = "----b0undary";
+
+    private static byte[] multipart(byte[]... files) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("This is the preamble.\r\n".getBytes(StandardCharsets.US_ASCII));
+        for (int i = 0; i < files.length; i++) {
+            out.write(("--" + BOUNDARY + "\r\n"
+                    + "Content-Disposition: form-data; name=\"f" + i + "\"; filename=\"f" + i + ".nii.gz\"\r\n"
+                    + "Content-Type: application/gzip\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(files[i]);
+            out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        out.write(("--" + BOUNDARY + "--\r\nepilogue").getBytes(StandardCharsets.US_ASCII));
+        return out.toByteArray();
+    }
+
+    /** A stream which hands out at most a few bytes per read. */
+    private static InputStream trickle(byte[] data, int maxRead) {
+        return new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, maxRead));
+            }
+        };
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[777];
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testBoundary() {
+        assertEquals("abc", MultipartReader.boundary("multipart/form-data; boundary=abc"));
+        assertEquals("a b", MultipartReader.boundary("multipart/form-data; charset=x; BOUNDARY=\"a b\""));
+        assertNull(MultipartReader.boundary("multipart/form-data"));
+        assertNull(MultipartReader.boundary(null));
+    }
+
+    @Test
+    public void testParts() throws IOException {
+        Random random = new Random(7);
+        byte[] big = new byte[300_000];
+        random.nextBytes(big);
+        // content which almost looks like a delimiter
+        String almost = BOUNDARY.substring(0, BOUNDARY.length() - 1);
+        byte[] tricky = ("\r\n--" + almost + "\r\n--" + almost + "X\r\n-").getBytes(StandardCharsets.US_ASCII);
+        byte[][] files = {big, new byte[0], tricky};
+        byte[] content = multipart(files);
+
+        for (int maxRead : new int[]{1, 3, 1000, Integer.MAX_VALUE}) {
+            MultipartReader reader = new MultipartReader(trickle(content, maxRead), BOUNDARY, -1, -1);
+            for (int i = 0; i < files.length; i++) {
+                MultipartReader.Part part = reader.next();
+                assertNotNull(part);
+                assertEquals("f" + i, part.getName());
+                assertEquals("f" + i + ".nii.gz", part.getFileName());
+                assertEquals("application/gzip", part.getContentType());
+                assertArrayEquals("part " + i + " read " + maxRead + " at a time", files[i], readAll(part.getInputStream()));
+            }
+            assertNull(reader.next());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void testSkipUnreadParts() throws IOException {
+        byte[] content = multipart(new byte[10_000], "second".getBytes(StandardCharsets.US_ASCII));
+        MultipartReader reader = new MultipartReader(trickle(content, 100), BOUNDARY, -1, -1);
+        MultipartReader.Part first = reader.next();
+        assertEquals(0, first.getInputStream().read());
+        MultipartReader.Part second = reader.next();
+        // the previous part is no longer readable
+        assertEquals(-1, first.getInputStream().read());
+        assertEquals("second", new String(readAll(second.getInputStream()), StandardCharsets.US_ASCII));
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void testLimits() throws IOException {
+        byte[] content = multipart(new byte[1000], new byte[10]);
+        MultipartReader reader = new MultipartReader(new ByteArrayInputStream(content), BOUNDARY, 500, -1);
+        try {
+            readAll(reader.next().getInputStream());
+            fail("part size limit was not enforced");
+        } catch (MultipartReader.SizeLimitException ex) {
+            // expected
+        }
+        // the other parts can still be read
+        assertEquals(10, readAll(reader.next().getInputStream()).length);
+
+        reader = new MultipartReader(new ByteArrayInputStream(content), BOUNDARY, -1, 500);
+        try {
+            readAll(reader.next().getInputStream());
+            fail("content size limit was not enforced");
+        } catch (MultipartReader.SizeLimitException ex) {
+            // expected
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncated() throws IOException {
+        byte[] content = multipart(new byte[1000]);
+        byte[] truncated = new byte[content.length - 30];
+        System.arraycopy(content, 0, truncated, 0, truncated.length);
+        MultipartReader reader = new MultipartReader(new ByteArrayInputStream(truncated), BOUNDARY, -1, -1);
+        readAll(reader.next().getInputStream());
+    }
+}
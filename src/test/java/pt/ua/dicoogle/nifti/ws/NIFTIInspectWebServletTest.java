@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.ws;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import pt.ua.dicoogle.nifti.convert.NIFTIConverterImpl;
+import pt.ua.dicoogle.nifti.convert.SyntheticVolume;
+
+/**
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class NIFTIInspectWebServletTest {
+
+    /** Counts the bytes read from a stream. */
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    @Test
+    public void testInspect() throws IOException {
+        byte[] volume = SyntheticVolume.create(SyntheticVolume.datatype("INT16"), new int[]{64, 48, 30, 4});
+        NIFTIConverterImpl converter = new NIFTIConverterImpl();
+        for (byte[] content : new byte[][]{volume, SyntheticVolume.gzip(volume)}) {
+            CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(content));
+            JSONObject json = NIFTIInspectWebServlet.inspect(converter, in);
+            assertFalse(json.has("error"));
+            JSONArray dims = json.getJSONArray("dims");
+            assertEquals(4, dims.size());
+            assertEquals(64, ((Number) dims.get(0)).intValue());
+            assertEquals(4, ((Number) dims.get(3)).intValue());
+            assertEquals(4, json.getJSONArray("pixdim").size());
+            assertTrue(json.has("qform"));
+            assertTrue(json.has("sform"));
+            assertTrue(json.has("calMin"));
+            assertTrue(json.has("calMax"));
+            assertEquals(120, number(json, "objects"));
+            assertEquals(64L * 48 * 30 * 4 * 2, number(json, "outputBytes"));
+            assertTrue(number(json, "memoryBytes") > 0);
+            // only the header is read, even when compressed
+            assertTrue("read " + in.count + " bytes", in.count < 8192);
+        }
+
+        NIFTIConverterImpl multiFrameConverter = new NIFTIConverterImpl();
+        multiFrameConverter.setMultiFrame(true);
+        JSONObject json = NIFTIInspectWebServlet.inspect(multiFrameConverter, new ByteArrayInputStream(volume));
+        assertEquals(4, number(json, "objects"));
+    }
+
+    @Test
+    public void testNotNifti() throws IOException {
+        JSONObject json = NIFTIInspectWebServlet.inspect(new NIFTIConverterImpl(),
+                new ByteArrayInputStream(new byte[400]));
+        assertTrue(json.has("error"));
+        assertFalse(json.has("objects"));
+    }
+
+    private static long number(JSONObject json, String key) {
+        return ((Number) json.get(key)).longValue();
+    }
+}
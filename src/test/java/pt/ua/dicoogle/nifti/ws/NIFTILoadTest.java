@@ -0,0 +1,248 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.ws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import net.sf.json.JSONObject;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.ua.dicoogle.nifti.config.NIFTIPluginSettings;
+import pt.ua.dicoogle.nifti.convert.SyntheticVolume;
+
+import static org.junit.Assert.*;
+
+/** A load test of the conversion web service, running the plugin's handlers
+ * in an embedded Jetty server with an in-memory storage, and uploading
+ * synthetic volumes from concurrent clients. Reports the throughput, the
+ * latency percentiles and the peak heap usage.
+ *
+ * It only runs when asked to, with {@code -Dnifti.loadtest=true}. The load
+ * is tuned with the system properties {@code nifti.loadtest.threads},
+ * {@code nifti.loadtest.requests}, {@code nifti.loadtest.files} (per request),
+ * {@code nifti.loadtest.size} (e.g. {@code 128x128x32x1}),
+ * {@code nifti.loadtest.datatype} (e.g. {@code INT16}),
+ * {@code nifti.loadtest.gzip} (whether files are uploaded GZip compressed,
+ * true by default) and {@code nifti.loadtest.storage} ({@code discard}, the
+ * default, or {@code memory} to keep the stored objects).
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class NIFTILoadTest {
+    private static final Logger logger = LoggerFactory.getLogger(NIFTILoadTest.class);
+
+    private static final String BOUNDARY = "----nifti-load-test";
+
+    private final int threads = Integer.getInteger("nifti.loadtest.threads", 4);
+    private final int requests = Integer.getInteger("nifti.loadtest.requests", 64);
+    private final int filesPerRequest = Integer.getInteger("nifti.loadtest.files", 1);
+    private final int[] dims = SyntheticVolume.dimensions(System.getProperty("nifti.loadtest.size", "128x128x32x1"));
+    private final short datatype = SyntheticVolume.datatype(System.getProperty("nifti.loadtest.datatype", "INT16"));
+    private final boolean gzip = Boolean.parseBoolean(System.getProperty("nifti.loadtest.gzip", "true"));
+    private final boolean keepObjects = "memory".equalsIgnoreCase(System.getProperty("nifti.loadtest.storage", "discard"));
+
+    private FakePlatform platform;
+    private Server server;
+    private URL convertUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue("Load test not requested", Boolean.getBoolean("nifti.loadtest"));
+        NIFTIPluginSettings.INSTANCE.setStorageScheme(FakePlatform.SCHEME);
+        platform = new FakePlatform(keepObjects);
+        NIFTIServletPlugin plugin = new NIFTIServletPlugin();
+        plugin.setPlatformProxy(platform.getPlatform());
+        server = new Server(0);
+        server.setHandler(plugin.getJettyHandlers());
+        server.start();
+        int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+        convertUrl = new URL("http://localhost:" + port + "/nifti/convert");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testConcurrentUploads() throws Exception {
+        final byte[] volume = SyntheticVolume.create(datatype, dims);
+        final byte[] body = multipartBody(gzip ? SyntheticVolume.gzip(volume) : volume);
+        final int objectsPerFile = dims[2] * dims[3];
+        logger.info("Load test: {} requests of {} x {} ({} bytes, {}) from {} clients, {} storage",
+                requests, filesPerRequest, Arrays.toString(dims), body.length, gzip ? "compressed" : "uncompressed",
+                threads, keepObjects ? "in-memory" : "discarding");
+
+        // warm up the server before measuring
+        assertEquals(filesPerRequest * objectsPerFile, upload(body));
+
+        HeapSampler heap = new HeapSampler();
+        heap.start();
+        ExecutorService clients = Executors.newFixedThreadPool(threads);
+        long[] latencies = new long[requests];
+        long start = System.nanoTime();
+        try {
+            List<Future<Integer>> results = new ArrayList<>(requests);
+            for (int i = 0; i < requests; i++) {
+                final int r = i;
+                results.add(clients.submit(() -> {
+                    long t = System.nanoTime();
+                    int n = upload(body);
+                    latencies[r] = System.nanoTime() - t;
+                    return n;
+                }));
+            }
+            for (Future<Integer> result : results) {
+                assertEquals(filesPerRequest * objectsPerFile, (int) result.get());
+            }
+        } finally {
+            clients.shutdownNow();
+            heap.interrupt();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        heap.join();
+
+        Arrays.sort(latencies);
+        long volumeBytes = (long) volume.length * filesPerRequest * requests;
+        logger.info("Throughput: {} requests/s, {} MB/s of volume data, {} objects/s",
+                format(requests / seconds), format(volumeBytes / seconds / (1 << 20)),
+                format((double) requests * filesPerRequest * objectsPerFile / seconds));
+        logger.info("Latency: p50 {} ms, p99 {} ms, max {} ms",
+                format(percentile(latencies, 50) / 1e6), format(percentile(latencies, 99) / 1e6),
+                format(latencies[latencies.length - 1] / 1e6));
+        logger.info("Peak heap: {} MB sampled, {} MB in pools",
+                format(heap.peak / (double) (1 << 20)), format(peakHeapPools() / (double) (1 << 20)));
+        assertEquals((long) (requests + 1) * filesPerRequest * objectsPerFile, platform.getObjectCount());
+        if (keepObjects) {
+            assertEquals(platform.getObjectCount(), platform.getStoredObjects().size());
+        }
+    }
+
+    /** Upload the request body to the service.
+     * @return the number of stored objects in the reply
+     */
+    private int upload(byte[] body) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) convertUrl.openConnection();
+        try {
+            conn.setDoOutput(true);
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+            conn.setFixedLengthStreamingMode(body.length);
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(body);
+            }
+            assertEquals(200, conn.getResponseCode());
+            try (InputStream in = conn.getInputStream()) {
+                JSONObject reply = JSONObject.fromObject(new String(readAll(in), StandardCharsets.UTF_8));
+                return reply.getJSONArray("dcmFiles").size();
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private byte[] multipartBody(byte[] file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < filesPerRequest; i++) {
+            String name = "load" + i + "_" + dims[0] + "x" + dims[1] + (gzip ? ".nii.gz" : ".nii");
+            out.write(("--" + BOUNDARY + "\r\n"
+                    + "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + name + "\"\r\n"
+                    + "Content-Type: " + (gzip ? "application/gzip" : "application/octet-stream")
+                    + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(file);
+            out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        out.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        return out.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int i = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+    }
+
+    private static long peakHeapPools() {
+        long peak = 0;
+        for (MemoryPoolMXBean bean : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (bean.getType() == MemoryType.HEAP) {
+                peak += bean.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static String format(double value) {
+        return String.format("%.1f", value);
+    }
+
+    /** Samples the used heap until interrupted. */
+    private static class HeapSampler extends Thread {
+        private volatile long peak;
+
+        HeapSampler() {
+            super("nifti-heap-sampler");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Runtime rt = Runtime.getRuntime();
+            while (!isInterrupted()) {
+                peak = Math.max(peak, rt.totalMemory() - rt.freeMemory());
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+    }
+}
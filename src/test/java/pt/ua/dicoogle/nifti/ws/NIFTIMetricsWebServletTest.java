@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.ws;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import pt.ua.dicoogle.nifti.util.ConversionMetrics;
+
+/**
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class NIFTIMetricsWebServletTest {
+
+    @Test
+    public void testExposition() {
+        JobRegistry jobs = new JobRegistry();
+        NIFTIConvertWebServlet convert = new NIFTIConvertWebServlet(jobs);
+        ConversionMetrics metrics = convert.getMetrics();
+        metrics.record(ConversionMetrics.Stage.STORE, 2_000_000);
+        metrics.count(ConversionMetrics.Counter.VOXELS, 4096);
+        jobs.create(1);
+
+        StringWriter sw = new StringWriter();
+        new NIFTIMetricsWebServlet(convert, jobs).write(new PrintWriter(sw));
+        List<String> lines = Arrays.asList(sw.toString().split("\n"));
+
+        assertTrue(lines.contains("# TYPE nifti_stage_seconds histogram"));
+        assertTrue(lines.contains("nifti_stage_seconds_bucket{stage=\"store\",le=\"0.001\"} 0"));
+        assertTrue(lines.contains("nifti_stage_seconds_bucket{stage=\"store\",le=\"0.005\"} 1"));
+        assertTrue(lines.contains("nifti_stage_seconds_bucket{stage=\"store\",le=\"+Inf\"} 1"));
+        assertTrue(lines.contains("nifti_stage_seconds_sum{stage=\"store\"} 0.002"));
+        assertTrue(lines.contains("nifti_stage_seconds_count{stage=\"read\"} 0"));
+        assertTrue(lines.contains("# TYPE nifti_voxels_total counter"));
+        assertTrue(lines.contains("nifti_voxels_total 4096"));
+        assertTrue(lines.contains("nifti_requests_in_flight 0"));
+        assertTrue(lines.contains("nifti_jobs 1"));
+        assertTrue(lines.contains("nifti_buffer_pool_bytes_in_flight 0"));
+        // every sample is preceded by its type
+        for (String line : lines) {
+            if (!line.startsWith("#")) {
+                String name = line.split("[ {]")[0].replaceAll("_(bucket|sum|count)$", "");
+                assertTrue(line, sw.toString().contains("# TYPE " + name + " ")
+                        || sw.toString().contains("# TYPE " + line.split("[ {]")[0] + " "));
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.ws;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.VR;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import pt.ua.dicoogle.sdk.StorageInterface;
+
+/**
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class StorageStageTest {
+
+    private static DicomObject object(int i) {
+        DicomObject obj = new BasicDicomObject();
+        obj.putString(Tag.SOPInstanceUID, VR.UI, "1.2.3." + i);
+        return obj;
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        for (int threads : new int[]{0, 1, 4}) {
+            StorageStage stage = new StorageStage(threads);
+            AtomicInteger maxPending = new AtomicInteger();
+            AtomicInteger pending = new AtomicInteger();
+            StorageInterface storage = new FakePlatform().getStorage();
+            StorageInterface slowStorage = (StorageInterface) java.lang.reflect.Proxy.newProxyInstance(
+                    StorageInterface.class.getClassLoader(), new Class<?>[]{StorageInterface.class},
+                    (self, method, args) -> {
+                        if ("store".equals(method.getName())) {
+                            Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+                            String uid = ((DicomObject) args[0]).getString(Tag.SOPInstanceUID);
+                            // leave one out to check that missing URIs are skipped
+                            return uid.endsWith(".7") ? null : URI.create("mem:/" + uid);
+                        }
+                        return method.invoke(storage, args);
+                    });
+            List<String> expected = new ArrayList<>();
+            AtomicInteger stored = new AtomicInteger();
+            try (StorageStage.Pipeline pipeline = stage.open(slowStorage, 3)) {
+                for (int i = 0; i < 40; i++) {
+                    if (i != 7) {
+                        expected.add("mem:/1.2.3." + i);
+                    }
+                    maxPending.accumulateAndGet(pending.incrementAndGet(), Math::max);
+                    pipeline.put(object(i), obj -> {
+                        pending.decrementAndGet();
+                        stored.incrementAndGet();
+                    });
+                }
+                assertEquals(expected, pipeline.finish());
+                assertFalse(pipeline.isComplete());
+            }
+            assertEquals(40, stored.get());
+            assertTrue("too many pending objects: " + maxPending.get(), maxPending.get() <= 4);
+            assertEquals(0, stage.getWaiting());
+            assertEquals(0, stage.getStoring());
+            assertTrue(stage.drain(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        StorageStage stage = new StorageStage(2);
+        StorageInterface failing = (StorageInterface) java.lang.reflect.Proxy.newProxyInstance(
+                StorageInterface.class.getClassLoader(), new Class<?>[]{StorageInterface.class},
+                (self, method, args) -> {
+                    throw new IllegalStateException("disk full");
+                });
+        try (StorageStage.Pipeline pipeline = stage.open(failing, 2)) {
+            pipeline.put(object(0), obj -> fail("object was not stored"));
+            pipeline.finish();
+            fail("storage failure was not reported");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        } finally {
+            stage.drain(10, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.ws;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class WorkerPoolTest {
+
+    @Test
+    public void testRejection() throws Exception {
+        WorkerPool pool = new WorkerPool(2, 1);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            for (int i = 0; i < 2; i++) {
+                pool.execute(() -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            assertFalse(pool.isSaturated());
+            Future<Integer> queued = pool.submit(() -> 1);
+            assertEquals(1, pool.getQueueSize());
+            assertTrue(pool.isSaturated());
+            try {
+                pool.submit(() -> 2);
+                fail("task should have been rejected");
+            } catch (RejectedExecutionException ex) {
+                // expected
+            }
+            release.countDown();
+            assertEquals(1, (int) queued.get(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            pool.drain(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testDrain() throws Exception {
+        WorkerPool pool = new WorkerPool(1, 4);
+        AtomicInteger done = new AtomicInteger();
+        for (int i = 0; i < 4; i++) {
+            pool.execute(() -> {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                done.incrementAndGet();
+            });
+        }
+        // queued tasks are run before the pool terminates
+        assertTrue(pool.drain(10, TimeUnit.SECONDS));
+        assertEquals(4, done.get());
+        try {
+            pool.execute(done::incrementAndGet);
+            fail("task should have been rejected");
+        } catch (RejectedExecutionException ex) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.util;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import niftijio.niftijio.NiftiHeader;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/** Checks the flight recorder events of the Java 11 section of the
+ * multi-release jar, which are only loaded from the packaged jar: events
+ * taken by a recording carry the attributes which were given to them.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class FlightEventsIT {
+
+    @Test
+    public void testRecorded() throws Exception {
+        assertTrue("the flight recorder events were not loaded", FlightEvents.isAvailable());
+        short[] dim = {4, 64, 64, 16, 2, 1, 1, 1};
+        Path file = Files.createTempFile("nifti-test", ".jfr");
+        try {
+            try (Recording recording = new Recording()) {
+                for (String name : new String[]{"Request", "VolumeDecode", "SliceConversion", "Store"}) {
+                    recording.enable("pt.ua.dicoogle.nifti." + name);
+                }
+                recording.start();
+                FlightEvents.request().request(7).scheme("mem").bytes(123456).status(200).commit();
+                FlightEvents.volume().request(7).volume(dim, NiftiHeader.NIFTI_TYPE_INT16).bytes(262144).commit();
+                FlightEvents.slice().request(7).volume(dim, NiftiHeader.NIFTI_TYPE_INT16).slice(3).bytes(8192)
+                        .commit();
+                // attributes which do not apply to the event are ignored
+                FlightEvents.store().request(7).scheme("mem").slice(3).status(500).bytes(8192).commit();
+                recording.stop();
+                recording.dump(file);
+            }
+            // without a recording, no events are created
+            assertSame(FlightEvent.NONE, FlightEvents.request());
+
+            List<RecordedEvent> recorded = RecordingFile.readAllEvents(file);
+            assertEquals(4, recorded.size());
+            Map<String, RecordedEvent> events = recorded.stream()
+                    .collect(Collectors.toMap(e -> e.getEventType().getName(), Function.identity()));
+
+            RecordedEvent request = events.get("pt.ua.dicoogle.nifti.Request");
+            assertEquals(7, request.getLong("request"));
+            assertEquals("mem", request.getString("storageScheme"));
+            assertEquals(123456, request.getLong("bytes"));
+            assertEquals(200, request.getInt("status"));
+
+            RecordedEvent volume = events.get("pt.ua.dicoogle.nifti.VolumeDecode");
+            assertEquals(7, volume.getLong("request"));
+            assertEquals("64x64x16x2", volume.getString("dims"));
+            assertEquals(NiftiHeader.decodeDatatype(NiftiHeader.NIFTI_TYPE_INT16), volume.getString("datatype"));
+            assertEquals(262144, volume.getLong("bytes"));
+
+            RecordedEvent slice = events.get("pt.ua.dicoogle.nifti.SliceConversion");
+            assertEquals(7, slice.getLong("request"));
+            assertEquals("64x64x16x2", slice.getString("dims"));
+            assertEquals(3, slice.getInt("slice"));
+            assertEquals(8192, slice.getLong("bytes"));
+
+            RecordedEvent store = events.get("pt.ua.dicoogle.nifti.Store");
+            assertEquals(7, store.getLong("request"));
+            assertEquals("mem", store.getString("storageScheme"));
+            assertEquals(8192, store.getLong("bytes"));
+            assertFalse(store.hasField("status"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
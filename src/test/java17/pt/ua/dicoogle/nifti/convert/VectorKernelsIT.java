@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2017 UA.PT Bioinformatics - http://bioinformatics.ua.pt
+ *
+ * This file is part of Dicoogle NIfTI-1 file converter (dicoogle-nifti).
+ *
+ * dicoogle-nifti is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * dicoogle-nifti is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.nifti.convert;
+
+import niftijio.niftijio.NiftiHeader;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/** Checks the vectorized kernels of the Java 17 section of the multi-release
+ * jar, which are only loaded from the packaged jar, in a JVM started with the
+ * Vector API module. The kernels must then be available, and produce the same
+ * output as the scalar ones.
+ *
+ * @author Eduardo Pinho <eduardopinho@ua.pt>
+ */
+public class VectorKernelsIT extends VectorKernelsTest {
+
+    @Test
+    public void testAvailable() {
+        assertTrue("the vectorized kernels were not loaded", VectorKernels.isAvailable());
+        for (short datatype : new short[]{NiftiHeader.NIFTI_TYPE_INT16, NiftiHeader.NIFTI_TYPE_UINT16,
+                NiftiHeader.NIFTI_TYPE_INT32, NiftiHeader.NIFTI_TYPE_UINT32}) {
+            SliceKernel scalar = SliceKernel.scalarForDatatype(datatype);
+            assertNotSame(NiftiHeader.decodeDatatype(datatype), scalar, VectorKernels.vectorize(scalar));
+        }
+    }
+}